@@ -1408,6 +1408,679 @@ public final class SearchProto {
     // @@protoc_insertion_point(class_scope:search.SearchResponse)
   }
   
+  public static final class SearchUpdate extends
+      com.google.protobuf.GeneratedMessage {
+    // Use SearchUpdate.newBuilder() to construct.
+    private SearchUpdate() {
+      initFields();
+    }
+    private SearchUpdate(boolean noInit) {}
+    
+    private static final SearchUpdate defaultInstance;
+    public static SearchUpdate getDefaultInstance() {
+      return defaultInstance;
+    }
+    
+    public SearchUpdate getDefaultInstanceForType() {
+      return defaultInstance;
+    }
+    
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return org.waveprotocol.box.search.SearchProto.internal_static_search_SearchUpdate_descriptor;
+    }
+    
+    protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return org.waveprotocol.box.search.SearchProto.internal_static_search_SearchUpdate_fieldAccessorTable;
+    }
+    
+    // required int32 totalResults = 1;
+    public static final int TOTALRESULTS_FIELD_NUMBER = 1;
+    private boolean hasTotalResults;
+    private int totalResults_ = 0;
+    public boolean hasTotalResults() { return hasTotalResults; }
+    public int getTotalResults() { return totalResults_; }
+    
+    // repeated string waveIds = 2;
+    public static final int WAVEIDS_FIELD_NUMBER = 2;
+    private java.util.List<java.lang.String> waveIds_ =
+      java.util.Collections.emptyList();
+    public java.util.List<java.lang.String> getWaveIdsList() {
+      return waveIds_;
+    }
+    public int getWaveIdsCount() { return waveIds_.size(); }
+    public java.lang.String getWaveIds(int index) {
+      return waveIds_.get(index);
+    }
+    
+    // repeated .search.SearchUpdate.Digest digests = 3;
+    public static final int DIGESTS_FIELD_NUMBER = 3;
+    private java.util.List<org.waveprotocol.box.search.SearchProto.SearchResponse.Digest> digests_ =
+      java.util.Collections.emptyList();
+    public java.util.List<org.waveprotocol.box.search.SearchProto.SearchResponse.Digest> getDigestsList() {
+      return digests_;
+    }
+    public int getDigestsCount() { return digests_.size(); }
+    public org.waveprotocol.box.search.SearchProto.SearchResponse.Digest getDigests(int index) {
+      return digests_.get(index);
+    }
+    
+    private void initFields() {
+    }
+    public final boolean isInitialized() {
+      if (!hasTotalResults) return false;
+      for (org.waveprotocol.box.search.SearchProto.SearchResponse.Digest element : getDigestsList()) {
+        if (!element.isInitialized()) return false;
+      }
+      return true;
+    }
+    
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      getSerializedSize();
+      if (hasTotalResults()) {
+        output.writeInt32(1, getTotalResults());
+      }
+      for (java.lang.String element : getWaveIdsList()) {
+        output.writeString(2, element);
+      }
+      for (org.waveprotocol.box.search.SearchProto.SearchResponse.Digest element : getDigestsList()) {
+        output.writeMessage(3, element);
+      }
+      getUnknownFields().writeTo(output);
+    }
+    
+    private int memoizedSerializedSize = -1;
+    public int getSerializedSize() {
+      int size = memoizedSerializedSize;
+      if (size != -1) return size;
+    
+      size = 0;
+      if (hasTotalResults()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(1, getTotalResults());
+      }
+      {
+        int dataSize = 0;
+        for (java.lang.String element : getWaveIdsList()) {
+          dataSize += com.google.protobuf.CodedOutputStream
+            .computeStringSizeNoTag(element);
+        }
+        size += dataSize;
+        size += 1 * getWaveIdsList().size();
+      }
+      for (org.waveprotocol.box.search.SearchProto.SearchResponse.Digest element : getDigestsList()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeMessageSize(3, element);
+      }
+      size += getUnknownFields().getSerializedSize();
+      memoizedSerializedSize = size;
+      return size;
+    }
+    
+    public static org.waveprotocol.box.search.SearchProto.SearchUpdate parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static org.waveprotocol.box.search.SearchProto.SearchUpdate parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static org.waveprotocol.box.search.SearchProto.SearchUpdate parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static org.waveprotocol.box.search.SearchProto.SearchUpdate parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static org.waveprotocol.box.search.SearchProto.SearchUpdate parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static org.waveprotocol.box.search.SearchProto.SearchUpdate parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static org.waveprotocol.box.search.SearchProto.SearchUpdate parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static org.waveprotocol.box.search.SearchProto.SearchUpdate parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input, extensionRegistry)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static org.waveprotocol.box.search.SearchProto.SearchUpdate parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static org.waveprotocol.box.search.SearchProto.SearchUpdate parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    
+    public static Builder newBuilder() { return Builder.create(); }
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder(org.waveprotocol.box.search.SearchProto.SearchUpdate prototype) {
+      return newBuilder().mergeFrom(prototype);
+    }
+    public Builder toBuilder() { return newBuilder(this); }
+    
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessage.Builder<Builder> {
+      private org.waveprotocol.box.search.SearchProto.SearchUpdate result;
+      
+      // Construct using org.waveprotocol.box.search.SearchProto.SearchUpdate.newBuilder()
+      private Builder() {}
+      
+      private static Builder create() {
+        Builder builder = new Builder();
+        builder.result = new org.waveprotocol.box.search.SearchProto.SearchUpdate();
+        return builder;
+      }
+      
+      protected org.waveprotocol.box.search.SearchProto.SearchUpdate internalGetResult() {
+        return result;
+      }
+      
+      public Builder clear() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "Cannot call clear() after build().");
+        }
+        result = new org.waveprotocol.box.search.SearchProto.SearchUpdate();
+        return this;
+      }
+      
+      public Builder clone() {
+        return create().mergeFrom(result);
+      }
+      
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return org.waveprotocol.box.search.SearchProto.SearchUpdate.getDescriptor();
+      }
+      
+      public org.waveprotocol.box.search.SearchProto.SearchUpdate getDefaultInstanceForType() {
+        return org.waveprotocol.box.search.SearchProto.SearchUpdate.getDefaultInstance();
+      }
+      
+      public boolean isInitialized() {
+        return result.isInitialized();
+      }
+      public org.waveprotocol.box.search.SearchProto.SearchUpdate build() {
+        if (result != null && !isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return buildPartial();
+      }
+      
+      private org.waveprotocol.box.search.SearchProto.SearchUpdate buildParsed()
+          throws com.google.protobuf.InvalidProtocolBufferException {
+        if (!isInitialized()) {
+          throw newUninitializedMessageException(
+            result).asInvalidProtocolBufferException();
+        }
+        return buildPartial();
+      }
+      
+      public org.waveprotocol.box.search.SearchProto.SearchUpdate buildPartial() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "build() has already been called on this Builder.");
+        }
+        if (result.waveIds_ != java.util.Collections.EMPTY_LIST) {
+          result.waveIds_ =
+            java.util.Collections.unmodifiableList(result.waveIds_);
+        }
+        if (result.digests_ != java.util.Collections.EMPTY_LIST) {
+          result.digests_ =
+            java.util.Collections.unmodifiableList(result.digests_);
+        }
+        org.waveprotocol.box.search.SearchProto.SearchUpdate returnMe = result;
+        result = null;
+        return returnMe;
+      }
+      
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof org.waveprotocol.box.search.SearchProto.SearchUpdate) {
+          return mergeFrom((org.waveprotocol.box.search.SearchProto.SearchUpdate)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+      
+      public Builder mergeFrom(org.waveprotocol.box.search.SearchProto.SearchUpdate other) {
+        if (other == org.waveprotocol.box.search.SearchProto.SearchUpdate.getDefaultInstance()) return this;
+        if (other.hasTotalResults()) {
+          setTotalResults(other.getTotalResults());
+        }
+        if (!other.waveIds_.isEmpty()) {
+          if (result.waveIds_.isEmpty()) {
+            result.waveIds_ = new java.util.ArrayList<java.lang.String>();
+          }
+          result.waveIds_.addAll(other.waveIds_);
+        }
+        if (!other.digests_.isEmpty()) {
+          if (result.digests_.isEmpty()) {
+            result.digests_ = new java.util.ArrayList<org.waveprotocol.box.search.SearchProto.SearchResponse.Digest>();
+          }
+          result.digests_.addAll(other.digests_);
+        }
+        this.mergeUnknownFields(other.getUnknownFields());
+        return this;
+      }
+      
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder(
+            this.getUnknownFields());
+        while (true) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              this.setUnknownFields(unknownFields.build());
+              return this;
+            default: {
+              if (!parseUnknownField(input, unknownFields,
+                                     extensionRegistry, tag)) {
+                this.setUnknownFields(unknownFields.build());
+                return this;
+              }
+              break;
+            }
+            case 8: {
+              setTotalResults(input.readInt32());
+              break;
+            }
+            case 18: {
+              addWaveIds(input.readString());
+              break;
+            }
+            case 26: {
+              org.waveprotocol.box.search.SearchProto.SearchResponse.Digest.Builder subBuilder = org.waveprotocol.box.search.SearchProto.SearchResponse.Digest.newBuilder();
+              input.readMessage(subBuilder, extensionRegistry);
+              addDigests(subBuilder.buildPartial());
+              break;
+            }
+          }
+        }
+      }
+      
+      
+      // required int32 totalResults = 1;
+      public boolean hasTotalResults() {
+        return result.hasTotalResults();
+      }
+      public int getTotalResults() {
+        return result.getTotalResults();
+      }
+      public Builder setTotalResults(int value) {
+        result.hasTotalResults = true;
+        result.totalResults_ = value;
+        return this;
+      }
+      public Builder clearTotalResults() {
+        result.hasTotalResults = false;
+        result.totalResults_ = 0;
+        return this;
+      }
+      
+      // repeated string waveIds = 2;
+      public java.util.List<java.lang.String> getWaveIdsList() {
+        return java.util.Collections.unmodifiableList(result.waveIds_);
+      }
+      public int getWaveIdsCount() {
+        return result.getWaveIdsCount();
+      }
+      public java.lang.String getWaveIds(int index) {
+        return result.getWaveIds(index);
+      }
+      public Builder setWaveIds(int index, java.lang.String value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  result.waveIds_.set(index, value);
+        return this;
+      }
+      public Builder addWaveIds(java.lang.String value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  if (result.waveIds_.isEmpty()) {
+          result.waveIds_ = new java.util.ArrayList<java.lang.String>();
+        }
+        result.waveIds_.add(value);
+        return this;
+      }
+      public Builder addAllWaveIds(
+          java.lang.Iterable<? extends java.lang.String> values) {
+        if (result.waveIds_.isEmpty()) {
+          result.waveIds_ = new java.util.ArrayList<java.lang.String>();
+        }
+        super.addAll(values, result.waveIds_);
+        return this;
+      }
+      public Builder clearWaveIds() {
+        result.waveIds_ = java.util.Collections.emptyList();
+        return this;
+      }
+      
+      // repeated .search.SearchUpdate.Digest digests = 3;
+      public java.util.List<org.waveprotocol.box.search.SearchProto.SearchResponse.Digest> getDigestsList() {
+        return java.util.Collections.unmodifiableList(result.digests_);
+      }
+      public int getDigestsCount() {
+        return result.getDigestsCount();
+      }
+      public org.waveprotocol.box.search.SearchProto.SearchResponse.Digest getDigests(int index) {
+        return result.getDigests(index);
+      }
+      public Builder setDigests(int index, org.waveprotocol.box.search.SearchProto.SearchResponse.Digest value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        result.digests_.set(index, value);
+        return this;
+      }
+      public Builder setDigests(int index, org.waveprotocol.box.search.SearchProto.SearchResponse.Digest.Builder builderForValue) {
+        result.digests_.set(index, builderForValue.build());
+        return this;
+      }
+      public Builder addDigests(org.waveprotocol.box.search.SearchProto.SearchResponse.Digest value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        if (result.digests_.isEmpty()) {
+          result.digests_ = new java.util.ArrayList<org.waveprotocol.box.search.SearchProto.SearchResponse.Digest>();
+        }
+        result.digests_.add(value);
+        return this;
+      }
+      public Builder addDigests(org.waveprotocol.box.search.SearchProto.SearchResponse.Digest.Builder builderForValue) {
+        if (result.digests_.isEmpty()) {
+          result.digests_ = new java.util.ArrayList<org.waveprotocol.box.search.SearchProto.SearchResponse.Digest>();
+        }
+        result.digests_.add(builderForValue.build());
+        return this;
+      }
+      public Builder addAllDigests(
+          java.lang.Iterable<? extends org.waveprotocol.box.search.SearchProto.SearchResponse.Digest> values) {
+        if (result.digests_.isEmpty()) {
+          result.digests_ = new java.util.ArrayList<org.waveprotocol.box.search.SearchProto.SearchResponse.Digest>();
+        }
+        super.addAll(values, result.digests_);
+        return this;
+      }
+      public Builder clearDigests() {
+        result.digests_ = java.util.Collections.emptyList();
+        return this;
+      }
+      
+      // @@protoc_insertion_point(builder_scope:search.SearchUpdate)
+    }
+    
+    static {
+      defaultInstance = new SearchUpdate(true);
+      org.waveprotocol.box.search.SearchProto.internalForceInit();
+      defaultInstance.initFields();
+    }
+    
+    // @@protoc_insertion_point(class_scope:search.SearchUpdate)
+  }
+  
+  public static abstract class SearchRpc
+      implements com.google.protobuf.Service {
+    protected SearchRpc() {}
+    
+    public interface Interface {
+      public abstract void search(
+          com.google.protobuf.RpcController controller,
+          org.waveprotocol.box.search.SearchProto.SearchRequest request,
+          com.google.protobuf.RpcCallback<org.waveprotocol.box.search.SearchProto.SearchUpdate> done);
+      
+    }
+    
+    public static com.google.protobuf.Service newReflectiveService(
+        final Interface impl) {
+      return new SearchRpc() {
+        @Override
+        public  void search(
+            com.google.protobuf.RpcController controller,
+            org.waveprotocol.box.search.SearchProto.SearchRequest request,
+            com.google.protobuf.RpcCallback<org.waveprotocol.box.search.SearchProto.SearchUpdate> done) {
+          impl.search(controller, request, done);
+        }
+        
+      };
+    }
+    
+    public static com.google.protobuf.BlockingService
+        newReflectiveBlockingService(final BlockingInterface impl) {
+      return new com.google.protobuf.BlockingService() {
+        public final com.google.protobuf.Descriptors.ServiceDescriptor
+            getDescriptorForType() {
+          return getDescriptor();
+        }
+        
+        public final com.google.protobuf.Message callBlockingMethod(
+            com.google.protobuf.Descriptors.MethodDescriptor method,
+            com.google.protobuf.RpcController controller,
+            com.google.protobuf.Message request)
+            throws com.google.protobuf.ServiceException {
+          if (method.getService() != getDescriptor()) {
+            throw new java.lang.IllegalArgumentException(
+              "Service.callBlockingMethod() given method descriptor for " +
+              "wrong service type.");
+          }
+          switch(method.getIndex()) {
+            case 0:
+              return impl.search(controller, (org.waveprotocol.box.search.SearchProto.SearchRequest)request);
+            default:
+              throw new java.lang.AssertionError("Can't get here.");
+          }
+        }
+        
+        public final com.google.protobuf.Message
+            getRequestPrototype(
+            com.google.protobuf.Descriptors.MethodDescriptor method) {
+          if (method.getService() != getDescriptor()) {
+            throw new java.lang.IllegalArgumentException(
+              "Service.getRequestPrototype() given method " +
+              "descriptor for wrong service type.");
+          }
+          switch(method.getIndex()) {
+            case 0:
+              return org.waveprotocol.box.search.SearchProto.SearchRequest.getDefaultInstance();
+            default:
+              throw new java.lang.AssertionError("Can't get here.");
+          }
+        }
+        
+        public final com.google.protobuf.Message
+            getResponsePrototype(
+            com.google.protobuf.Descriptors.MethodDescriptor method) {
+          if (method.getService() != getDescriptor()) {
+            throw new java.lang.IllegalArgumentException(
+              "Service.getResponsePrototype() given method " +
+              "descriptor for wrong service type.");
+          }
+          switch(method.getIndex()) {
+            case 0:
+              return org.waveprotocol.box.search.SearchProto.SearchUpdate.getDefaultInstance();
+            default:
+              throw new java.lang.AssertionError("Can't get here.");
+          }
+        }
+        
+      };
+    }
+    
+    public abstract void search(
+        com.google.protobuf.RpcController controller,
+        org.waveprotocol.box.search.SearchProto.SearchRequest request,
+        com.google.protobuf.RpcCallback<org.waveprotocol.box.search.SearchProto.SearchUpdate> done);
+    
+    public static final
+        com.google.protobuf.Descriptors.ServiceDescriptor
+        getDescriptor() {
+      return org.waveprotocol.box.search.SearchProto.getDescriptor().getServices().get(0);
+    }
+    public final com.google.protobuf.Descriptors.ServiceDescriptor
+        getDescriptorForType() {
+      return getDescriptor();
+    }
+    
+    public final void callMethod(
+        com.google.protobuf.Descriptors.MethodDescriptor method,
+        com.google.protobuf.RpcController controller,
+        com.google.protobuf.Message request,
+        com.google.protobuf.RpcCallback<
+          com.google.protobuf.Message> done) {
+      if (method.getService() != getDescriptor()) {
+        throw new java.lang.IllegalArgumentException(
+          "Service.callMethod() given method descriptor for wrong " +
+          "service type.");
+      }
+      switch(method.getIndex()) {
+        case 0:
+          this.search(controller, (org.waveprotocol.box.search.SearchProto.SearchRequest)request,
+            com.google.protobuf.RpcUtil.<org.waveprotocol.box.search.SearchProto.SearchUpdate>specializeCallback(
+              done));
+          return;
+        default:
+          throw new java.lang.AssertionError("Can't get here.");
+      }
+    }
+    
+    public final com.google.protobuf.Message
+        getRequestPrototype(
+        com.google.protobuf.Descriptors.MethodDescriptor method) {
+      if (method.getService() != getDescriptor()) {
+        throw new java.lang.IllegalArgumentException(
+          "Service.getRequestPrototype() given method " +
+          "descriptor for wrong service type.");
+      }
+      switch(method.getIndex()) {
+        case 0:
+          return org.waveprotocol.box.search.SearchProto.SearchRequest.getDefaultInstance();
+        default:
+          throw new java.lang.AssertionError("Can't get here.");
+      }
+    }
+    
+    public final com.google.protobuf.Message
+        getResponsePrototype(
+        com.google.protobuf.Descriptors.MethodDescriptor method) {
+      if (method.getService() != getDescriptor()) {
+        throw new java.lang.IllegalArgumentException(
+          "Service.getResponsePrototype() given method " +
+          "descriptor for wrong service type.");
+      }
+      switch(method.getIndex()) {
+        case 0:
+          return org.waveprotocol.box.search.SearchProto.SearchUpdate.getDefaultInstance();
+        default:
+          throw new java.lang.AssertionError("Can't get here.");
+      }
+    }
+    
+    public static Stub newStub(
+        com.google.protobuf.RpcChannel channel) {
+      return new Stub(channel);
+    }
+    
+    public static final class Stub extends org.waveprotocol.box.search.SearchProto.SearchRpc implements Interface {
+      private Stub(com.google.protobuf.RpcChannel channel) {
+        this.channel = channel;
+      }
+      
+      private final com.google.protobuf.RpcChannel channel;
+      
+      public com.google.protobuf.RpcChannel getChannel() {
+        return channel;
+      }
+      
+      public  void search(
+          com.google.protobuf.RpcController controller,
+          org.waveprotocol.box.search.SearchProto.SearchRequest request,
+          com.google.protobuf.RpcCallback<org.waveprotocol.box.search.SearchProto.SearchUpdate> done) {
+        channel.callMethod(
+          getDescriptor().getMethods().get(0),
+          controller,
+          request,
+          org.waveprotocol.box.search.SearchProto.SearchUpdate.getDefaultInstance(),
+          com.google.protobuf.RpcUtil.generalizeCallback(
+            done,
+            org.waveprotocol.box.search.SearchProto.SearchUpdate.class,
+            org.waveprotocol.box.search.SearchProto.SearchUpdate.getDefaultInstance()));
+      }
+    }
+    
+    public static BlockingInterface newBlockingStub(
+        com.google.protobuf.BlockingRpcChannel channel) {
+      return new BlockingStub(channel);
+    }
+    
+    public interface BlockingInterface {
+      public org.waveprotocol.box.search.SearchProto.SearchUpdate search(
+          com.google.protobuf.RpcController controller,
+          org.waveprotocol.box.search.SearchProto.SearchRequest request)
+          throws com.google.protobuf.ServiceException;
+    }
+    
+    private static final class BlockingStub implements BlockingInterface {
+      private BlockingStub(com.google.protobuf.BlockingRpcChannel channel) {
+        this.channel = channel;
+      }
+      
+      private final com.google.protobuf.BlockingRpcChannel channel;
+      
+      public org.waveprotocol.box.search.SearchProto.SearchUpdate search(
+          com.google.protobuf.RpcController controller,
+          org.waveprotocol.box.search.SearchProto.SearchRequest request)
+          throws com.google.protobuf.ServiceException {
+        return (org.waveprotocol.box.search.SearchProto.SearchUpdate) channel.callBlockingMethod(
+          getDescriptor().getMethods().get(0),
+          controller,
+          request,
+          org.waveprotocol.box.search.SearchProto.SearchUpdate.getDefaultInstance());
+      }
+      
+    }
+  }
+  
   private static com.google.protobuf.Descriptors.Descriptor
     internal_static_search_SearchRequest_descriptor;
   private static
@@ -1423,6 +2096,11 @@ public final class SearchProto {
   private static
     com.google.protobuf.GeneratedMessage.FieldAccessorTable
       internal_static_search_SearchResponse_Digest_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_search_SearchUpdate_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_search_SearchUpdate_fieldAccessorTable;
   
   public static com.google.protobuf.Descriptors.FileDescriptor
       getDescriptor() {
@@ -1433,16 +2111,22 @@ public final class SearchProto {
   static {
     java.lang.String[] descriptorData = {
       "\n(org/waveprotocol/box/search/search.pro" +
-      "to\022\006search\"A\n\rSearchRequest\022\r\n\005query\030\001 \002" +
-      "(\t\022\r\n\005index\030\002 \002(\005\022\022\n\nnumResults\030\003 \002(\005\"\204\002" +
-      "\n\016SearchResponse\022\r\n\005query\030\001 \002(\t\022\024\n\014total" +
-      "Results\030\002 \002(\005\022.\n\007digests\030\003 \003(\0132\035.search." +
-      "SearchResponse.Digest\032\234\001\n\006Digest\022\r\n\005titl" +
-      "e\030\001 \002(\t\022\017\n\007snippet\030\002 \002(\t\022\016\n\006waveId\030\003 \002(\t" +
-      "\022\024\n\014lastModified\030\004 \002(\003\022\023\n\013unreadCount\030\005 " +
-      "\002(\005\022\021\n\tblipCount\030\006 \002(\005\022\024\n\014participants\030\007" +
-      " \003(\t\022\016\n\006author\030\010 \002(\tB*\n\033org.waveprotocol",
-      ".box.searchB\013SearchProto"
+      "to\022\006search\032)org/waveprotocol/box/server/" +
+      "rpc/rpc.proto\"A\n\rSearchRequest\022\r\n\005query\030" +
+      "\001 \002(\t\022\r\n\005index\030\002 \002(\005\022\022\n\nnumResults\030\003 \002(\005" +
+      "\"\204\002\n\016SearchResponse\022\r\n\005query\030\001 \002(\t\022\024\n\014to" +
+      "talResults\030\002 \002(\005\022.\n\007digests\030\003 \003(\0132\035.sear" +
+      "ch.SearchResponse.Digest\032\234\001\n\006Digest\022\r\n\005t" +
+      "itle\030\001 \002(\t\022\017\n\007snippet\030\002 \002(\t\022\016\n\006waveId\030\003 " +
+      "\002(\t\022\024\n\014lastModified\030\004 \002(\003\022\023\n\013unreadCount" +
+      "\030\005 \002(\005\022\021\n\tblipCount\030\006 \002(\005\022\024\n\014participant",
+      "s\030\007 \003(\t\022\016\n\006author\030\010 \002(\t\"e\n\014SearchUpdate\022" +
+      "\024\n\014totalResults\030\001 \002(\005\022\017\n\007waveIds\030\002 \003(\t\022." +
+      "\n\007digests\030\003 \003(\0132\035.search.SearchResponse." +
+      "Digest2G\n\tSearchRpc\022:\n\006Search\022\025.search.S" +
+      "earchRequest\032\024.search.SearchUpdate\"\003\330>\001B" +
+      "*\n\033org.waveprotocol.box.searchB\013SearchPr" +
+      "oto"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
       new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
@@ -1473,12 +2157,25 @@ public final class SearchProto {
               new java.lang.String[] { "Title", "Snippet", "WaveId", "LastModified", "UnreadCount", "BlipCount", "Participants", "Author", },
               org.waveprotocol.box.search.SearchProto.SearchResponse.Digest.class,
               org.waveprotocol.box.search.SearchProto.SearchResponse.Digest.Builder.class);
-          return null;
+          internal_static_search_SearchUpdate_descriptor =
+            getDescriptor().getMessageTypes().get(2);
+          internal_static_search_SearchUpdate_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_search_SearchUpdate_descriptor,
+              new java.lang.String[] { "TotalResults", "WaveIds", "Digests", },
+              org.waveprotocol.box.search.SearchProto.SearchUpdate.class,
+              org.waveprotocol.box.search.SearchProto.SearchUpdate.Builder.class);
+          com.google.protobuf.ExtensionRegistry registry =
+            com.google.protobuf.ExtensionRegistry.newInstance();
+          registerAllExtensions(registry);
+          org.waveprotocol.box.server.rpc.Rpc.registerAllExtensions(registry);
+          return registry;
         }
       };
     com.google.protobuf.Descriptors.FileDescriptor
       .internalBuildGeneratedFileFrom(descriptorData,
         new com.google.protobuf.Descriptors.FileDescriptor[] {
+          org.waveprotocol.box.server.rpc.Rpc.getDescriptor(),
         }, assigner);
   }
   
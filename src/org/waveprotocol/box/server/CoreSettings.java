@@ -36,12 +36,40 @@ public class CoreSettings {
   public static final String ENABLE_FEDERATION = "enable_federation";
   public static final String SIGNER_INFO_STORE_TYPE = "signer_info_store_type";
   public static final String SIGNER_INFO_STORE_DIRECTORY = "signer_info_store_directory";
+  public static final String VERIFIED_CERT_CHAIN_CACHE_SIZE = "verified_cert_chain_cache_size";
   public static final String ATTACHMENT_STORE_TYPE = "attachment_store_type";
   public static final String ATTACHMENT_STORE_DIRECTORY = "attachment_store_directory";
   public static final String ACCOUNT_STORE_TYPE = "account_store_type";
   public static final String ACCOUNT_STORE_DIRECTORY = "account_store_directory";
+  public static final String ACCOUNT_CACHE_SIZE = "account_cache_size";
   public static final String DELTA_STORE_TYPE = "delta_store_type";
   public static final String DELTA_STORE_DIRECTORY = "delta_store_directory";
+  public static final String DELTA_STORE_SNAPSHOT_INTERVAL_DELTAS =
+      "delta_store_snapshot_interval_deltas";
+  public static final String DELTA_STORE_SNAPSHOT_INTERVAL_BYTES =
+      "delta_store_snapshot_interval_bytes";
+  public static final String DELTA_STORE_GROUP_COMMIT_WINDOW_MS =
+      "delta_store_group_commit_window_ms";
+  public static final String DELTA_STORE_GROUP_COMMIT_BYTES = "delta_store_group_commit_bytes";
+  public static final String DELTA_HISTORY_RESIDENT_DELTAS = "delta_history_resident_deltas";
+  public static final String DELTA_HISTORY_CACHE_BYTES = "delta_history_cache_bytes";
+  public static final String DELTA_HISTORY_COMPOSED_SEGMENTS = "delta_history_composed_segments";
+  public static final String MAX_RESIDENT_WAVELETS = "max_resident_wavelets";
+  public static final String PERSIST_EXECUTOR_THREADS = "persist_executor_threads";
+  public static final String STORAGE_CONTINUATION_EXECUTOR_THREADS =
+      "storage_continuation_executor_threads";
+  public static final String PARTICIPANT_INDEX_FILE = "participant_index_file";
+  public static final String CONTENT_INDEX_FILE = "content_index_file";
+  public static final String WAVE_BUS_ASYNC_DISPATCH = "wave_bus_async_dispatch";
+  public static final String STATS_LOG_INTERVAL_SECONDS = "stats_log_interval_seconds";
+  public static final String SEARCH_DIGEST_CACHE_SIZE = "search_digest_cache_size";
+  public static final String MAX_RECONNECT_DELTA_VERSIONS = "max_reconnect_delta_versions";
+  public static final String ROBOT_MAX_IN_FLIGHT_BUNDLES = "robot_max_in_flight_bundles";
+  public static final String ROBOT_MAX_QUEUED_WAVELETS = "robot_max_queued_wavelets";
+  public static final String ROBOT_REQUEST_TIMEOUT_MS = "robot_request_timeout_ms";
+  public static final String ROBOT_CIRCUIT_BREAKER_FAILURES = "robot_circuit_breaker_failures";
+  public static final String ROBOT_CIRCUIT_BREAKER_COOLDOWN_MS =
+      "robot_circuit_breaker_cooldown_ms";
   public static final String SESSIONS_STORE_DIRECTORY = "sessions_store_directory";
   public static final String FLASHSOCKET_POLICY_PORT = "flashsocket_policy_port";
   public static final String USE_SOCKETIO = "use_socketio";
@@ -87,6 +115,12 @@ public class CoreSettings {
       defaultValue = "_certificates")
   private static String signerInfoStoreDirectory;
 
+  @Setting(name = VERIFIED_CERT_CHAIN_CACHE_SIZE,
+      description = "Maximum number of signer certificate chains whose successful validation is "
+          + "cached.",
+      defaultValue = "1024")
+  private static int verifiedCertChainCacheSize;
+
   @Setting(name = ATTACHMENT_STORE_TYPE,
       description = "Type of persistence store to use for attachments", defaultValue = "disk")
   private static String attachmentStoreType;
@@ -107,6 +141,12 @@ public class CoreSettings {
       defaultValue = "_accounts")
   private static String accountStoreDirectory;
 
+  @Setting(name = ACCOUNT_CACHE_SIZE,
+      description = "Maximum number of accounts cached in front of the account store, including "
+          + "participants without an account. 0 disables the cache.",
+      defaultValue = "10000")
+  private static int accountCacheSize;
+
   @Setting(name = DELTA_STORE_TYPE,
       description = "Type of persistence to use for the deltas", defaultValue = "memory")
   private static String deltaStoreType;
@@ -117,6 +157,130 @@ public class CoreSettings {
       defaultValue = "_deltas")
   private static String deltaStoreDirectory;
 
+  @Setting(name = DELTA_STORE_SNAPSHOT_INTERVAL_DELTAS,
+      description = "Number of deltas after which a snapshot of a wavelet is stored in the delta "
+          + "store, so loading the wavelet only replays the deltas after it. 0 disables.",
+      defaultValue = "1000")
+  private static int deltaStoreSnapshotIntervalDeltas;
+
+  @Setting(name = DELTA_STORE_SNAPSHOT_INTERVAL_BYTES,
+      description = "Number of bytes of deltas after which a snapshot of a wavelet is stored in "
+          + "the delta store. 0 disables.",
+      defaultValue = "1048576")
+  private static int deltaStoreSnapshotIntervalBytes;
+
+  @Setting(name = DELTA_STORE_GROUP_COMMIT_WINDOW_MS,
+      description = "Milliseconds to gather appends to the file delta store before forcing them "
+          + "to disk together. 0 forces every append on its own.",
+      defaultValue = "0")
+  private static int deltaStoreGroupCommitWindowMs;
+
+  @Setting(name = DELTA_STORE_GROUP_COMMIT_BYTES,
+      description = "Number of appended bytes after which the gathered appends are forced to "
+          + "disk without waiting for the rest of the group commit window. 0 means no limit.",
+      defaultValue = "1048576")
+  private static int deltaStoreGroupCommitBytes;
+
+  @Setting(name = DELTA_HISTORY_RESIDENT_DELTAS,
+      description = "Number of persisted deltas of each wavelet kept in memory. Older deltas are "
+          + "read from the delta store when requested.",
+      defaultValue = "1000")
+  private static int deltaHistoryResidentDeltas;
+
+  @Setting(name = DELTA_HISTORY_CACHE_BYTES,
+      description = "Size in bytes of the cache of older deltas read from the delta store, "
+          + "shared by all wavelets. 0 disables.",
+      defaultValue = "33554432")
+  private static int deltaHistoryCacheBytes;
+
+  @Setting(name = DELTA_HISTORY_COMPOSED_SEGMENTS,
+      description = "Whether to cache composed power-of-two version segments of the deltas of "
+          + "each wavelet kept in memory, to transform late client deltas against.",
+      defaultValue = "true")
+  private static boolean deltaHistoryComposedSegments;
+
+  @Setting(name = MAX_RESIDENT_WAVELETS,
+      description = "Number of wavelets kept in memory. Beyond it, the least recently used "
+          + "wavelets are unloaded once their deltas are persisted. 0 means no limit.",
+      defaultValue = "10000")
+  private static int maxResidentWavelets;
+
+  @Setting(name = PERSIST_EXECUTOR_THREADS,
+      description = "Number of threads writing deltas to the delta store. Each wavelet's deltas "
+          + "are written in order, so this bounds how many wavelets are written at once.",
+      defaultValue = "4")
+  private static int persistExecutorThreads;
+
+  @Setting(name = STORAGE_CONTINUATION_EXECUTOR_THREADS,
+      description = "Number of threads running the work which follows the writes, such as "
+          + "commit notifications.",
+      defaultValue = "4")
+  private static int storageContinuationExecutorThreads;
+
+  @Setting(name = PARTICIPANT_INDEX_FILE,
+      description = "File in which the index of wavelets by participant is kept between restarts, "
+          + "so it does not have to be rebuilt from the delta store. Empty keeps it in memory.",
+      defaultValue = "")
+  private static String participantIndexFile;
+
+  @Setting(name = CONTENT_INDEX_FILE,
+      description = "File in which the full-text index of wave contents is kept between "
+          + "restarts, so it does not have to be rebuilt from the delta store. Empty keeps it "
+          + "in memory.",
+      defaultValue = "")
+  private static String contentIndexFile;
+
+  @Setting(name = WAVE_BUS_ASYNC_DISPATCH,
+      description = "Whether wavelet updates are queued for the wave bus subscribers and "
+          + "federation hosts, rather than delivered while the wavelet is locked.",
+      defaultValue = "false")
+  private static boolean waveBusAsyncDispatch;
+
+  @Setting(name = STATS_LOG_INTERVAL_SECONDS,
+      description = "Seconds between logging the statistics of the wave server's queues and "
+          + "executor pools. 0 disables.",
+      defaultValue = "300")
+  private static int statsLogIntervalSeconds;
+
+  @Setting(name = SEARCH_DIGEST_CACHE_SIZE,
+      description = "Number of waves whose search digests are cached until they change.",
+      defaultValue = "10000")
+  private static int searchDigestCacheSize;
+
+  @Setting(name = MAX_RECONNECT_DELTA_VERSIONS,
+      description = "Most versions a client reopening a wave may be behind a wavelet to be sent "
+          + "the deltas it missed rather than a snapshot. 0 always sends snapshots.",
+      defaultValue = "1000")
+  private static int maxReconnectDeltaVersions;
+
+  @Setting(name = ROBOT_MAX_IN_FLIGHT_BUNDLES,
+      description = "Most event bundles sent to a passive robot and not yet answered.",
+      defaultValue = "2")
+  private static int robotMaxInFlightBundles;
+
+  @Setting(name = ROBOT_MAX_QUEUED_WAVELETS,
+      description = "Most wavelets queued for a passive robot; the oldest are dropped beyond this.",
+      defaultValue = "1000")
+  private static int robotMaxQueuedWavelets;
+
+  @Setting(name = ROBOT_REQUEST_TIMEOUT_MS,
+      description = "Timeout, in milliseconds, of connecting to a robot and of waiting for its "
+          + "response.",
+      defaultValue = "30000")
+  private static int robotRequestTimeoutMs;
+
+  @Setting(name = ROBOT_CIRCUIT_BREAKER_FAILURES,
+      description = "Number of consecutive failed event bundles after which the events for a "
+          + "passive robot are dropped for a cooldown.",
+      defaultValue = "5")
+  private static int robotCircuitBreakerFailures;
+
+  @Setting(name = ROBOT_CIRCUIT_BREAKER_COOLDOWN_MS,
+      description = "Time, in milliseconds, for which the events for a failing passive robot are "
+          + "dropped.",
+      defaultValue = "60000")
+  private static int robotCircuitBreakerCooldownMs;
+
   @Setting(name = SESSIONS_STORE_DIRECTORY,
       description = "Location on disk where the user sessions are persisted. Must be writeable by the "
           + "wave-in-a-box process.",
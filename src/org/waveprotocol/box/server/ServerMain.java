@@ -30,10 +30,13 @@ import com.google.inject.name.Names;
 import org.apache.commons.configuration.ConfigurationException;
 import org.eclipse.jetty.servlets.ProxyServlet;
 import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveClientRpc;
+import org.waveprotocol.box.search.SearchProto.SearchRpc;
 import org.waveprotocol.box.server.authentication.AccountStoreHolder;
 import org.waveprotocol.box.server.authentication.SessionManager;
 import org.waveprotocol.box.server.frontend.ClientFrontend;
 import org.waveprotocol.box.server.frontend.ClientFrontendImpl;
+import org.waveprotocol.box.server.frontend.LiveSearchManager;
+import org.waveprotocol.box.server.frontend.SearchRpcImpl;
 import org.waveprotocol.box.server.frontend.WaveClientRpcImpl;
 import org.waveprotocol.box.server.frontend.WaveletInfo;
 import org.waveprotocol.box.server.persistence.AccountStore;
@@ -48,6 +51,7 @@ import org.waveprotocol.box.server.robots.agent.passwd.PasswordRobot;
 import org.waveprotocol.box.server.robots.agent.welcome.WelcomeRobot;
 import org.waveprotocol.box.server.robots.dataapi.DataApiOAuthServlet;
 import org.waveprotocol.box.server.robots.dataapi.DataApiServlet;
+import org.waveprotocol.box.server.robots.operations.SearchDigestCache;
 import org.waveprotocol.box.server.robots.passive.RobotsGateway;
 import org.waveprotocol.box.server.rpc.AttachmentServlet;
 import org.waveprotocol.box.server.rpc.AuthenticationServlet;
@@ -60,7 +64,9 @@ import org.waveprotocol.box.server.rpc.UserRegistrationServlet;
 import org.waveprotocol.box.server.rpc.WaveClientServlet;
 import org.waveprotocol.box.server.rpc.WaveRefServlet;
 import org.waveprotocol.box.server.waveserver.WaveBus;
+import org.waveprotocol.box.server.waveserver.WaveMap;
 import org.waveprotocol.box.server.waveserver.WaveServerException;
+import org.waveprotocol.box.server.waveserver.WaveServerStats;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
 import org.waveprotocol.wave.crypto.CertPathStore;
 import org.waveprotocol.wave.federation.FederationSettings;
@@ -75,6 +81,8 @@ import org.waveprotocol.wave.util.settings.SettingsBinder;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -199,6 +207,23 @@ public class ServerMain {
     // Initialize the server.
     WaveletProvider waveServer = injector.getInstance(WaveletProvider.class);
     waveServer.initialize();
+
+    int statsInterval = injector.getInstance(
+        Key.get(Integer.class, Names.named(CoreSettings.STATS_LOG_INTERVAL_SECONDS)));
+    if (statsInterval > 0) {
+      Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(
+          injector.getInstance(WaveServerStats.class), statsInterval, statsInterval,
+          TimeUnit.SECONDS);
+    }
+
+    // Write the search index on shutdown, so the next start reads less.
+    final WaveMap waveMap = injector.getInstance(WaveMap.class);
+    Runtime.getRuntime().addShutdownHook(new Thread("Close wave map") {
+      @Override
+      public void run() {
+        waveMap.close();
+      }
+    });
   }
 
   private static void initializeServlets(Injector injector, ServerRpcProvider server) {
@@ -234,6 +259,7 @@ public class ServerMain {
   private static void initializeRobots(Injector injector, WaveBus waveBus) {
     RobotsGateway robotsGateway = injector.getInstance(RobotsGateway.class);
     waveBus.subscribe(robotsGateway);
+    waveBus.subscribe(injector.getInstance(SearchDigestCache.class));
   }
 
   private static void initializeRobotAgents(Injector injector, ServerRpcProvider server) {
@@ -243,16 +269,22 @@ public class ServerMain {
   }
 
   private static void initializeFrontend(Injector injector, ServerRpcProvider server,
-      WaveBus waveBus) throws WaveServerException {
+      WaveBus waveBus) {
     HashedVersionFactory hashFactory = injector.getInstance(HashedVersionFactory.class);
 
     WaveletProvider provider = injector.getInstance(WaveletProvider.class);
     WaveletInfo waveletInfo = WaveletInfo.create(hashFactory, provider);
-    ClientFrontend frontend =
-        ClientFrontendImpl.create(provider, waveBus, waveletInfo);
+    int maxReconnectDeltaVersions = injector.getInstance(
+        Key.get(Integer.class, Names.named(CoreSettings.MAX_RECONNECT_DELTA_VERSIONS)));
+    ClientFrontend frontend = ClientFrontendImpl.create(provider, waveBus, waveletInfo,
+        maxReconnectDeltaVersions);
 
     ProtocolWaveClientRpc.Interface rpcImpl = WaveClientRpcImpl.create(frontend, false);
     server.registerService(ProtocolWaveClientRpc.newReflectiveService(rpcImpl));
+
+    LiveSearchManager searchManager = injector.getInstance(LiveSearchManager.class);
+    waveBus.subscribe(searchManager);
+    server.registerService(SearchRpc.newReflectiveService(new SearchRpcImpl(searchManager)));
   }
 
   private static void initializeFederation(Injector injector) {
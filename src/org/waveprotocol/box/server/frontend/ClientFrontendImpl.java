@@ -18,17 +18,22 @@
 package org.waveprotocol.box.server.frontend;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import org.waveprotocol.box.common.DeltaSequence;
-import org.waveprotocol.box.common.ExceptionalIterator;
 import org.waveprotocol.box.common.comms.WaveClientRpc;
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.waveserver.AccessControlException;
 import org.waveprotocol.box.server.waveserver.WaveBus;
 import org.waveprotocol.box.server.waveserver.WaveServerException;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
 import org.waveprotocol.box.server.waveserver.WaveletProvider.SubmitRequestListener;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
 import org.waveprotocol.wave.model.id.IdFilter;
+import org.waveprotocol.wave.model.id.InvalidIdException;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
@@ -42,6 +47,7 @@ import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -51,6 +57,14 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  * When a wavelet is added and it's not at version 0, buffer updates until a
  * request for the wavelet's history has completed.
+ *
+ * A client reopening a wave may say which versions of its wavelets it already
+ * has. It is sent the deltas it is missing on those wavelets, if there are few
+ * enough, rather than a snapshot.
+ *
+ * Updates are sent straight to the subscriptions indexed by {@link WaveletInfo}
+ * for the wavelet, other than those of participants added or removed by the
+ * update, so they may be delivered for many wavelets at once.
  */
 public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
   private static final Log LOG = Log.get(ClientFrontendImpl.class);
@@ -59,20 +73,21 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
 
   private final WaveletProvider waveletProvider;
   private final WaveletInfo waveletInfo;
+  private final int maxReconnectDeltaVersions;
 
   /**
    * Creates a client frontend and subscribes it to the wave bus.
    *
-   * @throws WaveServerException if the server fails during initialization.
+   * @param maxReconnectDeltaVersions the most versions a client may be behind
+   *        a wavelet to be sent the missing deltas rather than a snapshot
    */
   public static ClientFrontendImpl create(WaveletProvider waveletProvider, WaveBus wavebus,
-      WaveletInfo waveletInfo) throws WaveServerException {
+      WaveletInfo waveletInfo, int maxReconnectDeltaVersions) {
 
     ClientFrontendImpl impl =
-        new ClientFrontendImpl(waveletProvider, waveletInfo);
+        new ClientFrontendImpl(waveletProvider, waveletInfo, maxReconnectDeltaVersions);
 
-    // Initialize all waves here until a separate index system exists.
-    impl.initialiseAllWaves();
+    // Waves are initialised when first opened.
     wavebus.subscribe(impl);
     return impl;
   }
@@ -81,13 +96,16 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
    * Constructor.
    *
    * @param waveletProvider
-   * @param waveDomain the server wave domain. It is assumed that the wave domain is valid.
+   * @param waveletInfo
+   * @param maxReconnectDeltaVersions the most versions a client may be behind
+   *        a wavelet to be sent the missing deltas rather than a snapshot
    */
   @VisibleForTesting
   ClientFrontendImpl(
-      WaveletProvider waveletProvider, WaveletInfo waveletInfo) {
+      WaveletProvider waveletProvider, WaveletInfo waveletInfo, int maxReconnectDeltaVersions) {
     this.waveletProvider = waveletProvider;
     this.waveletInfo = waveletInfo;
+    this.maxReconnectDeltaVersions = maxReconnectDeltaVersions;
   }
 
   @Override
@@ -102,9 +120,16 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
       return;
     }
 
-    if (!knownWavelets.isEmpty()) {
-      openListener.onFailure("Known wavelets not supported");
-      return;
+    Map<WaveletId, HashedVersion> knownVersions = Maps.newHashMap();
+    for (WaveClientRpc.WaveletVersion known : knownWavelets) {
+      try {
+        knownVersions.put(ModernIdSerialiser.INSTANCE.deserialiseWaveletId(known.getWaveletId()),
+            CoreWaveletOperationSerializer.deserialize(known.getHashedVersion()));
+      } catch (InvalidIdException e) {
+        LOG.warning("Invalid known wavelet id in open request", e);
+        openListener.onFailure("Invalid known wavelet id: " + known.getWaveletId());
+        return;
+      }
     }
 
     try {
@@ -116,10 +141,11 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
     }
 
     String channelId = generateChannelID();
-    UserManager userManager = waveletInfo.getUserManager(loggedInUser);
-    synchronized (userManager) {
-      WaveViewSubscription subscription =
-          userManager.subscribe(waveId, waveletIdFilter, channelId, openListener);
+    WaveViewSubscription subscription =
+        new WaveViewSubscription(waveId, waveletIdFilter, channelId, openListener);
+    // Updates to the subscription wait until the initial state has been sent.
+    synchronized (subscription) {
+      waveletInfo.subscribe(loggedInUser, subscription);
       LOG.info("Subscribed " + loggedInUser + " to " + waveId + " channel " + channelId);
 
       Set<WaveletId> waveletIds;
@@ -136,16 +162,16 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
         // (the shared domain participant), then all implicit participant that
         // were authorized should be unsubsrcibed.
         waveletInfo.notifyAddedImplcitParticipant(waveletName, loggedInUser);
-        // The WaveletName by which the waveletProvider knows the relevant deltas
 
-        // TODO(anorth): if the client provides known wavelets, calculate
-        // where to start sending deltas from.
+        HashedVersion knownVersion = knownVersions.get(waveletId);
+        if (knownVersion != null
+            && sendMissingDeltas(waveletName, knownVersion, channelId, openListener)) {
+          continue;
+        }
 
         CommittedWaveletSnapshot snapshotToSend;
 
         // Send a snapshot of the current state.
-        // TODO(anorth): calculate resync point if the client already knows
-        // a snapshot.
         try {
           snapshotToSend = waveletProvider.getSnapshot(waveletName);
         } catch (WaveServerException e) {
@@ -178,26 +204,50 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
     }
   }
 
-  private String generateChannelID() {
-    return "ch" + channel_counter.addAndGet(1);
-  }
-
   /**
-   * Initializes in-memory state for all waves by scanning
-   * the wavelet provider.
+   * Sends a client the deltas it is missing on a wavelet, if the version it
+   * knows is in the wavelet's history and not too far behind.
+   *
+   * @return whether the deltas were sent; if not, the client should be sent a
+   *         snapshot instead.
    */
-  @VisibleForTesting
-  void initialiseAllWaves() throws WaveServerException {
-    // It is still required because of the current implementation of search
-    // functionality that creates per user wave views by traversing all the
-    // waves.
-    // TODO (Yuri Z.) Remove this method and replace with lazy waves loading
-    // instead.
-    ExceptionalIterator<WaveId, WaveServerException> witr = waveletProvider.getWaveIds();
-    while (witr.hasNext()) {
-      WaveId waveId = witr.next();
-      waveletInfo.initialiseWave(waveId);
+  private boolean sendMissingDeltas(WaveletName waveletName, HashedVersion knownVersion,
+      String channelId, OpenListener openListener) {
+    HashedVersion currentVersion = waveletInfo.getCurrentWaveletVersion(waveletName);
+    long missingVersions = currentVersion.getVersion() - knownVersion.getVersion();
+    if (missingVersions < 0 || missingVersions > maxReconnectDeltaVersions) {
+      return false;
+    }
+    DeltaSequence missingDeltas;
+    if (missingVersions == 0) {
+      if (!knownVersion.equals(currentVersion)) {
+        return false;
+      }
+      missingDeltas = DeltaSequence.empty();
+    } else {
+      try {
+        missingDeltas =
+            DeltaSequence.of(waveletProvider.getHistory(waveletName, knownVersion, currentVersion));
+      } catch (AccessControlException e) {
+        // The known version is not in the history, e.g. its hash doesn't match.
+        LOG.info("Client's known version " + knownVersion + " of " + waveletName
+            + " is not in the wavelet history");
+        return false;
+      } catch (WaveServerException e) {
+        LOG.warning("Failed to retrieve history for wavelet " + waveletName, e);
+        return false;
+      }
+      if (missingDeltas.isEmpty() || !missingDeltas.getEndVersion().equals(currentVersion)) {
+        return false;
+      }
     }
+    LOG.info("sending " + missingDeltas.size() + " missing deltas of " + waveletName);
+    openListener.onUpdate(waveletName, null, missingDeltas, null, null, channelId);
+    return true;
+  }
+
+  private String generateChannelID() {
+    return "ch" + channel_counter.addAndGet(1);
   }
 
   @Override
@@ -232,8 +282,8 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
 
   @Override
   public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
-    for (ParticipantId participant : waveletInfo.getWaveletParticipants(waveletName)) {
-      waveletInfo.getUserManager(participant).onCommit(waveletName, version);
+    for (WaveViewSubscription subscription : waveletInfo.getSubscriptions(waveletName).values()) {
+      subscription.onCommit(waveletName, version);
     }
   }
 
@@ -270,35 +320,57 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
     }
 
     WaveletName waveletName = WaveletName.of(wavelet.getWaveId(), wavelet.getWaveletId());
-    waveletInfo.syncWaveletVersion(waveletName, newDeltas);
+    if (!waveletInfo.syncWaveletVersion(wavelet, newDeltas)) {
+      return;
+    }
 
-    Set<ParticipantId> remainingparticipants =
-        Sets.newHashSet(waveletInfo.getWaveletParticipants(waveletName));
+    // The subscriptions of the participants before the update.
+    ImmutableListMultimap<ParticipantId, WaveViewSubscription> subscriptions =
+        waveletInfo.getSubscriptions(waveletName);
+    // Participants added or removed during the course of newDeltas, if any.
+    Set<ParticipantId> changedParticipants = null;
+    // Those of them who end up being participants.
+    Set<ParticipantId> remainingParticipants = null;
     // Participants added during the course of newDeltas.
-    Set<ParticipantId> newParticipants = Sets.newHashSet();
+    Set<ParticipantId> newParticipants = null;
     for (int i = 0; i < newDeltas.size(); i++) {
       TransformedWaveletDelta delta = newDeltas.get(i);
       // Participants added or removed in this delta get the whole delta.
       for (WaveletOperation op : delta) {
+        if (op instanceof AddParticipant || op instanceof RemoveParticipant) {
+          if (changedParticipants == null) {
+            changedParticipants = Sets.newHashSet();
+            remainingParticipants = Sets.newHashSet();
+            newParticipants = Sets.newHashSet();
+          }
+        }
         if (op instanceof AddParticipant) {
           ParticipantId p = ((AddParticipant) op).getParticipantId();
-          remainingparticipants.add(p);
+          changedParticipants.add(p);
+          remainingParticipants.add(p);
           newParticipants.add(p);
         }
         if (op instanceof RemoveParticipant) {
           ParticipantId p = ((RemoveParticipant) op).getParticipantId();
-          remainingparticipants.remove(p);
+          changedParticipants.add(p);
+          remainingParticipants.remove(p);
           participantUpdate(waveletName, p, newDeltas.subList(0, i + 1), newParticipants.remove(p),
               true);
         }
       }
     }
 
-    // Send out deltas to those who end up being participants at the end
-    // (either because they already were, or because they were added).
-    for (ParticipantId p : remainingparticipants) {
-      boolean isNew = newParticipants.contains(p);
-      participantUpdate(waveletName, p, newDeltas, isNew, false);
+    // Send out deltas to those who already were participants, and remain so.
+    for (Map.Entry<ParticipantId, WaveViewSubscription> entry : subscriptions.entries()) {
+      if (changedParticipants == null || !changedParticipants.contains(entry.getKey())) {
+        entry.getValue().onUpdate(waveletName, newDeltas);
+      }
+    }
+    // And to those who were added, or removed and added again.
+    if (remainingParticipants != null) {
+      for (ParticipantId p : remainingParticipants) {
+        participantUpdate(waveletName, p, newDeltas, newParticipants.contains(p), false);
+      }
     }
   }
 
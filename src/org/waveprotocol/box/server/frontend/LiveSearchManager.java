@@ -0,0 +1,300 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.frontend;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.wave.api.SearchResult;
+
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.search.SearchProto.SearchRequest;
+import org.waveprotocol.box.search.SearchProto.SearchResponse;
+import org.waveprotocol.box.search.SearchProto.SearchUpdate;
+import org.waveprotocol.box.server.robots.operations.SearchService;
+import org.waveprotocol.box.server.rpc.SearchServlet.SearchResponseUtils;
+import org.waveprotocol.box.server.waveserver.WaveBus;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the results of standing searches up to date, and sends each search's
+ * listener the digests which were inserted or changed.
+ *
+ * A search is run again only when a wavelet which its user participates in, or
+ * has just stopped participating in, changes. The changes made within
+ * {@link #REFRESH_DELAY_MS} of the first are coalesced into one run, which
+ * only costs a digest cache lookup for the waves which didn't change.
+ */
+@Singleton
+public class LiveSearchManager implements WaveBus.Subscriber {
+  private static final Log LOG = Log.get(LiveSearchManager.class);
+
+  /** How long to wait after a change before running affected searches again. */
+  private static final long REFRESH_DELAY_MS = 1000;
+
+  /**
+   * The number of searches kept for a user, beyond which the oldest is
+   * closed. Searches are closed when their RPC is cancelled, which includes
+   * their connection going away; this bounds the searches of a user who opens
+   * many at once.
+   */
+  @VisibleForTesting
+  static final int MAX_SEARCHES_PER_USER = 8;
+
+  /** Receives the results of a standing search. */
+  public interface Listener {
+    /** Notifies this listener of changed results. */
+    void onUpdate(SearchUpdate update);
+
+    /**
+     * Notifies this listener that the search was closed to make room for a
+     * newer search of the same user, and won't be updated any more.
+     */
+    void onClosed();
+  }
+
+  /** A standing search. */
+  public final class LiveSearch {
+    private final ParticipantId user;
+    private final SearchRequest request;
+    private final Listener listener;
+
+    /** The digests last sent to the listener, by wave id. Guarded by this. */
+    private final Map<String, SearchResponse.Digest> window = Maps.newHashMap();
+    /** The wave ids last sent to the listener. Guarded by this. */
+    private List<String> waveIds = null;
+    /** The total last sent to the listener. Guarded by this. */
+    private int total;
+
+    /** Whether a refresh is pending. Guarded by this. */
+    private boolean scheduled = false;
+    /** Whether the search is closed. Guarded by this. */
+    private boolean closed = false;
+    /** The number of refreshes started. Guarded by this. */
+    private int refreshesStarted = 0;
+    /** The number of the refresh whose results were last applied. Guarded by this. */
+    private int appliedRefresh = 0;
+
+    private final Runnable refreshTask = new Runnable() {
+      @Override
+      public void run() {
+        refresh();
+      }
+    };
+
+    LiveSearch(ParticipantId user, SearchRequest request, Listener listener) {
+      this.user = user;
+      this.request = request;
+      this.listener = listener;
+    }
+
+    /** Stops updating this search. */
+    public void close() {
+      synchronized (this) {
+        closed = true;
+      }
+      synchronized (LiveSearchManager.this) {
+        List<LiveSearch> userSearches = searches.get(user);
+        if (userSearches != null) {
+          userSearches.remove(this);
+          if (userSearches.isEmpty()) {
+            searches.remove(user);
+          }
+        }
+      }
+    }
+
+    /** Closes this search to make room for a newer one, and tells the listener. */
+    synchronized void evict() {
+      closed = true;
+      listener.onClosed();
+    }
+
+    /** Schedules a refresh, unless one is already pending. */
+    void refreshLater() {
+      synchronized (this) {
+        if (scheduled || closed) {
+          return;
+        }
+        scheduled = true;
+      }
+      executor.schedule(refreshTask, refreshDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs the search again, and sends the listener the changes to its
+     * results, if there are any. The search runs without holding this
+     * search's lock, so that changes arriving meanwhile schedule another
+     * refresh rather than wait for this one.
+     */
+    void refresh() {
+      int refreshNumber;
+      synchronized (this) {
+        scheduled = false;
+        if (closed) {
+          return;
+        }
+        refreshNumber = ++refreshesStarted;
+      }
+      SearchResult result;
+      try {
+        result = searchService.search(
+            user, request.getQuery(), request.getIndex(), request.getNumResults());
+      } catch (RuntimeException e) {
+        LOG.warning("Failed to refresh search " + request.getQuery() + " for " + user, e);
+        return;
+      }
+      int newTotal = SearchResponseUtils.estimateTotal(request, result);
+      List<SearchResponse.Digest> digests =
+          Lists.newArrayListWithCapacity(result.getNumResults());
+      for (SearchResult.Digest resultDigest : result.getDigests()) {
+        digests.add(SearchResponseUtils.serializeDigest(resultDigest));
+      }
+
+      synchronized (this) {
+        // A refresh started later may have finished first, with newer results.
+        if (closed || refreshNumber < appliedRefresh) {
+          return;
+        }
+        appliedRefresh = refreshNumber;
+        SearchUpdate.Builder update = SearchUpdate.newBuilder().setTotalResults(newTotal);
+        List<String> newWaveIds = Lists.newArrayListWithCapacity(digests.size());
+        Set<String> removedWaveIds = Sets.newHashSet(window.keySet());
+        for (SearchResponse.Digest digest : digests) {
+          String waveId = digest.getWaveId();
+          newWaveIds.add(waveId);
+          removedWaveIds.remove(waveId);
+          if (!digest.equals(window.get(waveId))) {
+            window.put(waveId, digest);
+            update.addDigests(digest);
+          }
+        }
+        if (waveIds != null && newWaveIds.equals(waveIds) && newTotal == total
+            && update.getDigestsCount() == 0) {
+          return;
+        }
+        window.keySet().removeAll(removedWaveIds);
+        waveIds = newWaveIds;
+        total = newTotal;
+        try {
+          listener.onUpdate(update.addAllWaveIds(newWaveIds).build());
+        } catch (RuntimeException e) {
+          // The stream may have finished while this refresh was running.
+          LOG.warning("Failed to send search update to " + user, e);
+        }
+      }
+    }
+  }
+
+  private final SearchService searchService;
+  private final ScheduledExecutorService executor;
+  private final long refreshDelayMs;
+
+  /** The open searches of each user, oldest first. Guarded by this. */
+  private final Map<ParticipantId, List<LiveSearch>> searches = Maps.newHashMap();
+
+  @Inject
+  public LiveSearchManager(SearchService searchService,
+      @Named("live_search_executor") ScheduledExecutorService executor) {
+    this(searchService, executor, REFRESH_DELAY_MS);
+  }
+
+  @VisibleForTesting
+  LiveSearchManager(SearchService searchService, ScheduledExecutorService executor,
+      long refreshDelayMs) {
+    this.searchService = searchService;
+    this.executor = executor;
+    this.refreshDelayMs = refreshDelayMs;
+  }
+
+  /**
+   * Opens a standing search, and sends the listener its first results before
+   * returning.
+   *
+   * @param user the user searching
+   * @param request the query and the window of results to keep up to date
+   * @param listener receives the results, first in full and then the changes
+   * @return the search, to close once it is no longer wanted
+   */
+  public LiveSearch search(ParticipantId user, SearchRequest request, Listener listener) {
+    LiveSearch search = new LiveSearch(user, request, listener);
+    LiveSearch evicted = null;
+    synchronized (this) {
+      List<LiveSearch> userSearches = searches.get(user);
+      if (userSearches == null) {
+        userSearches = Lists.newArrayList();
+        searches.put(user, userSearches);
+      }
+      userSearches.add(search);
+      if (userSearches.size() > MAX_SEARCHES_PER_USER) {
+        evicted = userSearches.remove(0);
+      }
+    }
+    if (evicted != null) {
+      evicted.evict();
+    }
+    search.refresh();
+    return search;
+  }
+
+  @Override
+  public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+    Set<ParticipantId> users = Sets.newHashSet(wavelet.getParticipants());
+    for (TransformedWaveletDelta delta : deltas) {
+      for (WaveletOperation op : delta) {
+        if (op instanceof RemoveParticipant) {
+          users.add(((RemoveParticipant) op).getParticipantId());
+        }
+      }
+    }
+    List<LiveSearch> affected = Lists.newArrayList();
+    synchronized (this) {
+      for (ParticipantId user : users) {
+        List<LiveSearch> userSearches = searches.get(user);
+        if (userSearches != null) {
+          affected.addAll(userSearches);
+        }
+      }
+    }
+    for (LiveSearch search : affected) {
+      search.refreshLater();
+    }
+  }
+
+  @Override
+  public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+    // No-op.
+  }
+}
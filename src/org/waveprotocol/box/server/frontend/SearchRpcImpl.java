@@ -0,0 +1,69 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.frontend;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+
+import org.waveprotocol.box.search.SearchProto.SearchRequest;
+import org.waveprotocol.box.search.SearchProto.SearchRpc;
+import org.waveprotocol.box.search.SearchProto.SearchUpdate;
+import org.waveprotocol.box.server.rpc.ServerRpcController;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+/**
+ * RPC interface implementation for standing searches. Each search streams its
+ * results from a {@link LiveSearchManager} until the client cancels it.
+ */
+public class SearchRpcImpl implements SearchRpc.Interface {
+
+  private final LiveSearchManager searchManager;
+
+  public SearchRpcImpl(LiveSearchManager searchManager) {
+    this.searchManager = searchManager;
+  }
+
+  @Override
+  public void search(final RpcController controller, SearchRequest request,
+      final RpcCallback<SearchUpdate> done) {
+    ParticipantId loggedInUser = ((ServerRpcController) controller).getLoggedInUser();
+    if (loggedInUser == null) {
+      controller.setFailed("Not logged in");
+      return;
+    }
+    final LiveSearchManager.LiveSearch search =
+        searchManager.search(loggedInUser, request, new LiveSearchManager.Listener() {
+          @Override
+          public void onUpdate(SearchUpdate update) {
+            done.run(update);
+          }
+
+          @Override
+          public void onClosed() {
+            // Finishes the stream.
+            done.run(null);
+          }
+        });
+    controller.notifyOnCancel(new RpcCallback<Object>() {
+      @Override
+      public void run(Object parameter) {
+        search.close();
+      }
+    });
+  }
+}
@@ -19,9 +19,9 @@ package org.waveprotocol.box.server.frontend;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.LinkedListMultimap;
-import com.google.common.collect.ListMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 
 import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.wave.model.id.IdFilter;
@@ -30,19 +30,29 @@ import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.version.HashedVersion;
 
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Collects active wave view subscriptions for a single participant.
+ *
+ * The subscriptions of each wave are kept in an immutable list, replaced when
+ * a subscription is added, so that they can be read without locking.
  */
 final class UserManager {
-  private final ListMultimap<WaveId, WaveViewSubscription> subscriptions =
-      LinkedListMultimap.create();
+  private final ConcurrentMap<WaveId, ImmutableList<WaveViewSubscription>> subscriptions =
+      new MapMaker().makeMap();
+
+  /** The subscriptions to a wave, in the order they were made. */
+  private List<WaveViewSubscription> subscriptionsTo(WaveId waveId) {
+    List<WaveViewSubscription> result = subscriptions.get(waveId);
+    return result != null ? result : ImmutableList.<WaveViewSubscription>of();
+  }
 
   /** The listeners interested in the specified wavelet. */
   @VisibleForTesting
-  synchronized List<WaveViewSubscription> matchSubscriptions(WaveletName waveletName) {
+  List<WaveViewSubscription> matchSubscriptions(WaveletName waveletName) {
     List<WaveViewSubscription> result = Lists.newArrayList();
-    for (WaveViewSubscription subscription : subscriptions.get(waveletName.waveId)) {
+    for (WaveViewSubscription subscription : subscriptionsTo(waveletName.waveId)) {
       if (subscription.includes(waveletName.waveletId)) {
         result.add(subscription);
       }
@@ -51,8 +61,8 @@ final class UserManager {
   }
 
   /** Returns the subscription (if it exists) for a given wavelet and channel */
-  private synchronized WaveViewSubscription findSubscription(WaveletName waveletName, String channelId) {
-    for (WaveViewSubscription subscription : subscriptions.get(waveletName.waveId)) {
+  private WaveViewSubscription findSubscription(WaveletName waveletName, String channelId) {
+    for (WaveViewSubscription subscription : subscriptionsTo(waveletName.waveId)) {
       if (subscription.includes(waveletName.waveletId)) {
         if (subscription.getChannelId().equals(channelId)) {
           return subscription;
@@ -66,7 +76,7 @@ final class UserManager {
    * Receives additional deltas for the specified wavelet, of which we must be a
    * participant. Delta updates must be received in contiguous version order.
    */
-  public synchronized void onUpdate(WaveletName waveletName, DeltaSequence deltas) {
+  public void onUpdate(WaveletName waveletName, DeltaSequence deltas) {
     Preconditions.checkNotNull(waveletName);
     if (deltas.isEmpty()) {
       return;
@@ -95,14 +105,23 @@ final class UserManager {
    *
    * @return a subscription
    */
-  public synchronized WaveViewSubscription subscribe(WaveId waveId, IdFilter waveletIdFilter,
+  public WaveViewSubscription subscribe(WaveId waveId, IdFilter waveletIdFilter,
       String channelId, ClientFrontend.OpenListener listener) {
     WaveViewSubscription subscription =
         new WaveViewSubscription(waveId, waveletIdFilter, channelId, listener);
-    subscriptions.put(waveId, subscription);
+    subscribe(subscription);
     return subscription;
   }
 
+  /**
+   * Adds a subscription.
+   */
+  public synchronized void subscribe(WaveViewSubscription subscription) {
+    WaveId waveId = subscription.getWaveId();
+    subscriptions.put(waveId, ImmutableList.<WaveViewSubscription>builder()
+        .addAll(subscriptionsTo(waveId)).add(subscription).build());
+  }
+
   /**
    * Tell the user manager that we have a submit request outstanding. While a
    * submit request is outstanding, all wavelet updates are queued.
@@ -19,6 +19,7 @@ package org.waveprotocol.box.server.frontend;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Sets;
@@ -34,14 +35,22 @@ import org.waveprotocol.wave.model.version.HashedVersionFactory;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Provides services to manage and track wavelet participants and wavelet
  * subscriptions.
  *
+ * Each wavelet keeps an index of the subscriptions its explicit participants
+ * have to it, so that an update is fanned out without matching every
+ * participant's subscriptions. The index is rebuilt when first needed after
+ * the participants change or someone subscribes to the wave.
+ *
  * @author yurize@apache.org (Yuri Zelikov)
  * @see ClientFrontendImpl
  */
@@ -53,6 +62,16 @@ public class WaveletInfo {
     private final Set<ParticipantId> explicitParticipants;
     private final Set<ParticipantId> implicitParticipants;
     private HashedVersion currentVersion;
+    /**
+     * Whether the version and participants have been taken from a snapshot or
+     * an update. Until then they are those of version zero.
+     */
+    private boolean loaded;
+    /**
+     * The subscriptions of the explicit participants which include this
+     * wavelet, or null if they must be rebuilt. Written with this locked.
+     */
+    private volatile ImmutableListMultimap<ParticipantId, WaveViewSubscription> subscriptions;
 
     PerWavelet(WaveletName waveletName, HashedVersion hashedVersionZero) {
       this.explicitParticipants = Sets.newHashSet();
@@ -72,6 +91,15 @@ public class WaveletInfo {
 
   private final Map<ParticipantId, UserManager> perUser;
   private final Map<WaveId, Map<WaveletId, PerWavelet>> perWavelet;
+  /**
+   * The subscriptions to each wave, by subscriber. Each multimap is replaced
+   * when a subscription is added; written with the map locked.
+   */
+  private final ConcurrentMap<WaveId, ImmutableListMultimap<ParticipantId, WaveViewSubscription>>
+      waveSubscriptions = new MapMaker().makeMap();
+  /** Waves whose wavelets have all been loaded from the wave store. */
+  private final Set<WaveId> initialisedWaves =
+      Collections.newSetFromMap(new ConcurrentHashMap<WaveId, Boolean>());
   private final WaveletProvider waveletProvider;
 
   /**
@@ -131,9 +159,12 @@ public class WaveletInfo {
 
   /**
    * Initializes front-end information from the wave store, if necessary.
+   * Waves are initialised lazily, when first opened; wavelets which received
+   * updates before then already have entries, which are kept if they are
+   * newer than the stored snapshot.
    */
   public void initialiseWave(WaveId waveId) throws WaveServerException {
-    if (!perWavelet.containsKey(waveId)) {
+    if (!initialisedWaves.contains(waveId)) {
       Map<WaveletId, PerWavelet> wavelets = perWavelet.get(waveId);
       for (WaveletId waveletId : waveletProvider.getWaveletIds(waveId)) {
         ReadableWaveletData wavelet =
@@ -141,29 +172,50 @@ public class WaveletInfo {
         // Wavelets is a computing map, so get() initializes the entry.
         PerWavelet waveletInfo = wavelets.get(waveletId);
         synchronized (waveletInfo) {
-          waveletInfo.currentVersion = wavelet.getHashedVersion();
-          waveletInfo.explicitParticipants.addAll(wavelet.getParticipants());
+          if (!waveletInfo.loaded || wavelet.getHashedVersion().getVersion()
+              > waveletInfo.currentVersion.getVersion()) {
+            waveletInfo.currentVersion = wavelet.getHashedVersion();
+            waveletInfo.explicitParticipants.clear();
+            waveletInfo.explicitParticipants.addAll(wavelet.getParticipants());
+            waveletInfo.loaded = true;
+            waveletInfo.subscriptions = null;
+          }
         }
       }
+      initialisedWaves.add(waveId);
     }
   }
 
   /**
    * Synchronizes the wavelet version and ensures that the deltas are
-   * contiguous.
+   * contiguous. A wavelet which has not been loaded yet takes its version and
+   * participants from the update.
    *
-   * @param waveletName the wavelet name.
+   * @param wavelet the wavelet state after the deltas.
    * @param newDeltas the new deltas.
+   * @return false if the deltas were already reflected in a loaded snapshot,
+   *         and should not be delivered again.
    */
-  public void syncWaveletVersion(WaveletName waveletName, DeltaSequence newDeltas) {
+  public boolean syncWaveletVersion(ReadableWaveletData wavelet, DeltaSequence newDeltas) {
     HashedVersion expectedVersion;
-    PerWavelet waveletInfo = getWavelet(waveletName);
+    PerWavelet waveletInfo =
+        getWavelet(WaveletName.of(wavelet.getWaveId(), wavelet.getWaveletId()));
     synchronized (waveletInfo) {
-      expectedVersion = waveletInfo.getCurrentVersion();
-      Preconditions.checkState(expectedVersion.getVersion() == newDeltas.getStartVersion(),
-          "Expected deltas starting at version %s, got %s", expectedVersion,
-          newDeltas.getStartVersion());
+      if (!waveletInfo.loaded) {
+        waveletInfo.explicitParticipants.addAll(wavelet.getParticipants());
+        waveletInfo.loaded = true;
+        waveletInfo.subscriptions = null;
+      } else {
+        expectedVersion = waveletInfo.getCurrentVersion();
+        if (expectedVersion.getVersion() >= newDeltas.getEndVersion().getVersion()) {
+          return false;
+        }
+        Preconditions.checkState(expectedVersion.getVersion() == newDeltas.getStartVersion(),
+            "Expected deltas starting at version %s, got %s", expectedVersion,
+            newDeltas.getStartVersion());
+      }
       waveletInfo.setCurrentVersion(newDeltas.getEndVersion());
+      return true;
     }
   }
 
@@ -174,6 +226,75 @@ public class WaveletInfo {
     return perUser.get(participantId);
   }
 
+  /**
+   * Subscribes a participant to a wave. The caller should hold the
+   * subscription's lock until it has sent the initial state of the wave, so
+   * that updates wait for it.
+   *
+   * @param participantId the subscriber.
+   * @param subscription the new subscription.
+   */
+  public void subscribe(ParticipantId participantId, WaveViewSubscription subscription) {
+    WaveId waveId = subscription.getWaveId();
+    getUserManager(participantId).subscribe(subscription);
+    synchronized (waveSubscriptions) {
+      ImmutableListMultimap<ParticipantId, WaveViewSubscription> existing =
+          waveSubscriptions.get(waveId);
+      ImmutableListMultimap.Builder<ParticipantId, WaveViewSubscription> updated =
+          ImmutableListMultimap.builder();
+      if (existing != null) {
+        updated.putAll(existing);
+      }
+      waveSubscriptions.put(waveId, updated.put(participantId, subscription).build());
+    }
+    for (PerWavelet waveletInfo : perWavelet.get(waveId).values()) {
+      synchronized (waveletInfo) {
+        waveletInfo.subscriptions = null;
+      }
+    }
+  }
+
+  /**
+   * Returns the subscriptions of the explicit wavelet participants which
+   * include the wavelet, by participant.
+   *
+   * @param waveletName the wavelet name.
+   */
+  public ImmutableListMultimap<ParticipantId, WaveViewSubscription> getSubscriptions(
+      WaveletName waveletName) {
+    PerWavelet waveletInfo = getWavelet(waveletName);
+    ImmutableListMultimap<ParticipantId, WaveViewSubscription> subscriptions =
+        waveletInfo.subscriptions;
+    if (subscriptions == null) {
+      synchronized (waveletInfo) {
+        subscriptions = waveletInfo.subscriptions;
+        if (subscriptions == null) {
+          subscriptions = matchSubscriptions(waveletName, waveletInfo.explicitParticipants);
+          waveletInfo.subscriptions = subscriptions;
+        }
+      }
+    }
+    return subscriptions;
+  }
+
+  /** Picks out the subscriptions of the given participants to a wavelet. */
+  private ImmutableListMultimap<ParticipantId, WaveViewSubscription> matchSubscriptions(
+      WaveletName waveletName, Set<ParticipantId> participants) {
+    ImmutableListMultimap.Builder<ParticipantId, WaveViewSubscription> result =
+        ImmutableListMultimap.builder();
+    ImmutableListMultimap<ParticipantId, WaveViewSubscription> subscriptions =
+        waveSubscriptions.get(waveletName.waveId);
+    if (subscriptions != null) {
+      for (Map.Entry<ParticipantId, WaveViewSubscription> entry : subscriptions.entries()) {
+        if (participants.contains(entry.getKey())
+            && entry.getValue().includes(waveletName.waveletId)) {
+          result.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    return result.build();
+  }
+
   /**
    * Returns the current wavelet version.
    */
@@ -219,7 +340,9 @@ public class WaveletInfo {
       ParticipantId participant) {
     PerWavelet waveletInfo = getWavelet(waveletName);
     synchronized (waveletInfo) {
-      waveletInfo.explicitParticipants.add(participant);
+      if (waveletInfo.explicitParticipants.add(participant)) {
+        waveletInfo.subscriptions = null;
+      }
     }
   }
 
@@ -233,7 +356,9 @@ public class WaveletInfo {
       ParticipantId participant) {
     PerWavelet waveletInfo = getWavelet(waveletName);
     synchronized (waveletInfo) {
-      waveletInfo.explicitParticipants.remove(participant);
+      if (waveletInfo.explicitParticipants.remove(participant)) {
+        waveletInfo.subscriptions = null;
+      }
     }
   }
 
@@ -54,6 +54,16 @@ public interface AttachmentStore {
      * @param out The stream to write the attachment out to.
      */
     public void writeDataTo(OutputStream out) throws IOException;
+
+    /**
+     * Write a range of the attachment's data to the specified output stream.
+     *
+     * @param out The stream to write the attachment out to.
+     * @param offset The offset of the first byte to write.
+     * @param length The number of bytes to write.
+     * @throws IOException if the attachment ends before the range does.
+     */
+    public void writeDataTo(OutputStream out, long offset, long length) throws IOException;
     
     /**
      * Get the attachment data object as a stream.
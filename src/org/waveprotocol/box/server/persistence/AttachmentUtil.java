@@ -20,6 +20,7 @@ package org.waveprotocol.box.server.persistence;
 import org.waveprotocol.box.server.persistence.AttachmentStore.AttachmentData;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -30,6 +31,8 @@ import java.io.OutputStream;
  * @author josephg@gmail.com (Joseph Gentle)
  */
 public class AttachmentUtil {
+  private static final int BUFFER_SIZE = 8192;
+
   private AttachmentUtil() {}
   
   /**
@@ -41,13 +44,47 @@ public class AttachmentUtil {
    * @throws IOException
    */
   public static void writeTo(InputStream source, OutputStream dest) throws IOException {
-    byte[] buffer = new byte[256];
+    byte[] buffer = new byte[BUFFER_SIZE];
     int length;
     while ((length = source.read(buffer)) != -1) {
       dest.write(buffer, 0, length);
     }
   }
 
+  /**
+   * Write a range of an input stream to an output stream. This will often be
+   * useful for implementors of the ranged AttachmentData.writeDataTo().
+   *
+   * @param source The InputStream to read from
+   * @param dest The OutputStream to write to
+   * @param offset The number of bytes of the source to skip
+   * @param length The number of bytes to write
+   * @throws IOException if the source ends before the range does
+   */
+  public static void writeTo(InputStream source, OutputStream dest, long offset, long length)
+      throws IOException {
+    while (offset > 0) {
+      long skipped = source.skip(offset);
+      if (skipped <= 0) {
+        // Streams may skip nothing before their end; reading tells them apart.
+        if (source.read() == -1) {
+          throw new EOFException("Attachment ended before offset " + offset);
+        }
+        skipped = 1;
+      }
+      offset -= skipped;
+    }
+    byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(length, 1))];
+    while (length > 0) {
+      int read = source.read(buffer, 0, (int) Math.min(buffer.length, length));
+      if (read == -1) {
+        throw new EOFException("Attachment ended " + length + " bytes before the range");
+      }
+      dest.write(buffer, 0, read);
+      length -= read;
+    }
+  }
+
   /**
    * Write the attachment out to a string.
    * 
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.persistence;
+
+import com.google.common.base.Preconditions;
+
+import org.waveprotocol.box.server.account.AccountData;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache in front of an {@link AccountStore}, bounded by
+ * the number of cached accounts.
+ *
+ * Accounts which don't exist are cached too, so participants without an
+ * account, such as remote ones, are only looked up once. Accounts put or
+ * removed through this store replace their cached entry; the underlying store
+ * must not be changed other than through this store.
+ */
+public class CachingAccountStore implements AccountStore {
+
+  private final AccountStore store;
+  private final int maxAccounts;
+
+  /**
+   * Cached accounts, with null for accounts which don't exist. Access ordered,
+   * so iteration starts with the least recently used account.
+   */
+  private final LinkedHashMap<ParticipantId, AccountData> accounts =
+      new LinkedHashMap<ParticipantId, AccountData>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ParticipantId, AccountData> eldest) {
+          return size() > maxAccounts;
+        }
+      };
+
+  /**
+   * Number of accounts put or removed. An account read from the store is only
+   * cached if no account was put or removed while it was read, since the read
+   * may have returned the account as it was before.
+   */
+  private long writeCount = 0;
+
+  private long hitCount = 0;
+  private long missCount = 0;
+
+  /**
+   * @param store the store to cache accounts of
+   * @param maxAccounts maximum number of cached accounts
+   */
+  public CachingAccountStore(AccountStore store, int maxAccounts) {
+    Preconditions.checkArgument(maxAccounts > 0, "Non-positive cache size %s", maxAccounts);
+    this.store = store;
+    this.maxAccounts = maxAccounts;
+  }
+
+  @Override
+  public void initializeAccountStore() throws PersistenceException {
+    store.initializeAccountStore();
+  }
+
+  @Override
+  public AccountData getAccount(ParticipantId id) throws PersistenceException {
+    long writesBefore;
+    synchronized (this) {
+      if (accounts.containsKey(id)) {
+        hitCount++;
+        return accounts.get(id);
+      }
+      missCount++;
+      writesBefore = writeCount;
+    }
+    AccountData account = store.getAccount(id);
+    synchronized (this) {
+      if (writeCount == writesBefore) {
+        accounts.put(id, account);
+      }
+    }
+    return account;
+  }
+
+  @Override
+  public void putAccount(AccountData account) throws PersistenceException {
+    ParticipantId id = account.getId();
+    invalidate(id);
+    try {
+      store.putAccount(account);
+    } finally {
+      invalidate(id);
+    }
+  }
+
+  @Override
+  public void removeAccount(ParticipantId id) throws PersistenceException {
+    invalidate(id);
+    try {
+      store.removeAccount(id);
+    } finally {
+      invalidate(id);
+    }
+  }
+
+  /** @return the number of cached accounts, including ones which don't exist. */
+  public synchronized int getCachedAccountCount() {
+    return accounts.size();
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Drops the cached entry of an account and stops the caching of reads of
+   * the store which are in progress.
+   */
+  private synchronized void invalidate(ParticipantId id) {
+    accounts.remove(id);
+    writeCount++;
+  }
+}
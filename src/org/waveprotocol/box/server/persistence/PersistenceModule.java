@@ -19,8 +19,11 @@ package org.waveprotocol.box.server.persistence;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
+import com.google.inject.Key;
+import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import com.google.inject.name.Names;
 
 import org.waveprotocol.box.server.CoreSettings;
 import org.waveprotocol.box.server.persistence.file.FileAccountStore;
@@ -44,11 +47,17 @@ import org.waveprotocol.wave.crypto.CertPathStore;
  *
  *<p>
  *The valid names for the account store are 'memory', 'file' and 'mongodb'.
+ *Accounts are cached in front of the account store, unless the cache size is
+ *set to 0.
  *
  * @author ljvderijk@google.com (Lennard de Rijk)
  */
 public class PersistenceModule extends AbstractModule {
 
+  /** The configured account store, which is bound to {@link AccountStore} behind a cache. */
+  private static final Key<AccountStore> UNCACHED_ACCOUNT_STORE =
+      Key.get(AccountStore.class, Names.named("UncachedAccountStore"));
+
   private final String signerInfoStoreType;
 
   private final String attachmentStoreType;
@@ -119,19 +128,27 @@ public class PersistenceModule extends AbstractModule {
 
   private void bindAccountStore() {
     if (accountStoreType.equalsIgnoreCase("memory")) {
-      bind(AccountStore.class).to(MemoryStore.class).in(Singleton.class);
+      bind(UNCACHED_ACCOUNT_STORE).to(MemoryStore.class).in(Singleton.class);
     } else if (accountStoreType.equalsIgnoreCase("file")) {
-      bind(AccountStore.class).to(FileAccountStore.class).in(Singleton.class);
+      bind(UNCACHED_ACCOUNT_STORE).to(FileAccountStore.class).in(Singleton.class);
     } else if (accountStoreType.equalsIgnoreCase("fake")) {
-      bind(AccountStore.class).to(FakePermissiveAccountStore.class).in(Singleton.class);
+      bind(UNCACHED_ACCOUNT_STORE).to(FakePermissiveAccountStore.class).in(Singleton.class);
     } else if (accountStoreType.equalsIgnoreCase("mongodb")) {
       MongoDbProvider mongoDbProvider = getMongoDbProvider();
-      bind(AccountStore.class).toInstance(mongoDbProvider.provideMongoDbStore());
+      bind(UNCACHED_ACCOUNT_STORE).toInstance(mongoDbProvider.provideMongoDbStore());
     } else {
       throw new RuntimeException("Invalid account store type: '" + accountStoreType + "'");
     }
   }
 
+  @Provides
+  @Singleton
+  @SuppressWarnings("unused")
+  private AccountStore provideAccountStore(@Named("UncachedAccountStore") AccountStore store,
+      @Named(CoreSettings.ACCOUNT_CACHE_SIZE) int cacheSize) {
+    return (cacheSize > 0) ? new CachingAccountStore(store, cacheSize) : store;
+  }
+
   private void bindDeltaStore() {
     if (deltaStoreType.equalsIgnoreCase("memory")) {
       bind(DeltaStore.class).to(MemoryDeltaStore.class).in(Singleton.class);
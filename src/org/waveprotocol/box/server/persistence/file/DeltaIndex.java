@@ -17,9 +17,11 @@
 
 package org.waveprotocol.box.server.persistence.file;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 
 import org.waveprotocol.wave.model.util.Pair;
+import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.EOFException;
 import java.io.File;
@@ -27,7 +29,8 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 
 /**
- * An index for quickly accessing deltas. The index is an array of longs, one for each version.
+ * An index for quickly accessing deltas. The index is a fixed-length header followed by an array
+ * of longs, one for each version.
  *
  * The index must return the offset of a delta applied at a version, and of a delta leading to
  * a version.
@@ -46,6 +49,13 @@ import java.io.RandomAccessFile;
  * the delta containing the op, so that finding the delta leading to a version is easy: just read
  * the previous index entry.
  *
+ * The header records the length of the deltas file, the end version and a checksum of the last
+ * delta record at the time the index was last committed. When the index is opened it is checked
+ * against the deltas file using the header alone, so opening does not depend on the length of
+ * the wavelet's history. If the check fails (eg, the server crashed between writing deltas and
+ * committing the index) the index is truncated to the last entry which still points at a valid
+ * record and only the deltas after that entry are re-read.
+ *
  * @author josephg@google.com (Joseph Gentle)
  */
 public class DeltaIndex {
@@ -53,26 +63,52 @@ public class DeltaIndex {
   public static final int NO_RECORD_FOR_VERSION = -1;
 
   private static final int RECORD_LENGTH = 8;
+
+  private static final int INDEX_MAGIC = 0x57494458; // "WIDX"
+  private static final int INDEX_FORMAT_VERSION = 1;
+
+  /**
+   * Length of the header: magic (4), format version (4), deltas file length (8), end version (8)
+   * and checksum of the last delta record (8).
+   */
+  @VisibleForTesting
+  static final int HEADER_LENGTH = 32;
+
+  private static final Log LOG = Log.get(DeltaIndex.class);
+
   private final File fileRef;
   private RandomAccessFile file;
 
+  /** True iff the header on disk describes the current contents of the index. */
+  private boolean headerCommitted;
+
   public DeltaIndex(File indexFile) {
     this.fileRef = indexFile;
   }
 
   /**
-   * Open the index.
+   * Open the index. An existing index is reused if its header matches the deltas file, repaired
+   * from its last good entry if it doesn't, and rebuilt from scratch only if it is missing or
+   * unreadable.
    *
    * @param baseCollection the collection which the index indexes.
    * @throws IOException
    */
   public void openForCollection(FileDeltaCollection baseCollection) throws IOException {
     if (!fileRef.exists()) {
-      fileRef.mkdirs();
       rebuildIndexFromDeltas(baseCollection);
-    } else {
-      // TODO(josephg): For now, we just rebuild the index anyway.
+      return;
+    }
+
+    file = FileUtils.getOrCreateFile(fileRef);
+    if (!hasValidHeader()) {
+      LOG.info("Index " + fileRef + " has an unknown format, rebuilding");
       rebuildIndexFromDeltas(baseCollection);
+    } else if (isCommittedFor(baseCollection)) {
+      headerCommitted = true;
+    } else {
+      LOG.info("Index " + fileRef + " is out of date, recovering from last good entry");
+      recoverFromLastGoodEntry(baseCollection);
     }
   }
 
@@ -96,12 +132,54 @@ public class DeltaIndex {
     }
 
     file = FileUtils.getOrCreateFile(fileRef);
+    file.setLength(HEADER_LENGTH);
+    headerCommitted = false;
 
     for (Pair<Pair<Long, Integer>, Long> pair : collection.getOffsetsIterator()) {
       addDelta(pair.first.first, pair.first.second, pair.second);
     }
   }
 
+  /**
+   * Writes the header describing the current state of the index and the
+   * collection. Must be called after the deltas indexed so far have been
+   * written to the deltas file.
+   *
+   * @param collection the collection which the index indexes.
+   * @throws IOException
+   */
+  public void commit(FileDeltaCollection collection) throws IOException {
+    checkOpen();
+    long deltasLength = collection.getDeltasFileLength();
+    long endVersion = length();
+    long tailOffset = getTailOffset(endVersion, deltasLength);
+    Preconditions.checkState(tailOffset != NO_RECORD_FOR_VERSION,
+        "Index doesn't match deltas file of length %s", deltasLength);
+
+    file.seek(0);
+    file.writeInt(INDEX_MAGIC);
+    file.writeInt(INDEX_FORMAT_VERSION);
+    file.writeLong(deltasLength);
+    file.writeLong(endVersion);
+    file.writeLong(collection.checksum(tailOffset, deltasLength));
+    headerCommitted = true;
+  }
+
+  /**
+   * @return true iff the header on disk describes the current index.
+   */
+  public boolean isCommitted() {
+    return headerCommitted;
+  }
+
+  /**
+   * Marks the header as no longer describing the collection, eg because the
+   * deltas file has been truncated.
+   */
+  public void markUncommitted() {
+    headerCommitted = false;
+  }
+
   /**
    * Get the delta file offset for the specified version.
    *
@@ -153,8 +231,8 @@ public class DeltaIndex {
     }
     checkOpen();
 
-    long position = version * RECORD_LENGTH;
-    if (position >= file.length()) {
+    long position = positionOf(version);
+    if (position + RECORD_LENGTH > file.length()) {
       return false;
     }
 
@@ -173,11 +251,12 @@ public class DeltaIndex {
       throws IOException {
     checkOpen();
 
-    long position = version * RECORD_LENGTH;
+    long position = positionOf(version);
     // We're expected to append the new delta
     long fileLength = file.length();
     Preconditions.checkState(position == fileLength,
         "position = %d, file=%d", position, fileLength);
+    headerCommitted = false;
     file.seek(position);
     file.writeLong(offset);
     // fill in the additional positions with the 1-complement of the offset,
@@ -199,7 +278,7 @@ public class DeltaIndex {
       // This shouldn't happen in practice.
       throw new RuntimeException("IO error reading index file length", e);
     }
-    return fileLength / RECORD_LENGTH;
+    return Math.max(0, fileLength - HEADER_LENGTH) / RECORD_LENGTH;
   }
 
   public void close() throws IOException {
@@ -208,4 +287,78 @@ public class DeltaIndex {
       file = null;
     }
   }
+
+  private static long positionOf(long version) {
+    return HEADER_LENGTH + version * RECORD_LENGTH;
+  }
+
+  /**
+   * Checks the magic and format version at the start of the index file.
+   */
+  private boolean hasValidHeader() throws IOException {
+    if (file.length() < HEADER_LENGTH) {
+      return false;
+    }
+    file.seek(0);
+    return file.readInt() == INDEX_MAGIC && file.readInt() == INDEX_FORMAT_VERSION;
+  }
+
+  /**
+   * Checks, in time independent of the number of deltas, that the committed
+   * header matches both the index and the deltas file.
+   */
+  private boolean isCommittedFor(FileDeltaCollection collection) throws IOException {
+    file.seek(2 * 4);
+    long deltasLength = file.readLong();
+    long endVersion = file.readLong();
+    long checksum = file.readLong();
+
+    if ((file.length() - HEADER_LENGTH) % RECORD_LENGTH != 0 || endVersion != length()
+        || deltasLength != collection.getDeltasFileLength()) {
+      return false;
+    }
+    long tailOffset = getTailOffset(endVersion, deltasLength);
+    return tailOffset != NO_RECORD_FOR_VERSION
+        && checksum == collection.checksum(tailOffset, deltasLength);
+  }
+
+  /**
+   * Finds the last index entry which points at the start of a readable record
+   * for its version, drops everything after it and re-indexes the remainder of
+   * the deltas file from there.
+   */
+  private void recoverFromLastGoodEntry(FileDeltaCollection collection) throws IOException {
+    long deltasLength = collection.getDeltasFileLength();
+    for (long version = length() - 1; version >= 0; version--) {
+      file.seek(positionOf(version));
+      long offset = file.readLong();
+      if (offset < 0 || offset >= deltasLength) {
+        continue;
+      }
+      if (collection.isRecordAppliedAt(offset, version)) {
+        file.setLength(positionOf(version));
+        headerCommitted = false;
+        for (Pair<Pair<Long, Integer>, Long> pair : collection.getOffsetsIterator(offset)) {
+          addDelta(pair.first.first, pair.first.second, pair.second);
+        }
+        return;
+      }
+    }
+    rebuildIndexFromDeltas(collection);
+  }
+
+  /**
+   * Gets the offset of the last delta record, which is the part of the deltas
+   * file covered by the checksum in the header.
+   *
+   * @return the offset, or NO_RECORD_FOR_VERSION if the index doesn't point
+   *         into the deltas file.
+   */
+  private long getTailOffset(long endVersion, long deltasLength) throws IOException {
+    if (endVersion == 0) {
+      return deltasLength;
+    }
+    long offset = getOffsetForEndVersion(endVersion);
+    return (offset >= 0 && offset <= deltasLength) ? offset : NO_RECORD_FOR_VERSION;
+  }
 }
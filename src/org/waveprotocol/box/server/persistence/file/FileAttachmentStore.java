@@ -25,6 +25,7 @@ import org.waveprotocol.box.server.persistence.AttachmentStore;
 import org.waveprotocol.box.server.persistence.AttachmentUtil;
 import org.waveprotocol.wave.model.util.CharBase64;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -32,6 +33,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
 
 /**
@@ -99,9 +103,33 @@ public class FileAttachmentStore implements AttachmentStore {
 
       @Override
       public void writeDataTo(OutputStream out) throws IOException {
-        InputStream is = getInputStream();
-        AttachmentUtil.writeTo(is, out);
-        is.close();
+        writeDataTo(out, 0, file.length());
+      }
+
+      /**
+       * Transfers the range from the file's channel, which doesn't copy it
+       * through the heap when the output stream is backed by a channel.
+       */
+      @Override
+      public void writeDataTo(OutputStream out, long offset, long length) throws IOException {
+        FileInputStream is = new FileInputStream(file);
+        try {
+          FileChannel channel = is.getChannel();
+          // Not closed, as that would close the output stream.
+          WritableByteChannel target = Channels.newChannel(out);
+          long position = offset;
+          long end = offset + length;
+          while (position < end) {
+            long transferred = channel.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+              throw new EOFException("Attachment ended " + (end - position)
+                  + " bytes before the range");
+            }
+            position += transferred;
+          }
+        } finally {
+          is.close();
+        }
       }
     };
   }
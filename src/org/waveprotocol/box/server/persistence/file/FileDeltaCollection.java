@@ -22,6 +22,7 @@ import com.google.common.base.Preconditions;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
+import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreDataSerializer;
 import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreData.ProtoTransformedWaveletDelta;
@@ -44,6 +45,7 @@ import java.nio.channels.Channels;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.zip.CRC32;
 
 /**
  * A flat file based implementation of DeltasAccess. This class provides a storage backend for the
@@ -64,6 +66,7 @@ import java.util.Iterator;
 public class FileDeltaCollection implements DeltasAccess {
   public static final String DELTAS_FILE_SUFFIX = ".deltas";
   public static final String INDEX_FILE_SUFFIX = ".index";
+  public static final String SNAPSHOT_FILE_SUFFIX = ".snapshot";
 
   private static final byte[] FILE_MAGIC_BYTES = new byte[]{'W', 'A', 'V', 'E'};
   private static final int FILE_PROTOCOL_VERSION = 1;
@@ -71,14 +74,29 @@ public class FileDeltaCollection implements DeltasAccess {
 
   private static final int DELTA_PROTOCOL_VERSION = 1;
 
+  private static final int CHECKSUM_BUFFER_LENGTH = 8192;
+
+  private static final byte[] SNAPSHOT_MAGIC_BYTES = new byte[]{'W', 'S', 'N', 'P'};
+  private static final int SNAPSHOT_PROTOCOL_VERSION = 1;
+
   private static final Log LOG = Log.get(FileDeltaCollection.class);
 
   private final WaveletName waveletName;
+
+  /**
+   * Guards the positions of the deltas file and the index. Reads hold it, and
+   * so does an append while it writes, but not while its deltas are forced to
+   * disk, so that readers don't wait for the sync.
+   */
+  private final Object fileLock = new Object();
+
   private final RandomAccessFile file;
   private final DeltaIndex index;
+  private final File snapshotFile;
+  private final FileSyncGroup syncGroup;
 
-  private HashedVersion endVersion;
-  private boolean isOpen;
+  private volatile HashedVersion endVersion;
+  private volatile boolean isOpen;
 
   /**
    * A single record in the delta file.
@@ -117,16 +135,35 @@ public class FileDeltaCollection implements DeltasAccess {
    */
   public static FileDeltaCollection open(WaveletName waveletName, String basePath)
       throws IOException {
+    return open(waveletName, basePath, FileSyncGroup.IMMEDIATE);
+  }
+
+  /**
+   * Opens a file delta collection whose appends are forced to disk by the
+   * given sync group.
+   *
+   * @param waveletName name of the wavelet to open
+   * @param basePath base path of files
+   * @param syncGroup forces appended deltas to disk
+   * @return an open collection
+   * @throws IOException
+   */
+  public static FileDeltaCollection open(WaveletName waveletName, String basePath,
+      FileSyncGroup syncGroup) throws IOException {
     Preconditions.checkNotNull(waveletName, "null wavelet name");
 
     RandomAccessFile deltaFile = FileUtils.getOrCreateFile(deltasFile(basePath, waveletName));
     setOrCheckFileHeader(deltaFile);
     DeltaIndex index = new DeltaIndex(indexFile(basePath, waveletName));
 
-    FileDeltaCollection collection = new FileDeltaCollection(waveletName, deltaFile, index);
+    FileDeltaCollection collection = new FileDeltaCollection(waveletName, deltaFile, index,
+        snapshotFile(basePath, waveletName), syncGroup);
 
     index.openForCollection(collection);
     collection.initializeEndVersionAndTruncateTrailingJunk();
+    if (!index.isCommitted()) {
+      index.commit(collection);
+    }
     return collection;
   }
 
@@ -148,7 +185,14 @@ public class FileDeltaCollection implements DeltasAccess {
     File index = indexFile(basePath, waveletName);
     if (index.exists()) {
       if (!index.delete()) {
-        error += "Could not delete index file: " + index.getAbsolutePath();
+        error += "Could not delete index file: " + index.getAbsolutePath() + ". ";
+      }
+    }
+
+    File snapshot = snapshotFile(basePath, waveletName);
+    if (snapshot.exists()) {
+      if (!snapshot.delete()) {
+        error += "Could not delete snapshot file: " + snapshot.getAbsolutePath();
       }
     }
     if (!error.isEmpty()) {
@@ -162,12 +206,16 @@ public class FileDeltaCollection implements DeltasAccess {
    * @param waveletName name of the wavelet
    * @param deltaFile the file of deltas
    * @param index index into deltas
+   * @param snapshotFile the file holding the latest snapshot checkpoint
+   * @param syncGroup forces appended deltas to disk
    */
   public FileDeltaCollection(WaveletName waveletName, RandomAccessFile deltaFile,
-      DeltaIndex index) {
+      DeltaIndex index, File snapshotFile, FileSyncGroup syncGroup) {
     this.waveletName = waveletName;
+    this.syncGroup = syncGroup;
     this.file = deltaFile;
     this.index = index;
+    this.snapshotFile = snapshotFile;
     this.isOpen = true;
   }
 
@@ -183,27 +231,35 @@ public class FileDeltaCollection implements DeltasAccess {
 
   @Override
   public WaveletDeltaRecord getDelta(long version) throws IOException {
-    checkIsOpen();
-    return seekToRecord(version) ? readRecord() : null;
+    synchronized (fileLock) {
+      checkIsOpen();
+      return seekToRecord(version) ? readRecord() : null;
+    }
   }
 
   @Override
   public WaveletDeltaRecord getDeltaByEndVersion(long version) throws IOException {
-    checkIsOpen();
-    return seekToEndRecord(version) ? readRecord() : null;
+    synchronized (fileLock) {
+      checkIsOpen();
+      return seekToEndRecord(version) ? readRecord() : null;
+    }
   }
 
   @Override
   public ByteStringMessage<ProtocolAppliedWaveletDelta> getAppliedDelta(long version)
       throws IOException {
-    checkIsOpen();
-    return seekToRecord(version) ? readAppliedDeltaFromRecord() : null;
+    synchronized (fileLock) {
+      checkIsOpen();
+      return seekToRecord(version) ? readAppliedDeltaFromRecord() : null;
+    }
   }
 
   @Override
   public TransformedWaveletDelta getTransformedDelta(long version) throws IOException {
-    checkIsOpen();
-    return seekToRecord(version) ? readTransformedDeltaFromRecord() : null;
+    synchronized (fileLock) {
+      checkIsOpen();
+      return seekToRecord(version) ? readTransformedDeltaFromRecord() : null;
+    }
   }
 
   @Override
@@ -224,29 +280,42 @@ public class FileDeltaCollection implements DeltasAccess {
 
   @Override
   public void close() throws IOException {
-    file.close();
-    index.close();
-    endVersion = null;
-    isOpen = false;
+    synchronized (fileLock) {
+      file.close();
+      index.close();
+      endVersion = null;
+      isOpen = false;
+    }
   }
 
   @Override
   public void append(Collection<WaveletDeltaRecord> deltas) throws PersistenceException {
     checkIsOpen();
     try {
-      file.seek(file.length());
-
       WaveletDeltaRecord lastDelta = null;
-      for (WaveletDeltaRecord delta : deltas) {
-        index.addDelta(delta.transformed.getAppliedAtVersion(), delta.transformed.size(),
-            file.getFilePointer());
-        writeDelta(delta);
-        lastDelta = delta;
+      long length;
+      synchronized (fileLock) {
+        long start = file.length();
+        file.seek(start);
+        for (WaveletDeltaRecord delta : deltas) {
+          index.addDelta(delta.transformed.getAppliedAtVersion(), delta.transformed.size(),
+              file.getFilePointer());
+          writeDelta(delta);
+          lastDelta = delta;
+        }
+        length = file.getFilePointer() - start;
       }
 
-      // fsync() before returning.
-      file.getChannel().force(true);
-      endVersion = lastDelta.transformed.getResultingVersion();
+      // fsync() before returning, possibly together with other collections.
+      // Readers of earlier deltas don't wait for it.
+      syncGroup.force(file.getChannel(), length);
+
+      synchronized (fileLock) {
+        endVersion = lastDelta.transformed.getResultingVersion();
+        // The index header is only committed once the deltas it describes are
+        // durable. If this write is lost the index is repaired on the next open.
+        index.commit(this);
+      }
     } catch (IOException e) {
       throw new PersistenceException(e);
     }
@@ -254,8 +323,87 @@ public class FileDeltaCollection implements DeltasAccess {
 
   @Override
   public boolean isEmpty() {
+    synchronized (fileLock) {
+      checkIsOpen();
+      return index.length() == 0;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The snapshot is written to a temporary file which is synced and then
+   * renamed over the previous checkpoint, so a crash leaves either the old or
+   * the new checkpoint in place.
+   */
+  @Override
+  public void storeSnapshotCheckpoint(WaveletSnapshot snapshot) throws PersistenceException {
     checkIsOpen();
-    return index.length() == 0;
+    Preconditions.checkState(endVersion != null
+        && snapshot.getVersion().getVersion() <= endVersion.getVersion(),
+        "Snapshot at %s is beyond the end of the deltas", snapshot.getVersion().getVersion());
+
+    byte[] bytes = snapshot.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+
+    File tempFile = new File(snapshotFile.getPath() + ".tmp");
+    try {
+      RandomAccessFile temp = FileUtils.getOrCreateFile(tempFile);
+      try {
+        temp.setLength(0);
+        temp.write(SNAPSHOT_MAGIC_BYTES);
+        temp.writeInt(SNAPSHOT_PROTOCOL_VERSION);
+        temp.writeInt(bytes.length);
+        temp.writeLong(crc.getValue());
+        temp.write(bytes);
+        temp.getChannel().force(true);
+      } finally {
+        temp.close();
+      }
+      FileUtils.renameOverwriting(tempFile, snapshotFile);
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to write snapshot for " + waveletName, e);
+    }
+  }
+
+  @Override
+  public WaveletSnapshot getSnapshotCheckpoint() throws IOException {
+    checkIsOpen();
+    if (!snapshotFile.exists()) {
+      return null;
+    }
+    RandomAccessFile snapshot = new RandomAccessFile(snapshotFile, "r");
+    try {
+      byte[] magic = new byte[SNAPSHOT_MAGIC_BYTES.length];
+      snapshot.readFully(magic);
+      if (!Arrays.equals(SNAPSHOT_MAGIC_BYTES, magic)) {
+        throw new IOException("Snapshot file magic bytes are incorrect");
+      }
+      int version = snapshot.readInt();
+      if (version != SNAPSHOT_PROTOCOL_VERSION) {
+        throw new IOException(String.format(
+            "Snapshot protocol version mismatch - expected %d got %d",
+            SNAPSHOT_PROTOCOL_VERSION, version));
+      }
+      int length = snapshot.readInt();
+      long checksum = snapshot.readLong();
+      if (length < 0 || length != snapshot.length() - snapshot.getFilePointer()) {
+        throw new IOException("Snapshot file is corrupted, bad length " + length);
+      }
+      byte[] bytes = new byte[length];
+      snapshot.readFully(bytes);
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      if (crc.getValue() != checksum) {
+        throw new IOException("Snapshot file is corrupted, checksum mismatch");
+      }
+      return WaveletSnapshot.parseFrom(bytes);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IOException(e);
+    } finally {
+      snapshot.close();
+    }
   }
 
   /**
@@ -265,14 +413,28 @@ public class FileDeltaCollection implements DeltasAccess {
    * @throws IOException
    */
   Iterable<Pair<Pair<Long,Integer>, Long>> getOffsetsIterator() throws IOException {
+    return getOffsetsIterator(FILE_HEADER_LENGTH);
+  }
+
+  /**
+   * Creates a new iterator to move over the positions of the deltas in the file,
+   * starting with the record at the given offset.
+   *
+   * Each pair returned is ((version, numOperations), offset).
+   * @throws IOException
+   */
+  Iterable<Pair<Pair<Long,Integer>, Long>> getOffsetsIterator(final long startPosition)
+      throws IOException {
     checkIsOpen();
+    Preconditions.checkArgument(startPosition >= FILE_HEADER_LENGTH,
+        "Start position %s is inside the file header", startPosition);
 
     return new Iterable<Pair<Pair<Long, Integer>, Long>>() {
       @Override
       public Iterator<Pair<Pair<Long, Integer>, Long>> iterator() {
         return new Iterator<Pair<Pair<Long, Integer>, Long>>() {
           Pair<Pair<Long, Integer>, Long> nextRecord;
-          long nextPosition = FILE_HEADER_LENGTH;
+          long nextPosition = startPosition;
 
           @Override
           public void remove() {
@@ -324,6 +486,48 @@ public class FileDeltaCollection implements DeltasAccess {
     };
   }
 
+  /**
+   * @return the length of the deltas file in bytes.
+   * @throws IOException
+   */
+  long getDeltasFileLength() throws IOException {
+    return file.length();
+  }
+
+  /**
+   * Computes a checksum of a range of the deltas file.
+   *
+   * @param start offset of the first byte to include
+   * @param end offset after the last byte to include
+   * @throws IOException
+   */
+  long checksum(long start, long end) throws IOException {
+    Preconditions.checkArgument(start <= end, "Invalid range %s - %s", start, end);
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[CHECKSUM_BUFFER_LENGTH];
+    file.seek(start);
+    for (long remaining = end - start; remaining > 0; ) {
+      int length = (int) Math.min(remaining, buffer.length);
+      file.readFully(buffer, 0, length);
+      crc.update(buffer, 0, length);
+      remaining -= length;
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Checks whether a complete delta record applied at the given version starts
+   * at the given offset.
+   */
+  boolean isRecordAppliedAt(long offset, long version) {
+    try {
+      file.seek(offset);
+      return readTransformedDeltaFromRecord().getAppliedAtVersion() == version;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
   @VisibleForTesting
   static final File deltasFile(String basePath, WaveletName waveletName) {
     String waveletPathPrefix = FileUtils.waveletNameToPathSegment(waveletName);
@@ -336,6 +540,12 @@ public class FileDeltaCollection implements DeltasAccess {
     return new File(basePath, waveletPathPrefix + INDEX_FILE_SUFFIX);
   }
 
+  @VisibleForTesting
+  static final File snapshotFile(String basePath, WaveletName waveletName) {
+    String waveletPathPrefix = FileUtils.waveletNameToPathSegment(waveletName);
+    return new File(basePath, waveletPathPrefix + SNAPSHOT_FILE_SUFFIX);
+  }
+
   /**
    * Checks that a file has a valid deltas header, adding the header if the
    * file is shorter than the header.
@@ -559,9 +769,13 @@ public class FileDeltaCollection implements DeltasAccess {
       endVersion = getDeltaByEndVersion(numRecords).getResultingVersion();
     } else {
       endVersion = null;
+      file.seek(FILE_HEADER_LENGTH);
     }
     // The file's position should be at the end. Truncate any
     // trailing junk such as from a partially completed write.
-    file.setLength(file.getFilePointer());
+    if (file.length() != file.getFilePointer()) {
+      file.setLength(file.getFilePointer());
+      index.markUncommitted();
+    }
   }
 }
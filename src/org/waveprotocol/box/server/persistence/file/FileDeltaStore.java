@@ -44,6 +44,7 @@ import java.util.NoSuchElementException;
  * The delta store lives at some base directory. The directory structure looks like this:
  * base/encoded-wave-id/encoded-wavelet-id.delta
  * base/encoded-wave-id/encoded-wavelet-id.index
+ * base/encoded-wave-id/encoded-wavelet-id.snapshot (optional)
  *
  * See design doc:
  * https://sites.google.com/a/waveprotocol.org/wave-protocol/protocol/design-proposals/wave-store-design-for-wave-in-a-box
@@ -57,16 +58,33 @@ public class FileDeltaStore implements DeltaStore {
    */
   final private String basePath;
 
+  /**
+   * Forces appended deltas to disk, grouping appends to different wavelets
+   * if so configured.
+   */
+  final private FileSyncGroup syncGroup;
+
+  public FileDeltaStore(String basePath) {
+    this(basePath, FileSyncGroup.IMMEDIATE);
+  }
+
   @Inject
-  public FileDeltaStore(@Named(CoreSettings.DELTA_STORE_DIRECTORY) String basePath) {
+  public FileDeltaStore(@Named(CoreSettings.DELTA_STORE_DIRECTORY) String basePath,
+      @Named(CoreSettings.DELTA_STORE_GROUP_COMMIT_WINDOW_MS) int groupCommitWindowMs,
+      @Named(CoreSettings.DELTA_STORE_GROUP_COMMIT_BYTES) int groupCommitBytes) {
+    this(basePath, new FileSyncGroup(groupCommitWindowMs, groupCommitBytes));
+  }
+
+  public FileDeltaStore(String basePath, FileSyncGroup syncGroup) {
     Preconditions.checkNotNull(basePath, "Requested path is null");
     this.basePath = basePath;
+    this.syncGroup = syncGroup;
   }
 
   @Override
   public FileDeltaCollection open(WaveletName waveletName) throws PersistenceException {
     try {
-      return FileDeltaCollection.open(waveletName, basePath);
+      return FileDeltaCollection.open(waveletName, basePath, syncGroup);
     } catch (IOException e) {
       throw new PersistenceException("Failed to open deltas for wavelet " + waveletName, e);
     }
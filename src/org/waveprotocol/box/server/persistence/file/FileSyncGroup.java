@@ -0,0 +1,176 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for files written by many threads: forcing a file to disk
+ * waits until a window has passed since the first pending request, or enough
+ * bytes are pending, and then all the files written in the meantime are
+ * forced together, completing all of the waiting requests.
+ *
+ * The first thread to request a force in a new group leads it; it does the
+ * waiting and forcing, while the other threads just wait for the group to be
+ * committed. Each file in a group is forced once, no matter how many appends
+ * to it are waiting.
+ */
+public class FileSyncGroup {
+
+  /** Forces every file as soon as it is requested. */
+  public static final FileSyncGroup IMMEDIATE = new FileSyncGroup(0, 0);
+
+  /** Files waiting to be forced together, and the outcome once forced. */
+  private static final class Group {
+    private final Map<FileChannel, IOException> channels = Maps.newLinkedHashMap();
+    private long pendingBytes = 0;
+    private boolean committed = false;
+
+    /** Forces all the files of the group. Called without holding any lock. */
+    void commit() {
+      for (Map.Entry<FileChannel, IOException> entry : channels.entrySet()) {
+        try {
+          entry.getKey().force(true);
+        } catch (IOException e) {
+          entry.setValue(e);
+        }
+      }
+      synchronized (this) {
+        committed = true;
+        notifyAll();
+      }
+    }
+
+    /** Waits until the group is committed and reports the channel's outcome. */
+    synchronized void await(FileChannel channel) throws IOException {
+      boolean interrupted = false;
+      while (!committed) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // The write must not be reported before it is durable.
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      IOException failure = channels.get(channel);
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  private final long windowNanos;
+  private final long maxPendingBytes;
+
+  /** The group new requests join, or null. Guarded by this. */
+  private Group openGroup = null;
+
+  /** Number of groups committed so far. Guarded by this. */
+  private long commitCount = 0;
+
+  /**
+   * @param windowMillis how long to gather requests before forcing them; 0
+   *        forces every file as soon as it is requested
+   * @param maxPendingBytes number of written bytes after which the pending
+   *        requests are forced without waiting for the rest of the window; 0
+   *        means no limit
+   */
+  public FileSyncGroup(long windowMillis, long maxPendingBytes) {
+    Preconditions.checkArgument(windowMillis >= 0, "Negative window %s", windowMillis);
+    Preconditions.checkArgument(maxPendingBytes >= 0, "Negative size %s", maxPendingBytes);
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.maxPendingBytes = maxPendingBytes;
+  }
+
+  /**
+   * Blocks until the content of the channel, including the given number of
+   * bytes just written to it, has been forced to disk.
+   *
+   * @throws IOException if forcing the channel failed
+   */
+  public void force(FileChannel channel, long writtenBytes) throws IOException {
+    if (windowNanos == 0) {
+      channel.force(true);
+      return;
+    }
+    Group group;
+    boolean leader;
+    synchronized (this) {
+      leader = (openGroup == null);
+      if (leader) {
+        openGroup = new Group();
+      }
+      group = openGroup;
+      // Groups are only modified while open, under this lock.
+      group.channels.put(channel, null);
+      group.pendingBytes += writtenBytes;
+      if (isFull(group)) {
+        notifyAll();
+      }
+    }
+    if (leader) {
+      closeWhenDue(group);
+      group.commit();
+    }
+    group.await(channel);
+  }
+
+  /** @return the number of groups committed. */
+  @VisibleForTesting
+  synchronized long getCommitCount() {
+    return commitCount;
+  }
+
+  /**
+   * Waits until the window has passed or the group is full, and stops new
+   * requests from joining it.
+   */
+  private synchronized void closeWhenDue(Group group) {
+    long deadline = System.nanoTime() + windowNanos;
+    boolean interrupted = false;
+    long remaining;
+    while (!isFull(group) && (remaining = deadline - System.nanoTime()) > 0) {
+      try {
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      } catch (InterruptedException e) {
+        // Commit what we have rather than leave the group waiting.
+        interrupted = true;
+        break;
+      }
+    }
+    openGroup = null;
+    commitCount++;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean isFull(Group group) {
+    return maxPendingBytes > 0 && group.pendingBytes >= maxPendingBytes;
+  }
+}
@@ -183,6 +183,21 @@ public class FileUtils {
     return file;
   }
 
+  /**
+   * Renames a file over another, replacing it. Renaming onto an existing file
+   * fails on some platforms, in which case the target is deleted first.
+   *
+   * @throws IOException if the file could not be renamed
+   */
+  public static void renameOverwriting(File source, File target) throws IOException {
+    if (!source.renameTo(target)) {
+      target.delete();
+      if (!source.renameTo(target)) {
+        throw new IOException("Failed to rename " + source + " to " + target);
+      }
+    }
+  }
+
   /** Create and return a new temporary directory */
   public static File createTemporaryDirectory() throws IOException {
     // We want a temporary directory. createTempFile will make a file with a
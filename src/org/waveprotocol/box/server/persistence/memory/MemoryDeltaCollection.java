@@ -21,6 +21,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 import com.google.protobuf.InvalidProtocolBufferException;
 
+import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
 import org.waveprotocol.box.server.waveserver.ByteStringMessage;
 import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
 import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
@@ -38,11 +39,12 @@ import java.util.Map;
  * @author josephg@google.com (Joseph Gentle)
  */
 public class MemoryDeltaCollection implements DeltasAccess {
-  private final Map<Long, WaveletDeltaRecord> deltas = Maps.newHashMap();
-  private final Map<Long, WaveletDeltaRecord> endDeltas = Maps.newHashMap();
+  private final Map<Long, WaveletDeltaRecord> deltas = Maps.newConcurrentMap();
+  private final Map<Long, WaveletDeltaRecord> endDeltas = Maps.newConcurrentMap();
   private final WaveletName waveletName;
 
-  private HashedVersion endVersion = null;
+  private volatile HashedVersion endVersion = null;
+  private volatile WaveletSnapshot snapshotCheckpoint = null;
 
   public MemoryDeltaCollection(WaveletName waveletName) {
     Preconditions.checkNotNull(waveletName);
@@ -119,4 +121,16 @@ public class MemoryDeltaCollection implements DeltasAccess {
       endDeltas.put(endVersion.getVersion(), delta);
     }
   }
+
+  @Override
+  public void storeSnapshotCheckpoint(WaveletSnapshot snapshot) {
+    Preconditions.checkState(endVersion != null
+        && snapshot.getVersion().getVersion() <= endVersion.getVersion());
+    snapshotCheckpoint = snapshot;
+  }
+
+  @Override
+  public WaveletSnapshot getSnapshotCheckpoint() {
+    return snapshotCheckpoint;
+  }
 }
@@ -41,6 +41,7 @@ import org.waveprotocol.box.server.account.RobotAccountDataImpl;
 import org.waveprotocol.box.server.authentication.PasswordDigest;
 import org.waveprotocol.box.server.persistence.AccountStore;
 import org.waveprotocol.box.server.persistence.AttachmentStore;
+import org.waveprotocol.box.server.persistence.AttachmentUtil;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.persistence.SignerInfoStore;
 import org.waveprotocol.box.server.robots.RobotCapabilities;
@@ -189,6 +190,16 @@ public final class MongoDbStore implements SignerInfoStore, AttachmentStore, Acc
           attachment.writeTo(out);
         }
 
+        @Override
+        public void writeDataTo(OutputStream out, long offset, long length) throws IOException {
+          InputStream is = attachment.getInputStream();
+          try {
+            AttachmentUtil.writeTo(is, out, offset, length);
+          } finally {
+            is.close();
+          }
+        }
+
         @Override
         public Date getLastModifiedDate() {
           return attachment.getUploadDate();
@@ -35,6 +35,7 @@ import net.oauth.SimpleOAuthValidator;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.waveprotocol.box.server.CoreSettings;
 import org.waveprotocol.box.server.robots.active.ActiveApiOperationServiceRegistry;
 import org.waveprotocol.box.server.robots.dataapi.DataApiOAuthServlet;
@@ -83,8 +84,18 @@ public class RobotApiModule extends AbstractModule {
 
   @Provides
   @Singleton
-  protected RobotConnection provideRobotConnection() {
-    HttpClient httpClient = new HttpClient(new MultiThreadedHttpConnectionManager());
+  protected RobotConnection provideRobotConnection(
+      @Named(CoreSettings.ROBOT_REQUEST_TIMEOUT_MS) int requestTimeoutMs) {
+    // Pool as many connections to each robot as there are threads sending to
+    // robots, rather than the default of two, and don't let an unresponsive
+    // robot hold a connection forever.
+    MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+    HttpConnectionManagerParams params = connectionManager.getParams();
+    params.setDefaultMaxConnectionsPerHost(NUMBER_OF_THREADS);
+    params.setMaxTotalConnections(NUMBER_OF_THREADS);
+    params.setConnectionTimeout(requestTimeoutMs);
+    params.setSoTimeout(requestTimeoutMs);
+    HttpClient httpClient = new HttpClient(connectionManager);
 
     ThreadFactory threadFactory =
         new ThreadFactoryBuilder().setNameFormat("RobotConnection").build();
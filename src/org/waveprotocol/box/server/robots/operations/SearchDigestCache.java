@@ -0,0 +1,179 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.robots.operations;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.wave.api.SearchResult.Digest;
+
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.CoreSettings;
+import org.waveprotocol.box.server.waveserver.WaveBus;
+import org.waveprotocol.wave.model.id.IdUtil;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the search digest of each wave's conversation wavelet at its latest
+ * searched version, and the unread blip count of each user who searched for
+ * it at the version of their user data wavelet.
+ *
+ * Entries are looked up by version, so a stale entry is never used, but the
+ * cache listens on the wave bus to drop them as soon as the wavelets change.
+ */
+@Singleton
+public class SearchDigestCache implements WaveBus.Subscriber {
+
+  /** The parts of a digest which are the same for every user. */
+  public static final class WaveDigest {
+    private final WaveletId waveletId;
+    private final long version;
+    private final String title;
+    private final String snippet;
+    private final String waveId;
+    private final ImmutableList<String> participants;
+    private final long lastModifiedTime;
+    private final int blipCount;
+    /** Unread blip counts by user. */
+    private final ConcurrentMap<ParticipantId, UnreadCount> unreadCounts =
+        new MapMaker().makeMap();
+
+    /**
+     * @param waveletId the conversation wavelet summarised
+     * @param version the version of the wavelet summarised
+     */
+    WaveDigest(WaveletId waveletId, long version, String title, String snippet,
+        String waveId, List<String> participants, long lastModifiedTime, int blipCount) {
+      this.waveletId = waveletId;
+      this.version = version;
+      this.title = title;
+      this.snippet = snippet;
+      this.waveId = waveId;
+      this.participants = ImmutableList.copyOf(participants);
+      this.lastModifiedTime = lastModifiedTime;
+      this.blipCount = blipCount;
+    }
+
+    /**
+     * @return a user's unread blip count, or null if it isn't known for the
+     *         given version of the user data wavelet
+     */
+    Integer getUnreadCount(ParticipantId user, long userDataVersion) {
+      UnreadCount count = unreadCounts.get(user);
+      return (count != null && count.userDataVersion == userDataVersion) ? count.count : null;
+    }
+
+    void putUnreadCount(ParticipantId user, long userDataVersion, int count) {
+      unreadCounts.put(user, new UnreadCount(userDataVersion, count));
+    }
+
+    /** @return a search digest with the given unread blip count. */
+    public Digest toDigest(int unreadCount) {
+      return new Digest(title, snippet, waveId, Lists.newArrayList(participants),
+          lastModifiedTime, unreadCount, blipCount);
+    }
+  }
+
+  /** A user's unread blip count at a version of their user data wavelet. */
+  private static final class UnreadCount {
+    final long userDataVersion;
+    final int count;
+
+    UnreadCount(long userDataVersion, int count) {
+      this.userDataVersion = userDataVersion;
+      this.count = count;
+    }
+  }
+
+  private final ConcurrentMap<WaveId, WaveDigest> digests;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * @param maxWaves the number of waves whose digests are kept; beyond it the
+   *        least recently used are dropped
+   */
+  @Inject
+  public SearchDigestCache(@Named(CoreSettings.SEARCH_DIGEST_CACHE_SIZE) int maxWaves) {
+    this.digests = new MapMaker().maximumSize(maxWaves).makeMap();
+  }
+
+  /**
+   * @return the digest of a conversation wavelet at the given version, or null
+   *         if it isn't cached
+   */
+  public WaveDigest get(WaveletName waveletName, long version) {
+    WaveDigest digest = digests.get(waveletName.waveId);
+    if (digest != null && digest.waveletId.equals(waveletName.waveletId)
+        && digest.version == version) {
+      hitCount.incrementAndGet();
+      return digest;
+    }
+    missCount.incrementAndGet();
+    return null;
+  }
+
+  /** Caches the digest of a wave's conversation wavelet. */
+  public void put(WaveId waveId, WaveDigest digest) {
+    digests.put(waveId, digest);
+  }
+
+  /** @return the number of lookups which found a digest. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** @return the number of lookups which found no digest. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  @Override
+  public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+    WaveDigest digest = digests.get(wavelet.getWaveId());
+    if (digest == null) {
+      return;
+    }
+    WaveletId waveletId = wavelet.getWaveletId();
+    if (digest.waveletId.equals(waveletId)) {
+      digests.remove(wavelet.getWaveId(), digest);
+    } else if (IdUtil.isUserDataWavelet(waveletId)) {
+      String address = IdUtil.getUserDataWaveletAddress(waveletId);
+      if (address != null) {
+        digest.unreadCounts.remove(ParticipantId.ofUnsafe(address));
+      }
+    }
+  }
+
+  @Override
+  public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+    // No-op.
+  }
+}
@@ -31,6 +31,7 @@ import org.waveprotocol.box.common.Snippets;
 import org.waveprotocol.box.server.robots.OperationContext;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
 import org.waveprotocol.box.server.robots.util.OperationUtil;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.box.server.waveserver.SearchProvider;
 import org.waveprotocol.wave.model.conversation.BlipIterators;
 import org.waveprotocol.wave.model.conversation.ConversationBlip;
@@ -43,6 +44,7 @@ import org.waveprotocol.wave.model.document.Document;
 import org.waveprotocol.wave.model.id.IdUtil;
 import org.waveprotocol.wave.model.id.ModernIdSerialiser;
 import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.supplement.PrimitiveSupplement;
 import org.waveprotocol.wave.model.supplement.PrimitiveSupplementImpl;
 import org.waveprotocol.wave.model.supplement.SupplementedWave;
@@ -65,6 +67,10 @@ import java.util.Map;
 /**
  * {@link OperationService} for the "search" operation.
  *
+ * The digest of each conversational wave is kept in a {@link SearchDigestCache}
+ * until the wave changes, so repeated searches only build the conversation
+ * model of the waves which changed.
+ *
  * @author ljvderijk@google.com (Lennard de Rijk)
  * @author josephg@gmail.com (Joseph Gentle)
  */
@@ -81,11 +87,14 @@ public class SearchService implements OperationService {
 
   private final SearchProvider searchProvider;
   private final ConversationUtil conversationUtil;
+  private final SearchDigestCache digestCache;
 
   @Inject
-  public SearchService(SearchProvider searchProvider, ConversationUtil conversationUtil) {
+  public SearchService(SearchProvider searchProvider, ConversationUtil conversationUtil,
+      SearchDigestCache digestCache) {
     this.searchProvider = searchProvider;
     this.conversationUtil = conversationUtil;
+    this.digestCache = digestCache;
   }
 
   @Override
@@ -117,6 +126,18 @@ public class SearchService implements OperationService {
   @VisibleForTesting
   Digest generateDigest(ObservableConversationView conversations, SupplementedWave supplement,
       WaveletData rawWaveletData) {
+    return summarise(conversations, rawWaveletData).toDigest(
+        countUnreadBlips(conversations, supplement));
+  }
+
+  /**
+   * Produces the parts of a digest which are the same for every user.
+   *
+   * @param conversations the conversation.
+   * @param rawWaveletData the waveletData from which the digest is generated.
+   */
+  private SearchDigestCache.WaveDigest summarise(ObservableConversationView conversations,
+      WaveletData rawWaveletData) {
     ObservableConversation rootConversation = conversations.getRoot();
     ObservableConversationBlip firstBlip = null;
     if (rootConversation != null && rootConversation.getRootThread() != null
@@ -145,16 +166,61 @@ public class SearchService implements OperationService {
         break;
       }
     }
-    int unreadCount = 0;
     int blipCount = 0;
     for (ConversationBlip blip : BlipIterators.breadthFirst(rootConversation)) {
+      blipCount++;
+    }
+    return new SearchDigestCache.WaveDigest(rawWaveletData.getWaveletId(),
+        rawWaveletData.getHashedVersion().getVersion(), title, snippet, waveId, participants,
+        rawWaveletData.getLastModifiedTime(), blipCount);
+  }
+
+  /** @return the number of blips of the conversation unread by the supplement's user. */
+  private int countUnreadBlips(ObservableConversationView conversations,
+      SupplementedWave supplement) {
+    int unreadCount = 0;
+    for (ConversationBlip blip : BlipIterators.breadthFirst(conversations.getRoot())) {
       if (supplement.isUnread(blip)) {
         unreadCount++;
       }
-      blipCount++;
     }
-    return new Digest(title, snippet, waveId, participants, rawWaveletData.getLastModifiedTime(),
-        unreadCount, blipCount);
+    return unreadCount;
+  }
+
+  /**
+   * Produces the digest of a conversation wavelet for a user, from the cache
+   * where possible.
+   *
+   * @param user the user searching.
+   * @param convWavelet the conversation wavelet. This wavelet is a copy.
+   * @param udw the user's user data wavelet, if any.
+   * @return the digest, or null if the wavelet has no conversation.
+   */
+  private Digest conversationDigest(ParticipantId user, ObservableWaveletData convWavelet,
+      ObservableWaveletData udw) {
+    WaveletName waveletName = WaveletDataUtil.waveletNameOf(convWavelet);
+    long udwVersion = udw != null ? udw.getHashedVersion().getVersion() : -1;
+    SearchDigestCache.WaveDigest cached =
+        digestCache.get(waveletName, convWavelet.getHashedVersion().getVersion());
+    if (cached != null) {
+      Integer unreadCount = cached.getUnreadCount(user, udwVersion);
+      if (unreadCount != null) {
+        return cached.toDigest(unreadCount);
+      }
+    }
+
+    OpBasedWavelet wavelet = OpBasedWavelet.createReadOnly(convWavelet);
+    if (!WaveletBasedConversation.waveletHasConversation(wavelet)) {
+      return null;
+    }
+    ObservableConversationView conversations = conversationUtil.buildConversation(wavelet);
+    if (cached == null) {
+      cached = summarise(conversations, convWavelet);
+      digestCache.put(waveletName.waveId, cached);
+    }
+    int unreadCount = countUnreadBlips(conversations, buildSupplement(user, conversations, udw));
+    cached.putUnreadCount(user, udwVersion, unreadCount);
+    return cached.toDigest(unreadCount);
   }
 
   /** @return a digest for an empty wave. */
@@ -186,8 +252,18 @@ public class SearchService implements OperationService {
     return new Digest(title, "(unknown)", id, participants, lmt, 0, docs);
   }
 
-  // Note that this search implementation is only of prototype quality.
-  private SearchResult search(
+  /**
+   * Searches for waves and produces a digest of each.
+   *
+   * Note that this search implementation is only of prototype quality.
+   *
+   * @param participant the user searching
+   * @param query the query to execute
+   * @param startAt the index from which to return results
+   * @param numResults the maximum number of results to return
+   * @return one digest per matching wave, in order
+   */
+  public SearchResult search(
       ParticipantId participant, String query, int startAt, int numResults) {
     Collection<WaveViewData> results =
         searchProvider.search(participant, query, startAt, numResults);
@@ -217,22 +293,16 @@ public class SearchService implements OperationService {
       }
 
       ObservableWaveletData convWavelet = root != null ? root : other;
-      SupplementedWave supplement = null;
-      ObservableConversationView conversations = null;
+      Digest digest = null;
       if (convWavelet != null) {
-        OpBasedWavelet wavelet = OpBasedWavelet.createReadOnly(convWavelet);
-        if (WaveletBasedConversation.waveletHasConversation(wavelet)) {
-          conversations = conversationUtil.buildConversation(wavelet);
-          supplement = buildSupplement(participant, conversations, udw);
-        }
+        // This may be a conversational wave. Produce a conversational digest.
+        digest = conversationDigest(participant, convWavelet, udw);
       }
-      if (conversations != null) {
-        // This is a conversational wave. Produce a conversational digest.
-        result.addDigest(generateDigest(conversations, supplement, convWavelet));
-      } else {
+      if (digest == null) {
         // It is unknown how to present this wave.
-        result.addDigest(generateEmptyorUnknownDigest(wave));
+        digest = generateEmptyorUnknownDigest(wave);
       }
+      result.addDigest(digest);
     }
 
     assert result.getDigests().size() == results.size();
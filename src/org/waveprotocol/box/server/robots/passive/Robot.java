@@ -21,6 +21,9 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.wave.api.OperationRequest;
 import com.google.wave.api.data.converter.EventDataConverterManager;
 import com.google.wave.api.impl.EventMessageBundle;
@@ -38,9 +41,14 @@ import org.waveprotocol.wave.model.operation.OperationException;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Represents a Robot in the passive API. Is responsible for providing a filter
@@ -48,6 +56,16 @@ import java.util.Map.Entry;
  * executing the operations it receives. It submits the delta back to the
  * {@link RobotsGateway}.
  *
+ * <p>
+ * Event bundles are sent asynchronously, so a slow robot doesn't hold the
+ * gateway's threads, within the limits of a {@link RobotDispatchPolicy}: a
+ * bounded number of bundles in flight, at most one of them per wavelet so that
+ * a robot sees the events of a wavelet in order, a bounded queue of wavelets
+ * which drops
+ * the oldest, and a circuit breaker which drops events for a while after
+ * consecutive failures. The operations a robot responds with are applied when
+ * it next runs.
+ *
  * @author ljvderijk@google.com (Lennard de Rijk)
  */
 public class Robot implements Runnable {
@@ -60,6 +78,12 @@ public class Robot implements Runnable {
    * capabilities
    */
   public static final String CAPABILITIES_URL = "/_wave/capabilities.xml";
+  /**
+   * Most queued wavelets processed in one run, before the robot is requeued
+   * so that other robots get their turn on the gateway's executor.
+   */
+  @VisibleForTesting
+  static final int MAX_WAVELETS_PER_RUN = 16;
 
   private final RobotName robotName;
   // This is not final because it needs to be updated when the capabilities
@@ -78,6 +102,40 @@ public class Robot implements Runnable {
       LinkedListMultimap.<WaveletName, WaveletAndDeltas> create();
   private final EventGenerator eventGenerator;
   private final RobotOperationApplicator operationApplicator;
+  private final RobotDispatchPolicy policy;
+  private final RobotStats stats = new RobotStats();
+
+  /** Responses of the robot whose operations are yet to be applied. */
+  private final Queue<Response> responses = new ConcurrentLinkedQueue<Response>();
+
+  /** Number of bundles in flight. Guarded by waveletAndDeltasMap. */
+  private int inFlight = 0;
+
+  /**
+   * Wavelets with a bundle in flight, whose queued events wait for the
+   * response. Guarded by waveletAndDeltasMap.
+   */
+  private final Set<WaveletName> inFlightWavelets = Sets.newHashSet();
+
+  /** Number of consecutive failed bundles. Guarded by waveletAndDeltasMap. */
+  private int consecutiveFailures = 0;
+
+  /**
+   * Time until which events are dropped, after consecutive failures. Guarded
+   * by waveletAndDeltasMap.
+   */
+  private long circuitOpenUntilMs = 0;
+
+  /** The operations a robot responded with to the events of a wavelet. */
+  private static final class Response {
+    final WaveletAndDeltas wavelet;
+    final List<OperationRequest> operations;
+
+    Response(WaveletAndDeltas wavelet, List<OperationRequest> operations) {
+      this.wavelet = wavelet;
+      this.operations = operations;
+    }
+  }
 
   /**
    * Constructs a new Robot which is characterized by its {@link RobotName}.
@@ -93,11 +151,12 @@ public class Robot implements Runnable {
    * @param eventGenerator used to generate events
    * @param operationApplicator used to apply the robot operations returned by a
    *        robot.
+   * @param policy limits on sending events to the robot.
    */
   Robot(RobotName robotName, RobotAccountData account, RobotsGateway gateway,
       RobotConnector connector, EventDataConverterManager converterManager,
       WaveletProvider waveletProvider, EventGenerator eventGenerator,
-      RobotOperationApplicator operationApplicator) {
+      RobotOperationApplicator operationApplicator, RobotDispatchPolicy policy) {
     Preconditions.checkArgument(account.isVerified(), "Account must be verified");
     this.robotName = robotName;
     this.gateway = gateway;
@@ -105,6 +164,7 @@ public class Robot implements Runnable {
     this.converterManager = converterManager;
     this.eventGenerator = eventGenerator;
     this.operationApplicator = operationApplicator;
+    this.policy = policy;
 
     setAccount(account);
   }
@@ -136,6 +196,13 @@ public class Robot implements Runnable {
     return account;
   }
 
+  /**
+   * Returns the metrics of sending events to this robot.
+   */
+  RobotStats getStats() {
+    return stats;
+  }
+
   /**
    * Processes a wavelet update for this {@link Robot}.
    *
@@ -148,7 +215,8 @@ public class Robot implements Runnable {
    *
    * <p>
    * This method synchronizes on the queue because we might be appending deltas
-   * while dequeueWavelet() is being called.
+   * while dequeueWavelet() is being called. If the queue holds more wavelets
+   * than the {@link RobotDispatchPolicy} allows, the oldest are dropped.
    *
    * @param wavelet the wavelet this update is taking place on.
    * @param deltas the deltas that have been applied to the given wavelet.
@@ -176,65 +244,140 @@ public class Robot implements Runnable {
           wavelets.add(waveletAndDeltas);
         }
       }
+
+      Iterator<Entry<WaveletName, WaveletAndDeltas>> iterator =
+          waveletAndDeltasMap.entries().iterator();
+      while (waveletAndDeltasMap.size() > policy.getMaxQueuedWavelets()) {
+        WaveletAndDeltas dropped = iterator.next().getValue();
+        iterator.remove();
+        stats.recordDropped();
+        LOG.warning(robotName + ": queue full, dropping its wavelet("
+            + WaveletDataUtil.waveletNameOf(dropped.getSnapshotAfterDeltas()) + ") at version "
+            + dropped.getVersionAfterDeltas());
+      }
+      stats.setQueueDepth(waveletAndDeltasMap.size());
     }
   }
 
   /**
-   * Dequeues a wavelet for this {@link Robot}.
+   * Dequeues a wavelet for this {@link Robot}, skipping wavelets which have a
+   * bundle in flight.
    *
    * <p>
    * This method synchronizes on the queue because deltas might be added in
    * waveletUpdate().
    *
-   * @return the next {@link WaveletAndDeltas} in the queue, null if there is
-   *         none.
+   * @return the next {@link WaveletAndDeltas} in the queue without a bundle in
+   *         flight, null if there is none.
    */
   @VisibleForTesting
   WaveletAndDeltas dequeueWavelet() {
     synchronized (waveletAndDeltasMap) {
       Iterator<Entry<WaveletName, WaveletAndDeltas>> iterator =
           waveletAndDeltasMap.entries().iterator();
-      if (!iterator.hasNext()) {
-        return null;
+      while (iterator.hasNext()) {
+        Entry<WaveletName, WaveletAndDeltas> entry = iterator.next();
+        if (!inFlightWavelets.contains(entry.getKey())) {
+          iterator.remove();
+          stats.setQueueDepth(waveletAndDeltasMap.size());
+          return entry.getValue();
+        }
       }
-      WaveletAndDeltas wavelet = iterator.next().getValue();
-      iterator.remove();
-      return wavelet;
+      return null;
     }
   }
 
   /**
-   * Runs this {@link Robot} by checking its queue for a new wavelet and then
-   * processing this wavelet. In the end the {@link Robot} will check whether it
-   * needs to requeue itself in the RobotGateway or that no further actions need
-   * to be taken.
+   * Runs this {@link Robot} by applying the operations of the responses it
+   * received, then checking its queue for new wavelets and sending the events
+   * of up to {@link #MAX_WAVELETS_PER_RUN} of them, as long as fewer bundles
+   * than allowed are in flight. In the end the {@link Robot} will check
+   * whether it needs to requeue itself in the RobotGateway or that no further
+   * actions need to be taken.
    */
   @Override
   public void run() {
+    boolean worked = false;
     try {
       LOG.fine(robotName + " called for processing");
 
-      WaveletAndDeltas wavelet = dequeueWavelet();
-      if (wavelet == null) {
-        gateway.doneRunning(this);
-        return;
+      worked = applyResponses();
+      for (int i = 0; i < MAX_WAVELETS_PER_RUN && canSend(); i++) {
+        WaveletAndDeltas wavelet = dequeueWavelet();
+        if (wavelet == null) {
+          break;
+        }
+        process(wavelet);
+        worked = true;
       }
-      process(wavelet);
+      // Responses may have arrived while the events were sent.
+      worked |= applyResponses();
     } catch (RuntimeException e) {
       LOG.severe("Unexpected error occurred when robot " + robotName + " was called", e);
+      worked = true;
     }
 
-    // Requeue since we either had an exception or we processed a wavelet.
+    // Requeue if we either had an exception or did some work, or if work
+    // arrived while running, since its ensureScheduled() call was ignored.
     gateway.doneRunning(this);
-    gateway.ensureScheduled(this);
+    if (worked || hasWork()) {
+      gateway.ensureScheduled(this);
+    }
+  }
+
+  /**
+   * Applies the operations of the responses received so far.
+   *
+   * @return true if there were any.
+   */
+  private boolean applyResponses() {
+    boolean applied = false;
+    for (Response response = responses.poll(); response != null; response = responses.poll()) {
+      LOG.info(robotName + ": applying received operations");
+      operationApplicator.applyOperations(response.operations,
+          response.wavelet.getSnapshotAfterDeltas(), response.wavelet.getVersionAfterDeltas(),
+          account);
+      applied = true;
+    }
+    return applied;
+  }
+
+  /**
+   * Returns true if fewer bundles than allowed are in flight.
+   */
+  private boolean canSend() {
+    synchronized (waveletAndDeltasMap) {
+      return inFlight < policy.getMaxInFlightBundles();
+    }
+  }
+
+  /**
+   * Returns true if there are responses to apply, or wavelets without a bundle
+   * in flight to process and bundles may be sent.
+   */
+  private boolean hasWork() {
+    synchronized (waveletAndDeltasMap) {
+      if (!responses.isEmpty()) {
+        return true;
+      }
+      if (inFlight >= policy.getMaxInFlightBundles()) {
+        return false;
+      }
+      for (WaveletName waveletName : waveletAndDeltasMap.keySet()) {
+        if (!inFlightWavelets.contains(waveletName)) {
+          return true;
+        }
+      }
+      return false;
+    }
   }
 
   /**
    * Processes a single {@link WaveletAndDeltas} by generating events that a
    * {@link Robot} is subscribed to. These events are then sent off to the robot
-   * using the {@link RobotConnector} passed during construction. The operations
-   * returned by the robot are then processed by the
-   * {@link RobotOperationApplicator}.
+   * using the {@link RobotConnector} passed during construction, unless the
+   * circuit breaker is open. The operations returned by the robot are then
+   * processed by the {@link RobotOperationApplicator} when the robot next runs.
    *
    * @param wavelet the {@link WaveletAndDeltas} to process.
    */
@@ -271,12 +414,76 @@ public class Robot implements Runnable {
       return;
     }
 
+    final WaveletName waveletName =
+        WaveletDataUtil.waveletNameOf(wavelet.getSnapshotAfterDeltas());
+    synchronized (waveletAndDeltasMap) {
+      if (System.currentTimeMillis() < circuitOpenUntilMs) {
+        stats.recordDropped();
+        LOG.info(robotName + ": failing, dropping its events for wavelet(" + waveletName
+            + ") at version " + wavelet.getVersionAfterDeltas());
+        return;
+      }
+      inFlight++;
+      inFlightWavelets.add(waveletName);
+    }
+
     LOG.info(robotName + ": sending events");
-    List<OperationRequest> response =
-        connector.sendMessageBundle(messages, this, capabilities.getProtocolVersion());
-    LOG.info(robotName + ": received operations");
+    stats.recordSent();
+    final long startMs = System.currentTimeMillis();
+    final WaveletAndDeltas sentWavelet = wavelet;
+    final ListenableFuture<List<OperationRequest>> response =
+        connector.sendMessageBundleAsync(messages, this, capabilities.getProtocolVersion());
+    response.addListener(new Runnable() {
+      @Override
+      public void run() {
+        onResponse(waveletName, sentWavelet, response, System.currentTimeMillis() - startMs);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+  }
 
-    operationApplicator.applyOperations(
-        response, wavelet.getSnapshotAfterDeltas(), wavelet.getVersionAfterDeltas(), account);
+  /**
+   * Records the response to a bundle, updating the circuit breaker, and
+   * schedules this robot to apply its operations and send the next bundle for
+   * the wavelet. Runs on the thread which completed the response.
+   */
+  private void onResponse(WaveletName waveletName, WaveletAndDeltas wavelet,
+      ListenableFuture<List<OperationRequest>> response, long latencyMs) {
+    List<OperationRequest> operations;
+    boolean failed;
+    try {
+      operations = response.get();
+      failed = false;
+      LOG.info(robotName + ": received operations");
+    } catch (ExecutionException e) {
+      LOG.info(robotName + ": failed to receive a valid response", e.getCause());
+      operations = Collections.emptyList();
+      failed = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      operations = Collections.emptyList();
+      failed = true;
+    }
+
+    // Queue the operations before the wavelet may be sent again, so that they
+    // are applied before its next response.
+    if (!operations.isEmpty()) {
+      responses.add(new Response(wavelet, operations));
+    }
+    synchronized (waveletAndDeltasMap) {
+      inFlight--;
+      inFlightWavelets.remove(waveletName);
+      if (failed) {
+        consecutiveFailures++;
+        if (consecutiveFailures >= policy.getCircuitBreakerFailures()) {
+          LOG.warning(robotName + ": " + consecutiveFailures + " consecutive failures, dropping"
+              + " its events for " + policy.getCircuitBreakerCooldownMs() + "ms");
+          circuitOpenUntilMs = System.currentTimeMillis() + policy.getCircuitBreakerCooldownMs();
+        }
+      } else {
+        consecutiveFailures = 0;
+      }
+    }
+    stats.recordResponse(latencyMs, failed);
+    gateway.ensureScheduled(this);
   }
 }
@@ -17,6 +17,9 @@
 
 package org.waveprotocol.box.server.robots.passive;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
 import com.google.wave.api.InvalidRequestException;
 import com.google.wave.api.OperationRequest;
@@ -33,12 +36,12 @@ import org.waveprotocol.box.server.account.RobotAccountDataImpl;
 import org.waveprotocol.box.server.robots.RobotCapabilities;
 import org.waveprotocol.wave.util.logging.Log;
 
-import java.util.Collections;
 import java.util.List;
 
 /**
  * This class sends {@link EventMessageBundle} to a robot and receives their
- * response. It will gracefully handle failure by acting like the robot sent no
+ * response. A failure to reach the robot or to parse its response fails the
+ * returned future, which the {@link Robot} treats as the robot sending no
  * operations.
  *
  * @author ljvderijk@google.com (Lennard de Rijk)
@@ -58,34 +61,41 @@ public class RobotConnector {
   }
 
   /**
-   * Synchronously sends an {@link EventMessageBundle} off to a robot and hands
-   * back the response in the form of a list of {@link OperationRequest}s.
+   * Asynchronously sends an {@link EventMessageBundle} off to a robot. The
+   * request is made on the connection's executor, so the calling thread isn't
+   * held for the round trip.
    *
    * @param bundle the bundle to send to the robot.
    * @param robot the {@link RobotAccountData} of the robot.
    * @param version the version that we should speak to the robot.
-   * @returns list of {@link OperationRequest}s that the robot wants to have
-   *          executed.
+   * @returns a future of the list of {@link OperationRequest}s that the robot
+   *          wants to have executed, which fails if the robot couldn't be
+   *          reached, timed out or sent an invalid response.
    */
-  public List<OperationRequest> sendMessageBundle(
+  public ListenableFuture<List<OperationRequest>> sendMessageBundleAsync(
       EventMessageBundle bundle, Robot robot, ProtocolVersion version) {
     String serializedBundle = serializer.serialize(bundle, version);
 
-    String robotUrl = robot.getAccount().getUrl() + Robot.RPC_URL;
+    final String robotUrl = robot.getAccount().getUrl() + Robot.RPC_URL;
     LOG.info("Sending: " + serializedBundle + " to " + robotUrl);
 
+    ListenableFuture<String> response;
     try {
-      String response = connection.postJson(robotUrl, serializedBundle);
-      LOG.info("Received: " + response + " from " + robotUrl);
-      return serializer.deserializeOperations(response);
+      response = connection.asyncPostJson(robotUrl, serializedBundle);
     } catch (RobotConnectionException e) {
-      LOG.info("Failed to receive a response from " + robotUrl, e);
-    } catch (InvalidRequestException e) {
-      LOG.info("Failed to deserialize passive API response", e);
+      return Futures.immediateFailedFuture(e);
     }
-
-    // Return an empty list and let the caller ignore the failure
-    return Collections.emptyList();
+    return Futures.transform(response, new Function<String, List<OperationRequest>>() {
+      @Override
+      public List<OperationRequest> apply(String response) {
+        LOG.info("Received: " + response + " from " + robotUrl);
+        try {
+          return serializer.deserializeOperations(response);
+        } catch (InvalidRequestException e) {
+          throw new IllegalArgumentException("Failed to deserialize passive API response", e);
+        }
+      }
+    });
   }
 
   /**
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.robots.passive;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import org.waveprotocol.box.server.CoreSettings;
+
+/**
+ * Limits on sending events to each passive {@link Robot}: how many event
+ * bundles may be in flight, how many wavelets may be queued, and when to stop
+ * sending to a robot which keeps failing.
+ */
+public class RobotDispatchPolicy {
+
+  private final int maxInFlightBundles;
+  private final int maxQueuedWavelets;
+  private final int circuitBreakerFailures;
+  private final long circuitBreakerCooldownMs;
+
+  /**
+   * @param maxInFlightBundles most event bundles sent to a robot and not yet
+   *        answered
+   * @param maxQueuedWavelets most wavelets queued for a robot; the oldest are
+   *        dropped beyond this
+   * @param circuitBreakerFailures number of consecutive failed bundles after
+   *        which events for a robot are dropped for the cooldown
+   * @param circuitBreakerCooldownMs time for which events are dropped
+   */
+  @Inject
+  public RobotDispatchPolicy(
+      @Named(CoreSettings.ROBOT_MAX_IN_FLIGHT_BUNDLES) int maxInFlightBundles,
+      @Named(CoreSettings.ROBOT_MAX_QUEUED_WAVELETS) int maxQueuedWavelets,
+      @Named(CoreSettings.ROBOT_CIRCUIT_BREAKER_FAILURES) int circuitBreakerFailures,
+      @Named(CoreSettings.ROBOT_CIRCUIT_BREAKER_COOLDOWN_MS) int circuitBreakerCooldownMs) {
+    Preconditions.checkArgument(maxInFlightBundles > 0,
+        "Non-positive in-flight bundle limit %s", maxInFlightBundles);
+    Preconditions.checkArgument(maxQueuedWavelets > 0,
+        "Non-positive queued wavelet limit %s", maxQueuedWavelets);
+    Preconditions.checkArgument(circuitBreakerFailures > 0,
+        "Non-positive circuit breaker failure count %s", circuitBreakerFailures);
+    Preconditions.checkArgument(circuitBreakerCooldownMs >= 0,
+        "Negative circuit breaker cooldown %s", circuitBreakerCooldownMs);
+    this.maxInFlightBundles = maxInFlightBundles;
+    this.maxQueuedWavelets = maxQueuedWavelets;
+    this.circuitBreakerFailures = circuitBreakerFailures;
+    this.circuitBreakerCooldownMs = circuitBreakerCooldownMs;
+  }
+
+  public int getMaxInFlightBundles() {
+    return maxInFlightBundles;
+  }
+
+  public int getMaxQueuedWavelets() {
+    return maxQueuedWavelets;
+  }
+
+  public int getCircuitBreakerFailures() {
+    return circuitBreakerFailures;
+  }
+
+  public long getCircuitBreakerCooldownMs() {
+    return circuitBreakerCooldownMs;
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.robots.passive;
+
+/**
+ * Metrics of sending events to a passive {@link Robot}: its queue depth, the
+ * bundles in flight, failures, drops, and a histogram of response latencies.
+ */
+public class RobotStats {
+
+  /**
+   * Upper bounds, in milliseconds, of the latency histogram buckets. The last
+   * bucket holds the latencies beyond the last bound.
+   */
+  private static final long[] LATENCY_BOUNDS_MS = {10, 30, 100, 300, 1000, 3000, 10000, 30000};
+
+  private final long[] latencyCounts = new long[LATENCY_BOUNDS_MS.length + 1];
+  private int queueDepth = 0;
+  private int inFlight = 0;
+  private long sentCount = 0;
+  private long failedCount = 0;
+  private long droppedCount = 0;
+
+  /** @return the upper bounds of the latency histogram buckets, in ms. */
+  public static long[] getLatencyBoundsMs() {
+    return LATENCY_BOUNDS_MS.clone();
+  }
+
+  synchronized void setQueueDepth(int queueDepth) {
+    this.queueDepth = queueDepth;
+  }
+
+  synchronized void recordSent() {
+    sentCount++;
+    inFlight++;
+  }
+
+  synchronized void recordResponse(long latencyMs, boolean failed) {
+    inFlight--;
+    if (failed) {
+      failedCount++;
+    }
+    int bucket = 0;
+    while (bucket < LATENCY_BOUNDS_MS.length && latencyMs > LATENCY_BOUNDS_MS[bucket]) {
+      bucket++;
+    }
+    latencyCounts[bucket]++;
+  }
+
+  synchronized void recordDropped() {
+    droppedCount++;
+  }
+
+  /** @return the number of wavelets queued for the robot. */
+  public synchronized int getQueueDepth() {
+    return queueDepth;
+  }
+
+  /** @return the number of bundles sent to the robot and not yet answered. */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /** @return the number of bundles sent to the robot. */
+  public synchronized long getSentCount() {
+    return sentCount;
+  }
+
+  /** @return the number of bundles which failed or timed out. */
+  public synchronized long getFailedCount() {
+    return failedCount;
+  }
+
+  /** @return the number of wavelets whose events were dropped. */
+  public synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * @return the number of responses in each latency bucket, bounded by
+   *         {@link #getLatencyBoundsMs()}, followed by those beyond the last
+   *         bound
+   */
+  public synchronized long[] getLatencyCounts() {
+    return latencyCounts.clone();
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder b = new StringBuilder("RobotStats(queued=").append(queueDepth)
+        .append(", inFlight=").append(inFlight).append(", sent=").append(sentCount)
+        .append(", failed=").append(failedCount).append(", dropped=").append(droppedCount)
+        .append(", latency={");
+    for (int i = 0; i < latencyCounts.length; i++) {
+      if (i > 0) {
+        b.append(", ");
+      }
+      b.append(i < LATENCY_BOUNDS_MS.length ? "<=" + LATENCY_BOUNDS_MS[i] : ">"
+          + LATENCY_BOUNDS_MS[LATENCY_BOUNDS_MS.length - 1]).append("ms: ").append(latencyCounts[i]);
+    }
+    return b.append("})").toString();
+  }
+}
@@ -18,6 +18,7 @@
 package org.waveprotocol.box.server.robots.passive;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
@@ -70,13 +71,15 @@ public class RobotsGateway implements WaveBus.Subscriber {
   private final Executor executor;
   private final ConversationUtil conversationUtil;
   private final NotifyOperationService notifyOpService;
+  private final RobotDispatchPolicy dispatchPolicy;
 
   @Inject
   @VisibleForTesting
   RobotsGateway(WaveletProvider waveletProvider, RobotConnector connector,
       AccountStore accountStore, RobotSerializer serializer,
       EventDataConverterManager converterManager, @Named("GatewayExecutor") Executor executor,
-      ConversationUtil conversationUtil, NotifyOperationService notifyOpService) {
+      ConversationUtil conversationUtil, NotifyOperationService notifyOpService,
+      RobotDispatchPolicy dispatchPolicy) {
     this.waveletProvider = waveletProvider;
     this.accountStore = accountStore;
     this.converterManager = converterManager;
@@ -84,6 +87,7 @@ public class RobotsGateway implements WaveBus.Subscriber {
     this.executor = executor;
     this.conversationUtil = conversationUtil;
     this.notifyOpService = notifyOpService;
+    this.dispatchPolicy = dispatchPolicy;
   }
 
   @Override
@@ -138,7 +142,7 @@ public class RobotsGateway implements WaveBus.Subscriber {
    * @param account the {@link RobotAccountData} belonging to the given
    *        {@link RobotName}.
    */
-  private Robot getOrCreateRobot(RobotName robotName, RobotAccountData account) {
+  private synchronized Robot getOrCreateRobot(RobotName robotName, RobotAccountData account) {
     Robot robot = allRobots.get(robotName);
 
     if (robot == null) {
@@ -161,7 +165,19 @@ public class RobotsGateway implements WaveBus.Subscriber {
         new RobotOperationApplicator(converterManager, waveletProvider,
             new OperationServiceRegistryImpl(notifyOpService), conversationUtil);
     return new Robot(robotName, account, this, connector, converterManager, waveletProvider,
-        eventGenerator, operationApplicator);
+        eventGenerator, operationApplicator, dispatchPolicy);
+  }
+
+  /**
+   * Returns the metrics of sending events to each robot which has been
+   * updated.
+   */
+  public synchronized Map<RobotName, RobotStats> getRobotStats() {
+    ImmutableMap.Builder<RobotName, RobotStats> stats = ImmutableMap.builder();
+    for (Map.Entry<RobotName, Robot> entry : allRobots.entrySet()) {
+      stats.put(entry.getKey(), entry.getValue().getStats());
+    }
+    return stats.build();
   }
 
   /**
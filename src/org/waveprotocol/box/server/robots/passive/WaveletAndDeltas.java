@@ -21,6 +21,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.util.ImmutableWaveletSnapshot;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.OperationException;
@@ -54,7 +55,7 @@ public class WaveletAndDeltas {
   /**
    * Cached result of applying all deltas to the first snapshot.
    */
-  private ObservableWaveletData snapshotAfterDeltas;
+  private ReadableWaveletData snapshotAfterDeltas;
 
   /**
    * The name of the wavelet in this container.
@@ -63,8 +64,12 @@ public class WaveletAndDeltas {
 
   /**
    * Constructs a {@link WaveletAndDeltas} from wavelet data and a tail of the
-   * sequence of transformed deltas leading to that snapshot. Takes a copy of
-   * the WaveletData so that operations can happily applied to it.
+   * sequence of transformed deltas leading to that snapshot. An
+   * {@link ImmutableWaveletSnapshot} is kept as the snapshot after the deltas
+   * rather than copied, and if its previous snapshot is of the version the
+   * deltas apply to, that is kept as the snapshot before the deltas. Otherwise
+   * the snapshot before the deltas is a copy of the WaveletData with the
+   * deltas rolled back.
    *
    * The resulting version of the last delta must match the snapshot's version.
    *
@@ -83,10 +88,26 @@ public class WaveletAndDeltas {
         String.format("Version of snapshot %s doesn't match the end version %s",
             snapshot.getVersion(), endVersion));
 
+    if (snapshot instanceof ImmutableWaveletSnapshot) {
+      ImmutableWaveletSnapshot previous = ((ImmutableWaveletSnapshot) snapshot).getPrevious();
+      if (deltas.isEmpty()) {
+        return new WaveletAndDeltas(snapshot, snapshot, deltas);
+      } else if (previous != null && previous.getVersion() == deltas.getStartVersion()) {
+        return new WaveletAndDeltas(previous, snapshot, deltas);
+      }
+    }
+
     ObservableWaveletData preDeltaWavelet = WaveletDataUtil.copyWavelet(snapshot);
     rollback(preDeltaWavelet, deltas);
-    ObservableWaveletData postDeltaWavelet = WaveletDataUtil.copyWavelet(snapshot);
-    return new WaveletAndDeltas(preDeltaWavelet, postDeltaWavelet, deltas);
+    return new WaveletAndDeltas(preDeltaWavelet, copyUnlessImmutable(snapshot), deltas);
+  }
+
+  /**
+   * @return the snapshot if it is immutable, otherwise a copy of it.
+   */
+  private static ReadableWaveletData copyUnlessImmutable(ReadableWaveletData snapshot) {
+    return (snapshot instanceof ImmutableWaveletSnapshot)
+        ? snapshot : WaveletDataUtil.copyWavelet(snapshot);
   }
 
   /**
@@ -136,8 +157,8 @@ public class WaveletAndDeltas {
    *        been applied.
    * @param deltas deltas in the order they have been applied to the wavelet.
    */
-  private WaveletAndDeltas(ObservableWaveletData preDeltasSnapshot,
-      ObservableWaveletData postDeltasSnapshot, DeltaSequence deltas) {
+  private WaveletAndDeltas(ReadableWaveletData preDeltasSnapshot,
+      ReadableWaveletData postDeltasSnapshot, DeltaSequence deltas) {
     this.snapshotBeforeDeltas = preDeltasSnapshot;
     this.deltas = deltas;
     this.snapshotAfterDeltas = postDeltasSnapshot;
@@ -176,7 +197,7 @@ public class WaveletAndDeltas {
   /**
    * Appends the given deltas to the deltas already stored. Updates the latest
    * snapshot and latest version as well. This method will make a copy of the
-   * snapshot.
+   * snapshot, unless it is an {@link ImmutableWaveletSnapshot}.
    *
    * @param updatedSnapshot the snapshot after deltas have been applied
    * @param newDeltas the deltas that have been applied since the last call to
@@ -200,7 +221,7 @@ public class WaveletAndDeltas {
 
     // TODO(ljvderijk): This should actually be applying the deltas, however
     // they do not contain a timestamp at this time.
-    snapshotAfterDeltas = WaveletDataUtil.copyWavelet(updatedSnapshot);
+    snapshotAfterDeltas = copyUnlessImmutable(updatedSnapshot);
     deltas = DeltaSequence.join(deltas, newDeltas);
   }
 
@@ -32,6 +32,10 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * An attachment servlet is a simple servlet that serves up attachments from a provided store.
+ *
+ * Attachments are served with an ETag and their last modified date, so that
+ * clients can revalidate them with conditional requests, and a single range of
+ * bytes of an attachment can be requested, so that transfers can be resumed.
  */
 @SuppressWarnings("serial")
 @Singleton
@@ -41,7 +45,7 @@ public class AttachmentServlet extends HttpServlet {
   private final AttachmentStore store;
 
   @Inject
-  private AttachmentServlet(AttachmentStore store) {
+  public AttachmentServlet(AttachmentStore store) {
     this.store = store;
   }
 
@@ -77,15 +81,173 @@ public class AttachmentServlet extends HttpServlet {
       return;
     }
 
+    long size = data.getContentSize();
+    long lastModified = data.getLastModifiedDate().getTime();
+    String etag = getETag(size, lastModified);
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", lastModified);
+    response.setHeader("Accept-Ranges", "bytes");
+
+    if (isNotModified(request, etag, lastModified)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    ByteRange range = null;
+    String rangeHeader = request.getHeader("Range");
+    if (rangeHeader != null && isRangeCurrent(request, etag, lastModified)) {
+      range = ByteRange.parse(rangeHeader, size);
+    }
+
     response.setContentType("text/html");
-    response.setStatus(HttpServletResponse.SC_OK);
-    response.setContentLength((int) data.getContentSize());
-    response.setDateHeader("Last-Modified", data.getLastModifiedDate().getTime());
-    data.writeDataTo(response.getOutputStream());
+    if (range == null) {
+      response.setStatus(HttpServletResponse.SC_OK);
+      setContentLength(response, size);
+      data.writeDataTo(response.getOutputStream());
+    } else if (range.first >= size) {
+      response.setHeader("Content-Range", "bytes */" + size);
+      response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return;
+    } else {
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      response.setHeader("Content-Range", "bytes " + range.first + "-" + range.last + "/" + size);
+      setContentLength(response, range.last - range.first + 1);
+      data.writeDataTo(response.getOutputStream(), range.first, range.last - range.first + 1);
+    }
 
     LOG.info("Fetched attachment with id '" + attachmentId + "'");
   }
 
+  /**
+   * Returns the ETag of an attachment. An attachment's data isn't changed once
+   * stored, so its size and last modified date tell versions of it apart.
+   */
+  private static String getETag(long size, long lastModified) {
+    return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+  }
+
+  /**
+   * Returns whether the client's copy of the attachment is current, according
+   * to the If-None-Match header or else the If-Modified-Since header.
+   */
+  private static boolean isNotModified(HttpServletRequest request, String etag,
+      long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          // The weak comparison is used for GET requests.
+          tag = tag.substring(2);
+        }
+        if (tag.equals("*") || tag.equals(etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+    // HTTP dates have a resolution of seconds.
+    return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+  }
+
+  /**
+   * Returns whether a requested range applies to the current attachment, as
+   * it does unless an If-Range header names another version of it.
+   */
+  private static boolean isRangeCurrent(HttpServletRequest request, String etag,
+      long lastModified) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      // The strong comparison is used, which weak tags never pass.
+      return ifRange.equals(etag);
+    }
+    long date = getDateHeader(request, "If-Range");
+    return date != -1 && lastModified / 1000 == date / 1000;
+  }
+
+  /** Returns the value of a date header, or -1 if it's missing or malformed. */
+  private static long getDateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  private static void setContentLength(HttpServletResponse response, long length) {
+    if (length <= Integer.MAX_VALUE) {
+      response.setContentLength((int) length);
+    } else {
+      response.setHeader("Content-Length", Long.toString(length));
+    }
+  }
+
+  /**
+   * A range of bytes of an attachment, from the first to the last byte
+   * inclusive.
+   */
+  private static class ByteRange {
+    private final long first;
+    private final long last;
+
+    ByteRange(long first, long last) {
+      this.first = first;
+      this.last = last;
+    }
+
+    /**
+     * Parses a Range header holding a single range of bytes, such as
+     * "bytes=0-99", "bytes=100-" or "bytes=-100".
+     *
+     * @param header the value of the header
+     * @param size the size of the attachment
+     * @return the range, ending at most at the last byte of the attachment,
+     *         and starting beyond it if it can't be satisfied; or null if the
+     *         header is malformed or holds several ranges, for which the whole
+     *         attachment is served
+     */
+    static ByteRange parse(String header, long size) {
+      header = header.trim();
+      if (!header.startsWith("bytes=") || header.indexOf(',') != -1) {
+        return null;
+      }
+      String spec = header.substring("bytes=".length()).trim();
+      int dash = spec.indexOf('-');
+      if (dash == -1) {
+        return null;
+      }
+      try {
+        String firstSpec = spec.substring(0, dash).trim();
+        String lastSpec = spec.substring(dash + 1).trim();
+        if (firstSpec.isEmpty()) {
+          // A suffix of the attachment.
+          long suffixLength = Long.parseLong(lastSpec);
+          if (suffixLength < 0) {
+            return null;
+          } else if (suffixLength == 0) {
+            return new ByteRange(size, size);
+          }
+          return new ByteRange(Math.max(0, size - suffixLength), size - 1);
+        }
+        long first = Long.parseLong(firstSpec);
+        // Like a closed range, an open one can't be satisfied if its first
+        // byte is beyond the end of the attachment.
+        long last = lastSpec.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastSpec);
+        if (first < 0 || last < first) {
+          return null;
+        }
+        return new ByteRange(first, Math.min(last, size - 1));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+
   @Override
   protected void doPut(final HttpServletRequest request, final HttpServletResponse response)
       throws IOException {
@@ -22,6 +22,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.MessageLite;
 
@@ -45,8 +46,12 @@ import org.waveprotocol.box.common.comms.proto.WaveViewSnapshotProtoImpl;
 import org.waveprotocol.box.common.comms.proto.WaveletSnapshotProtoImpl;
 import org.waveprotocol.box.profile.ProfilesProto.ProfileResponse;
 import org.waveprotocol.box.profile.proto.ProfileResponseProtoImpl;
+import org.waveprotocol.box.search.SearchProto.SearchRequest;
 import org.waveprotocol.box.search.SearchProto.SearchResponse;
+import org.waveprotocol.box.search.SearchProto.SearchUpdate;
+import org.waveprotocol.box.search.proto.SearchRequestProtoImpl;
 import org.waveprotocol.box.search.proto.SearchResponseProtoImpl;
+import org.waveprotocol.box.search.proto.SearchUpdateProtoImpl;
 import org.waveprotocol.box.server.rpc.Rpc.CancelRpc;
 import org.waveprotocol.box.server.rpc.Rpc.RpcFinished;
 import org.waveprotocol.box.server.rpc.proto.CancelRpcProtoImpl;
@@ -59,10 +64,11 @@ import org.waveprotocol.wave.communication.proto.ProtoWrapper;
 import java.util.Map;
 
 /**
- * Serializes protos to/from JSON objects.
+ * Serializes protos to/from JSON objects, and to/from bytes tagged with a
+ * numeric type id.
  * <p>
- * This class uses the PST-generated message classes to perform serialization
- * and deserialization.
+ * This class uses the PST-generated message classes to perform JSON
+ * serialization and deserialization.
  */
 public final class ProtoSerializer {
 
@@ -85,18 +91,31 @@ public final class ProtoSerializer {
   static final class ProtoImplSerializer<
       P extends Message,
       D extends ProtoWrapper<P> & GsonSerializable> {
+    private final int typeId;
     private final Class<P> protoClass;
     private final Class<D> dtoClass;
+    private final P defaultInstance;
 
-    ProtoImplSerializer(Class<P> protoClass, Class<D> dtoClass) {
+    ProtoImplSerializer(int typeId, Class<P> protoClass, Class<D> dtoClass) {
+      this.typeId = typeId;
       this.protoClass = protoClass;
       this.dtoClass = dtoClass;
+      try {
+        this.defaultInstance = protoClass.cast(
+            protoClass.getMethod("getDefaultInstance").invoke(null));
+      } catch (Exception e) {
+        throw new IllegalArgumentException("Not a generated proto class: " + protoClass, e);
+      }
     }
 
     static <P extends Message, D extends ProtoWrapper<P> & GsonSerializable>
         ProtoImplSerializer<P, D> of(
-        Class<P> protoClass, Class<D> dtoClass) {
-      return new ProtoImplSerializer<P, D>(protoClass, dtoClass);
+        int typeId, Class<P> protoClass, Class<D> dtoClass) {
+      return new ProtoImplSerializer<P, D>(typeId, protoClass, dtoClass);
+    }
+
+    int getTypeId() {
+      return typeId;
     }
 
     D newDto() throws SerializationException {
@@ -126,11 +145,20 @@ public final class ProtoSerializer {
       }
       return dto.getPB();
     }
+
+    Message fromBytes(byte[] data, int offset, int length) throws SerializationException {
+      try {
+        return defaultInstance.newBuilderForType().mergeFrom(data, offset, length).build();
+      } catch (InvalidProtocolBufferException e) {
+        throw new SerializationException(e);
+      }
+    }
   }
 
   private final Gson gson = new Gson();
   private final Map<Class<?>, ProtoImplSerializer<?, ?>> byClass = Maps.newHashMap();
   private final Map<String, ProtoImplSerializer<?, ?>> byName = Maps.newHashMap();
+  private final Map<Integer, ProtoImplSerializer<?, ?>> byTypeId = Maps.newHashMap();
 
   public ProtoSerializer() {
     init();
@@ -141,27 +169,35 @@ public final class ProtoSerializer {
     // Note: this list is too inclusive, but has historically always been so.
     // The real list only needs about 5 protos, since only top-level rpc types
     // need to be here, not every single recursively reachable proto.
-    add(ProtocolAuthenticate.class, ProtocolAuthenticateProtoImpl.class);
-    add(ProtocolAuthenticationResult.class, ProtocolAuthenticationResultProtoImpl.class);
-    add(ProtocolOpenRequest.class, ProtocolOpenRequestProtoImpl.class);
-    add(ProtocolSubmitRequest.class, ProtocolSubmitRequestProtoImpl.class);
-    add(ProtocolSubmitResponse.class, ProtocolSubmitResponseProtoImpl.class);
-    add(ProtocolWaveletUpdate.class, ProtocolWaveletUpdateProtoImpl.class);
-    add(WaveletSnapshot.class, WaveletSnapshotProtoImpl.class);
-    add(DocumentSnapshot.class, DocumentSnapshotProtoImpl.class);
-    add(WaveViewSnapshot.class, WaveViewSnapshotProtoImpl.class);
-
-    add(CancelRpc.class, CancelRpcProtoImpl.class);
-    add(RpcFinished.class, RpcFinishedProtoImpl.class);
-
-    add(SearchResponse.class, SearchResponseProtoImpl.class);
-    add(ProfileResponse.class, ProfileResponseProtoImpl.class);
+    //
+    // The type ids identify the protos in binary websocket frames, so an id
+    // must never be reused for a different proto.
+    add(1, ProtocolAuthenticate.class, ProtocolAuthenticateProtoImpl.class);
+    add(2, ProtocolAuthenticationResult.class, ProtocolAuthenticationResultProtoImpl.class);
+    add(3, ProtocolOpenRequest.class, ProtocolOpenRequestProtoImpl.class);
+    add(4, ProtocolSubmitRequest.class, ProtocolSubmitRequestProtoImpl.class);
+    add(5, ProtocolSubmitResponse.class, ProtocolSubmitResponseProtoImpl.class);
+    add(6, ProtocolWaveletUpdate.class, ProtocolWaveletUpdateProtoImpl.class);
+    add(7, WaveletSnapshot.class, WaveletSnapshotProtoImpl.class);
+    add(8, DocumentSnapshot.class, DocumentSnapshotProtoImpl.class);
+    add(9, WaveViewSnapshot.class, WaveViewSnapshotProtoImpl.class);
+
+    add(10, CancelRpc.class, CancelRpcProtoImpl.class);
+    add(11, RpcFinished.class, RpcFinishedProtoImpl.class);
+
+    add(12, SearchResponse.class, SearchResponseProtoImpl.class);
+    add(13, ProfileResponse.class, ProfileResponseProtoImpl.class);
+
+    add(14, SearchRequest.class, SearchRequestProtoImpl.class);
+    add(15, SearchUpdate.class, SearchUpdateProtoImpl.class);
   }
 
-  /** Adds a binding between a proto class and a DTO message class. */
+  /** Adds a binding between a proto class, its type id and a DTO message class. */
   private <P extends Message, D extends ProtoWrapper<P> & GsonSerializable> void add(
-      Class<P> protoClass, Class<D> dtoClass) {
-    ProtoImplSerializer<P, D> serializer = ProtoImplSerializer.of(protoClass, dtoClass);
+      int typeId, Class<P> protoClass, Class<D> dtoClass) {
+    ProtoImplSerializer<P, D> serializer = ProtoImplSerializer.of(typeId, protoClass, dtoClass);
+    Preconditions.checkState(byTypeId.put(typeId, serializer) == null,
+        "Duplicate type id %s", typeId);
     byClass.put(protoClass, serializer);
     byName.put(protoClass.getSimpleName(), serializer);
   }
@@ -201,6 +237,20 @@ public final class ProtoSerializer {
     return serializer;
   }
 
+  /**
+   * Gets the serializer for a type id. Never returns null.
+   *
+   * @throws SerializationException if there is no serializer for
+   *         {@code typeId}.
+   */
+  private ProtoImplSerializer<?, ?> getSerializer(int typeId) throws SerializationException {
+    ProtoImplSerializer<?, ?> serializer = byTypeId.get(typeId);
+    if (serializer == null) {
+      throw new SerializationException("Unknown proto type id: " + typeId);
+    }
+    return serializer;
+  }
+
   /**
    * Serializes a proto to JSON. Only protos whose classes have been registered
    * will be serialized.
@@ -223,6 +273,35 @@ public final class ProtoSerializer {
     return getSerializer(type).fromJson(json, null, gson);
   }
 
+  /**
+   * Gets the type id which identifies a proto's class in its binary form.
+   *
+   * @throws SerializationException if the class of {@code message} has not been
+   *         registered.
+   */
+  public int getTypeId(MessageLite message) throws SerializationException {
+    // Looked up directly: the type id doesn't depend on the proto type, and
+    // capturing the wildcard of getClass() in getSerializer(Class) fails to
+    // infer on newer compilers.
+    ProtoImplSerializer<?, ?> serializer = byClass.get(message.getClass());
+    if (serializer == null) {
+      throw new SerializationException("Unknown proto class: " + message.getClass().getName());
+    }
+    return serializer.getTypeId();
+  }
+
+  /**
+   * Deserializes a proto from its binary form. Only protos whose classes have
+   * been registered can be deserialized.
+   *
+   * @throws SerializationException if no class has been registered with
+   *         {@code typeId}, or the bytes are not a valid proto of that class.
+   */
+  public Message fromBytes(int typeId, byte[] data, int offset, int length)
+      throws SerializationException {
+    return getSerializer(typeId).fromBytes(data, offset, length);
+  }
+
   // Utility method for a test.
   @VisibleForTesting
   public <P extends Message> P fromJson(JsonElement json, Class<P> clazz)
@@ -108,10 +108,32 @@ public final class SearchServlet extends HttpServlet {
       return searchResponse;
     }
 
+    /**
+     * Estimates the total number of results to a query from the page of them
+     * which was returned.
+     *
+     * @param searchRequest the request.
+     * @param searchResult the results returned for the request.
+     * @return the total, or {@link SearchService#UNKNOWN_SIZE}.
+     */
+    public static int estimateTotal(SearchRequest searchRequest, SearchResult searchResult) {
+      // The Data API does not return the total size of the search result, even
+      // though the searcher knows it. The only approximate knowledge that can be
+      // gleaned from the Data API is whether there are more search results beyond
+      // those returned. If the searcher returns as many (or more) results as
+      // requested, then assume that more results exist, but the total is unknown.
+      // Otherwise, the total has been reached.
+      if (searchResult.getNumResults() >= searchRequest.getNumResults()) {
+        return SearchService.UNKNOWN_SIZE;
+      } else {
+        return searchRequest.getIndex() + searchResult.getNumResults();
+      }
+    }
+
     /**
      * Copies data from {@link Digest} into {@link SearchResponse.Digest}.
      */
-    private static SearchResponse.Digest serializeDigest(Digest searchResultDigest) {
+    public static SearchResponse.Digest serializeDigest(Digest searchResultDigest) {
       SearchResponse.Digest.Builder digestBuilder = SearchResponse.Digest.newBuilder();
       digestBuilder.setBlipCount(searchResultDigest.getBlipCount());
       digestBuilder.setLastModified(searchResultDigest.getLastModified());
@@ -190,19 +212,7 @@ public final class SearchServlet extends HttpServlet {
     JsonRpcResponse jsonRpcResponse = context.getResponses().get(opId);
     SearchResult searchResult =
         (SearchResult) jsonRpcResponse.getData().get(ParamsProperty.SEARCH_RESULTS);
-
-    // The Data API does not return the total size of the search result, even
-    // though the searcher knows it. The only approximate knowledge that can be
-    // gleaned from the Data API is whether there are more search results beyond
-    // those returned. If the searcher returns as many (or more) results as
-    // requested, then assume that more results exist, but the total is unknown.
-    // Otherwise, the total has been reached.
-    int totalGuess;
-    if (searchResult.getNumResults() >= searchRequest.getNumResults()) {
-      totalGuess = SearchService.UNKNOWN_SIZE;
-    } else {
-      totalGuess = searchRequest.getIndex() + searchResult.getNumResults();
-    }
+    int totalGuess = SearchResponseUtils.estimateTotal(searchRequest, searchResult);
     LOG.fine("Results: " + searchResult.getNumResults() + ", total: " + totalGuess);
     return SearchResponseUtils.serializeSearchResult(searchResult, totalGuess);
   }
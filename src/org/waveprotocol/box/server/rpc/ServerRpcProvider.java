@@ -35,6 +35,7 @@ import com.google.protobuf.RpcCallback;
 import com.google.protobuf.Service;
 import com.google.protobuf.UnknownFieldSet;
 
+import com.glines.socketio.common.DisconnectReason;
 import com.glines.socketio.server.SocketIOInbound;
 import com.glines.socketio.server.SocketIOServlet;
 import com.glines.socketio.server.transport.FlashSocketTransport;
@@ -124,7 +125,13 @@ public class ServerRpcProvider {
 
     WebSocketConnection(ParticipantId loggedInUser, ServerRpcProvider provider) {
       super(loggedInUser, provider);
-      socketChannel = new WebSocketServerChannel(this);
+      socketChannel = new WebSocketServerChannel(this) {
+        @Override
+        public void onDisconnect() {
+          super.onDisconnect();
+          cancelActiveRpcs();
+        }
+      };
       LOG.info("New websocket connection set up for user " + loggedInUser);
       expectMessages(socketChannel);
     }
@@ -144,7 +151,13 @@ public class ServerRpcProvider {
 
     SocketIOConnection(ParticipantId loggedInUser, ServerRpcProvider provider) {
       super(loggedInUser, provider);
-      socketChannel = new SocketIOServerChannel(this);
+      socketChannel = new SocketIOServerChannel(this) {
+        @Override
+        public void onDisconnect(DisconnectReason reason, String errorMessage) {
+          super.onDisconnect(reason, errorMessage);
+          cancelActiveRpcs();
+        }
+      };
       LOG.info("New websocket connection set up for user " + loggedInUser);
       expectMessages(socketChannel);
     }
@@ -193,6 +206,21 @@ public class ServerRpcProvider {
 
     protected abstract void sendMessage(int sequenceNo, Message message);
 
+    /**
+     * Cancels the RPCs which are still open, as if the client had cancelled
+     * them. Called once the channel has disconnected, since their responses
+     * can't be delivered any more.
+     */
+    protected void cancelActiveRpcs() {
+      for (ServerRpcController controller : activeRpcs.values()) {
+        if (!controller.isCanceled()) {
+          LOG.info("Cancelling RPC of disconnected user " + loggedInUser);
+          controller.cancel();
+        }
+      }
+      activeRpcs.clear();
+    }
+
     private ParticipantId authenticate(String token) {
       HttpSession session = provider.sessionManager.getSessionFromToken(token);
       ParticipantId user = provider.sessionManager.getLoggedInUser(session);
@@ -509,6 +537,9 @@ public class ServerRpcProvider {
           provider.sessionManager.getLoggedInUser(request.getSession(false));
 
       WebSocketConnection connection = new WebSocketConnection(loggedInUser, provider);
+      // Clients which don't ask for binary frames are sent JSON.
+      connection.getWebSocketServerChannel().setBinaryFraming(
+          WebSocketChannel.BINARY_PROTOCOL.equals(protocol));
       return connection.getWebSocketServerChannel();
     }
   }
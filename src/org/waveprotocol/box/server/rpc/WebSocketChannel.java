@@ -22,6 +22,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Message;
 
 import org.waveprotocol.box.server.rpc.ProtoSerializer.SerializationException;
@@ -30,9 +31,15 @@ import org.waveprotocol.wave.communication.gson.GsonSerializable;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A channel abstraction for websocket, for sending and receiving strings.
+ * <p>
+ * Messages are sent as JSON {@link MessageWrapper}s unless binary framing has
+ * been negotiated, in which case each message is sent as a binary frame
+ * holding the sequence number, the type id given by {@link ProtoSerializer}
+ * and the proto's own bytes. Messages are received in either form.
  */
 public abstract class WebSocketChannel extends MessageExpectingChannel {
   private static final Log LOG = Log.get(WebSocketChannel.class);
@@ -75,10 +82,21 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
     }
   }
 
+  /**
+   * The websocket protocol a client asks for to have messages sent to it in
+   * binary frames.
+   */
+  public static final String BINARY_PROTOCOL = "wave-binary";
+
+  /** Length of the sequence number and type id heading a binary frame. */
+  private static final int BINARY_HEADER_LENGTH = 6;
+
   private final ProtoCallback callback;
   private final Gson gson = new Gson();
   private final ProtoSerializer serializer;
 
+  private volatile boolean binaryFraming = false;
+
   /**
    * Constructs a new WebSocketChannel, using the callback to handle any
    * incoming messages.
@@ -93,6 +111,18 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
     this.serializer = new ProtoSerializer();
   }
 
+  /**
+   * Sets whether messages are sent in binary frames rather than as JSON.
+   */
+  public void setBinaryFraming(boolean binaryFraming) {
+    this.binaryFraming = binaryFraming;
+  }
+
+  /** @return whether messages are sent in binary frames. */
+  public boolean isBinaryFraming() {
+    return binaryFraming;
+  }
+
   public void handleMessageString(String data) {
     LOG.fine("received JSON message " + data);
     Message message;
@@ -109,6 +139,29 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
     callback.message(wrapper.sequenceNumber, message);
   }
 
+  /**
+   * Handles an incoming binary frame.
+   */
+  public void handleMessageBytes(byte[] data, int offset, int length) {
+    if (length < BINARY_HEADER_LENGTH) {
+      LOG.warning("Binary message of " + length + " bytes is too short");
+      return;
+    }
+    ByteBuffer header = ByteBuffer.wrap(data, offset, BINARY_HEADER_LENGTH);
+    int sequenceNumber = header.getInt();
+    int typeId = header.getShort() & 0xFFFF;
+    Message message;
+    try {
+      message = serializer.fromBytes(typeId, data, offset + BINARY_HEADER_LENGTH,
+          length - BINARY_HEADER_LENGTH);
+    } catch (SerializationException e) {
+      LOG.warning("message handling error", e);
+      return;
+    }
+    LOG.fine("received binary message, sequence number " + sequenceNumber);
+    callback.message(sequenceNumber, message);
+  }
+
   static <T extends GsonSerializable> T load(JsonElement payload, T x, Gson gson) {
     try {
       x.fromGson(payload, gson, null);
@@ -128,8 +181,60 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
    */
   protected abstract void sendMessageString(String data) throws IOException;
 
+  /**
+   * @return whether the socket carries binary frames. Channels which don't
+   *         send all messages as JSON, even if binary framing is set.
+   */
+  protected boolean supportsBinaryFrames() {
+    return false;
+  }
+
+  /**
+   * Sends a binary frame on the socket. Must be overridden by channels which
+   * support binary frames.
+   *
+   * @param data frame contents to send: the header and the serialized proto
+   * @throws IOException if the communication fails
+   */
+  protected void sendMessageBytes(byte[] data) throws IOException {
+    throw new UnsupportedOperationException("Binary frames are not supported");
+  }
+
   @Override
   public void sendMessage(int sequenceNo, Message message) {
+    if (binaryFraming && supportsBinaryFrames()) {
+      sendBinaryMessage(sequenceNo, message);
+    } else {
+      sendJsonMessage(sequenceNo, message);
+    }
+  }
+
+  private void sendBinaryMessage(int sequenceNo, Message message) {
+    int typeId;
+    try {
+      typeId = serializer.getTypeId(message);
+    } catch (SerializationException e) {
+      LOG.warning("Failed to find type id of proto message", e);
+      return;
+    }
+    byte[] frame = new byte[BINARY_HEADER_LENGTH + message.getSerializedSize()];
+    ByteBuffer.wrap(frame).putInt(sequenceNo).putShort((short) typeId);
+    try {
+      // Writes the proto straight into the frame, after the header.
+      CodedOutputStream output = CodedOutputStream.newInstance(
+          frame, BINARY_HEADER_LENGTH, frame.length - BINARY_HEADER_LENGTH);
+      message.writeTo(output);
+      output.checkNoSpaceLeft();
+      sendMessageBytes(frame);
+      LOG.fine("sent binary message over websocket, sequence number " + sequenceNo
+          + ", message " + message);
+    } catch (IOException e) {
+      LOG.warning("Failed to transmit message on socket, sequence number " + sequenceNo
+          + ", message " + message, e);
+    }
+  }
+
+  private void sendJsonMessage(int sequenceNo, Message message) {
     JsonElement json;
     try {
       json = serializer.toJson(message);
@@ -21,11 +21,21 @@ import com.sixfire.websocket.WebSocket;
 
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.concurrent.ExecutorService;
 
 /**
  * The client side of a WebSocketChannel.
+ * <p>
+ * The websocket library only reads and writes text frames, so when binary
+ * framing is used this channel reads and writes the frames on the websocket's
+ * socket itself.
  */
 class WebSocketClientChannel extends WebSocketChannel {
   private static final Log LOG = Log.get(WebSocketClientChannel.class);
@@ -36,9 +46,13 @@ class WebSocketClientChannel extends WebSocketChannel {
         @Override
         public void run() {
           try {
-            String data;
-            while ((data = websocket.recv()) != null) {
-              handleMessageString(data);
+            if (isBinaryFraming()) {
+              readFrames();
+            } else {
+              String data;
+              while ((data = websocket.recv()) != null) {
+                handleMessageString(data);
+              }
             }
           } catch (IOException e) {
             LOG.severe("WebSocket async data read failed, aborting connection.", e);
@@ -79,6 +93,90 @@ class WebSocketClientChannel extends WebSocketChannel {
    */
   @Override
   public void sendMessageString(String data) throws IOException {
-    websocket.send(data);
+    synchronized (websocket) {
+      websocket.send(data);
+    }
+  }
+
+  @Override
+  protected boolean supportsBinaryFrames() {
+    return true;
+  }
+
+  /**
+   * Propagate a binary message to the websocket client.
+   */
+  @Override
+  protected void sendMessageBytes(byte[] data) throws IOException {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream(data.length + 6);
+    frame.write(0x80);
+    writeLength(frame, data.length);
+    frame.write(data);
+    synchronized (websocket) {
+      OutputStream out = websocket.getSocket().getOutputStream();
+      frame.writeTo(out);
+      out.flush();
+    }
+  }
+
+  /**
+   * Reads text and binary frames from the socket until it is closed.
+   */
+  private void readFrames() throws IOException {
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(websocket.getSocket().getInputStream()));
+    int frameType;
+    while ((frameType = in.read()) != -1) {
+      if ((frameType & 0x80) != 0) {
+        byte[] data = new byte[readLength(in)];
+        in.readFully(data);
+        if (frameType == 0x80) {
+          handleMessageBytes(data, 0, data.length);
+        }
+      } else {
+        String data = readText(in);
+        if (frameType == 0x00) {
+          handleMessageString(data);
+        }
+      }
+    }
+  }
+
+  /** Writes a binary frame's length, seven bits to a byte, high bits first. */
+  private static void writeLength(ByteArrayOutputStream out, int length) {
+    int shift = 28;
+    while (shift > 0 && (length >>> shift) == 0) {
+      shift -= 7;
+    }
+    for (; shift > 0; shift -= 7) {
+      out.write(0x80 | ((length >>> shift) & 0x7F));
+    }
+    out.write(length & 0x7F);
+  }
+
+  private static int readLength(InputStream in) throws IOException {
+    int length = 0;
+    int b;
+    do {
+      b = in.read();
+      if (b == -1) {
+        throw new EOFException();
+      }
+      length = (length << 7) | (b & 0x7F);
+    } while ((b & 0x80) != 0);
+    return length;
+  }
+
+  /** Reads a text frame's UTF-8 data, up to the 0xFF which ends it. */
+  private static String readText(InputStream in) throws IOException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != 0xFF) {
+      if (b == -1) {
+        throw new EOFException();
+      }
+      data.write(b);
+    }
+    return data.toString("UTF-8");
   }
 }
@@ -35,6 +35,7 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.HashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -56,9 +57,11 @@ public class WebSocketClientRpcChannel implements ClientRpcChannel {
    *
    * @param serverAddress the target server address
    * @param threadPool threadpool for performing async reads.
+   * @param binaryFraming whether to ask the server to exchange messages in
+   *        binary frames rather than as JSON
    */
-  public WebSocketClientRpcChannel(SocketAddress serverAddress, ExecutorService threadPool)
-      throws IOException {
+  public WebSocketClientRpcChannel(SocketAddress serverAddress, ExecutorService threadPool,
+      boolean binaryFraming) throws IOException {
     Preconditions.checkNotNull(serverAddress, "null serverAddress");
 
     ProtoCallback callback = new ProtoCallback() {
@@ -100,13 +103,28 @@ public class WebSocketClientRpcChannel implements ClientRpcChannel {
       }
     };
 
-    WebSocket websocket = openWebSocket((InetSocketAddress) serverAddress);
-    protoChannel = new WebSocketClientChannel(websocket, callback, threadPool);
+    WebSocket websocket = openWebSocket((InetSocketAddress) serverAddress, binaryFraming);
+    WebSocketClientChannel socketChannel =
+        new WebSocketClientChannel(websocket, callback, threadPool);
+    socketChannel.setBinaryFraming(binaryFraming);
+    protoChannel = socketChannel;
     protoChannel.expectMessage(Rpc.RpcFinished.getDefaultInstance());
     protoChannel.startAsyncRead();
     LOG.fine("Opened a new WebSocketClientRpcChannel to " + serverAddress);
   }
 
+  /**
+   * Set up a new WebSocketClientRpcChannel pointing at the given server
+   * address, exchanging JSON messages.
+   *
+   * @param serverAddress the target server address
+   * @param threadPool threadpool for performing async reads.
+   */
+  public WebSocketClientRpcChannel(SocketAddress serverAddress, ExecutorService threadPool)
+      throws IOException {
+    this(serverAddress, threadPool, false);
+  }
+
   /**
    * Create a new WebSocketClientRpcChannel backed onto a new single thread
    * executor.
@@ -154,7 +172,8 @@ public class WebSocketClientRpcChannel implements ClientRpcChannel {
     protoChannel.sendMessage(sequenceNo, request, responsePrototype);
   }
 
-  private WebSocket openWebSocket(InetSocketAddress inetAddress) throws IOException {
+  private WebSocket openWebSocket(InetSocketAddress inetAddress, boolean binaryFraming)
+      throws IOException {
     URI uri;
     try {
       uri = new URI("ws", null, inetAddress.getHostName(), inetAddress.getPort(), "/socket",
@@ -164,6 +183,11 @@ public class WebSocketClientRpcChannel implements ClientRpcChannel {
       throw new IllegalStateException(e);
     }
     WebSocket websocket = new WebSocket(uri);
+    if (binaryFraming) {
+      HashMap<String, String> headers = new HashMap<String, String>();
+      headers.put("WebSocket-Protocol", WebSocketChannel.BINARY_PROTOCOL);
+      websocket.setHeaders(headers);
+    }
     websocket.connect();
     return websocket;
   }
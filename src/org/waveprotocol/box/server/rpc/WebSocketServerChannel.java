@@ -50,11 +50,16 @@ public class WebSocketServerChannel extends WebSocketChannel implements WebSocke
   }
 
   /**
-   * Does nothing, as this only understands String messages, not byte ones.
+   * Pass on an incoming binary message.
+   *
+   * @param frame Which framing byte was used
+   * @param data The buffer holding the message data
+   * @param offset The offset of the message data in the buffer
+   * @param length The length of the message data
    */
   @Override
   public void onMessage(byte frame, byte[] data, int offset, int length) {
-    // do nothing. we don't expect this type of message.
+    handleMessageBytes(data, offset, length);
   }
 
   /**
@@ -97,4 +102,26 @@ public class WebSocketServerChannel extends WebSocketChannel implements WebSocke
       }
     }
   }
+
+  @Override
+  protected boolean supportsBinaryFrames() {
+    return true;
+  }
+
+  /**
+   * Send the given data bytes in a binary frame
+   *
+   * @param data the frame contents, sent after a length prefix
+   */
+  @Override
+  protected void sendMessageBytes(byte[] data) throws IOException {
+    synchronized (this) {
+      if (outbound == null) {
+        LOG.warning("Websocket is not connected");
+      } else {
+        // a frame byte with the high bit set marks length-prefixed binary data.
+        outbound.sendMessage((byte) 0x80, data, 0, data.length);
+      }
+    }
+  }
 }
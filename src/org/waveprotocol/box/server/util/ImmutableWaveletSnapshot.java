@@ -0,0 +1,333 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.waveprotocol.wave.model.document.Document;
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.algorithm.Composer;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.operation.SilentOperationSink;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.DocumentOperationSink;
+import org.waveprotocol.wave.model.wave.data.ReadableBlipData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of a wavelet, which may be read without holding the
+ * wavelet's lock.
+ *
+ * A snapshot taken from a previous one shares the documents which haven't
+ * changed since. The content of a changed document is the composition of the
+ * previous content with the operations applied since, which is only computed
+ * when it is first read, so taking a snapshot doesn't serialize documents.
+ * Copying a snapshot with {@link WaveletDataUtil#copyWavelet} reuses the
+ * content of its documents as the initial content of the copies.
+ *
+ * A snapshot taken from a previous one also keeps that previous snapshot, so
+ * the state of the wavelet before its latest deltas may be read without
+ * rolling them back. Only one previous snapshot is kept, not a chain of them.
+ */
+public final class ImmutableWaveletSnapshot implements ReadableWaveletData {
+
+  /**
+   * Most snapshots whose operations on a document may be left uncomposed
+   * before the document's content is composed. Bounds the operations kept
+   * for documents which aren't read.
+   */
+  private static final int MAX_UNCOMPOSED_SNAPSHOTS = 32;
+
+  /** A document of a snapshot, which may be shared with later snapshots. */
+  private static final class DocumentSnapshot {
+    final String id;
+    final ParticipantId author;
+    final Set<ParticipantId> contributors;
+    final long lastModifiedTime;
+    final long lastModifiedVersion;
+
+    /** Number of snapshots whose operations are yet to be composed. */
+    private final int uncomposedSnapshots;
+    /** Earlier version of the document, or null once the content is composed. */
+    private DocumentSnapshot base;
+    /** Operations applied to the base, or null once the content is composed. */
+    private List<DocOp> ops;
+    /** The content, or null until it is composed. */
+    private DocInitialization content;
+
+    DocumentSnapshot(ReadableBlipData document, DocInitialization content) {
+      this(document, null, null, content);
+    }
+
+    DocumentSnapshot(ReadableBlipData document, DocumentSnapshot base, List<DocOp> ops) {
+      this(document, base, ops, null);
+    }
+
+    private DocumentSnapshot(ReadableBlipData document, DocumentSnapshot base, List<DocOp> ops,
+        DocInitialization content) {
+      this.id = document.getId();
+      this.author = document.getAuthor();
+      this.contributors = ImmutableSet.copyOf(document.getContributors());
+      this.lastModifiedTime = document.getLastModifiedTime();
+      this.lastModifiedVersion = document.getLastModifiedVersion();
+      this.base = base;
+      this.ops = ops;
+      this.content = content;
+      this.uncomposedSnapshots = (content != null) ? 0 : base.getUncomposedSnapshots() + 1;
+      if (uncomposedSnapshots > MAX_UNCOMPOSED_SNAPSHOTS) {
+        getContent();
+      }
+    }
+
+    synchronized DocInitialization getContent() {
+      if (content == null) {
+        List<DocOp> composed = Lists.newArrayListWithCapacity(ops.size() + 1);
+        composed.add(base.getContent());
+        composed.addAll(ops);
+        content = DocOpUtil.asInitialization(Composer.compose(composed));
+        base = null;
+        ops = null;
+      }
+      return content;
+    }
+
+    private synchronized int getUncomposedSnapshots() {
+      return (content != null) ? 0 : uncomposedSnapshots;
+    }
+  }
+
+  /** Read-only content of a document, as a sink which accepts no operations. */
+  private static final class SnapshotContent implements DocumentOperationSink {
+    private final DocumentSnapshot document;
+
+    SnapshotContent(DocumentSnapshot document) {
+      this.document = document;
+    }
+
+    @Override
+    public DocInitialization asOperation() {
+      return document.getContent();
+    }
+
+    @Override
+    public void consume(DocOp op) {
+      throw new UnsupportedOperationException("Snapshot documents are immutable");
+    }
+
+    @Override
+    public void init(SilentOperationSink<? super DocOp> outputSink) {
+      throw new UnsupportedOperationException("Snapshot documents are immutable");
+    }
+
+    @Override
+    public Document getMutableDocument() {
+      throw new UnsupportedOperationException("Snapshot documents are immutable");
+    }
+  }
+
+  /** A document of a snapshot, as a blip of the snapshot. */
+  private final class SnapshotBlip implements ReadableBlipData {
+    private final DocumentSnapshot document;
+
+    SnapshotBlip(DocumentSnapshot document) {
+      this.document = document;
+    }
+
+    @Override
+    public ReadableWaveletData getWavelet() {
+      return ImmutableWaveletSnapshot.this;
+    }
+
+    @Override
+    public ParticipantId getAuthor() {
+      return document.author;
+    }
+
+    @Override
+    public Set<ParticipantId> getContributors() {
+      return document.contributors;
+    }
+
+    @Override
+    public long getLastModifiedTime() {
+      return document.lastModifiedTime;
+    }
+
+    @Override
+    public long getLastModifiedVersion() {
+      return document.lastModifiedVersion;
+    }
+
+    @Override
+    public DocumentOperationSink getContent() {
+      return new SnapshotContent(document);
+    }
+
+    @Override
+    public String getId() {
+      return document.id;
+    }
+  }
+
+  /**
+   * Takes a snapshot of a wavelet, copying the content of each of its
+   * documents.
+   */
+  public static ImmutableWaveletSnapshot of(ReadableWaveletData wavelet) {
+    ImmutableMap.Builder<String, DocumentSnapshot> documents = ImmutableMap.builder();
+    for (String id : wavelet.getDocumentIds()) {
+      ReadableBlipData document = wavelet.getDocument(id);
+      documents.put(id, new DocumentSnapshot(document, document.getContent().asOperation()));
+    }
+    return new ImmutableWaveletSnapshot(wavelet, documents.build(), null);
+  }
+
+  /**
+   * Takes a snapshot of a wavelet, sharing the documents of a previous
+   * snapshot of it which haven't changed since.
+   *
+   * @param wavelet the wavelet
+   * @param previous an earlier snapshot of the wavelet
+   * @param changedDocumentOps the operations applied to each document which
+   *        has changed since the previous snapshot, in order; empty for
+   *        documents whose metadata alone has changed
+   */
+  public static ImmutableWaveletSnapshot of(ReadableWaveletData wavelet,
+      ImmutableWaveletSnapshot previous, Map<String, List<DocOp>> changedDocumentOps) {
+    ImmutableMap.Builder<String, DocumentSnapshot> documents = ImmutableMap.builder();
+    for (String id : wavelet.getDocumentIds()) {
+      DocumentSnapshot base = previous.documents.get(id);
+      List<DocOp> ops = changedDocumentOps.get(id);
+      if (base != null && ops == null) {
+        documents.put(id, base);
+      } else {
+        ReadableBlipData document = wavelet.getDocument(id);
+        documents.put(id, (base != null)
+            ? new DocumentSnapshot(document, base, ImmutableList.copyOf(ops))
+            : new DocumentSnapshot(document, document.getContent().asOperation()));
+      }
+    }
+    return new ImmutableWaveletSnapshot(wavelet, documents.build(), previous.withoutPrevious());
+  }
+
+  private final WaveId waveId;
+  private final WaveletId waveletId;
+  private final ParticipantId creator;
+  private final long creationTime;
+  private final long lastModifiedTime;
+  private final HashedVersion hashedVersion;
+  private final Set<ParticipantId> participants;
+  private final ImmutableMap<String, DocumentSnapshot> documents;
+  private final ImmutableWaveletSnapshot previous;
+
+  private ImmutableWaveletSnapshot(ReadableWaveletData wavelet,
+      ImmutableMap<String, DocumentSnapshot> documents, ImmutableWaveletSnapshot previous) {
+    this.waveId = wavelet.getWaveId();
+    this.waveletId = wavelet.getWaveletId();
+    this.creator = wavelet.getCreator();
+    this.creationTime = wavelet.getCreationTime();
+    this.lastModifiedTime = wavelet.getLastModifiedTime();
+    this.hashedVersion = wavelet.getHashedVersion();
+    this.participants = ImmutableSet.copyOf(wavelet.getParticipants());
+    this.documents = documents;
+    this.previous = previous;
+  }
+
+  /**
+   * Returns the snapshot this one was taken from, without its own previous
+   * snapshot, or null if this snapshot was taken from the wavelet alone.
+   */
+  public ImmutableWaveletSnapshot getPrevious() {
+    return previous;
+  }
+
+  /**
+   * Returns this snapshot if it has no previous snapshot, otherwise a snapshot
+   * sharing its state without the previous one.
+   */
+  private ImmutableWaveletSnapshot withoutPrevious() {
+    return (previous == null) ? this : new ImmutableWaveletSnapshot(this, documents, null);
+  }
+
+  @Override
+  public ReadableBlipData getDocument(String documentName) {
+    DocumentSnapshot document = documents.get(documentName);
+    return (document == null) ? null : new SnapshotBlip(document);
+  }
+
+  @Override
+  public Set<String> getDocumentIds() {
+    return documents.keySet();
+  }
+
+  @Override
+  public ParticipantId getCreator() {
+    return creator;
+  }
+
+  @Override
+  public Set<ParticipantId> getParticipants() {
+    return participants;
+  }
+
+  @Override
+  public long getVersion() {
+    return hashedVersion.getVersion();
+  }
+
+  @Override
+  public long getCreationTime() {
+    return creationTime;
+  }
+
+  @Override
+  public long getLastModifiedTime() {
+    return lastModifiedTime;
+  }
+
+  @Override
+  public HashedVersion getHashedVersion() {
+    return hashedVersion;
+  }
+
+  @Override
+  public WaveId getWaveId() {
+    return waveId;
+  }
+
+  @Override
+  public WaveletId getWaveletId() {
+    return waveletId;
+  }
+
+  @Override
+  public String toString() {
+    return "ImmutableWaveletSnapshot(" + waveId + "/" + waveletId + " @ " + hashedVersion + ")";
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.util;
+
+import com.google.common.collect.Lists;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs any number of serial executors on one shared executor.
+ *
+ * Each serial executor runs its tasks one at a time, in the order they were
+ * submitted, but tasks of different serial executors run in parallel on the
+ * shared executor's threads. A serial executor holds no thread of its own, so
+ * one can be created per wavelet.
+ *
+ * The pool keeps counts of the queued and completed tasks and of the time
+ * tasks spend waiting and running.
+ */
+public class SerialExecutorPool {
+
+  /** A task with the time it was submitted. */
+  private static final class Task {
+    final Runnable runnable;
+    final long submitNanos;
+
+    Task(Runnable runnable) {
+      this.runnable = runnable;
+      this.submitNanos = System.nanoTime();
+    }
+  }
+
+  /** Runs its tasks on the shared executor, one at a time. */
+  private final class SerialExecutor implements Executor, Runnable {
+    /** Tasks which have not started yet. Guarded by this. */
+    private final LinkedList<Task> tasks = Lists.newLinkedList();
+
+    /** Whether a task is scheduled on or running in the shared executor. Guarded by this. */
+    private boolean scheduled = false;
+
+    @Override
+    public void execute(Runnable runnable) {
+      queuedTasks.incrementAndGet();
+      synchronized (this) {
+        tasks.add(new Task(runnable));
+        if (scheduled) {
+          return;
+        }
+        scheduled = true;
+      }
+      schedule();
+    }
+
+    /** Runs the next task, then schedules the one after it, if any. */
+    @Override
+    public void run() {
+      Task task;
+      synchronized (this) {
+        task = tasks.removeFirst();
+      }
+      queuedTasks.decrementAndGet();
+      long startNanos = System.nanoTime();
+      totalWaitNanos.addAndGet(startNanos - task.submitNanos);
+      try {
+        task.runnable.run();
+      } finally {
+        totalRunNanos.addAndGet(System.nanoTime() - startNanos);
+        completedTasks.incrementAndGet();
+        // Submitting again, rather than running the next task here, lets the
+        // tasks of other serial executors take their turn.
+        boolean more;
+        synchronized (this) {
+          more = !tasks.isEmpty();
+          scheduled = more;
+        }
+        if (more) {
+          schedule();
+        }
+      }
+    }
+
+    private void schedule() {
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        int dropped;
+        synchronized (this) {
+          dropped = tasks.size();
+          tasks.clear();
+          scheduled = false;
+        }
+        queuedTasks.addAndGet(-dropped);
+        throw e;
+      }
+    }
+  }
+
+  private final Executor executor;
+
+  private final AtomicInteger queuedTasks = new AtomicInteger();
+  private final AtomicLong completedTasks = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong totalRunNanos = new AtomicLong();
+
+  /**
+   * @param executor the shared executor, whose threads run the tasks of all
+   *        the serial executors
+   */
+  public SerialExecutorPool(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * @return a new executor which runs its tasks one at a time, in submission
+   *         order, on the shared executor.
+   */
+  public Executor newSerialExecutor() {
+    return new SerialExecutor();
+  }
+
+  /** @return the number of submitted tasks which have not started yet. */
+  public int getQueueDepth() {
+    return queuedTasks.get();
+  }
+
+  /** @return the number of tasks which have run. */
+  public long getCompletedTaskCount() {
+    return completedTasks.get();
+  }
+
+  /** @return the mean time tasks waited before running, in milliseconds. */
+  public double getMeanWaitMillis() {
+    return meanMillis(totalWaitNanos.get());
+  }
+
+  /** @return the mean time tasks took to run, in milliseconds. */
+  public double getMeanRunMillis() {
+    return meanMillis(totalRunNanos.get());
+  }
+
+  private double meanMillis(long totalNanos) {
+    long count = completedTasks.get();
+    return count == 0 ? 0 : totalNanos / 1e6 / count;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("SerialExecutorPool(queued=%d, completed=%d, wait=%.3fms, run=%.3fms)",
+        getQueueDepth(), getCompletedTaskCount(), getMeanWaitMillis(), getMeanRunMillis());
+  }
+}
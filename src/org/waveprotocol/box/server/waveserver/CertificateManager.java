@@ -31,6 +31,8 @@ import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.version.HashedVersion;
 
+import java.util.List;
+
 /**
  * Stand-in interface for the certificate manager.
  *
@@ -65,6 +67,18 @@ public interface CertificateManager {
   ByteStringMessage<ProtocolWaveletDelta> verifyDelta(ProtocolSignedDelta signedDelta)
       throws SignatureException, UnknownSignerException;
 
+  /**
+   * Verify the signatures in several Signed Deltas, as {@link #verifyDelta}
+   * does, spreading the work across threads. Returns when all of them are
+   * verified.
+   *
+   * @param signedDeltas to verify
+   * @throws SignatureException if the signatures of any delta cannot be
+   *         verified; the first such delta in the list is reported.
+   */
+  void verifyDeltas(List<ProtocolSignedDelta> signedDeltas)
+      throws SignatureException, UnknownSignerException;
+
   /**
    * Stores information about a signer (i.e., its certificate chain) in a
    * permanent store. In addition to a certificate chain, a {@link SignerInfo}
@@ -18,6 +18,7 @@
 package org.waveprotocol.box.server.waveserver;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -53,6 +54,10 @@ import org.waveprotocol.wave.util.logging.Log;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 /**
  * Default implementation of {@link CertificateManager}.
@@ -66,6 +71,7 @@ public class CertificateManagerImpl implements CertificateManager {
   private final WaveSignatureVerifier verifier;
   private final CertPathStore certPathStore;
   private final boolean disableVerfication;
+  private final Executor verificationExecutor;
 
   /**
    * Map of signer ids to requests for the signer info for those ids.  Each signer id is mapped to
@@ -79,13 +85,15 @@ public class CertificateManagerImpl implements CertificateManager {
   @Inject
   public CertificateManagerImpl(
       @Named(CoreSettings.WAVESERVER_DISABLE_VERIFICATION) boolean disableVerfication,
-      SignatureHandler signer, WaveSignatureVerifier verifier, CertPathStore certPathStore) {
+      SignatureHandler signer, WaveSignatureVerifier verifier, CertPathStore certPathStore,
+      @Named("signature_verification_executor") Executor verificationExecutor) {
     this.disableVerfication = disableVerfication;
     this.waveSigner = signer;
     // for now, we just support a single signer
     this.localDomains = ImmutableSet.of(signer.getDomain());
     this.verifier = verifier;
     this.certPathStore = certPathStore;
+    this.verificationExecutor = verificationExecutor;
     this.signerInfoRequests = Maps.newHashMap();
 
     if (disableVerfication) {
@@ -148,6 +156,42 @@ public class CertificateManagerImpl implements CertificateManager {
     return delta;
   }
 
+  @Override
+  public void verifyDeltas(List<ProtocolSignedDelta> signedDeltas)
+      throws SignatureException, UnknownSignerException {
+    if (disableVerfication || signedDeltas.size() <= 1) {
+      for (ProtocolSignedDelta signedDelta : signedDeltas) {
+        verifyDelta(signedDelta);
+      }
+      return;
+    }
+
+    List<FutureTask<?>> verifications = Lists.newArrayListWithCapacity(signedDeltas.size());
+    for (final ProtocolSignedDelta signedDelta : signedDeltas) {
+      FutureTask<?> verification = new FutureTask<Void>(new Callable<Void>() {
+        @Override
+        public Void call() throws SignatureException, UnknownSignerException {
+          verifyDelta(signedDelta);
+          return null;
+        }
+      });
+      verificationExecutor.execute(verification);
+      verifications.add(verification);
+    }
+    for (FutureTask<?> verification : verifications) {
+      try {
+        verification.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SignatureException("Interrupted while verifying deltas", e);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfInstanceOf(e.getCause(), SignatureException.class);
+        Throwables.propagateIfInstanceOf(e.getCause(), UnknownSignerException.class);
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+  }
+
   /**
    * Verifies a single signature.
    * @param delta the payload that we're verifying the signature on.
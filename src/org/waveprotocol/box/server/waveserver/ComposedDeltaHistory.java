@@ -0,0 +1,283 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+
+/**
+ * A wavelet's delta history, divided into segments whose server operations are
+ * composed by document (see {@link ComposedServerOps}) for transforming late
+ * client deltas.
+ *
+ * The segment at level j and index k holds the deltas applied at versions
+ * [k * 2^j, (k + 1) * 2^j). A range of n versions is covered by O(log n)
+ * segments, so its composition, and the first delta in it by an author, are
+ * found from a logarithmic number of segments rather than from each delta.
+ *
+ * Segments are composed from their two halves, down to the smallest ones,
+ * which are composed from their deltas. If segment caching is enabled,
+ * complete segments of the deltas in the history are kept, with the authors
+ * of their deltas and, once first used, their composition. Since a range is
+ * composed from the same segments whether or not they are cached, its
+ * composition doesn't depend on the cache, as the duplicate detection of
+ * resubmitted deltas requires.
+ */
+final class ComposedDeltaHistory {
+
+  /** Level of the smallest segments, which are composed from their deltas. */
+  private static final int MIN_LEVEL = 3;
+
+  /** Highest level, whose segments cover all versions from 0. */
+  private static final int MAX_LEVEL = 62;
+
+  /** A cached segment. */
+  private static final class Segment {
+    /** Authors of the deltas in the segment. */
+    final Set<ParticipantId> authors;
+
+    /** Composition of the segment, or null until it is used. */
+    ComposedServerOps ops;
+
+    Segment(Set<ParticipantId> authors) {
+      this.authors = authors;
+    }
+  }
+
+  /**
+   * @return a history of the given contiguous deltas, from the one applied at
+   *         the given version, which doesn't cache segments
+   */
+  static ComposedDeltaHistory of(HashedVersion startVersion,
+      Iterable<TransformedWaveletDelta> deltas) {
+    NavigableMap<HashedVersion, TransformedWaveletDelta> map = Maps.newTreeMap();
+    HashedVersion version = startVersion;
+    for (TransformedWaveletDelta delta : deltas) {
+      map.put(version, delta);
+      version = delta.getResultingVersion();
+    }
+    return new ComposedDeltaHistory(map, false);
+  }
+
+  /** Deltas of the history, keyed by appliedAtVersion. */
+  private final NavigableMap<HashedVersion, TransformedWaveletDelta> deltas;
+
+  /** Cached segments on each level above {@link #MIN_LEVEL}, by index, or null. */
+  private final List<NavigableMap<Long, Segment>> levels;
+
+  /**
+   * @param deltas contiguous deltas, keyed by appliedAtVersion, which may
+   *        change as deltas are appended, or evicted (see
+   *        {@link #evictBefore(long)})
+   * @param cacheSegments whether to cache segments of the deltas
+   */
+  ComposedDeltaHistory(NavigableMap<HashedVersion, TransformedWaveletDelta> deltas,
+      boolean cacheSegments) {
+    this.deltas = deltas;
+    if (cacheSegments) {
+      levels = Lists.newArrayListWithCapacity(MAX_LEVEL + 1);
+      for (int level = 0; level <= MAX_LEVEL; level++) {
+        levels.add(level > MIN_LEVEL ? Maps.<Long, Segment>newTreeMap() : null);
+      }
+    } else {
+      levels = null;
+    }
+  }
+
+  /**
+   * @return the operations of the deltas applied at versions from start
+   *         version until end version, composed by document
+   */
+  synchronized ComposedServerOps compose(long startVersion, long endVersion) {
+    Preconditions.checkArgument(startVersion < endVersion,
+        "Start version %s should be smaller than end version %s", startVersion, endVersion);
+    ComposedServerOps result = new ComposedServerOps();
+    for (long version = startVersion; version < endVersion; ) {
+      int level = coveringLevel(version, endVersion);
+      result.add(compose(level, version >> level));
+      version += 1L << level;
+    }
+    return result;
+  }
+
+  /**
+   * @return the version at which the first delta by the author applied at
+   *         versions from start version until end version was applied, or the
+   *         end version if there is none
+   */
+  synchronized long findDeltaByAuthor(long startVersion, long endVersion, ParticipantId author) {
+    for (long version = startVersion; version < endVersion; ) {
+      int level = coveringLevel(version, endVersion);
+      long found = findDeltaByAuthor(level, version >> level, author);
+      if (found >= 0) {
+        return found;
+      }
+      version += 1L << level;
+    }
+    return endVersion;
+  }
+
+  /**
+   * Drops the cached segments which begin before the given version, as their
+   * deltas are no longer in the history.
+   */
+  synchronized void evictBefore(long version) {
+    if (levels == null) {
+      return;
+    }
+    for (int level = MIN_LEVEL + 1; level <= MAX_LEVEL; level++) {
+      // Index of the first segment beginning at or after the version.
+      long index = (version >> level) + (((version & ((1L << level) - 1)) == 0) ? 0 : 1);
+      levels.get(level).headMap(index).clear();
+    }
+  }
+
+  /** @return the number of cached segments. */
+  synchronized int getCachedSegmentCount() {
+    int count = 0;
+    if (levels != null) {
+      for (int level = MIN_LEVEL + 1; level <= MAX_LEVEL; level++) {
+        count += levels.get(level).size();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the level of the largest segment beginning at the version and
+   *         ending at or before the end version
+   */
+  private static int coveringLevel(long version, long endVersion) {
+    int level = Math.min(Long.numberOfTrailingZeros(version), MAX_LEVEL);
+    while ((1L << level) > endVersion - version) {
+      level--;
+    }
+    return level;
+  }
+
+  private ComposedServerOps compose(int level, long index) {
+    if (level <= MIN_LEVEL) {
+      ComposedServerOps ops = new ComposedServerOps();
+      for (TransformedWaveletDelta delta : getDeltas(level, index)) {
+        ops.add(delta);
+      }
+      return ops;
+    }
+    Segment segment = getSegment(level, index);
+    if (segment != null && segment.ops != null) {
+      return segment.ops;
+    }
+    ComposedServerOps ops = new ComposedServerOps();
+    ops.add(compose(level - 1, 2 * index));
+    ops.add(compose(level - 1, 2 * index + 1));
+    if (segment != null) {
+      segment.ops = ops;
+    }
+    return ops;
+  }
+
+  /**
+   * @return the version at which the first delta by the author in the segment
+   *         was applied, or -1 if there is none
+   */
+  private long findDeltaByAuthor(int level, long index, ParticipantId author) {
+    if (level <= MIN_LEVEL) {
+      for (Map.Entry<HashedVersion, TransformedWaveletDelta> entry :
+          getDeltaEntries(level, index).entrySet()) {
+        if (author.equals(entry.getValue().getAuthor())) {
+          return entry.getKey().getVersion();
+        }
+      }
+      return -1;
+    }
+    Segment segment = getSegment(level, index);
+    if (segment != null && !segment.authors.contains(author)) {
+      return -1;
+    }
+    long found = findDeltaByAuthor(level - 1, 2 * index, author);
+    return (found >= 0) ? found : findDeltaByAuthor(level - 1, 2 * index + 1, author);
+  }
+
+  /**
+   * @return the cached segment, which is created if it is complete, or null if
+   *         it isn't cached
+   */
+  private Segment getSegment(int level, long index) {
+    if (levels == null || !isComplete(level, index)) {
+      return null;
+    }
+    NavigableMap<Long, Segment> segments = levels.get(level);
+    Segment segment = segments.get(index);
+    if (segment == null) {
+      segment = new Segment(getAuthors(level, index));
+      segments.put(index, segment);
+    }
+    return segment;
+  }
+
+  /** @return the authors of the deltas in a complete segment. */
+  private Set<ParticipantId> getAuthors(int level, long index) {
+    Set<ParticipantId> authors = Sets.newHashSet();
+    if (level == MIN_LEVEL + 1) {
+      for (TransformedWaveletDelta delta : getDeltas(level, index)) {
+        authors.add(delta.getAuthor());
+      }
+    } else {
+      authors.addAll(getSegment(level - 1, 2 * index).authors);
+      authors.addAll(getSegment(level - 1, 2 * index + 1).authors);
+    }
+    return authors;
+  }
+
+  /**
+   * @return whether the history holds every delta the segment will ever hold,
+   *         i.e. it begins at or after the first delta and ends at or before
+   *         the current version
+   */
+  private boolean isComplete(int level, long index) {
+    if (deltas.isEmpty()) {
+      return false;
+    }
+    long start = index << level;
+    long end = start + (1L << level);
+    return start >= deltas.firstKey().getVersion()
+        && end <= deltas.lastEntry().getValue().getResultingVersion().getVersion();
+  }
+
+  private Iterable<TransformedWaveletDelta> getDeltas(int level, long index) {
+    return getDeltaEntries(level, index).values();
+  }
+
+  private NavigableMap<HashedVersion, TransformedWaveletDelta> getDeltaEntries(int level,
+      long index) {
+    long start = index << level;
+    return deltas.subMap(HashedVersion.unsigned(start), true,
+        HashedVersion.unsigned(start + (1L << level)), false);
+  }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.algorithm.Composer;
+import org.waveprotocol.wave.model.document.operation.algorithm.Transformer;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.RemovedAuthorException;
+import org.waveprotocol.wave.model.operation.TransformException;
+import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
+import org.waveprotocol.wave.model.operation.wave.Transform;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A run of server operations, kept by document, against which client
+ * operations are transformed.
+ *
+ * Transforming a client operation against each server operation in turn only
+ * changes it for server operations on the same document, or on the wavelet's
+ * participants. So the server's document operations are composed per
+ * document, and each client document operation is transformed once, against
+ * the composition for its own document. Client participant operations are
+ * transformed against the server's participant operations in turn.
+ *
+ * As before, each client operation is transformed against the server
+ * operations independently of the client operations before it.
+ */
+final class ComposedServerOps {
+
+  /**
+   * Server operations on each document, in order. A document's operations
+   * are replaced by their composition when a client operation needs it.
+   */
+  private final Map<String, List<DocOp>> documentOps = Maps.newHashMap();
+
+  /** Server operations adding or removing participants, in order. */
+  private final List<WaveletOperation> participantOps = Lists.newArrayList();
+
+  /** Participants removed by the server operations. */
+  private final Set<ParticipantId> removedParticipants = Sets.newHashSet();
+
+  /**
+   * Adds server operations to the end of the run.
+   */
+  void add(Iterable<? extends WaveletOperation> serverOps) {
+    for (WaveletOperation op : serverOps) {
+      if (op instanceof WaveletBlipOperation) {
+        WaveletBlipOperation blipOp = (WaveletBlipOperation) op;
+        if (blipOp.getBlipOp() instanceof BlipContentOperation) {
+          getDocumentOps(blipOp.getBlipId()).add(
+              ((BlipContentOperation) blipOp.getBlipOp()).getContentOp());
+        }
+      } else if (op instanceof AddParticipant) {
+        participantOps.add(op);
+      } else if (op instanceof RemoveParticipant) {
+        participantOps.add(op);
+        removedParticipants.add(((RemoveParticipant) op).getParticipantId());
+      }
+      // Other server operations transform every client operation to itself.
+    }
+  }
+
+  /**
+   * Adds the operations of another run to the end of this run. Each of its
+   * documents contributes the composition of its operations there.
+   */
+  void add(ComposedServerOps other) {
+    for (String documentId : other.documentOps.keySet()) {
+      getDocumentOps(documentId).add(other.getComposedOp(documentId));
+    }
+    participantOps.addAll(other.participantOps);
+    removedParticipants.addAll(other.removedParticipants);
+  }
+
+  /** @return whether the run holds no operation a client operation transforms against. */
+  boolean isEmpty() {
+    return documentOps.isEmpty() && participantOps.isEmpty();
+  }
+
+  /**
+   * Transforms client operations against the run.
+   *
+   * @param clientOps may be unmodifiable
+   * @return transformed client ops, in a new list
+   * @throws OperationException if a client operation can't be transformed,
+   *         e.g. because its author is removed by the run
+   */
+  List<WaveletOperation> transform(List<WaveletOperation> clientOps)
+      throws OperationException {
+    List<WaveletOperation> transformedClientOps = Lists.newArrayListWithCapacity(clientOps.size());
+    for (WaveletOperation c : clientOps) {
+      transformedClientOps.add(transform(c));
+    }
+    return transformedClientOps;
+  }
+
+  private WaveletOperation transform(WaveletOperation clientOp) throws OperationException {
+    try {
+      if (clientOp instanceof WaveletBlipOperation) {
+        checkAuthorNotRemoved(clientOp);
+        return transformBlipOp((WaveletBlipOperation) clientOp);
+      } else {
+        for (WaveletOperation s : participantOps) {
+          clientOp = Transform.transform(clientOp, s).clientOp();
+        }
+        return clientOp;
+      }
+    } catch (TransformException e) {
+      throw new OperationException(e);
+    }
+  }
+
+  private WaveletOperation transformBlipOp(WaveletBlipOperation clientOp)
+      throws TransformException {
+    if (!(clientOp.getBlipOp() instanceof BlipContentOperation)) {
+      return clientOp;
+    }
+    DocOp serverOp = getComposedOp(clientOp.getBlipId());
+    if (serverOp == null) {
+      return clientOp;
+    }
+    BlipContentOperation clientContentOp = (BlipContentOperation) clientOp.getBlipOp();
+    DocOp transformed = Transformer.transform(clientContentOp.getContentOp(), serverOp).clientOp();
+    return new WaveletBlipOperation(clientOp.getBlipId(),
+        new BlipContentOperation(clientContentOp.getContext(), transformed));
+  }
+
+  private List<DocOp> getDocumentOps(String documentId) {
+    List<DocOp> ops = documentOps.get(documentId);
+    if (ops == null) {
+      ops = Lists.newArrayList();
+      documentOps.put(documentId, ops);
+    }
+    return ops;
+  }
+
+  /**
+   * @return the composition of the server operations on a document, or null
+   *         if there are none.
+   */
+  private DocOp getComposedOp(String documentId) {
+    List<DocOp> ops = documentOps.get(documentId);
+    if (ops == null) {
+      return null;
+    }
+    if (ops.size() > 1) {
+      DocOp composed = Composer.compose(ops);
+      ops.clear();
+      ops.add(composed);
+    }
+    return ops.get(0);
+  }
+
+  /**
+   * Checks the author of a client operation is not removed by the run, as
+   * transforming against the removal would.
+   */
+  private void checkAuthorNotRemoved(WaveletOperation clientOp) throws RemovedAuthorException {
+    ParticipantId author = clientOp.getContext().getCreator();
+    if (removedParticipants.contains(author)) {
+      throw new RemovedAuthorException(author.getAddress());
+    }
+  }
+}
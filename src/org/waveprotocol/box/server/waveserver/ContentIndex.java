@@ -0,0 +1,1069 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.waveprotocol.box.common.Snippets;
+import org.waveprotocol.box.server.persistence.file.FileUtils;
+import org.waveprotocol.wave.model.id.IdUtil;
+import org.waveprotocol.wave.model.id.InvalidIdException;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.data.ReadableBlipData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A full-text index of the blips of conversational wavelets, answering which
+ * waves contain a set of words and phrases.
+ *
+ * Each indexed blip is a document, numbered in the order it was indexed. A
+ * term's postings list the documents containing it in that order, with the
+ * positions of the term in each, varint coded as deltas; every
+ * {@link Postings#SKIP_INTERVAL} documents a skip entry allows a cursor to
+ * jump to a document without decoding those before it. A query starts from
+ * its rarest term, and only checks its other terms against the candidates
+ * found, so its cost depends on the selectivity of the query rather than the
+ * size of the index.
+ *
+ * A blip whose text changes is indexed again as a new document, and the old
+ * one is marked deleted. Once deleted documents outnumber live ones the
+ * postings are rewritten without them.
+ *
+ * The index may optionally be backed by a file, so that a restarted server
+ * can load it instead of reading every wavelet in the store. The file holds
+ * the postings as of the last time it was written, and a journal next to it
+ * lists the wavelets changed since, which have to be indexed again from
+ * storage before the index is used. A file or journal which cannot be read
+ * is discarded and the index rebuilt. The file is written again once the
+ * journal lists {@link #DEFAULT_CHECKPOINT_WAVELETS} wavelets, and by
+ * {@link #checkpoint()}, so the journal doesn't grow for the whole uptime.
+ */
+public class ContentIndex {
+
+  private static final Log LOG = Log.get(ContentIndex.class);
+
+  /** First entry of an index file. */
+  private static final String HEADER = "wave-content-index 1";
+
+  /** First line of a journal file. */
+  private static final String JOURNAL_HEADER = "wave-content-index-journal 1";
+
+  /** Terms longer than this aren't indexed. */
+  @VisibleForTesting
+  static final int MAX_TERM_LENGTH = 64;
+
+  /** The number of deleted documents below which postings aren't rewritten. */
+  private static final int MIN_DELETED_DOCUMENTS_TO_COMPACT = 1024;
+
+  /** The number of journalled wavelets after which the index file is written. */
+  static final int DEFAULT_CHECKPOINT_WAVELETS = 10000;
+
+  /**
+   * The documents of one term, with the term's positions in each, in order
+   * of document number.
+   */
+  static final class Postings {
+    /** The number of documents between skip entries. */
+    static final int SKIP_INTERVAL = 32;
+
+    /**
+     * For each document: the delta from the previous document number, the
+     * number of positions, the length of the positions in bytes, then the
+     * delta from each position to the previous one. All are varints.
+     */
+    private byte[] bytes;
+    private int length = 0;
+    private int documentCount = 0;
+    private int lastDocument = -1;
+
+    /**
+     * For each skip entry, the document before the skipped-to one and the
+     * offset of the skipped-to one. The entries are added every
+     * SKIP_INTERVAL documents.
+     */
+    private int[] skipDocuments = new int[0];
+    private int[] skipOffsets = new int[0];
+    private int skipCount = 0;
+
+    Postings() {
+      this.bytes = new byte[16];
+    }
+
+    int getDocumentCount() {
+      return documentCount;
+    }
+
+    /**
+     * Adds a document which is numbered after every document added so far.
+     *
+     * @param positions the ascending positions of the term in the document
+     */
+    void add(int document, int[] positions, int positionCount) {
+      if (document <= lastDocument) {
+        throw new IllegalArgumentException(
+            "Document " + document + " added after " + lastDocument);
+      }
+      if (documentCount % SKIP_INTERVAL == 0 && documentCount > 0) {
+        if (skipCount == skipDocuments.length) {
+          skipDocuments = Arrays.copyOf(skipDocuments, Math.max(4, skipCount * 2));
+          skipOffsets = Arrays.copyOf(skipOffsets, skipDocuments.length);
+        }
+        skipDocuments[skipCount] = lastDocument;
+        skipOffsets[skipCount] = length;
+        skipCount++;
+      }
+      int positionBytes = 0;
+      for (int i = 0, last = 0; i < positionCount; last = positions[i], i++) {
+        positionBytes += varIntSize(positions[i] - last);
+      }
+      ensureCapacity(length + 15 + positionBytes);
+      writeVarInt(document - lastDocument);
+      writeVarInt(positionCount);
+      writeVarInt(positionBytes);
+      for (int i = 0, last = 0; i < positionCount; last = positions[i], i++) {
+        writeVarInt(positions[i] - last);
+      }
+      lastDocument = document;
+      documentCount++;
+    }
+
+    /** @return a cursor before the first document. */
+    Cursor cursor() {
+      return new Cursor();
+    }
+
+    /** Reads the postings written by {@link #write}. */
+    static Postings read(DataInputStream in) throws IOException {
+      int documentCount = in.readInt();
+      int length = in.readInt();
+      if (documentCount < 0 || length < 0) {
+        throw new IOException("Bad postings size");
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      // Adding the documents again rebuilds the skip entries.
+      Postings encoded = new Postings();
+      encoded.bytes = bytes;
+      encoded.length = length;
+      Postings postings = new Postings();
+      Cursor cursor = encoded.cursor();
+      int[] positions = new int[0];
+      while (cursor.next()) {
+        positions = cursor.positions(positions);
+        postings.add(cursor.document(), positions, cursor.positionCount());
+      }
+      if (postings.documentCount != documentCount) {
+        throw new IOException("Bad postings size");
+      }
+      return postings;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeInt(documentCount);
+      out.writeInt(length);
+      out.write(bytes, 0, length);
+    }
+
+    /** Reads through the postings, document by document. */
+    final class Cursor {
+      private int offset = 0;
+      private int document = -1;
+      private int positionCount;
+      private int positionOffset;
+
+      /**
+       * Moves to the next document.
+       *
+       * @return false if there are no more documents
+       */
+      boolean next() {
+        if (offset >= length) {
+          return false;
+        }
+        document += readVarInt();
+        positionCount = readVarInt();
+        int positionBytes = readVarInt();
+        positionOffset = offset;
+        offset += positionBytes;
+        return true;
+      }
+
+      /**
+       * Moves to the first document numbered at least the target, skipping
+       * the documents before it without reading them where possible.
+       *
+       * @return false if there is no such document
+       */
+      boolean advance(int target) {
+        if (document >= target) {
+          return true;
+        }
+        // The last skip entry which lands before the target and ahead of the
+        // cursor.
+        int low = 0;
+        int high = skipCount - 1;
+        int skip = -1;
+        while (low <= high) {
+          int mid = (low + high) >>> 1;
+          if (skipDocuments[mid] < target) {
+            skip = mid;
+            low = mid + 1;
+          } else {
+            high = mid - 1;
+          }
+        }
+        if (skip >= 0 && skipOffsets[skip] > offset) {
+          offset = skipOffsets[skip];
+          document = skipDocuments[skip];
+        }
+        while (next()) {
+          if (document >= target) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      int document() {
+        return document;
+      }
+
+      int positionCount() {
+        return positionCount;
+      }
+
+      /**
+       * Decodes the positions of the term in the current document.
+       *
+       * @param buffer an array to decode into, if large enough
+       * @return an array starting with the positions
+       */
+      int[] positions(int[] buffer) {
+        if (buffer.length < positionCount) {
+          buffer = new int[positionCount];
+        }
+        int saved = offset;
+        offset = positionOffset;
+        for (int i = 0, last = 0; i < positionCount; i++) {
+          last += readVarInt();
+          buffer[i] = last;
+        }
+        offset = saved;
+        return buffer;
+      }
+
+      private int readVarInt() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+          byte b = bytes[offset++];
+          value |= (b & 0x7f) << shift;
+          if (b >= 0) {
+            return value;
+          }
+        }
+      }
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+      }
+    }
+
+    private void writeVarInt(int value) {
+      while ((value & ~0x7f) != 0) {
+        bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      bytes[length++] = (byte) value;
+    }
+
+    private static int varIntSize(int value) {
+      int size = 1;
+      while ((value & ~0x7f) != 0) {
+        value >>>= 7;
+        size++;
+      }
+      return size;
+    }
+  }
+
+  /** An indexed document. */
+  private static final class Document {
+    final WaveletName waveletName;
+    final String documentId;
+    /** Hash of the indexed text, to skip indexing unchanged text again. */
+    final int textHash;
+
+    Document(WaveletName waveletName, String documentId, int textHash) {
+      this.waveletName = waveletName;
+      this.documentId = documentId;
+      this.textHash = textHash;
+    }
+  }
+
+  /** The documents by number; deleted ones are null. */
+  private final List<Document> documents = Lists.newArrayList();
+
+  /** The number of each live document, by wave, wavelet and document id. */
+  private final Map<WaveId, Map<WaveletId, Map<String, Integer>>> documentNumbers =
+      Maps.newHashMap();
+
+  private final Map<String, Postings> postings = Maps.newHashMap();
+
+  private int deletedCount = 0;
+
+  /** The index file, or null if the index is kept in memory only. */
+  private final File indexFile;
+
+  /** The journal file, or null if the index is kept in memory only. */
+  private final File journalFile;
+
+  /** Appends to the journal file, open once the index is built. */
+  private Writer journal;
+
+  /** The wavelets listed in the journal. */
+  private final Set<WaveletName> journalled = Sets.newHashSet();
+
+  /** The number of journalled wavelets after which the index file is written. */
+  private final int checkpointWavelets;
+
+  /** Whether the index has been closed, after which it must not change. */
+  private boolean closed = false;
+
+  /** The wavelets changed since the index file was written, when it was loaded. */
+  private final Set<WaveletName> staleWavelets = Sets.newHashSet();
+
+  private boolean built = false;
+
+  /** Creates an empty index kept in memory only. */
+  public ContentIndex() {
+    this.indexFile = null;
+    this.journalFile = null;
+    this.checkpointWavelets = DEFAULT_CHECKPOINT_WAVELETS;
+  }
+
+  /**
+   * Creates an index backed by the given file. If the file and its journal
+   * can be read the index is loaded from them and is built, but the wavelets
+   * listed in the journal must be indexed again before it is up to date.
+   *
+   * @throws IOException if the journal cannot be opened
+   */
+  public ContentIndex(File indexFile) throws IOException {
+    this(indexFile, DEFAULT_CHECKPOINT_WAVELETS);
+  }
+
+  /**
+   * Creates an index backed by the given file, which is written again once
+   * the given number of wavelets are journalled.
+   */
+  @VisibleForTesting
+  ContentIndex(File indexFile, int checkpointWavelets) throws IOException {
+    this.indexFile = indexFile;
+    this.checkpointWavelets = checkpointWavelets;
+    this.journalFile = new File(indexFile.getPath() + ".journal");
+    if (indexFile.exists()) {
+      if (readIndex() && readJournal()) {
+        LOG.info("Loaded content index of " + (documents.size() - deletedCount)
+            + " documents from " + indexFile + ", " + staleWavelets.size()
+            + " wavelets to index again");
+        journal = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(journalFile, true), Charsets.UTF_8));
+        built = true;
+      } else {
+        clear();
+      }
+    }
+  }
+
+  /**
+   * @return true if the index reflects all stored wavelets, apart from the
+   *         {@link #getStaleWavelets() stale} ones, false if it still needs to
+   *         be built with {@link #markBuilt()}.
+   */
+  public synchronized boolean isBuilt() {
+    return built;
+  }
+
+  /**
+   * @return the wavelets which changed after the index file was written, and
+   *         must be indexed again from storage.
+   */
+  public synchronized ImmutableSet<WaveletName> getStaleWavelets() {
+    return ImmutableSet.copyOf(staleWavelets);
+  }
+
+  /**
+   * Marks the index as complete, once all stored wavelets have been indexed,
+   * and writes the index file if it has one.
+   *
+   * @throws IOException if writing the index fails
+   */
+  public synchronized void markBuilt() throws IOException {
+    if (indexFile != null) {
+      writeIndex();
+    }
+    staleWavelets.clear();
+    built = true;
+  }
+
+  /**
+   * Indexes every blip of a wavelet, and drops the blips which are no longer
+   * in it.
+   */
+  public void indexWavelet(ReadableWaveletData wavelet) {
+    WaveletName waveletName = WaveletName.of(wavelet.getWaveId(), wavelet.getWaveletId());
+    synchronized (this) {
+      Map<String, Integer> indexed = getDocumentNumbers(waveletName);
+      if (indexed != null) {
+        for (String documentId : ImmutableList.copyOf(indexed.keySet())) {
+          if (wavelet.getDocument(documentId) == null) {
+            removeDocument(waveletName, documentId);
+          }
+        }
+      }
+    }
+    indexDocuments(wavelet, wavelet.getDocumentIds());
+  }
+
+  /**
+   * Indexes the given documents of a wavelet, typically those changed by a
+   * delta. Documents which aren't blips are ignored.
+   */
+  public void indexDocuments(ReadableWaveletData wavelet,
+      Iterable<String> documentIds) {
+    WaveletName waveletName = WaveletName.of(wavelet.getWaveId(), wavelet.getWaveletId());
+    for (String documentId : documentIds) {
+      if (!IdUtil.isBlipId(documentId)) {
+        continue;
+      }
+      ReadableBlipData blip = wavelet.getDocument(documentId);
+      if (blip == null) {
+        removeDocument(waveletName, documentId);
+      } else {
+        indexDocument(waveletName, documentId,
+            Snippets.collateTextForDocuments(Collections.singletonList(blip)));
+      }
+    }
+  }
+
+  /**
+   * Indexes the text of a document, replacing any text indexed for it before.
+   * The text is tokenized before the index is locked, so searches only wait
+   * for the postings to be updated.
+   */
+  public void indexDocument(WaveletName waveletName, String documentId, String text) {
+    List<String> terms = tokenize(text);
+    synchronized (this) {
+      Map<String, Integer> indexed = getDocumentNumbers(waveletName);
+      Integer number = (indexed != null) ? indexed.get(documentId) : null;
+      if (number != null && documents.get(number).textHash == text.hashCode()) {
+        return;
+      }
+      if (number != null) {
+        delete(number);
+      }
+      addDocument(new Document(waveletName, documentId, text.hashCode()), terms);
+      logChange(waveletName);
+      if (deletedCount >= MIN_DELETED_DOCUMENTS_TO_COMPACT
+          && deletedCount > documents.size() - deletedCount) {
+        compact();
+      }
+    }
+  }
+
+  /** Drops a document from the index. */
+  public synchronized void removeDocument(WaveletName waveletName, String documentId) {
+    Map<String, Integer> indexed = getDocumentNumbers(waveletName);
+    Integer number = (indexed != null) ? indexed.get(documentId) : null;
+    if (number != null) {
+      delete(number);
+      logChange(waveletName);
+    }
+  }
+
+  /** Drops all documents of a wavelet from the index. */
+  public synchronized void removeWavelet(WaveletName waveletName) {
+    Map<String, Integer> indexed = getDocumentNumbers(waveletName);
+    if (indexed != null) {
+      for (Integer number : ImmutableList.copyOf(indexed.values())) {
+        delete(number);
+      }
+      logChange(waveletName);
+    }
+  }
+
+  /**
+   * Finds the waves containing all the given phrases. The words of a phrase
+   * must follow each other in one document, but different phrases may be in
+   * different documents of the wave.
+   *
+   * @param phrases the terms of each phrase, as returned by {@link #tokenize}
+   * @param visible which wavelets may be searched
+   * @return the matching waves
+   */
+  public synchronized Set<WaveId> search(List<List<String>> phrases,
+      Predicate<WaveletName> visible) {
+    List<List<Postings>> phrasePostings = Lists.newArrayList();
+    for (List<String> phrase : phrases) {
+      if (phrase.isEmpty()) {
+        continue;
+      }
+      List<Postings> termPostings = Lists.newArrayListWithCapacity(phrase.size());
+      for (String term : phrase) {
+        Postings p = postings.get(term);
+        if (p == null) {
+          return Collections.emptySet();
+        }
+        termPostings.add(p);
+      }
+      phrasePostings.add(termPostings);
+    }
+    if (phrasePostings.isEmpty()) {
+      return Collections.emptySet();
+    }
+    Collections.sort(phrasePostings, RAREST_FIRST);
+
+    // The waves of the rarest phrase are the candidates, which are then
+    // narrowed down by each other phrase.
+    Set<WaveId> waves = Sets.newHashSet();
+    List<Postings> rarest = phrasePostings.get(0);
+    PhraseMatcher matcher = new PhraseMatcher(rarest);
+    int document = -1;
+    while ((document = matcher.nextMatch(document + 1)) >= 0) {
+      Document doc = documents.get(document);
+      if (doc != null && visible.apply(doc.waveletName)) {
+        waves.add(doc.waveletName.waveId);
+      }
+    }
+    for (List<Postings> phrase : phrasePostings.subList(1, phrasePostings.size())) {
+      if (waves.isEmpty()) {
+        break;
+      }
+      waves = narrow(waves, phrase, visible);
+    }
+    return waves;
+  }
+
+  /**
+   * Splits text into lower case terms, each a run of letters and digits.
+   * Overlong terms are dropped, but still count as a position.
+   */
+  public static List<String> tokenize(String text) {
+    List<String> terms = Lists.newArrayList();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (wordChar && start < 0) {
+        start = i;
+      } else if (!wordChar && start >= 0) {
+        terms.add(i - start <= MAX_TERM_LENGTH
+            ? text.substring(start, i).toLowerCase(Locale.ENGLISH) : null);
+        start = -1;
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * Writes the index file and starts a new journal, if the index is built and
+   * has a file, and wavelets changed since it was last written.
+   *
+   * @throws IOException if writing the index fails
+   */
+  public synchronized void checkpoint() throws IOException {
+    if (journal != null && !journalled.isEmpty()) {
+      writeIndex();
+    }
+  }
+
+  /**
+   * Closes the journal. The index must not be changed afterwards; a change
+   * deletes the journal, so that the index is rebuilt on the next start
+   * rather than loaded without the change.
+   */
+  public synchronized void close() throws IOException {
+    closed = true;
+    closeJournal();
+  }
+
+  private void closeJournal() throws IOException {
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
+  }
+
+  /** Orders phrases by the number of documents of their rarest term. */
+  private static final Comparator<List<Postings>> RAREST_FIRST = new Comparator<List<Postings>>() {
+    @Override
+    public int compare(List<Postings> a, List<Postings> b) {
+      return Integer.signum(rarity(a) - rarity(b));
+    }
+  };
+
+  /**
+   * Finds the documents containing a phrase, by advancing the cursors of its
+   * terms together.
+   */
+  private static final class PhraseMatcher {
+    private final Postings.Cursor[] cursors;
+    private final boolean[] exhausted;
+    private int[][] positions;
+
+    PhraseMatcher(List<Postings> phrase) {
+      cursors = new Postings.Cursor[phrase.size()];
+      exhausted = new boolean[phrase.size()];
+      positions = new int[phrase.size()][];
+      for (int i = 0; i < cursors.length; i++) {
+        cursors[i] = phrase.get(i).cursor();
+        positions[i] = new int[0];
+      }
+    }
+
+    /**
+     * @return the first document numbered at least the target which contains
+     *         the phrase, or -1
+     */
+    int nextMatch(int target) {
+      while (true) {
+        // Advance every cursor to the highest document any of them is at.
+        int document = target;
+        boolean agreed = false;
+        while (!agreed) {
+          agreed = true;
+          for (int i = 0; i < cursors.length; i++) {
+            if (exhausted[i] || !cursors[i].advance(document)) {
+              exhausted[i] = true;
+              return -1;
+            }
+            if (cursors[i].document() > document) {
+              document = cursors[i].document();
+              agreed = (i == 0);
+            }
+          }
+        }
+        if (cursors.length == 1 || hasPhrase()) {
+          return document;
+        }
+        target = document + 1;
+      }
+    }
+
+    /**
+     * @return true if the current document has each term of the phrase right
+     *         after the one before it
+     */
+    private boolean hasPhrase() {
+      for (int i = 0; i < cursors.length; i++) {
+        positions[i] = cursors[i].positions(positions[i]);
+      }
+      int[] first = positions[0];
+      for (int p = 0; p < cursors[0].positionCount(); p++) {
+        boolean found = true;
+        for (int i = 1; i < cursors.length && found; i++) {
+          found = Arrays.binarySearch(positions[i], 0, cursors[i].positionCount(),
+              first[p] + i) >= 0;
+        }
+        if (found) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Narrows candidate waves down to those containing a phrase. If the phrase
+   * is rarer than the candidates' documents, its documents are all read;
+   * otherwise each candidate document is looked up in its postings.
+   */
+  private Set<WaveId> narrow(Set<WaveId> waves, List<Postings> phrase,
+      Predicate<WaveletName> visible) {
+    List<Integer> candidates = Lists.newArrayList();
+    for (WaveId waveId : waves) {
+      Map<WaveletId, Map<String, Integer>> wave = documentNumbers.get(waveId);
+      if (wave != null) {
+        for (Map<String, Integer> wavelet : wave.values()) {
+          candidates.addAll(wavelet.values());
+        }
+      }
+    }
+    Collections.sort(candidates);
+    Set<WaveId> narrowed = Sets.newHashSet();
+    PhraseMatcher matcher = new PhraseMatcher(phrase);
+    if (rarity(phrase) < candidates.size()) {
+      int document = -1;
+      while ((document = matcher.nextMatch(document + 1)) >= 0) {
+        Document doc = documents.get(document);
+        if (doc != null && waves.contains(doc.waveletName.waveId)
+            && visible.apply(doc.waveletName)) {
+          narrowed.add(doc.waveletName.waveId);
+        }
+      }
+    } else {
+      for (int document : candidates) {
+        Document doc = documents.get(document);
+        if (narrowed.contains(doc.waveletName.waveId) || !visible.apply(doc.waveletName)) {
+          continue;
+        }
+        int match = matcher.nextMatch(document);
+        if (match < 0) {
+          break;
+        }
+        if (match == document) {
+          narrowed.add(doc.waveletName.waveId);
+        }
+      }
+    }
+    return narrowed;
+  }
+
+  /** @return the number of documents of the rarest term of a phrase. */
+  private static int rarity(List<Postings> phrase) {
+    int min = Integer.MAX_VALUE;
+    for (Postings p : phrase) {
+      min = Math.min(min, p.getDocumentCount());
+    }
+    return min;
+  }
+
+  private Map<String, Integer> getDocumentNumbers(WaveletName waveletName) {
+    Map<WaveletId, Map<String, Integer>> wave = documentNumbers.get(waveletName.waveId);
+    return (wave != null) ? wave.get(waveletName.waveletId) : null;
+  }
+
+  /** Adds a document with the given terms, numbered after all others. */
+  private void addDocument(Document document, List<String> terms) {
+    int number = documents.size();
+    documents.add(document);
+    Map<WaveletId, Map<String, Integer>> wave = documentNumbers.get(document.waveletName.waveId);
+    if (wave == null) {
+      wave = Maps.newHashMap();
+      documentNumbers.put(document.waveletName.waveId, wave);
+    }
+    Map<String, Integer> wavelet = wave.get(document.waveletName.waveletId);
+    if (wavelet == null) {
+      wavelet = Maps.newHashMap();
+      wave.put(document.waveletName.waveletId, wavelet);
+    }
+    wavelet.put(document.documentId, number);
+
+    // The positions of each term, in order of first occurrence.
+    Map<String, int[]> termPositions = Maps.newLinkedHashMap();
+    Map<String, Integer> termCounts = Maps.newHashMap();
+    for (int position = 0; position < terms.size(); position++) {
+      String term = terms.get(position);
+      if (term == null) {
+        continue;
+      }
+      int[] positions = termPositions.get(term);
+      int count = termCounts.containsKey(term) ? termCounts.get(term) : 0;
+      if (positions == null) {
+        positions = new int[4];
+      } else if (count == positions.length) {
+        positions = Arrays.copyOf(positions, count * 2);
+      }
+      positions[count] = position;
+      termPositions.put(term, positions);
+      termCounts.put(term, count + 1);
+    }
+    for (Map.Entry<String, int[]> entry : termPositions.entrySet()) {
+      Postings p = postings.get(entry.getKey());
+      if (p == null) {
+        p = new Postings();
+        postings.put(entry.getKey(), p);
+      }
+      p.add(number, entry.getValue(), termCounts.get(entry.getKey()));
+    }
+  }
+
+  /** Marks a document deleted. Its postings stay until the next compaction. */
+  private void delete(int number) {
+    Document document = documents.get(number);
+    documents.set(number, null);
+    deletedCount++;
+    Map<WaveletId, Map<String, Integer>> wave = documentNumbers.get(document.waveletName.waveId);
+    Map<String, Integer> wavelet = wave.get(document.waveletName.waveletId);
+    wavelet.remove(document.documentId);
+    if (wavelet.isEmpty()) {
+      wave.remove(document.waveletName.waveletId);
+      if (wave.isEmpty()) {
+        documentNumbers.remove(document.waveletName.waveId);
+      }
+    }
+  }
+
+  /**
+   * Rewrites the postings without deleted documents, numbering the live
+   * documents consecutively in their current order.
+   */
+  private void compact() {
+    int[] renumbered = new int[documents.size()];
+    List<Document> live = Lists.newArrayListWithCapacity(documents.size() - deletedCount);
+    for (int i = 0; i < documents.size(); i++) {
+      Document document = documents.get(i);
+      if (document == null) {
+        renumbered[i] = -1;
+      } else {
+        renumbered[i] = live.size();
+        live.add(document);
+      }
+    }
+    Iterator<Map.Entry<String, Postings>> it = postings.entrySet().iterator();
+    int[] positions = new int[0];
+    while (it.hasNext()) {
+      Map.Entry<String, Postings> entry = it.next();
+      Postings compacted = new Postings();
+      Postings.Cursor cursor = entry.getValue().cursor();
+      while (cursor.next()) {
+        int number = renumbered[cursor.document()];
+        if (number >= 0) {
+          positions = cursor.positions(positions);
+          compacted.add(number, positions, cursor.positionCount());
+        }
+      }
+      if (compacted.getDocumentCount() == 0) {
+        it.remove();
+      } else {
+        entry.setValue(compacted);
+      }
+    }
+    documents.clear();
+    documents.addAll(live);
+    deletedCount = 0;
+    for (int i = 0; i < live.size(); i++) {
+      Document document = live.get(i);
+      getDocumentNumbers(document.waveletName).put(document.documentId, i);
+    }
+    LOG.fine("Compacted content index to " + live.size() + " documents");
+  }
+
+  private void clear() {
+    documents.clear();
+    documentNumbers.clear();
+    postings.clear();
+    deletedCount = 0;
+    staleWavelets.clear();
+    journalled.clear();
+  }
+
+  /**
+   * Appends a changed wavelet to the journal, if the index is built, has one
+   * and the wavelet isn't already in it. Once the journal lists enough
+   * wavelets the index file is written instead. A failed write closes the
+   * journal and deletes it, so that the index is rebuilt on the next start
+   * rather than loaded with missing changes.
+   */
+  private void logChange(WaveletName waveletName) {
+    if (closed) {
+      if (journalFile != null && journalFile.delete()) {
+        LOG.warning("Content index changed after it was closed, it will be rebuilt on the"
+            + " next start");
+      }
+      return;
+    }
+    if (journal == null || !journalled.add(waveletName)) {
+      return;
+    }
+    try {
+      if (journalled.size() >= checkpointWavelets) {
+        writeIndex();
+      } else {
+        journal.write(ModernIdSerialiser.INSTANCE.serialiseWaveletName(waveletName) + "\n");
+        journal.flush();
+      }
+    } catch (IOException e) {
+      LOG.severe("Failed to write content index " + indexFile
+          + ", it will be rebuilt on the next start", e);
+      if (journal != null) {
+        try {
+          journal.close();
+        } catch (IOException e2) {
+          // Already failed.
+        }
+        journal = null;
+      }
+      journalFile.delete();
+    }
+  }
+
+  /**
+   * Reads the index file.
+   *
+   * @return false if the file is not valid
+   */
+  private boolean readIndex() {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+      if (!HEADER.equals(in.readUTF())) {
+        LOG.warning("Content index " + indexFile + " has no valid header");
+        return false;
+      }
+      int documentCount = in.readInt();
+      for (int i = 0; i < documentCount; i++) {
+        WaveletName waveletName =
+            ModernIdSerialiser.INSTANCE.deserialiseWaveletName(in.readUTF());
+        String documentId = in.readUTF();
+        int textHash = in.readInt();
+        addDocument(new Document(waveletName, documentId, textHash),
+            Collections.<String>emptyList());
+      }
+      int termCount = in.readInt();
+      for (int i = 0; i < termCount; i++) {
+        String term = in.readUTF();
+        Postings p = Postings.read(in);
+        if (p.lastDocument >= documentCount) {
+          LOG.warning("Content index " + indexFile + " has bad postings for " + term);
+          return false;
+        }
+        postings.put(term, p);
+      }
+      return true;
+    } catch (InvalidIdException e) {
+      LOG.warning("Content index " + indexFile + " has a bad wavelet name", e);
+      return false;
+    } catch (IOException e) {
+      LOG.warning("Failed to read content index " + indexFile, e);
+      return false;
+    } catch (RuntimeException e) {
+      // Corrupt postings.
+      LOG.warning("Failed to read content index " + indexFile, e);
+      return false;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOG.warning("Failed to close content index " + indexFile, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the journal into the stale wavelets.
+   *
+   * @return false if the journal is not valid
+   */
+  private boolean readJournal() {
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(
+          new InputStreamReader(new FileInputStream(journalFile), Charsets.UTF_8));
+      if (!JOURNAL_HEADER.equals(reader.readLine())) {
+        LOG.warning("Content index journal " + journalFile + " has no valid header");
+        return false;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        try {
+          staleWavelets.add(ModernIdSerialiser.INSTANCE.deserialiseWaveletName(line));
+        } catch (InvalidIdException e) {
+          LOG.warning("Content index journal " + journalFile + " has a bad entry: " + line);
+          return false;
+        }
+      }
+      journalled.addAll(staleWavelets);
+      return true;
+    } catch (IOException e) {
+      LOG.warning("Failed to read content index journal " + journalFile, e);
+      return false;
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          LOG.warning("Failed to close content index journal " + journalFile, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Compacts the index and replaces the index file with it, then starts a
+   * new journal.
+   */
+  private void writeIndex() throws IOException {
+    closeJournal();
+    if (deletedCount > 0) {
+      compact();
+    }
+    File tempFile = new File(indexFile.getPath() + ".tmp");
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      out.writeUTF(HEADER);
+      out.writeInt(documents.size());
+      for (Document document : documents) {
+        out.writeUTF(ModernIdSerialiser.INSTANCE.serialiseWaveletName(document.waveletName));
+        out.writeUTF(document.documentId);
+        out.writeInt(document.textHash);
+      }
+      out.writeInt(postings.size());
+      for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+        out.writeUTF(entry.getKey());
+        entry.getValue().write(out);
+      }
+    } finally {
+      out.close();
+    }
+    FileUtils.renameOverwriting(tempFile, indexFile);
+
+    journalled.clear();
+    journal = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(journalFile), Charsets.UTF_8));
+    journal.write(JOURNAL_HEADER + "\n");
+    journal.flush();
+  }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of historical deltas which are no longer resident
+ * in their {@link DeltaStoreBasedWaveletState}, shared by all wavelets and
+ * bounded by the total size of the cached deltas.
+ *
+ * Also keeps the memory metrics for delta history: the number and size of the
+ * deltas resident in each wavelet state, their total, and the size of the
+ * deltas in this cache.
+ * Sizes are approximated by the serialized size of the applied deltas.
+ */
+public class DeltaHistoryCache {
+
+  private static final class Key {
+    private final WaveletName waveletName;
+    private final long appliedAtVersion;
+
+    Key(WaveletName waveletName, long appliedAtVersion) {
+      this.waveletName = waveletName;
+      this.appliedAtVersion = appliedAtVersion;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return appliedAtVersion == other.appliedAtVersion && waveletName.equals(other.waveletName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(waveletName, appliedAtVersion);
+    }
+  }
+
+  /** The deltas resident in the states of one wavelet. */
+  private static final class ResidentDeltas {
+    int count = 0;
+    long bytes = 0;
+  }
+
+  /**
+   * @return the approximate number of bytes of memory taken by a delta.
+   */
+  public static long sizeOf(ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta) {
+    return appliedDelta.getByteString().size();
+  }
+
+  private final long maxBytes;
+
+  /** Access ordered, so iteration starts with the least recently used delta. */
+  private final LinkedHashMap<Key, WaveletDeltaRecord> deltas =
+      new LinkedHashMap<Key, WaveletDeltaRecord>(16, 0.75f, true);
+
+  private long cachedBytes = 0;
+  private long hitCount = 0;
+  private long missCount = 0;
+  private final AtomicLong residentBytes = new AtomicLong();
+
+  /** Resident deltas of each wavelet which has any. Guarded by itself. */
+  private final Map<WaveletName, ResidentDeltas> residentDeltas = Maps.newHashMap();
+
+  /**
+   * @param maxBytes maximum total size of the cached deltas; 0 disables caching
+   */
+  public DeltaHistoryCache(long maxBytes) {
+    Preconditions.checkArgument(maxBytes >= 0, "Negative cache size %s", maxBytes);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return the cached delta of the given wavelet applied at the given version,
+   *         or null if it isn't cached.
+   */
+  public synchronized WaveletDeltaRecord get(WaveletName waveletName, long appliedAtVersion) {
+    WaveletDeltaRecord delta = deltas.get(new Key(waveletName, appliedAtVersion));
+    if (delta != null) {
+      hitCount++;
+    } else {
+      missCount++;
+    }
+    return delta;
+  }
+
+  /**
+   * Caches a delta of the given wavelet, evicting the least recently used
+   * deltas as needed to stay within the size bound.
+   */
+  public synchronized void put(WaveletName waveletName, WaveletDeltaRecord delta) {
+    long size = sizeOf(delta.getAppliedDelta());
+    if (size > maxBytes) {
+      return;
+    }
+    Key key = new Key(waveletName, delta.getAppliedAtVersion().getVersion());
+    WaveletDeltaRecord previous = deltas.put(key, delta);
+    if (previous != null) {
+      cachedBytes -= sizeOf(previous.getAppliedDelta());
+    }
+    cachedBytes += size;
+    Iterator<Map.Entry<Key, WaveletDeltaRecord>> it = deltas.entrySet().iterator();
+    while (cachedBytes > maxBytes) {
+      cachedBytes -= sizeOf(it.next().getValue().getAppliedDelta());
+      it.remove();
+    }
+  }
+
+  /**
+   * Records a change in the number and size of the deltas resident in a
+   * wavelet state.
+   */
+  void addResidentDeltas(WaveletName waveletName, int count, long bytes) {
+    residentBytes.addAndGet(bytes);
+    synchronized (residentDeltas) {
+      ResidentDeltas resident = residentDeltas.get(waveletName);
+      if (resident == null) {
+        resident = new ResidentDeltas();
+        residentDeltas.put(waveletName, resident);
+      }
+      resident.count += count;
+      resident.bytes += bytes;
+      if (resident.count == 0 && resident.bytes == 0) {
+        residentDeltas.remove(waveletName);
+      }
+    }
+  }
+
+  /** @return the total size of the deltas resident in all wavelet states. */
+  public long getResidentBytes() {
+    return residentBytes.get();
+  }
+
+  /** @return the number of deltas resident in the states of the given wavelet. */
+  public int getResidentDeltaCount(WaveletName waveletName) {
+    synchronized (residentDeltas) {
+      ResidentDeltas resident = residentDeltas.get(waveletName);
+      return resident != null ? resident.count : 0;
+    }
+  }
+
+  /** @return the size of the deltas resident in the states of the given wavelet. */
+  public long getResidentBytes(WaveletName waveletName) {
+    synchronized (residentDeltas) {
+      ResidentDeltas resident = residentDeltas.get(waveletName);
+      return resident != null ? resident.bytes : 0;
+    }
+  }
+
+  /**
+   * @return descriptions of the wavelets with the largest resident deltas,
+   *         largest first, at most {@code limit} of them.
+   */
+  public List<String> describeLargestResidentWavelets(int limit) {
+    List<Map.Entry<WaveletName, ResidentDeltas>> entries;
+    synchronized (residentDeltas) {
+      entries = Lists.newArrayList();
+      for (Map.Entry<WaveletName, ResidentDeltas> entry : residentDeltas.entrySet()) {
+        ResidentDeltas copy = new ResidentDeltas();
+        copy.count = entry.getValue().count;
+        copy.bytes = entry.getValue().bytes;
+        entries.add(Maps.immutableEntry(entry.getKey(), copy));
+      }
+    }
+    Collections.sort(entries, new Comparator<Map.Entry<WaveletName, ResidentDeltas>>() {
+      @Override
+      public int compare(Map.Entry<WaveletName, ResidentDeltas> a,
+          Map.Entry<WaveletName, ResidentDeltas> b) {
+        long diff = b.getValue().bytes - a.getValue().bytes;
+        return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+      }
+    });
+    List<String> descriptions = Lists.newArrayList();
+    for (Map.Entry<WaveletName, ResidentDeltas> entry
+        : entries.subList(0, Math.min(limit, entries.size()))) {
+      descriptions.add(entry.getKey() + ": " + entry.getValue().count + " deltas, "
+          + entry.getValue().bytes + "B");
+    }
+    return descriptions;
+  }
+
+  /** @return the total size of the cached deltas. */
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  /** @return the number of cached deltas. */
+  public synchronized int getCachedDeltaCount() {
+    return deltas.size();
+  }
+
+  /** @return the number of lookups which found a cached delta. */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /** @return the number of lookups which found no cached delta. */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "DeltaHistoryCache(resident=" + residentBytes.get() + "B, cached=" + cachedBytes + "/"
+        + maxBytes + "B in " + deltas.size() + " deltas, hits=" + hitCount + ", misses="
+        + missCount + ")";
+  }
+}
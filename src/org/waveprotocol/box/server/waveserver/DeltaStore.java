@@ -17,9 +17,11 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.Collection;
 
 /**
@@ -32,6 +34,8 @@ public interface DeltaStore extends WaveletStore<DeltaStore.DeltasAccess> {
   /**
    * Accesses the delta history for a wavelet.
    * Permits reading historical deltas and appending deltas to the history.
+   * Deltas already appended may be read while another thread appends, and
+   * such reads should not wait for the appended deltas to reach the disk.
    */
   interface DeltasAccess extends WaveletDeltaRecordReader, Closeable {
     /**
@@ -48,5 +52,25 @@ public interface DeltaStore extends WaveletStore<DeltaStore.DeltasAccess> {
      *         storage.
      */
     void append(Collection<WaveletDeltaRecord> deltas) throws PersistenceException;
+
+    /**
+     * Blocking call to store a snapshot checkpoint of the wavelet, replacing
+     * any previously stored checkpoint. Checkpoints let the wavelet state be
+     * loaded without replaying the delta history before the checkpoint.
+     *
+     * @param snapshot the wavelet state at a delta boundary which has already
+     *        been appended to this history.
+     * @throws PersistenceException if anything goes wrong with the underlying
+     *         storage.
+     */
+    void storeSnapshotCheckpoint(WaveletSnapshot snapshot) throws PersistenceException;
+
+    /**
+     * @return the most recently stored snapshot checkpoint, or null if there
+     *         is none.
+     * @throws IOException if the checkpoint can't be read or is corrupt, in
+     *         which case callers should fall back to replaying the deltas.
+     */
+    WaveletSnapshot getSnapshotCheckpoint() throws IOException;
   }
 }
@@ -18,25 +18,36 @@
 package org.waveprotocol.box.server.waveserver;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
 
 import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.common.SnapshotSerializer;
 import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.util.ImmutableWaveletSnapshot;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.model.document.operation.DocOp;
 import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.InvalidIdException;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.BlipOperation;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.version.HashedVersionFactory;
 import org.waveprotocol.wave.model.version.HashedVersionFactoryImpl;
+import org.waveprotocol.wave.model.wave.InvalidParticipantAddress;
+import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
@@ -44,26 +55,40 @@ import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Simplistic {@link DeltaStore}-backed wavelet state implementation
- * which keeps the entire delta history in memory.
+ * {@link DeltaStore}-backed wavelet state implementation which keeps a recent
+ * tail of the delta history in memory.
  *
- * TODO(soren): only keep in memory what's not persisted
+ * All deltas which haven't been persisted yet are resident, and so are up to
+ * a configured number of the most recent persisted ones. Older deltas are read
+ * from the delta store when requested, through a {@link DeltaHistoryCache}
+ * shared by all wavelets.
  *
- * TODO(soren): rewire this class to be backed by {@link WaveletStore} and
- * read the snapshot from there instead of computing it in the
- * DeltaStoreBasedWaveletState constructor
+ * The snapshot is loaded from the newest snapshot checkpoint in the delta
+ * store, if there is a usable one, and only the deltas after it are replayed.
+ * New checkpoints are stored after persisting deltas, as decided by a
+ * {@link SnapshotCheckpointPolicy}.
  *
- * TODO(soren): refine the persist() logic to make it batch successive
- * writes to storage, when write latency exceeds the intervals between
- * calls to persist()
+ * Late client deltas are transformed against the resident deltas composed in
+ * power-of-two version segments (see {@link ComposedDeltaHistory}), which are
+ * cached unless disabled.
+ *
+ * Readers which don't hold the wavelet's lock are given immutable snapshots
+ * (see {@link ImmutableWaveletSnapshot}), each taken from the previous one
+ * with the document operations applied since, so that only the documents
+ * which changed are recomposed.
+ *
+ * A persist task appends all the deltas up to its version which aren't yet
+ * persisted, so the writes queued behind a slow one are done as one batch.
  *
  * @author soren@google.com (Soren Lassen)
  */
@@ -77,13 +102,24 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   private static final HashedVersionFactory HASH_FACTORY =
       new HashedVersionFactoryImpl(URI_CODEC);
 
-  private static final Function<WaveletDeltaRecord, TransformedWaveletDelta> TRANSFORMED =
-      new Function<WaveletDeltaRecord, TransformedWaveletDelta>() {
-        @Override
-        public TransformedWaveletDelta apply(WaveletDeltaRecord record) {
-          return record.getTransformedDelta();
-        }
-      };
+  /**
+   * Most document operations kept for the next immutable snapshot. Beyond
+   * this, the next one is taken from scratch rather than from the previous one.
+   */
+  private static final int MAX_PENDING_DOCUMENT_OPS = 1000;
+
+  /**
+   * Creates a new delta store based state which keeps its entire delta history
+   * in memory and doesn't store snapshot checkpoints.
+   *
+   * @see #create(DeltaStore.DeltasAccess, Executor, SnapshotCheckpointPolicy,
+   *      DeltaHistoryCache, int, boolean)
+   */
+  public static DeltaStoreBasedWaveletState create(DeltaStore.DeltasAccess deltasAccess,
+      Executor persistExecutor) throws PersistenceException {
+    return create(deltasAccess, persistExecutor, SnapshotCheckpointPolicy.NEVER,
+        new DeltaHistoryCache(0), Integer.MAX_VALUE, true);
+  }
 
   /**
    * Creates a new delta store based state.
@@ -93,26 +129,45 @@ class DeltaStoreBasedWaveletState implements WaveletState {
    *
    * @param deltasAccess delta store accessor
    * @param persistExecutor executor for making persistence calls
+   * @param checkpointPolicy decides when to store snapshot checkpoints
+   * @param historyCache cache for deltas which aren't resident
+   * @param historyWindow number of persisted deltas to keep resident
+   * @param cacheComposedSegments whether to cache composed segments of the
+   *        resident deltas
    * @return a state initialized from the deltas
    * @throws PersistenceException if a failure occurs while reading or
    *         processing stored deltas
    */
   public static DeltaStoreBasedWaveletState create(DeltaStore.DeltasAccess deltasAccess,
-      Executor persistExecutor) throws PersistenceException {
-    // Note that the logic in persist() depends on persistExecutor being single-threaded.
-    // TODO(soren): finesse the logic in persist() so it
-    // doesn't require it to be single-threaded, because it would be useful to be
-    // able to use a shared executor with a thread-count set to the appropriate level
-    // of write parallelism for the storage subsystem.
+      Executor persistExecutor, SnapshotCheckpointPolicy checkpointPolicy,
+      DeltaHistoryCache historyCache, int historyWindow, boolean cacheComposedSegments)
+      throws PersistenceException {
+    // Note that the logic in persist() depends on persistExecutor running one
+    // task at a time for this state. A serial executor over a shared pool
+    // (see SerialExecutorPool) lets the pool size set the write parallelism.
     if (deltasAccess.isEmpty()) {
       return new DeltaStoreBasedWaveletState(deltasAccess, ImmutableList.<WaveletDeltaRecord>of(),
-          null, persistExecutor);
+          null, persistExecutor, checkpointPolicy, historyCache, historyWindow,
+          cacheComposedSegments);
     } else {
       try {
-        ImmutableList<WaveletDeltaRecord> deltas = readAll(deltasAccess);
-        WaveletData snapshot = WaveletDataUtil.buildWaveletFromDeltas(deltasAccess.getWaveletName(),
-            Iterators.transform(deltas.iterator(), TRANSFORMED));
-        return new DeltaStoreBasedWaveletState(deltasAccess, deltas, snapshot, persistExecutor);
+        LinkedList<WaveletDeltaRecord> tail = Lists.newLinkedList();
+        WaveletData snapshot = buildWaveletFromCheckpoint(deltasAccess);
+        if (snapshot != null) {
+          try {
+            replay(deltasAccess, snapshot, tail, historyWindow);
+          } catch (OperationException e) {
+            LOG.warning("Failed to apply deltas to snapshot checkpoint of "
+                + deltasAccess.getWaveletName() + ", replaying all deltas", e);
+            snapshot = null;
+            tail.clear();
+          }
+        }
+        if (snapshot == null) {
+          snapshot = replay(deltasAccess, null, tail, historyWindow);
+        }
+        return new DeltaStoreBasedWaveletState(deltasAccess, tail, snapshot, persistExecutor,
+            checkpointPolicy, historyCache, historyWindow, cacheComposedSegments);
       } catch (IOException e) {
         throw new PersistenceException("Failed to read stored deltas", e);
       } catch (OperationException e) {
@@ -122,20 +177,83 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   }
 
   /**
-   * Reads all deltas from
+   * Applies the stored deltas after the given wavelet state to it, or builds
+   * the wavelet state from all the stored deltas if it is null. Only the last
+   * {@code historyWindow} deltas are kept in memory, in {@code tail}.
+   *
+   * @return the wavelet state at the end version of the stored deltas
    */
-  private static ImmutableList<WaveletDeltaRecord> readAll(WaveletDeltaRecordReader reader)
-      throws IOException{
+  private static WaveletData replay(WaveletDeltaRecordReader reader, WaveletData wavelet,
+      LinkedList<WaveletDeltaRecord> tail, int historyWindow)
+      throws IOException, OperationException {
     Preconditions.checkArgument(!reader.isEmpty());
-    ImmutableList.Builder<WaveletDeltaRecord> result = ImmutableList.builder();
     HashedVersion endVersion = reader.getEndVersion();
-    long version = 0;
+    long version = (wavelet == null) ? 0 : wavelet.getVersion();
     while (version < endVersion.getVersion()) {
       WaveletDeltaRecord delta = reader.getDelta(version);
-      result.add(delta);
+      if (delta == null) {
+        throw new IOException("No delta at version " + version + " of "
+            + reader.getWaveletName());
+      }
+      if (wavelet == null) {
+        wavelet = WaveletDataUtil.buildWaveletFromFirstDelta(reader.getWaveletName(),
+            delta.getTransformedDelta());
+      } else {
+        WaveletDataUtil.applyWaveletDelta(delta.getTransformedDelta(), wavelet);
+      }
+      tail.add(delta);
+      if (tail.size() > historyWindow) {
+        tail.removeFirst();
+      }
       version = delta.getResultingVersion().getVersion();
     }
-    return result.build();
+    return wavelet;
+  }
+
+  /**
+   * Reads the wavelet state from the stored snapshot checkpoint.
+   *
+   * @return the wavelet state at the checkpoint, or null if there is no
+   *         checkpoint or it can't be used, in which case all deltas should be
+   *         replayed instead
+   */
+  private static WaveletData buildWaveletFromCheckpoint(DeltaStore.DeltasAccess deltasAccess) {
+    WaveletName waveletName = deltasAccess.getWaveletName();
+    try {
+      WaveletSnapshot checkpoint = deltasAccess.getSnapshotCheckpoint();
+      if (checkpoint == null) {
+        return null;
+      }
+      HashedVersion checkpointVersion =
+          CoreWaveletOperationSerializer.deserialize(checkpoint.getVersion());
+      WaveletDeltaRecord lastDelta =
+          deltasAccess.getDeltaByEndVersion(checkpointVersion.getVersion());
+      if (lastDelta == null || !lastDelta.getResultingVersion().equals(checkpointVersion)) {
+        LOG.warning("Snapshot checkpoint of " + waveletName + " at " + checkpointVersion
+            + " matches no stored delta, replaying all deltas");
+        return null;
+      }
+      WaveletData wavelet = SnapshotSerializer.deserializeWavelet(checkpoint, waveletName.waveId);
+      if (!wavelet.getWaveletId().equals(waveletName.waveletId)) {
+        LOG.warning("Snapshot checkpoint of " + waveletName + " is for wavelet "
+            + wavelet.getWaveletId() + ", replaying all deltas");
+        return null;
+      }
+      return wavelet;
+    } catch (IOException e) {
+      LOG.warning("Failed to read snapshot checkpoint of " + waveletName
+          + ", replaying all deltas", e);
+    } catch (InvalidIdException e) {
+      LOG.warning("Corrupt snapshot checkpoint of " + waveletName + ", replaying all deltas", e);
+    } catch (InvalidParticipantAddress e) {
+      LOG.warning("Corrupt snapshot checkpoint of " + waveletName + ", replaying all deltas", e);
+    } catch (OperationException e) {
+      LOG.warning("Corrupt snapshot checkpoint of " + waveletName + ", replaying all deltas", e);
+    } catch (RuntimeException e) {
+      LOG.warning("Failed to load snapshot checkpoint of " + waveletName
+          + ", replaying all deltas", e);
+    }
+    return null;
   }
 
   /**
@@ -151,20 +269,57 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   }
 
   private final Executor persistExecutor;
+  private final SnapshotCheckpointPolicy checkpointPolicy;
+  private final DeltaHistoryCache historyCache;
+  private final int historyWindow;
   private final HashedVersion versionZero;
+
+  /**
+   * Delta store accessor. Historical deltas are read from it while the
+   * persist task appends, without waiting for the appends to be synced.
+   */
   private final DeltaStore.DeltasAccess deltasAccess;
 
-  /** Keyed by appliedAtVersion. */
+  /**
+   * Resident applied deltas, keyed by appliedAtVersion. Concurrent because
+   * the persist task reads unpersisted deltas while new ones are appended.
+   */
   private final NavigableMap<HashedVersion, ByteStringMessage<ProtocolAppliedWaveletDelta>>
-      appliedDeltas = Maps.newTreeMap();
+      appliedDeltas =
+          new ConcurrentSkipListMap<HashedVersion, ByteStringMessage<ProtocolAppliedWaveletDelta>>();
 
-  /** Keyed by appliedAtVersion. */
+  /** Resident transformed deltas, keyed by appliedAtVersion. */
   private final NavigableMap<HashedVersion, TransformedWaveletDelta> transformedDeltas =
-      Maps.newTreeMap();
+      new ConcurrentSkipListMap<HashedVersion, TransformedWaveletDelta>();
+
+  /** Composed segments of the resident transformed deltas. */
+  private final ComposedDeltaHistory composedHistory;
+
+  /** Approximate size of the resident deltas. */
+  private long residentBytes = 0;
+
+  /** Number of resident deltas reported to the history cache, zeroed on close. */
+  private int reportedResidentCount = 0;
 
   /** Is null if the wavelet state is empty. */
   private WaveletData snapshot;
 
+  /**
+   * Latest immutable snapshot taken, or null if none has been taken since the
+   * state was loaded or the pending document operations overflowed. Guarded
+   * by this.
+   */
+  private ImmutableWaveletSnapshot immutableSnapshot;
+
+  /**
+   * Operations applied to each document changed since the immutable snapshot.
+   * Guarded by this.
+   */
+  private final Map<String, List<DocOp>> pendingDocumentOps = Maps.newHashMap();
+
+  /** Number of operations in pendingDocumentOps. Guarded by this. */
+  private int pendingDocumentOpCount = 0;
+
   /**
    * Last version persisted with a call to persist(), or null if never called.
    * It's an atomic reference so we can set in one thread (which
@@ -173,26 +328,47 @@ class DeltaStoreBasedWaveletState implements WaveletState {
    */
   private final AtomicReference<HashedVersion> lastPersistedVersion;
 
+  /**
+   * Serialized snapshot waiting to be stored as a checkpoint once its version
+   * has been persisted, or null. Set by appendDelta() and cleared by the
+   * persist task.
+   */
+  private final AtomicReference<WaveletSnapshot> pendingCheckpoint =
+      new AtomicReference<WaveletSnapshot>();
+
+  /** Number of deltas appended since the last checkpoint was taken. */
+  private long deltasSinceCheckpoint = 0;
+
+  /** Number of applied delta bytes appended since the last checkpoint was taken. */
+  private long bytesSinceCheckpoint = 0;
+
   /**
    * Constructs a wavelet state with the given deltas and snapshot.
-   * The deltas must be the contents of deltasAccess, and they
-   * must be contiguous from version zero.
-   * The snapshot must be the composition of the deltas, or null if there
-   * are no deltas. The constructed object takes ownership of the
+   * The deltas must be a contiguous tail of the contents of deltasAccess,
+   * ending at its end version.
+   * The snapshot must be the composition of all the stored deltas, or null if
+   * there are none. The constructed object takes ownership of the
    * snapshot and will mutate it if appendDelta() is called.
    */
   @VisibleForTesting
   DeltaStoreBasedWaveletState(DeltaStore.DeltasAccess deltasAccess,
-      List<WaveletDeltaRecord> deltas, WaveletData snapshot, Executor persistExecutor) {
-    Preconditions.checkArgument(deltasAccess.isEmpty() == deltas.isEmpty());
-    Preconditions.checkArgument(deltas.isEmpty() == (snapshot == null));
+      List<WaveletDeltaRecord> deltas, WaveletData snapshot, Executor persistExecutor,
+      SnapshotCheckpointPolicy checkpointPolicy, DeltaHistoryCache historyCache,
+      int historyWindow, boolean cacheComposedSegments) {
+    Preconditions.checkArgument(deltasAccess.isEmpty() == (snapshot == null));
+    Preconditions.checkArgument(deltas.isEmpty() || deltas.get(deltas.size() - 1)
+        .getResultingVersion().equals(deltasAccess.getEndVersion()));
+    Preconditions.checkArgument(historyWindow >= 0, "Negative history window %s", historyWindow);
     this.persistExecutor = persistExecutor;
+    this.checkpointPolicy = checkpointPolicy;
+    this.historyCache = historyCache;
+    this.historyWindow = historyWindow;
     this.versionZero = HASH_FACTORY.createVersionZero(deltasAccess.getWaveletName());
     this.deltasAccess = deltasAccess;
+    this.composedHistory = new ComposedDeltaHistory(transformedDeltas, cacheComposedSegments);
     for (WaveletDeltaRecord delta : deltas) {
-      HashedVersion hashedVersion = delta.getAppliedAtVersion();
-      appliedDeltas.put(hashedVersion, delta.getAppliedDelta());
-      transformedDeltas.put(hashedVersion, delta.getTransformedDelta());
+      addResidentDelta(delta.getAppliedAtVersion(), delta.getTransformedDelta(),
+          delta.getAppliedDelta());
     }
     this.snapshot = snapshot;
     this.lastPersistedVersion = new AtomicReference<HashedVersion>(deltasAccess.getEndVersion());
@@ -208,6 +384,22 @@ class DeltaStoreBasedWaveletState implements WaveletState {
     return snapshot;
   }
 
+  @Override
+  public synchronized ImmutableWaveletSnapshot getImmutableSnapshot() {
+    if (snapshot == null) {
+      return null;
+    }
+    if (immutableSnapshot == null) {
+      immutableSnapshot = ImmutableWaveletSnapshot.of(snapshot);
+    } else if (!immutableSnapshot.getHashedVersion().equals(snapshot.getHashedVersion())) {
+      immutableSnapshot =
+          ImmutableWaveletSnapshot.of(snapshot, immutableSnapshot, pendingDocumentOps);
+    }
+    pendingDocumentOps.clear();
+    pendingDocumentOpCount = 0;
+    return immutableSnapshot;
+  }
+
   @Override
   public HashedVersion getCurrentVersion() {
     return (snapshot == null) ? versionZero : snapshot.getHashedVersion();
@@ -227,29 +419,25 @@ class DeltaStoreBasedWaveletState implements WaveletState {
       return null;
     } else if (version == snapshot.getVersion()) {
       return snapshot.getHashedVersion();
-    } else {
+    } else if (version >= getFirstResidentVersion()) {
       Map.Entry<HashedVersion, TransformedWaveletDelta> entry = lookup(transformedDeltas, version);
       return (entry == null) ? null : entry.getKey();
+    } else {
+      WaveletDeltaRecord delta = getStoredDelta(version);
+      return (delta == null) ? null : delta.getAppliedAtVersion();
     }
   }
 
   @Override
   public TransformedWaveletDelta getTransformedDelta(HashedVersion beginVersion) {
-    return transformedDeltas.get(beginVersion);
+    WaveletDeltaRecord delta = getDelta(beginVersion);
+    return (delta == null) ? null : delta.getTransformedDelta();
   }
 
   @Override
   public TransformedWaveletDelta getTransformedDeltaByEndVersion(HashedVersion endVersion) {
-    Preconditions.checkArgument(endVersion.getVersion() > 0,
-        "end version %s is not positive", endVersion);
-    if (snapshot == null) {
-      return null;
-    } else if (endVersion.equals(snapshot.getHashedVersion())) {
-      return transformedDeltas.lastEntry().getValue();
-    } else {
-      TransformedWaveletDelta delta = transformedDeltas.lowerEntry(endVersion).getValue();
-      return delta.getResultingVersion().equals(endVersion) ? delta : null;
-    }
+    WaveletDeltaRecord delta = getDeltaByEndVersion(endVersion);
+    return (delta == null) ? null : delta.getTransformedDelta();
   }
 
   @Override
@@ -257,6 +445,17 @@ class DeltaStoreBasedWaveletState implements WaveletState {
       HashedVersion endVersion) {
     Preconditions.checkArgument(startVersion.getVersion() < endVersion.getVersion(),
         "Start version %s should be smaller than end version %s", startVersion, endVersion);
+    if (startVersion.getVersion() < getFirstResidentVersion()) {
+      List<WaveletDeltaRecord> deltas = getDeltaHistory(startVersion, endVersion);
+      if (deltas == null) {
+        return null;
+      }
+      List<TransformedWaveletDelta> transformed = Lists.newArrayListWithCapacity(deltas.size());
+      for (WaveletDeltaRecord delta : deltas) {
+        transformed.add(delta.getTransformedDelta());
+      }
+      return DeltaSequence.of(transformed);
+    }
     NavigableMap<HashedVersion, TransformedWaveletDelta> deltas =
         transformedDeltas.subMap(startVersion, true, endVersion, false);
     return
@@ -267,30 +466,91 @@ class DeltaStoreBasedWaveletState implements WaveletState {
         : null;
   }
 
+  @Override
+  public ComposedServerOps getComposedDeltaHistory(HashedVersion startVersion,
+      HashedVersion endVersion) {
+    Preconditions.checkArgument(startVersion.getVersion() < endVersion.getVersion(),
+        "Start version %s should be smaller than end version %s", startVersion, endVersion);
+    ComposedDeltaHistory history = getComposedHistory(startVersion, endVersion);
+    return (history == null) ? null
+        : history.compose(startVersion.getVersion(), endVersion.getVersion());
+  }
+
+  @Override
+  public HashedVersion findDeltaByAuthor(HashedVersion startVersion, HashedVersion endVersion,
+      ParticipantId author) {
+    Preconditions.checkArgument(startVersion.getVersion() < endVersion.getVersion(),
+        "Start version %s should be smaller than end version %s", startVersion, endVersion);
+    ComposedDeltaHistory history = getComposedHistory(startVersion, endVersion);
+    if (history == null) {
+      return null;
+    }
+    long version =
+        history.findDeltaByAuthor(startVersion.getVersion(), endVersion.getVersion(), author);
+    return (version == endVersion.getVersion()) ? endVersion : getHashedVersion(version);
+  }
+
   @Override
   public ByteStringMessage<ProtocolAppliedWaveletDelta> getAppliedDelta(
       HashedVersion beginVersion) {
-    return appliedDeltas.get(beginVersion);
+    WaveletDeltaRecord delta = getDelta(beginVersion);
+    return (delta == null) ? null : delta.getAppliedDelta();
   }
 
   @Override
   public ByteStringMessage<ProtocolAppliedWaveletDelta> getAppliedDeltaByEndVersion(
       HashedVersion endVersion) {
-    Preconditions.checkArgument(endVersion.getVersion() > 0,
-        "end version %s is not positive", endVersion);
-    return isDeltaBoundary(endVersion) ? appliedDeltas.lowerEntry(endVersion).getValue() : null;
-
+    WaveletDeltaRecord delta = getDeltaByEndVersion(endVersion);
+    return (delta == null) ? null : delta.getAppliedDelta();
   }
 
   @Override
   public Collection<ByteStringMessage<ProtocolAppliedWaveletDelta>> getAppliedDeltaHistory(
       HashedVersion startVersion, HashedVersion endVersion) {
     Preconditions.checkArgument(startVersion.getVersion() < endVersion.getVersion());
+    if (startVersion.getVersion() < getFirstResidentVersion()) {
+      List<WaveletDeltaRecord> deltas = getDeltaHistory(startVersion, endVersion);
+      if (deltas == null) {
+        return null;
+      }
+      List<ByteStringMessage<ProtocolAppliedWaveletDelta>> applied =
+          Lists.newArrayListWithCapacity(deltas.size());
+      for (WaveletDeltaRecord delta : deltas) {
+        applied.add(delta.getAppliedDelta());
+      }
+      return applied;
+    }
     return (isDeltaBoundary(startVersion) && isDeltaBoundary(endVersion))
         ? appliedDeltas.subMap(startVersion, endVersion).values()
         : null;
   }
 
+  @Override
+  public List<ByteStringMessage<ProtocolAppliedWaveletDelta>> getAppliedDeltaHistory(
+      HashedVersion startVersion, HashedVersion endVersion, long byteLimit, int deltaLimit) {
+    Preconditions.checkArgument(startVersion.getVersion() < endVersion.getVersion());
+    if (!isDeltaBoundary(endVersion)) {
+      return null;
+    }
+    List<ByteStringMessage<ProtocolAppliedWaveletDelta>> applied = Lists.newArrayList();
+    long bytes = 0;
+    HashedVersion version = startVersion;
+    while (version.getVersion() < endVersion.getVersion()) {
+      WaveletDeltaRecord delta = getDelta(version);
+      if (delta == null) {
+        return null;
+      }
+      long size = delta.getAppliedDelta().getByteString().size();
+      if (!applied.isEmpty() && (applied.size() >= deltaLimit || bytes + size > byteLimit)) {
+        return applied;
+      }
+      applied.add(delta.getAppliedDelta());
+      bytes += size;
+      version = delta.getResultingVersion();
+    }
+    return version.equals(endVersion) ? applied : null;
+  }
+
   @Override
   public void appendDelta(HashedVersion appliedAtVersion,
       TransformedWaveletDelta transformedDelta,
@@ -308,8 +568,20 @@ class DeltaStoreBasedWaveletState implements WaveletState {
     }
 
     // Now that we built the snapshot without any exceptions, we record the delta.
-    transformedDeltas.put(appliedAtVersion, transformedDelta);
-    appliedDeltas.put(appliedAtVersion, appliedDelta);
+    addResidentDelta(appliedAtVersion, transformedDelta, appliedDelta);
+    addPendingDocumentOps(transformedDelta);
+    evictPersistedDeltas();
+
+    deltasSinceCheckpoint++;
+    bytesSinceCheckpoint += appliedDelta.getByteString().size();
+    if (checkpointPolicy.isCheckpointDue(deltasSinceCheckpoint, bytesSinceCheckpoint)) {
+      // Serialize now, while the snapshot is at this version; it is stored
+      // once the deltas up to this version have been persisted.
+      pendingCheckpoint.set(
+          SnapshotSerializer.serializeWavelet(snapshot, snapshot.getHashedVersion()));
+      deltasSinceCheckpoint = 0;
+      bytesSinceCheckpoint = 0;
+    }
   }
 
   @Override
@@ -319,8 +591,8 @@ class DeltaStoreBasedWaveletState implements WaveletState {
     Preconditions.checkArgument(isDeltaBoundary(version),
         "Version to persist %s matches no delta", version);
 
-    // The following logic relies on persistExecutor being single-threaded,
-    // so no two tasks execute in parallel.
+    // The following logic relies on persistExecutor being serial, so no two
+    // tasks for this state execute in parallel.
     ListenableFutureTask<Void> resultTask = new ListenableFutureTask<Void>(
         new Callable<Void>() {
           @Override
@@ -331,6 +603,8 @@ class DeltaStoreBasedWaveletState implements WaveletState {
                   + " smaller than last persisted version " + last);
               // done, version is already persisted
             } else {
+              // Deltas aren't evicted until they are persisted, so they are
+              // all resident.
               ImmutableList.Builder<WaveletDeltaRecord> deltas = ImmutableList.builder();
               HashedVersion v = (last == null) ? versionZero : last;
               do {
@@ -345,6 +619,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
                   "lastPersistedVersion changed while we were writing to storage");
               lastPersistedVersion.set(version);
             }
+            storePendingCheckpoint(version);
             return null;
           }
         });
@@ -352,12 +627,246 @@ class DeltaStoreBasedWaveletState implements WaveletState {
     return resultTask;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * The delta store access is closed on the persist executor, after any
+   * pending persist tasks have completed.
+   */
   @Override
   public void close() {
+    historyCache.addResidentDeltas(deltasAccess.getWaveletName(), -reportedResidentCount,
+        -residentBytes);
+    reportedResidentCount = 0;
+    residentBytes = 0;
+    persistExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          deltasAccess.close();
+        } catch (IOException e) {
+          LOG.warning("Failed to close deltas of " + getWaveletName(), e);
+        }
+      }
+    });
+  }
+
+  /** @return the number of deltas kept in memory. */
+  public int getResidentDeltaCount() {
+    return transformedDeltas.size();
+  }
+
+  /** @return the approximate size of the deltas kept in memory. */
+  public long getResidentDeltaBytes() {
+    return residentBytes;
+  }
+
+  /** @return the number of cached composed segments of the resident deltas. */
+  @VisibleForTesting
+  int getComposedSegmentCount() {
+    return composedHistory.getCachedSegmentCount();
+  }
+
+  /**
+   * Stores the pending snapshot checkpoint, if its deltas are persisted. Runs
+   * on the persist executor. Failures are logged rather than propagated since
+   * checkpoints only speed up loading.
+   */
+  private void storePendingCheckpoint(HashedVersion persistedVersion) {
+    WaveletSnapshot checkpoint = pendingCheckpoint.get();
+    if (checkpoint == null
+        || checkpoint.getVersion().getVersion() > persistedVersion.getVersion()) {
+      return;
+    }
+    try {
+      deltasAccess.storeSnapshotCheckpoint(checkpoint);
+    } catch (PersistenceException e) {
+      LOG.warning("Failed to store snapshot checkpoint of " + getWaveletName() + " at version "
+          + checkpoint.getVersion().getVersion(), e);
+    }
+    pendingCheckpoint.compareAndSet(checkpoint, null);
+  }
+
+  /**
+   * Records the document operations of an appended delta for the next
+   * immutable snapshot, if one has been taken. Blip operations which don't
+   * change content still change the document's metadata, so they are
+   * recorded as changing the document.
+   */
+  private synchronized void addPendingDocumentOps(TransformedWaveletDelta delta) {
+    if (immutableSnapshot == null) {
+      return;
+    }
+    for (WaveletOperation op : delta) {
+      if (op instanceof WaveletBlipOperation) {
+        WaveletBlipOperation waveletBlipOp = (WaveletBlipOperation) op;
+        List<DocOp> ops = pendingDocumentOps.get(waveletBlipOp.getBlipId());
+        if (ops == null) {
+          ops = Lists.newArrayList();
+          pendingDocumentOps.put(waveletBlipOp.getBlipId(), ops);
+        }
+        BlipOperation blipOp = waveletBlipOp.getBlipOp();
+        if (blipOp instanceof BlipContentOperation) {
+          ops.add(((BlipContentOperation) blipOp).getContentOp());
+          pendingDocumentOpCount++;
+        }
+      }
+    }
+    if (pendingDocumentOpCount > MAX_PENDING_DOCUMENT_OPS) {
+      immutableSnapshot = null;
+      pendingDocumentOps.clear();
+      pendingDocumentOpCount = 0;
+    }
+  }
+
+  private void addResidentDelta(HashedVersion appliedAtVersion,
+      TransformedWaveletDelta transformedDelta,
+      ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta) {
+    transformedDeltas.put(appliedAtVersion, transformedDelta);
+    appliedDeltas.put(appliedAtVersion, appliedDelta);
+    long size = DeltaHistoryCache.sizeOf(appliedDelta);
+    residentBytes += size;
+    reportedResidentCount++;
+    historyCache.addResidentDeltas(deltasAccess.getWaveletName(), 1, size);
+  }
+
+  /**
+   * Drops the oldest resident deltas beyond the history window, as long as
+   * they have been persisted.
+   */
+  private void evictPersistedDeltas() {
+    HashedVersion persisted = lastPersistedVersion.get();
+    if (persisted == null) {
+      return;
+    }
+    boolean evicted = false;
+    while (transformedDeltas.size() > historyWindow
+        && transformedDeltas.firstKey().getVersion() < persisted.getVersion()) {
+      HashedVersion version = transformedDeltas.firstKey();
+      transformedDeltas.remove(version);
+      long size = DeltaHistoryCache.sizeOf(appliedDeltas.remove(version));
+      residentBytes -= size;
+      reportedResidentCount--;
+      historyCache.addResidentDeltas(deltasAccess.getWaveletName(), -1, -size);
+      evicted = true;
+    }
+    if (evicted) {
+      composedHistory.evictBefore(getFirstResidentVersion());
+    }
+  }
+
+  /**
+   * @return the version of the oldest resident delta, or the current version
+   *         if no deltas are resident. Deltas before it are read from storage.
+   */
+  private long getFirstResidentVersion() {
+    return transformedDeltas.isEmpty()
+        ? getCurrentVersion().getVersion() : transformedDeltas.firstKey().getVersion();
+  }
+
+  /**
+   * @return the resident composed history, if the deltas between the versions
+   *         are resident, otherwise an uncached history of the deltas read
+   *         from storage; or null if either version isn't at a delta boundary
+   */
+  private ComposedDeltaHistory getComposedHistory(HashedVersion startVersion,
+      HashedVersion endVersion) {
+    if (startVersion.getVersion() < getFirstResidentVersion()) {
+      DeltaSequence deltas = getTransformedDeltaHistory(startVersion, endVersion);
+      return (deltas == null) ? null : ComposedDeltaHistory.of(startVersion, deltas);
+    }
+    return (isDeltaBoundary(startVersion) && isDeltaBoundary(endVersion))
+        ? composedHistory : null;
+  }
+
+  /**
+   * @return the delta applied at the given version, if any, otherwise null.
+   */
+  private WaveletDeltaRecord getDelta(HashedVersion beginVersion) {
+    if (beginVersion.getVersion() >= getFirstResidentVersion()) {
+      TransformedWaveletDelta transformed = transformedDeltas.get(beginVersion);
+      return (transformed == null) ? null
+          : new WaveletDeltaRecord(beginVersion, appliedDeltas.get(beginVersion), transformed);
+    } else {
+      WaveletDeltaRecord delta = getStoredDelta(beginVersion.getVersion());
+      return (delta != null && delta.getAppliedAtVersion().equals(beginVersion)) ? delta : null;
+    }
+  }
+
+  /**
+   * @return the delta with the given resulting version, if any, otherwise null.
+   */
+  private WaveletDeltaRecord getDeltaByEndVersion(HashedVersion endVersion) {
+    Preconditions.checkArgument(endVersion.getVersion() > 0,
+        "end version %s is not positive", endVersion);
+    if (snapshot == null) {
+      return null;
+    } else if (endVersion.getVersion() > getFirstResidentVersion()) {
+      Map.Entry<HashedVersion, TransformedWaveletDelta> entry =
+          transformedDeltas.lowerEntry(endVersion);
+      return (entry != null && entry.getValue().getResultingVersion().equals(endVersion))
+          ? new WaveletDeltaRecord(entry.getKey(), appliedDeltas.get(entry.getKey()),
+              entry.getValue())
+          : null;
+    } else {
+      WaveletDeltaRecord delta;
+      try {
+        delta = deltasAccess.getDeltaByEndVersion(endVersion.getVersion());
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+      if (delta == null || !delta.getResultingVersion().equals(endVersion)) {
+        return null;
+      }
+      historyCache.put(getWaveletName(), delta);
+      return delta;
+    }
+  }
+
+  /**
+   * @return the deltas from the one applied at the given start version until
+   *         the one resulting in the given end version, if these exist,
+   *         otherwise null.
+   */
+  private List<WaveletDeltaRecord> getDeltaHistory(HashedVersion startVersion,
+      HashedVersion endVersion) {
+    List<WaveletDeltaRecord> deltas = Lists.newArrayList();
+    HashedVersion version = startVersion;
+    while (version.getVersion() < endVersion.getVersion()) {
+      WaveletDeltaRecord delta = getDelta(version);
+      if (delta == null) {
+        return null;
+      }
+      deltas.add(delta);
+      version = delta.getResultingVersion();
+    }
+    return version.equals(endVersion) ? deltas : null;
+  }
+
+  /**
+   * Reads a delta which isn't resident from the history cache or storage.
+   *
+   * @return the stored delta applied at the given version, if any, otherwise
+   *         null.
+   * @throws RuntimeIOException if the delta store fails
+   */
+  private WaveletDeltaRecord getStoredDelta(long version) {
+    WaveletDeltaRecord delta = historyCache.get(getWaveletName(), version);
+    if (delta == null) {
+      try {
+        delta = deltasAccess.getDelta(version);
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+      if (delta != null) {
+        historyCache.put(getWaveletName(), delta);
+      }
+    }
+    return delta;
   }
 
   private boolean isDeltaBoundary(HashedVersion version) {
     Preconditions.checkNotNull(version, "version is null");
-    return version.equals(getCurrentVersion()) || transformedDeltas.containsKey(version);
+    return version.equals(getCurrentVersion()) || getDelta(version) != null;
   }
 }
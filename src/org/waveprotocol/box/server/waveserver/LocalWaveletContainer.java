@@ -64,6 +64,9 @@ interface LocalWaveletContainer extends WaveletContainer {
    *
    * @param hashedVersion to check whether in the history of the delta
    * @param signerId of the signer
+   * @throws WaveletClosedException if the container has been evicted.
+   * @throws WaveletStateException if the wavelet isn't usable.
    */
-  boolean isDeltaSigner(HashedVersion hashedVersion, ByteString signerId);
+  boolean isDeltaSigner(HashedVersion hashedVersion, ByteString signerId)
+      throws WaveletStateException;
 }
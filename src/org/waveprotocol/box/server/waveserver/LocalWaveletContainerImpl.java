@@ -42,6 +42,8 @@ import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.util.concurrent.Executor;
+
 /**
  * A local wavelet may be updated by submits. The local wavelet will perform
  * operational transformation on the submitted delta and assign it the latest
@@ -77,8 +79,9 @@ class LocalWaveletContainerImpl extends WaveletContainerImpl implements LocalWav
   }
 
   public LocalWaveletContainerImpl(WaveletName waveletName, WaveletNotificationSubscriber notifiee,
-      ListenableFuture<? extends WaveletState> waveletStateFuture, String waveDomain) {
-    super(waveletName, notifiee, waveletStateFuture, waveDomain);
+      ListenableFuture<? extends WaveletState> waveletStateFuture, String waveDomain,
+      Executor storageContinuationExecutor) {
+    super(waveletName, notifiee, waveletStateFuture, waveDomain, storageContinuationExecutor);
   }
 
   @Override
@@ -185,16 +188,24 @@ class LocalWaveletContainerImpl extends WaveletContainerImpl implements LocalWav
   }
 
   @Override
-  public boolean isDeltaSigner(HashedVersion version, ByteString signerId) {
-    ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta =
-        lookupAppliedDeltaByEndVersion(version);
-    if (appliedDelta == null) {
+  public boolean isDeltaSigner(HashedVersion version, ByteString signerId)
+      throws WaveletStateException {
+    awaitLoad();
+    acquireReadLock();
+    try {
+      checkStateOk();
+      ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta =
+          lookupAppliedDeltaByEndVersion(version);
+      if (appliedDelta == null) {
+        return false;
+      }
+      ProtocolSignedDelta signedDelta = appliedDelta.getMessage().getSignedOriginalDelta();
+      for (ProtocolSignature signature : signedDelta.getSignatureList()) {
+        if (signature.getSignerId().equals(signerId)) return true;
+      }
       return false;
+    } finally {
+      releaseReadLock();
     }
-    ProtocolSignedDelta signedDelta = appliedDelta.getMessage().getSignedOriginalDelta();
-    for (ProtocolSignature signature : signedDelta.getSignatureList()) {
-      if (signature.getSignerId().equals(signerId)) return true;
-    }
-    return false;
   }
 }
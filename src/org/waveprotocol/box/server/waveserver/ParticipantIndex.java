@@ -0,0 +1,493 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import org.waveprotocol.box.server.persistence.file.FileUtils;
+import org.waveprotocol.wave.model.id.InvalidIdException;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.InvalidParticipantAddress;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An inverted index from participants to the wavelets they participate in,
+ * with the sort keys of each indexed wavelet, so that search can rank
+ * wavelets without loading them.
+ *
+ * The index is built once from storage and is then kept up to date from the
+ * changes seen on the wave bus. It may optionally be backed by a journal
+ * file, so that a restarted server can load the index instead of reading
+ * every wavelet in the store. The journal starts with a full listing of the
+ * index, written when it is built or loaded, followed by one line per change.
+ * It is rewritten as a listing once the changes outnumber the listed entries.
+ * A journal which cannot be parsed is discarded and the index rebuilt.
+ *
+ * Participant changes are journalled as they are made. A wavelet's last
+ * modified time changes with every delta, so changes of it alone are
+ * journalled in batches: with the next participant change, at most
+ * {@link #KEYS_LOG_INTERVAL_MS} after the first unjournalled one, or by
+ * {@link #flush()}. A restarted server may see older modified times.
+ *
+ * Users of the index must tolerate stale entries: a change may reach the
+ * journal before the delta which caused it reaches the delta store.
+ */
+public class ParticipantIndex {
+
+  /**
+   * The sort keys of a wavelet.
+   */
+  public static final class WaveletKeys {
+    private final ParticipantId creator;
+    private final long creationTime;
+    private final long lastModifiedTime;
+
+    public WaveletKeys(ParticipantId creator, long creationTime, long lastModifiedTime) {
+      Preconditions.checkNotNull(creator, "Null creator");
+      this.creator = creator;
+      this.creationTime = creationTime;
+      this.lastModifiedTime = lastModifiedTime;
+    }
+
+    public ParticipantId getCreator() {
+      return creator;
+    }
+
+    public long getCreationTime() {
+      return creationTime;
+    }
+
+    public long getLastModifiedTime() {
+      return lastModifiedTime;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof WaveletKeys)) {
+        return false;
+      }
+      WaveletKeys other = (WaveletKeys) o;
+      return creator.equals(other.creator) && creationTime == other.creationTime
+          && lastModifiedTime == other.lastModifiedTime;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(creator, creationTime, lastModifiedTime);
+    }
+  }
+
+  private static final Log LOG = Log.get(ParticipantIndex.class);
+
+  /** First line of a journal file. */
+  private static final String HEADER = "wave-participant-index 3";
+
+  private static final char ADD = '+';
+  private static final char REMOVE = '-';
+  private static final char KEYS = 'k';
+
+  /** The fewest changes after which the journal is rewritten. */
+  private static final int MIN_COMPACTION_CHANGES = 10000;
+
+  /** The longest a change of last modified time waits to be journalled. */
+  private static final long KEYS_LOG_INTERVAL_MS = 60 * 1000;
+
+  private final Map<ParticipantId, Multimap<WaveId, WaveletId>> index = Maps.newHashMap();
+
+  private final Map<WaveletName, WaveletKeys> keys = Maps.newHashMap();
+
+  /** The journal file, or null if the index is kept in memory only. */
+  private final File journalFile;
+
+  /** Appends to the journal file, open once the index is built. */
+  private Writer journal;
+
+  private boolean built = false;
+
+  /** The number of entries in the listing of the journal. */
+  private int listedEntries;
+
+  /** The number of changes appended to the journal since the listing. */
+  private int journalChanges;
+
+  /** The wavelets whose last modified time changed but isn't journalled. */
+  private final Set<WaveletName> unloggedKeys = Sets.newHashSet();
+
+  /** When the first of {@link #unloggedKeys} changed. */
+  private long firstUnloggedKeysTime;
+
+  /** Creates an empty index kept in memory only. */
+  public ParticipantIndex() {
+    this.journalFile = null;
+  }
+
+  /**
+   * Creates an index backed by the given journal file. If the file holds a
+   * valid journal the index is loaded from it and is already built.
+   *
+   * @throws IOException if the journal cannot be rewritten
+   */
+  public ParticipantIndex(File journalFile) throws IOException {
+    this.journalFile = journalFile;
+    if (journalFile.exists()) {
+      if (readJournal()) {
+        LOG.info("Loaded participant index for " + index.size() + " participants from "
+            + journalFile);
+        markBuilt();
+      } else {
+        index.clear();
+      }
+    }
+  }
+
+  /**
+   * @return true if the index reflects all stored wavelets, false if it still
+   *         needs to be built with {@link #markBuilt()}.
+   */
+  public synchronized boolean isBuilt() {
+    return built;
+  }
+
+  /**
+   * Marks the index as complete, once all stored wavelets have been added to
+   * it, and writes a fresh journal if the index has a journal file.
+   *
+   * @throws IOException if writing the journal fails
+   */
+  public synchronized void markBuilt() throws IOException {
+    if (journalFile != null) {
+      writeJournal();
+    }
+    built = true;
+  }
+
+  /**
+   * Adds a wavelet to the participant's entry.
+   *
+   * @return true if the wavelet was not already indexed for the participant
+   */
+  public synchronized boolean add(ParticipantId participant, WaveletName waveletName) {
+    Multimap<WaveId, WaveletId> wavelets = index.get(participant);
+    if (wavelets == null) {
+      wavelets = HashMultimap.create();
+      index.put(participant, wavelets);
+    }
+    boolean added = wavelets.put(waveletName.waveId, waveletName.waveletId);
+    if (added) {
+      logChange(formatEntry(ADD, participant, waveletName));
+    }
+    return added;
+  }
+
+  /**
+   * Removes a wavelet from the participant's entry.
+   *
+   * @return true if the wavelet was indexed for the participant
+   */
+  public synchronized boolean remove(ParticipantId participant, WaveletName waveletName) {
+    Multimap<WaveId, WaveletId> wavelets = index.get(participant);
+    if (wavelets == null || !wavelets.remove(waveletName.waveId, waveletName.waveletId)) {
+      return false;
+    }
+    if (wavelets.isEmpty()) {
+      index.remove(participant);
+    }
+    logChange(formatEntry(REMOVE, participant, waveletName));
+    return true;
+  }
+
+  /**
+   * Records the sort keys of a wavelet.
+   */
+  public synchronized void putKeys(WaveletName waveletName, WaveletKeys waveletKeys) {
+    WaveletKeys previous = keys.put(waveletName, waveletKeys);
+    if (waveletKeys.equals(previous)) {
+      return;
+    }
+    if (previous != null && previous.creator.equals(waveletKeys.creator)
+        && previous.creationTime == waveletKeys.creationTime) {
+      if (journal != null) {
+        long now = System.currentTimeMillis();
+        if (unloggedKeys.isEmpty()) {
+          firstUnloggedKeysTime = now;
+        }
+        unloggedKeys.add(waveletName);
+        if (now - firstUnloggedKeysTime >= KEYS_LOG_INTERVAL_MS) {
+          logChange(null);
+        }
+      }
+    } else {
+      logChange(formatKeys(waveletName, waveletKeys));
+    }
+  }
+
+  /**
+   * @return the sort keys of those of the given wavelets which have them.
+   */
+  public synchronized ImmutableMap<WaveletName, WaveletKeys> getKeys(
+      Iterable<WaveletName> waveletNames) {
+    ImmutableMap.Builder<WaveletName, WaveletKeys> result = ImmutableMap.builder();
+    for (WaveletName waveletName : waveletNames) {
+      WaveletKeys waveletKeys = keys.get(waveletName);
+      if (waveletKeys != null) {
+        result.put(waveletName, waveletKeys);
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * @return a copy of the wavelets indexed for the participant, by wave.
+   */
+  public synchronized ImmutableSetMultimap<WaveId, WaveletId> getWavelets(
+      ParticipantId participant) {
+    Multimap<WaveId, WaveletId> wavelets = index.get(participant);
+    return wavelets == null
+        ? ImmutableSetMultimap.<WaveId, WaveletId>of()
+        : ImmutableSetMultimap.copyOf(wavelets);
+  }
+
+  /**
+   * Journals the last modified times not yet journalled.
+   */
+  public synchronized void flush() {
+    if (!unloggedKeys.isEmpty()) {
+      logChange(null);
+    }
+  }
+
+  /**
+   * Journals the last modified times not yet journalled, and closes the
+   * journal. The index must not be changed afterwards.
+   */
+  public synchronized void close() throws IOException {
+    flush();
+    closeJournal();
+  }
+
+  private void closeJournal() throws IOException {
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
+  }
+
+  /**
+   * Appends a change to the journal, if the index is built and has one,
+   * after the keys of the wavelets whose last modified times aren't
+   * journalled yet; or rewrites the journal if the changes outnumber the
+   * listed entries. A failed write closes the journal and deletes it, so that
+   * the index is rebuilt on the next start rather than loaded with missing
+   * changes.
+   *
+   * @param entry the change, or null to journal only the unjournalled keys
+   */
+  private void logChange(String entry) {
+    if (journal == null) {
+      return;
+    }
+    try {
+      journalChanges += unloggedKeys.size() + (entry != null ? 1 : 0);
+      if (journalChanges > Math.max(listedEntries, MIN_COMPACTION_CHANGES)) {
+        writeJournal();
+      } else {
+        for (WaveletName waveletName : unloggedKeys) {
+          journal.write(formatKeys(waveletName, keys.get(waveletName)));
+        }
+        unloggedKeys.clear();
+        if (entry != null) {
+          journal.write(entry);
+        }
+        journal.flush();
+      }
+    } catch (IOException e) {
+      LOG.severe("Failed to write participant index journal " + journalFile
+          + ", it will be rebuilt on the next start", e);
+      if (journal != null) {
+        try {
+          journal.close();
+        } catch (IOException e2) {
+          // Already failed.
+        }
+        journal = null;
+      }
+      journalFile.delete();
+    }
+  }
+
+  /**
+   * Reads the journal file into the index.
+   *
+   * @return false if the journal is not valid
+   */
+  private boolean readJournal() {
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(
+          new InputStreamReader(new FileInputStream(journalFile), Charsets.UTF_8));
+      if (!HEADER.equals(reader.readLine())) {
+        LOG.warning("Participant index journal " + journalFile + " has no valid header");
+        return false;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!readEntry(line)) {
+          LOG.warning("Participant index journal " + journalFile + " has a bad entry: " + line);
+          return false;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      LOG.warning("Failed to read participant index journal " + journalFile, e);
+      return false;
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          LOG.warning("Failed to close participant index journal " + journalFile, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies one journal line to the index.
+   *
+   * @return false if the line cannot be parsed
+   */
+  private boolean readEntry(String line) {
+    String[] parts = line.split(" ");
+    if (parts.length == 5 && parts[0].length() == 1 && parts[0].charAt(0) == KEYS) {
+      return readKeys(parts);
+    }
+    if (parts.length != 3 || parts[0].length() != 1) {
+      return false;
+    }
+    ParticipantId participant;
+    WaveletName waveletName;
+    try {
+      participant = ParticipantId.of(parts[1]);
+      waveletName = ModernIdSerialiser.INSTANCE.deserialiseWaveletName(parts[2]);
+    } catch (InvalidParticipantAddress e) {
+      return false;
+    } catch (InvalidIdException e) {
+      return false;
+    }
+    switch (parts[0].charAt(0)) {
+      case ADD:
+        add(participant, waveletName);
+        return true;
+      case REMOVE:
+        remove(participant, waveletName);
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Applies a journal line with the sort keys of a wavelet.
+   *
+   * @return false if the line cannot be parsed
+   */
+  private boolean readKeys(String[] parts) {
+    try {
+      putKeys(ModernIdSerialiser.INSTANCE.deserialiseWaveletName(parts[1]),
+          new WaveletKeys(ParticipantId.of(parts[2]), Long.parseLong(parts[3]),
+              Long.parseLong(parts[4])));
+      return true;
+    } catch (InvalidIdException e) {
+      return false;
+    } catch (InvalidParticipantAddress e) {
+      return false;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Replaces the journal file with a listing of the current index, and opens
+   * it for appending further changes.
+   */
+  private void writeJournal() throws IOException {
+    closeJournal();
+    File tempFile = new File(journalFile.getPath() + ".tmp");
+    Writer writer = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(tempFile), Charsets.UTF_8));
+    int entries = 0;
+    try {
+      writer.write(HEADER + "\n");
+      for (Map.Entry<ParticipantId, Multimap<WaveId, WaveletId>> entry : index.entrySet()) {
+        for (Map.Entry<WaveId, WaveletId> wavelet : entry.getValue().entries()) {
+          writer.write(formatEntry(ADD, entry.getKey(),
+              WaveletName.of(wavelet.getKey(), wavelet.getValue())));
+          entries++;
+        }
+      }
+      for (Map.Entry<WaveletName, WaveletKeys> entry : keys.entrySet()) {
+        writer.write(formatKeys(entry.getKey(), entry.getValue()));
+        entries++;
+      }
+    } finally {
+      writer.close();
+    }
+    FileUtils.renameOverwriting(tempFile, journalFile);
+    journal = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(journalFile, true), Charsets.UTF_8));
+    listedEntries = entries;
+    journalChanges = 0;
+    unloggedKeys.clear();
+  }
+
+  private static String formatEntry(char change, ParticipantId participant,
+      WaveletName waveletName) {
+    return change + " " + participant.getAddress() + " "
+        + ModernIdSerialiser.INSTANCE.serialiseWaveletName(waveletName) + "\n";
+  }
+
+  private static String formatKeys(WaveletName waveletName, WaveletKeys waveletKeys) {
+    return KEYS + " " + ModernIdSerialiser.INSTANCE.serialiseWaveletName(waveletName) + " "
+        + waveletKeys.getCreator().getAddress() + " " + waveletKeys.getCreationTime() + " "
+        + waveletKeys.getLastModifiedTime() + "\n";
+  }
+}
@@ -52,13 +52,18 @@ interface RemoteWaveletContainer extends WaveletContainer {
    * @param certificateManager for verifying signatures and requesting signer info
    * @return future which is set after the deltas are applied to the local
    *         state or a failure occurs.
-   *         Any failure is reported as a {@link FederationException}.
+   *         Any failure is reported as a {@link FederationException}, apart
+   *         from a {@link WaveletClosedException} if the container has been
+   *         evicted, in which case the deltas weren't applied.
    */
   ListenableFuture<Void> update(List<ByteString> deltas, String domain,
       WaveletFederationProvider federationProvider, CertificateManager certificateManager);
 
   /**
    * Is called when a commit notice is received from the wavelet host.
+   *
+   * @throws WaveletClosedException if the container has been evicted.
+   * @throws WaveletStateException if the wavelet isn't usable.
    */
-  void commit(HashedVersion version);
+  void commit(HashedVersion version) throws WaveletStateException;
 }
@@ -52,6 +52,7 @@ import org.waveprotocol.wave.util.logging.Log;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -62,6 +63,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 class RemoteWaveletContainerImpl extends WaveletContainerImpl implements RemoteWaveletContainer {
   private static final Log LOG = Log.get(RemoteWaveletContainerImpl.class);
 
+  /**
+   * Length limit, in bytes, of each page of history requested to fill a gap
+   * before pending deltas. Each page is applied before the next is requested,
+   * from the version it leaves the wavelet at.
+   */
+  private static final long HISTORY_PAGE_LENGTH_LIMIT = 256 * 1024;
+
   /**
    * Stores all pending deltas for this wavelet, whose insertions would cause
    * discontiguous blocks of deltas. This must only be accessed under writeLock.
@@ -69,16 +77,34 @@ class RemoteWaveletContainerImpl extends WaveletContainerImpl implements RemoteW
   private final NavigableMap<HashedVersion, ByteStringMessage<ProtocolAppliedWaveletDelta>>
       pendingDeltas = Maps.newTreeMap();
 
+  /**
+   * Results of updates whose deltas are pending until the history before them
+   * is received. This must only be accessed under writeLock.
+   */
+  private final List<SettableFuture<Void>> updatesAwaitingHistory = Lists.newArrayList();
+
+  /**
+   * Whether a page of history has been requested and not yet applied. This
+   * must only be accessed under writeLock.
+   */
+  private boolean historyRequestPending = false;
+
   /**
    * Create a new RemoteWaveletContainerImpl. Just pass through to the parent
    * constructor.
    */
   public RemoteWaveletContainerImpl(WaveletName waveletName, WaveletNotificationSubscriber notifiee,
-      ListenableFuture<? extends WaveletState> waveletStateFuture) {
+      ListenableFuture<? extends WaveletState> waveletStateFuture,
+      Executor storageContinuationExecutor) {
     // We pass here null for waveDomain because you have to be explicit
     // participant on remote wavelet to have access permission.
     // TODO (Yuri Z.): check if the assumption above is correct.
-    super(waveletName, notifiee, waveletStateFuture, null);
+    super(waveletName, notifiee, waveletStateFuture, null, storageContinuationExecutor);
+  }
+
+  @Override
+  protected boolean hasPendingWork() {
+    return !pendingDeltas.isEmpty();
   }
 
   @Override
@@ -86,23 +112,31 @@ class RemoteWaveletContainerImpl extends WaveletContainerImpl implements RemoteW
       final String domain, final WaveletFederationProvider federationProvider,
       final CertificateManager certificateManager) {
     SettableFuture<Void> futureResult = SettableFuture.create();
-    internalUpdate(deltas, domain, federationProvider, certificateManager, futureResult);
+    internalUpdate(deltas, domain, federationProvider, certificateManager, false, futureResult);
     return futureResult;
   }
 
   @Override
-  public void commit(HashedVersion version) {
+  public void commit(HashedVersion version) throws WaveletStateException {
+    awaitLoad();
     acquireWriteLock();
     try {
+      checkStateOk();
       persist(version, ImmutableSet.<String>of());
     } finally {
       releaseWriteLock();
     }
   }
 
+  /**
+   * Applies deltas received in an update or in a page of requested history.
+   *
+   * @param historyPage whether the deltas are a page of requested history
+   */
   private void internalUpdate(final List<ByteString> deltas,
       final String domain, final WaveletFederationProvider federationProvider,
-      final CertificateManager certificateManager, final SettableFuture<Void> futureResult) {
+      final CertificateManager certificateManager, final boolean historyPage,
+      final SettableFuture<Void> futureResult) {
     // Turn raw serialised ByteStrings in to a more useful representation
     final List<ByteStringMessage<ProtocolAppliedWaveletDelta>> appliedDeltas = Lists.newArrayList();
     for (ByteString delta : deltas) {
@@ -110,14 +144,18 @@ class RemoteWaveletContainerImpl extends WaveletContainerImpl implements RemoteW
         appliedDeltas.add(ByteStringMessage.parseProtocolAppliedWaveletDelta(delta));
       } catch (InvalidProtocolBufferException e) {
         LOG.info("Invalid applied delta protobuf for incoming " + getWaveletName(), e);
+        FederationException failure = new FederationException(
+            FederationErrors.badRequest("Invalid applied delta protocol buffer"));
         acquireWriteLock();
         try {
           markStateCorrupted();
+          if (historyPage) {
+            failUpdatesAwaitingHistory(failure);
+          }
         } finally {
           releaseWriteLock();
         }
-        futureResult.setException(new FederationException(
-            FederationErrors.badRequest("Invalid applied delta protocol buffer")));
+        futureResult.setException(failure);
         return;
       }
     }
@@ -129,8 +167,8 @@ class RemoteWaveletContainerImpl extends WaveletContainerImpl implements RemoteW
       @Override
       public void run() {
         if (numSignerInfoPrefetched.decrementAndGet() == 0) {
-          internalUpdateAfterSignerInfoRetrieval(
-              appliedDeltas, domain, federationProvider, certificateManager, futureResult);
+          internalUpdateAfterSignerInfoRetrieval(appliedDeltas, domain, federationProvider,
+              certificateManager, historyPage, futureResult);
         }
       }
     };
@@ -172,28 +210,41 @@ class RemoteWaveletContainerImpl extends WaveletContainerImpl implements RemoteW
   private void internalUpdateAfterSignerInfoRetrieval(
       List<ByteStringMessage<ProtocolAppliedWaveletDelta>> appliedDeltas,
       final String domain, final WaveletFederationProvider federationProvider,
-      final CertificateManager certificateManager, final SettableFuture<Void> futureResult) {
+      final CertificateManager certificateManager, boolean historyPage,
+      final SettableFuture<Void> futureResult) {
     LOG.info("Passed signer info check, now applying all " + appliedDeltas.size() + " deltas");
+
+    // Verify signatures of all deltas, in parallel and before taking the lock,
+    // so that readers of the wavelet don't wait for the verification.
+    List<ProtocolSignedDelta> signedDeltas = Lists.newArrayListWithCapacity(appliedDeltas.size());
+    for (ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta : appliedDeltas) {
+      signedDeltas.add(appliedDelta.getMessage().getSignedOriginalDelta());
+    }
+    String verificationFailure = null;
+    try {
+      certificateManager.verifyDeltas(signedDeltas);
+    } catch (SignatureException e) {
+      LOG.warning("Verification failure for " + domain + " incoming " + getWaveletName(), e);
+      verificationFailure = "Verification failure";
+    } catch (UnknownSignerException e) {
+      LOG.severe("Unknown signer for " + domain + " incoming " + getWaveletName() +
+          ", this is BAD! We were supposed to have prefetched it!", e);
+      verificationFailure = "Unknown signer";
+    }
+
     acquireWriteLock();
     try {
+      if (historyPage) {
+        historyRequestPending = false;
+      }
+      if (verificationFailure != null) {
+        throw new WaveServerException(verificationFailure);
+      }
       checkStateOk(); // TODO(soren): if CORRUPTED, throw away wavelet and start again
-      HashedVersion expectedVersion = getCurrentVersion();
+      HashedVersion versionBefore = getCurrentVersion();
+      HashedVersion expectedVersion = versionBefore;
       boolean haveRequestedHistory = false;
 
-      // Verify signatures of all deltas
-      for (ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta : appliedDeltas) {
-        try {
-          certificateManager.verifyDelta(appliedDelta.getMessage().getSignedOriginalDelta());
-        } catch (SignatureException e) {
-          LOG.warning("Verification failure for " + domain + " incoming " + getWaveletName(), e);
-          throw new WaveServerException("Verification failure", e);
-        } catch (UnknownSignerException e) {
-          LOG.severe("Unknown signer for " + domain + " incoming " + getWaveletName() +
-              ", this is BAD! We were supposed to have prefetched it!", e);
-          throw new WaveServerException("Unknown signer", e);
-        }
-      }
-
       // Insert all available deltas into pendingDeltas.
       for (ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta : appliedDeltas) {
         LOG.info("Delta incoming: " + appliedDelta);
@@ -233,29 +284,45 @@ class RemoteWaveletContainerImpl extends WaveletContainerImpl implements RemoteW
           LOG.info("Missing history from " + expectedVersion.getVersion() + "-"
               + appliedAt.getVersion() + ", requesting from upstream for " + getWaveletName());
 
-          if (federationProvider != null) {
-            // TODO: only one request history should be pending at any one time?
-            // We should derive a new one whenever the active one is finished,
-            // based on the current state of pendingDeltas.
+          if (historyPage && expectedVersion.equals(versionBefore)) {
+            // Requesting the same page again wouldn't get any further.
+            throw new WaveServerException("History response didn't advance the wavelet from "
+                + expectedVersion.getVersion());
+          }
+          if (historyRequestPending) {
+            LOG.info("History already requested for " + getWaveletName());
+            haveRequestedHistory = true;
+          } else if (federationProvider != null) {
+            // Only one page is requested at a time; the next is derived from
+            // the version this page leaves the wavelet at, once it's applied.
+            historyRequestPending = true;
             federationProvider.requestHistory(getWaveletName(), domain,
                 CoreWaveletOperationSerializer.serialize(expectedVersion),
                 CoreWaveletOperationSerializer.serialize(appliedAt),
-                -1,
+                HISTORY_PAGE_LENGTH_LIMIT,
                 new HistoryResponseListener() {
                     @Override
                     public void onFailure(FederationError error) {
                       LOG.severe("Callback failure: " + error);
+                      acquireWriteLock();
+                      try {
+                        historyRequestPending = false;
+                        failUpdatesAwaitingHistory(new FederationException(error));
+                      } finally {
+                        releaseWriteLock();
+                      }
                     }
 
                     @Override
                     public void onSuccess(List<ByteString> deltaList,
                         ProtocolHashedVersion lastCommittedVersion, long versionTruncatedAt) {
                       LOG.info("Got response callback: " + getWaveletName() + ", lcv "
-                          + lastCommittedVersion + " deltaList length = " + deltaList.size());
+                          + lastCommittedVersion + " deltaList length = " + deltaList.size()
+                          + ", truncated at " + versionTruncatedAt);
 
                       // Try updating again with the new history
                       internalUpdate(deltaList, domain, federationProvider, certificateManager,
-                          futureResult);
+                          true, SettableFuture.<Void>create());
                     }
                 });
             haveRequestedHistory = true;
@@ -307,25 +374,59 @@ class RemoteWaveletContainerImpl extends WaveletContainerImpl implements RemoteW
         pendingDeltas.remove(appliedAt);
       }
 
+      // Deltas applied from a page of history are notified straight away, so
+      // they aren't held in memory until the whole history is received.
+      ImmutableList<WaveletDeltaRecord> applied = resultingDeltas.build();
       if (!haveRequestedHistory) {
-        notifyOfDeltas(resultingDeltas.build(), ImmutableSet.<String>of());
+        notifyOfDeltas(applied, ImmutableSet.<String>of());
         futureResult.set(null);
-      } else if (!resultingDeltas.build().isEmpty()) {
-        LOG.severe("History requested but non-empty result, non-contiguous deltas?");
+        for (SettableFuture<Void> awaitingHistory : updatesAwaitingHistory) {
+          awaitingHistory.set(null);
+        }
+        updatesAwaitingHistory.clear();
       } else {
-        LOG.info("History requested, ignoring callback");
+        if (!applied.isEmpty()) {
+          notifyOfDeltas(applied, ImmutableSet.<String>of());
+        }
+        if (historyPage) {
+          LOG.info("History page applied, up to version " + expectedVersion.getVersion());
+        } else {
+          updatesAwaitingHistory.add(futureResult);
+        }
       }
+    } catch (WaveletClosedException e) {
+      // Reported as is, so that the caller looks the wavelet up again.
+      if (historyPage) {
+        failUpdatesAwaitingHistory(
+            new FederationException(FederationErrors.internalServerError(e.getMessage())));
+      }
+      futureResult.setException(e);
     } catch (WaveServerException e) {
       LOG.warning("Update failure", e);
       // TODO(soren): make everyone throw FederationException instead
       // of WaveServerException so we don't have to translate between them here
-      futureResult.setException(
-          new FederationException(FederationErrors.badRequest(e.getMessage())));
+      FederationException failure =
+          new FederationException(FederationErrors.badRequest(e.getMessage()));
+      if (historyPage) {
+        failUpdatesAwaitingHistory(failure);
+      }
+      futureResult.setException(failure);
     } finally {
       releaseWriteLock();
     }
   }
 
+  /**
+   * Fails the updates waiting for history which won't be received. Must be
+   * called with writelock held.
+   */
+  private void failUpdatesAwaitingHistory(FederationException failure) {
+    for (SettableFuture<Void> awaitingHistory : updatesAwaitingHistory) {
+      awaitingHistory.setException(failure);
+    }
+    updatesAwaitingHistory.clear();
+  }
+
   /**
    * Apply a serialised applied delta to a remote wavelet. This assumes the
    * caller has validated that the delta is at the correct version and can be
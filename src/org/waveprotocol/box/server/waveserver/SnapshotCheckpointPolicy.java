@@ -0,0 +1,62 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides when a {@link DeltaStoreBasedWaveletState} stores a snapshot
+ * checkpoint of its wavelet in the {@link DeltaStore}.
+ *
+ * A checkpoint is due once either the number of deltas or the number of
+ * applied delta bytes appended since the last checkpoint reaches its
+ * interval. An interval of zero disables that trigger.
+ */
+public final class SnapshotCheckpointPolicy {
+
+  /** A policy which never stores checkpoints. */
+  public static final SnapshotCheckpointPolicy NEVER = new SnapshotCheckpointPolicy(0, 0);
+
+  private final int deltaInterval;
+  private final long byteInterval;
+
+  /**
+   * @param deltaInterval number of deltas between checkpoints, or 0
+   * @param byteInterval number of applied delta bytes between checkpoints, or 0
+   */
+  public SnapshotCheckpointPolicy(int deltaInterval, long byteInterval) {
+    Preconditions.checkArgument(deltaInterval >= 0, "Negative delta interval %s", deltaInterval);
+    Preconditions.checkArgument(byteInterval >= 0, "Negative byte interval %s", byteInterval);
+    this.deltaInterval = deltaInterval;
+    this.byteInterval = byteInterval;
+  }
+
+  /**
+   * @return true if a checkpoint should be stored after the given number of
+   *         deltas and bytes have been appended since the last one.
+   */
+  public boolean isCheckpointDue(long deltasSinceCheckpoint, long bytesSinceCheckpoint) {
+    return (deltaInterval > 0 && deltasSinceCheckpoint >= deltaInterval)
+        || (byteInterval > 0 && bytesSinceCheckpoint >= byteInterval);
+  }
+
+  @Override
+  public String toString() {
+    return "SnapshotCheckpointPolicy(deltas=" + deltaInterval + ", bytes=" + byteInterval + ")";
+  }
+}
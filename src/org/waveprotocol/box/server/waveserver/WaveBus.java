@@ -30,13 +30,16 @@ import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 public interface WaveBus {
   /**
    * Receives wave bus messages.
+   *
+   * The messages of each wavelet arrive in order, but not necessarily on the
+   * thread which changed the wavelet, nor before it changes again.
    */
   interface Subscriber {
     /**
      * Notifies the subscriber of a wavelet update.
      *
-     * @param wavelet the state of the wavelet after the deltas have
-     *        been applied
+     * @param wavelet an immutable snapshot of the wavelet after the deltas
+     *        have been applied
      * @param deltas deltas applied to the wavelet
      */
     void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas);
@@ -19,8 +19,8 @@ package org.waveprotocol.box.server.waveserver;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.collect.HashMultimap;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
@@ -39,8 +39,8 @@ import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.common.ExceptionalIterator;
 import org.waveprotocol.box.server.CoreSettings;
 import org.waveprotocol.box.server.persistence.PersistenceException;
-import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.box.server.waveserver.WaveBus.Subscriber;
+import org.waveprotocol.wave.model.id.IdConstants;
 import org.waveprotocol.wave.model.id.IdUtil;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
@@ -48,6 +48,7 @@ import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.wave.AddParticipant;
 import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.InvalidParticipantAddress;
@@ -59,19 +60,32 @@ import org.waveprotocol.wave.model.wave.data.WaveViewData;
 import org.waveprotocol.wave.model.wave.data.impl.WaveViewDataImpl;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A collection of wavelets, local and remote, held in memory.
@@ -102,144 +116,144 @@ public class WaveMap implements SearchProvider {
      */
     static final ParticipantId UNKNOWN_CREATOR = ParticipantId.ofUnsafe("unknown@example.com");
 
+    /**
+     * A wave matching a search, with the sort keys of its matching wavelets
+     * taken from the participant index. The wavelets are only loaded if the
+     * wave is on the page of results returned.
+     */
+    static final class SearchHit {
+      final WaveId waveId;
+      final List<WaveletId> waveletIds = Lists.newArrayList();
+      /** Latest LMT of the conversational wavelets, or -1. */
+      long lmt = -1;
+      /** Latest creation time of the wavelets, or -1. */
+      long creationTime = -1;
+      /** Creator of the conversation root wavelet. */
+      ParticipantId creator = UNKNOWN_CREATOR;
+
+      SearchHit(WaveId waveId) {
+        this.waveId = waveId;
+      }
+
+      void add(WaveletId waveletId, ParticipantIndex.WaveletKeys keys) {
+        waveletIds.add(waveletId);
+        // Skip non conversational wavelets for the LMT.
+        if (IdUtil.isConversationalId(waveletId)) {
+          lmt = Math.max(lmt, keys.getLastModifiedTime());
+        }
+        creationTime = Math.max(creationTime, keys.getCreationTime());
+        if (IdUtil.isConversationRootWaveletId(waveletId)) {
+          creator = keys.getCreator();
+        }
+      }
+    }
+
     /** Sorts search result in ascending order by LMT. */
-    static final Comparator<WaveViewData> ASC_LMT_COMPARATOR = new Comparator<WaveViewData>() {
+    static final Comparator<SearchHit> ASC_LMT_COMPARATOR = new Comparator<SearchHit>() {
       @Override
-      public int compare(WaveViewData arg0, WaveViewData arg1) {
-        long lmt0 = computeLmt(arg0);
-        long lmt1 = computeLmt(arg1);
-        return Long.signum(lmt0 - lmt1);
-      }
-
-      private long computeLmt(WaveViewData wave) {
-        long lmt = -1;
-        for (ObservableWaveletData wavelet : wave.getWavelets()) {
-          // Skip non conversational wavelets.
-          if (!IdUtil.isConversationalId(wavelet.getWaveletId())) {
-            continue;
-          }
-          lmt = lmt < wavelet.getLastModifiedTime() ? wavelet.getLastModifiedTime() : lmt;
-        }
-        return lmt;
+      public int compare(SearchHit arg0, SearchHit arg1) {
+        return Long.signum(arg0.lmt - arg1.lmt);
       }
     };
 
     /** Sorts search result in descending order by LMT. */
-    static final Comparator<WaveViewData> DESC_LMT_COMPARATOR = new Comparator<WaveViewData>() {
+    static final Comparator<SearchHit> DESC_LMT_COMPARATOR = new Comparator<SearchHit>() {
       @Override
-      public int compare(WaveViewData arg0, WaveViewData arg1) {
+      public int compare(SearchHit arg0, SearchHit arg1) {
         return -ASC_LMT_COMPARATOR.compare(arg0, arg1);
       }
     };
 
     /** Sorts search result in ascending order by creation time. */
-    static final Comparator<WaveViewData> ASC_CREATED_COMPARATOR = new Comparator<WaveViewData>() {
+    static final Comparator<SearchHit> ASC_CREATED_COMPARATOR = new Comparator<SearchHit>() {
       @Override
-      public int compare(WaveViewData arg0, WaveViewData arg1) {
-        long time0 = computeCreatedTime(arg0);
-        long time1 = computeCreatedTime(arg1);
-        return Long.signum(time0 - time1);
-      }
-
-      private long computeCreatedTime(WaveViewData wave) {
-        long creationTime = -1;
-        for (ObservableWaveletData wavelet : wave.getWavelets()) {
-          creationTime =
-              creationTime < wavelet.getCreationTime() ? wavelet.getCreationTime() : creationTime;
-        }
-        return creationTime;
+      public int compare(SearchHit arg0, SearchHit arg1) {
+        return Long.signum(arg0.creationTime - arg1.creationTime);
       }
     };
 
     /** Sorts search result in descending order by creation time. */
-    static final Comparator<WaveViewData> DESC_CREATED_COMPARATOR = new Comparator<WaveViewData>() {
+    static final Comparator<SearchHit> DESC_CREATED_COMPARATOR = new Comparator<SearchHit>() {
       @Override
-      public int compare(WaveViewData arg0, WaveViewData arg1) {
+      public int compare(SearchHit arg0, SearchHit arg1) {
         return -ASC_CREATED_COMPARATOR.compare(arg0, arg1);
       }
     };
 
-    /** Sorts search result in ascending order by creator */
-    static final Comparator<WaveViewData> ASC_CREATOR_COMPARATOR = new Comparator<WaveViewData>() {
+    /**
+     * Sorts search result in ascending order by creator. Waves without a root
+     * wavelet compare with {@link #UNKNOWN_CREATOR}.
+     */
+    static final Comparator<SearchHit> ASC_CREATOR_COMPARATOR = new Comparator<SearchHit>() {
       @Override
-      public int compare(WaveViewData arg0, WaveViewData arg1) {
-        ParticipantId creator0 = computeCreator(arg0);
-        ParticipantId creator1 = computeCreator(arg1);
-        return creator0.compareTo(creator1);
-      }
-
-      private ParticipantId computeCreator(WaveViewData wave) {
-        for (ObservableWaveletData wavelet : wave.getWavelets()) {
-          if (IdUtil.isConversationRootWaveletId(wavelet.getWaveletId())) {
-            return wavelet.getCreator();
-          }
-        }
-        // If not found creator - compare with UNKNOWN_CREATOR;
-        return UNKNOWN_CREATOR;
+      public int compare(SearchHit arg0, SearchHit arg1) {
+        return arg0.creator.compareTo(arg1.creator);
       }
     };
 
     /** Sorts search result in descending order by creator */
-    static final Comparator<WaveViewData> DESC_CREATOR_COMPARATOR = new Comparator<WaveViewData>() {
+    static final Comparator<SearchHit> DESC_CREATOR_COMPARATOR = new Comparator<SearchHit>() {
       @Override
-      public int compare(WaveViewData arg0, WaveViewData arg1) {
+      public int compare(SearchHit arg0, SearchHit arg1) {
         return -ASC_CREATOR_COMPARATOR.compare(arg0, arg1);
       }
     };
 
     /** Sorts search result by WaveId. */
-    static final Comparator<WaveViewData> ID_COMPARATOR = new Comparator<WaveViewData>() {
+    static final Comparator<SearchHit> ID_COMPARATOR = new Comparator<SearchHit>() {
       @Override
-      public int compare(WaveViewData arg0, WaveViewData arg1) {
-        return arg0.getWaveId().compareTo(arg1.getWaveId());
+      public int compare(SearchHit arg0, SearchHit arg1) {
+        return arg0.waveId.compareTo(arg1.waveId);
       }
     };
 
     /**
      * Orders using {@link ASCENDING_DATE_COMPARATOR}.
      */
-    static final Ordering<WaveViewData> ASC_LMT_ORDERING = Ordering
+    static final Ordering<SearchHit> ASC_LMT_ORDERING = Ordering
         .from(QueryHelper.ASC_LMT_COMPARATOR);
 
     /**
      * Orders using {@link DESCENDING_DATE_COMPARATOR}.
      */
-    static final Ordering<WaveViewData> DESC_LMT_ORDERING = Ordering
+    static final Ordering<SearchHit> DESC_LMT_ORDERING = Ordering
         .from(QueryHelper.DESC_LMT_COMPARATOR);
 
     /**
      * Orders using {@link ASC_CREATED_COMPARATOR}.
      */
-    static final Ordering<WaveViewData> ASC_CREATED_ORDERING = Ordering
+    static final Ordering<SearchHit> ASC_CREATED_ORDERING = Ordering
         .from(QueryHelper.ASC_CREATED_COMPARATOR);
 
     /**
      * Orders using {@link DESC_CREATED_COMPARATOR}.
      */
-    static final Ordering<WaveViewData> DESC_CREATED_ORDERING = Ordering
+    static final Ordering<SearchHit> DESC_CREATED_ORDERING = Ordering
         .from(QueryHelper.DESC_CREATED_COMPARATOR);
 
     /**
      * Orders using {@link ASC_CREATOR_COMPARATOR}.
      */
-    static final Ordering<WaveViewData> ASC_CREATOR_ORDERING = Ordering
+    static final Ordering<SearchHit> ASC_CREATOR_ORDERING = Ordering
         .from(QueryHelper.ASC_CREATOR_COMPARATOR);
 
     /**
      * Orders using {@link DESC_CREATOR_COMPARATOR}.
      */
-    static final Ordering<WaveViewData> DESC_CREATOR_ORDERING = Ordering
+    static final Ordering<SearchHit> DESC_CREATOR_ORDERING = Ordering
         .from(QueryHelper.DESC_CREATOR_COMPARATOR);
 
     /** Default ordering is by LMT descending. */
-    static final Ordering<WaveViewData> DEFAULT_ORDERING = DESC_LMT_ORDERING;
+    static final Ordering<SearchHit> DEFAULT_ORDERING = DESC_LMT_ORDERING;
 
     /** Valid search query types. */
     enum TokenQueryType {
       IN("in"),
       ORDERBY("orderby"),
       WITH("with"),
-      CREATOR("creator");
+      CREATOR("creator"),
+      /** Free text and quoted phrases, which have no token. */
+      TEXT(null);
 
       final String token;
 
@@ -255,7 +269,9 @@ public class WaveMap implements SearchProvider {
         new HashMap<String, TokenQueryType>();
       static {
         for (TokenQueryType type : TokenQueryType.values()) {
-          reverseLookupMap.put(type.getToken(), type);
+          if (type.getToken() != null) {
+            reverseLookupMap.put(type.getToken(), type);
+          }
         }
       }
 
@@ -282,9 +298,9 @@ public class WaveMap implements SearchProvider {
       CREATORDESC("creatordesc", DESC_CREATOR_ORDERING);
 
       final String value;
-      final Ordering<WaveViewData> ordering;
+      final Ordering<SearchHit> ordering;
 
-      OrderByValueType(String value, Ordering<WaveViewData> ordering) {
+      OrderByValueType(String value, Ordering<SearchHit> ordering) {
         this.value = value;
         this.ordering = ordering;
       }
@@ -293,7 +309,7 @@ public class WaveMap implements SearchProvider {
         return value;
       }
 
-      Ordering<WaveViewData> getOrdering() {
+      Ordering<SearchHit> getOrdering() {
         return ordering;
       }
 
@@ -315,6 +331,10 @@ public class WaveMap implements SearchProvider {
       }
     }
     
+    /** A phrase in double quotes, which may be unterminated, or a word. */
+    private static final Pattern QUERY_TERM_PATTERN =
+        Pattern.compile("\"([^\"]*)\"?|[^\\s\"]+");
+
     private QueryHelper() {
 
     }
@@ -325,7 +345,9 @@ public class WaveMap implements SearchProvider {
     }
 
     /**
-     * Parses the search query.
+     * Parses the search query. Words without a token, including words with a
+     * colon after something other than a token, and phrases in double quotes,
+     * are collected as {@link TokenQueryType#TEXT}.
      *
      * @param query the query.
      * @return the result map with query tokens. Never returns null.
@@ -338,16 +360,29 @@ public class WaveMap implements SearchProvider {
       if (query.isEmpty()) {
         return Collections.emptyMap();
       }
-      String[] tokens = query.split("\\s+");
       Map<TokenQueryType, Set<String>> tokensMap = Maps.newEnumMap(TokenQueryType.class);
-      for (String token : tokens) {
-        String[] pair = token.split(":");
-        if (pair.length != 2 || !TokenQueryType.hasToken(pair[0])) {
-          String msg = "Invalid query param: " + token;
-          throw new InvalidQueryException(msg);
+      Matcher matcher = QUERY_TERM_PATTERN.matcher(query);
+      while (matcher.find()) {
+        String token = matcher.group();
+        TokenQueryType tokenType;
+        String tokenValue;
+        if (matcher.group(1) != null) {
+          tokenType = TokenQueryType.TEXT;
+          tokenValue = matcher.group(1);
+        } else if (token.indexOf(':') == -1
+            || !TokenQueryType.hasToken(token.substring(0, token.indexOf(':')))) {
+          // A word such as "10:30" or "http://..." whose prefix isn't a token.
+          tokenType = TokenQueryType.TEXT;
+          tokenValue = token;
+        } else {
+          String[] pair = token.split(":");
+          if (pair.length != 2) {
+            String msg = "Invalid query param: " + token;
+            throw new InvalidQueryException(msg);
+          }
+          tokenValue = pair[1];
+          tokenType = TokenQueryType.fromToken(pair[0]);
         }
-        String tokenValue = pair[1];
-        TokenQueryType tokenType = TokenQueryType.fromToken(pair[0]);
         // Verify the orderby param.
         if (tokenType.equals(TokenQueryType.ORDERBY)) {
           try {
@@ -400,14 +435,38 @@ public class WaveMap implements SearchProvider {
       return participants;
     }
 
+    /**
+     * Builds the phrases to look up in the content index. A word is a phrase
+     * of one term.
+     *
+     * @param queryParams the query params.
+     * @return the terms of each phrase, or an empty list if the query has no
+     *         text to match.
+     */
+    static List<List<String>> buildTextPhrases(
+        Map<QueryHelper.TokenQueryType, Set<String>> queryParams) {
+      Set<String> tokenSet = queryParams.get(QueryHelper.TokenQueryType.TEXT);
+      if (tokenSet == null) {
+        return Collections.emptyList();
+      }
+      List<List<String>> phrases = Lists.newArrayListWithCapacity(tokenSet.size());
+      for (String token : tokenSet) {
+        List<String> terms = ContentIndex.tokenize(token);
+        if (!terms.isEmpty()) {
+          phrases.add(terms);
+        }
+      }
+      return phrases;
+    }
+
     /**
      * Computes ordering for the search results. If none are specified - then
      * returns the default ordering. The resulting ordering is always compounded
      * with ordering by wave id for stability.
      */
-    static Ordering<WaveViewData> computeSorter(
+    static Ordering<SearchHit> computeSorter(
         Map<QueryHelper.TokenQueryType, Set<String>> queryParams) {
-      Ordering<WaveViewData> ordering = null;
+      Ordering<SearchHit> ordering = null;
       Set<String> orderBySet = queryParams.get(QueryHelper.TokenQueryType.ORDERBY);
       if (orderBySet != null) {
         for (String orderBy : orderBySet) {
@@ -457,9 +516,17 @@ public class WaveMap implements SearchProvider {
     private final WaveId waveId;
     /** Future providing already-existing wavelets in storage. */
     private final ListenableFuture<ImmutableSet<WaveletId>> lookedupWavelets;
+    /** Wavelets which were evicted from memory after the lookup. */
+    private final Set<WaveletId> evictedWavelets =
+        Collections.newSetFromMap(new ConcurrentHashMap<WaveletId, Boolean>());
     private final ConcurrentMap<WaveletId, LocalWaveletContainer> localWavelets;
     private final ConcurrentMap<WaveletId, RemoteWaveletContainer> remoteWavelets;
     private final WaveletNotificationSubscriber notifiee;
+    /**
+     * Whether the last wavelet container was evicted. A retired wave creates
+     * no more containers. Guarded by this.
+     */
+    private boolean retired = false;
 
     /**
      * Creates a wave. The {@code lookupWavelets} future is examined only when a
@@ -496,11 +563,51 @@ public class WaveMap implements SearchProvider {
     }
 
     public LocalWaveletContainer getOrCreateLocalWavelet(WaveletId waveletId) {
-      return localWavelets.get(waveletId);
+      return getOrCreateWavelet(waveletId, localWavelets);
     }
 
     public RemoteWaveletContainer getOrCreateRemoteWavelet(WaveletId waveletId) {
-      return remoteWavelets.get(waveletId);
+      return getOrCreateWavelet(waveletId, remoteWavelets);
+    }
+
+    /**
+     * Removes a closed wavelet container, so that the next access loads the
+     * wavelet into a new container. When the last container is removed the
+     * wave is retired, and must be dropped from the wave map.
+     *
+     * @return true if the wave was retired
+     */
+    public synchronized boolean evict(WaveletContainer wavelet) {
+      Preconditions.checkArgument(wavelet.isClosed(), "Wavelet not closed");
+      WaveletId waveletId = wavelet.getWaveletName().waveletId;
+      evictedWavelets.add(waveletId);
+      localWavelets.remove(waveletId, wavelet);
+      remoteWavelets.remove(waveletId, wavelet);
+      // The evicted wavelets are persisted, so a new lookup finds them.
+      retired = localWavelets.isEmpty() && remoteWavelets.isEmpty();
+      return retired;
+    }
+
+    /**
+     * @return true if the wave has been retired, in which case the accessors
+     *         return null and the wave must be looked up again.
+     */
+    public synchronized boolean isRetired() {
+      return retired;
+    }
+
+    private synchronized <T extends WaveletContainer> T getOrCreateWavelet(WaveletId waveletId,
+        ConcurrentMap<WaveletId, T> waveletsMap) {
+      if (retired) {
+        return null;
+      }
+      T wavelet = waveletsMap.get(waveletId);
+      if (wavelet.isClosed()) {
+        // Lost a race with eviction.
+        waveletsMap.remove(waveletId, wavelet);
+        wavelet = waveletsMap.get(waveletId);
+      }
+      return wavelet;
     }
 
     private <T extends WaveletContainer> T getWavelet(WaveletId waveletId,
@@ -517,14 +624,17 @@ public class WaveMap implements SearchProvider {
         throw new WaveletStateException(
             "Interrupted looking up wavelet " + WaveletName.of(waveId, waveletId), e);
       }
-      // Since waveletsMap is a computing map, we must call containsKey(waveletId)
-      // to tell if waveletId is mapped, we cannot test if get(waveletId) returns null.
-      if (!storedWavelets.contains(waveletId) && !waveletsMap.containsKey(waveletId)) {
-        return null;
-      } else {
-        T wavelet = waveletsMap.get(waveletId);
-        Preconditions.checkNotNull(wavelet, "computingMap returned null");
-        return wavelet;
+      synchronized (this) {
+        // Since waveletsMap is a computing map, we must call containsKey(waveletId)
+        // to tell if waveletId is mapped, we cannot test if get(waveletId) returns null.
+        if (retired || (!storedWavelets.contains(waveletId)
+            && !waveletsMap.containsKey(waveletId) && !evictedWavelets.contains(waveletId))) {
+          return null;
+        } else {
+          T wavelet = getOrCreateWavelet(waveletId, waveletsMap);
+          Preconditions.checkNotNull(wavelet, "computingMap returned null");
+          return wavelet;
+        }
       }
     }
   }
@@ -547,60 +657,125 @@ public class WaveMap implements SearchProvider {
     return task;
   }
   
+  /** How long {@link #close()} waits for the content index to be written. */
+  private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
   /**
-   * The period of time in minutes the per user waves view should be actively
-   * kept up to date after last access.
+   * The maximum number of resident wavelets examined by one eviction pass
+   * beyond the number which need to be evicted.
    */
-  private static final int PER_USER_WAVES_VIEW_CACHE_TIME = 5;
-  
+  private static final int EVICTION_SCAN_SLACK = 16;
+
+  /** Bounds the memory allocated up front for a search with a large page. */
+  private static final int MAX_INITIAL_SEARCH_HEAP_SIZE = 1024;
+
   private final ConcurrentMap<WaveId, Wave> waves;
-  private final WaveletStore<?> store;
+  private final DeltaAndSnapshotStore store;
+
+  /**
+   * The number of queued accesses at which an access applies them to the
+   * recency order, if the lock is free.
+   */
+  private static final int PENDING_ACCESS_DRAIN_THRESHOLD = 64;
+
+  /** The maximum number of queued accesses; further ones are dropped. */
+  private static final int MAX_PENDING_ACCESSES = 16 * PENDING_ACCESS_DRAIN_THRESHOLD;
+
+  /** Guards the recency order of the resident wavelets. */
+  private final ReentrantLock residentLock = new ReentrantLock();
+
+  /**
+   * The loaded wavelet containers in least recently used order. Guarded by
+   * residentLock.
+   */
+  private final LinkedHashMap<WaveletName, WaveletContainer> residentWavelets =
+      new LinkedHashMap<WaveletName, WaveletContainer>(16, 0.75f, true);
+
+  /** The loaded wavelet containers, for lookups without the lock. */
+  private final ConcurrentMap<WaveletName, WaveletContainer> residentIndex =
+      new ConcurrentHashMap<WaveletName, WaveletContainer>();
+
+  /** Accesses to resident wavelets not yet applied to their recency order. */
+  private final Queue<WaveletContainer> pendingAccesses =
+      new ConcurrentLinkedQueue<WaveletContainer>();
+  private final AtomicInteger pendingAccessCount = new AtomicInteger();
+
+  /** The number of resident wavelets above which idle ones are evicted, or 0. */
+  private final int maxResidentWavelets;
+
+  private final AtomicLong waveletHitCount = new AtomicLong();
+  private final AtomicLong waveletMissCount = new AtomicLong();
+  private final AtomicLong waveletEvictionCount = new AtomicLong();
+
+  /** The wavelets of each participant, maintained from the wave bus. */
+  private final ParticipantIndex participantIndex;
+
+  /** The text of conversational wavelets, maintained from the wave bus. */
+  private final ContentIndex contentIndex;
+
+  /** Indexes the text of changed blips, one wavelet after another. */
+  private final Executor contentIndexExecutor;
+
+  /**
+   * The blips of each wavelet waiting to be indexed. Changes to a wavelet
+   * made before its indexing runs are indexed together. Guarded by itself.
+   */
+  private final Map<WaveletName, PendingContent> pendingContent = Maps.newHashMap();
+
+  /** The changed blips of a wavelet, with its latest snapshot. */
+  private static final class PendingContent {
+    ReadableWaveletData wavelet;
+    final Set<String> documentIds;
+
+    PendingContent(ReadableWaveletData wavelet, Set<String> documentIds) {
+      this.wavelet = wavelet;
+      this.documentIds = documentIds;
+    }
+  }
+
+  private final String waveDomain;
 
-  /** The computing map that holds wave viev per each online user.*/
-  private final ConcurrentMap<ParticipantId, Multimap<WaveId, WaveletId>> explicitPerUserWaveViews;
-  
   private final ParticipantId sharedDomainParticipantId;
-  
+
   private final Subscriber subscriber = new Subscriber() {
-    
+
     @Override
     public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
       WaveletId waveletId = wavelet.getWaveletId();
+      WaveletName waveletName = WaveletName.of(wavelet.getWaveId(), waveletId);
+      participantIndex.putKeys(waveletName, keysOf(wavelet));
+      // User data wavelets are ranked with the waves they belong to, but
+      // don't add them to the views of their participants.
       if (IdUtil.isUserDataWavelet(waveletId)) {
         return;
       }
-      // Find whether participants where added/removed and update the views
-      // accordingly.
+      // Find whether participants where added/removed and update the index
+      // accordingly. Also collect the blips whose text may have changed.
+      Set<String> changedDocuments = Sets.newHashSet();
       for (TransformedWaveletDelta delta : deltas) {
         for (WaveletOperation op : delta) {
-          if (op instanceof AddParticipant) {
+          if (op instanceof WaveletBlipOperation) {
+            changedDocuments.add(((WaveletBlipOperation) op).getBlipId());
+          } else if (op instanceof AddParticipant) {
             ParticipantId user = ((AddParticipant) op).getParticipantId();
-            // Check first if we need to update views for this user.
-            if (explicitPerUserWaveViews.containsKey(user)) {
-              Multimap<WaveId, WaveletId> perUserView = explicitPerUserWaveViews.get(user);
-              WaveId waveId = wavelet.getWaveId();
-              if (!perUserView.containsEntry(waveId, waveletId)) {
-                perUserView.put(waveId, waveletId);
-                LOG.fine("Added wavelet: " + WaveletName.of(waveId, waveletId)
-                    + " to the view of user: " + user.getAddress());
-              }
+            if (participantIndex.add(user, waveletName)) {
+              LOG.fine("Added wavelet: " + waveletName + " to the view of user: "
+                  + user.getAddress());
             }
           } else if (op instanceof RemoveParticipant) {
             ParticipantId user = ((RemoveParticipant) op).getParticipantId();
-            if (explicitPerUserWaveViews.containsKey(user)) {
-              Multimap<WaveId, WaveletId> perUserView = explicitPerUserWaveViews.get(user);
-              WaveId waveId = wavelet.getWaveId();
-              if (perUserView.containsEntry(waveId, waveletId)) {
-                perUserView.remove(waveId, waveletId);
-                LOG.fine("Removed walet: " + WaveletName.of(waveId, waveletId)
-                    + " from the view of user: " + user.getAddress());
-              }
+            if (participantIndex.remove(user, waveletName)) {
+              LOG.fine("Removed wavelet: " + waveletName + " from the view of user: "
+                  + user.getAddress());
             }
           }
         }
       }
+      if (!changedDocuments.isEmpty() && IdUtil.isConversationalId(waveletId)) {
+        indexContentLater(waveletName, wavelet, changedDocuments);
+      }
     }
-    
+
     @Override
     public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
       // No op.
@@ -613,11 +788,20 @@ public class WaveMap implements SearchProvider {
       WaveBus dispatcher,
       final LocalWaveletContainer.Factory localFactory,
       final RemoteWaveletContainer.Factory remoteFactory,
-      @Named(CoreSettings.WAVE_SERVER_DOMAIN) final String waveDomain) {
+      ParticipantIndex participantIndex,
+      ContentIndex contentIndex,
+      @Named("content_index_executor") Executor contentIndexExecutor,
+      @Named(CoreSettings.WAVE_SERVER_DOMAIN) final String waveDomain,
+      @Named(CoreSettings.MAX_RESIDENT_WAVELETS) int maxResidentWavelets) {
     // NOTE(anorth): DeltaAndSnapshotStore is more specific than necessary, but
     // helps Guice out.
     // TODO(soren): inject a proper executor (with a pool of configurable size)
     this.store = waveletStore;
+    this.participantIndex = participantIndex;
+    this.contentIndex = contentIndex;
+    this.contentIndexExecutor = contentIndexExecutor;
+    this.waveDomain = waveDomain;
+    this.maxResidentWavelets = maxResidentWavelets;
     sharedDomainParticipantId = ParticipantIdUtil.makeUnsafeSharedDomainParticipantId(waveDomain);
     dispatcher.subscribe(subscriber);
     final Executor lookupExecutor = Executors.newSingleThreadExecutor();
@@ -630,58 +814,153 @@ public class WaveMap implements SearchProvider {
             waveDomain);
       }
     });
-
-    // Let the view expire if it not accessed for some time.
-    explicitPerUserWaveViews =
-        new MapMaker().expireAfterAccess(PER_USER_WAVES_VIEW_CACHE_TIME, TimeUnit.MINUTES)
-            .makeComputingMap(new Function<ParticipantId, Multimap<WaveId, WaveletId>>() {
-
-              @Override
-              public Multimap<WaveId, WaveletId> apply(final ParticipantId user) {
-                Multimap<WaveId, WaveletId> userView = HashMultimap.create();
-
-                // Create initial per user waves view by looping over all waves
-                // in the waves store.
-                // After that the view is maintained up to date continuously in
-                // the subscriber.waveletUpdate method until the user logs of
-                // and the key is expired.
-                // On the next login the waves view will be rebuild.
-                for (Map.Entry<WaveId, Wave> entry : waves.entrySet()) {
-                  Wave wave = entry.getValue();
-                  for (WaveletContainer c : wave) {
-                    WaveletId waveletId = c.getWaveletName().waveletId;
-                    try {
-                      if (IdUtil.isUserDataWavelet(waveletId) || !c.hasParticipant(user)) {
-                        continue;
-                      }
-                      // Add this wave to the user view.
-                      userView.put(entry.getKey(), waveletId);
-                    } catch (WaveletStateException e) {
-                      LOG.warning("Failed to access wavelet " + c.getWaveletName(), e);
-                    }
-                  }
-                }
-                LOG.info("Initalized waves view for user: " + user.getAddress()
-                    + ", number of waves in view: " + userView.size());
-                return userView;
-              }
-            });
   }
 
   /**
-   * Loads all wavelets from storage.
+   * Prepares the wave map for use. Wavelets are loaded from storage on first
+   * access, but if the participant index or the content index isn't already
+   * built it is built here by reading every stored wavelet. A content index
+   * loaded from its file only needs the wavelets changed since it was written
+   * to be read again.
    *
    * @throws WaveletStateException if storage access fails.
    */
-  public void loadAllWavelets() throws WaveletStateException {
+  public void initialize() throws WaveletStateException {
+    boolean buildParticipants = !participantIndex.isBuilt();
+    boolean buildContent = !contentIndex.isBuilt();
     try {
-      ExceptionalIterator<WaveId, PersistenceException> itr = store.getWaveIdIterator();
-      while (itr.hasNext()) {
-        WaveId waveId = itr.next();
-        lookupWavelets(waveId);
+      if (buildParticipants || buildContent) {
+        ExceptionalIterator<WaveId, PersistenceException> itr = store.getWaveIdIterator();
+        while (itr.hasNext()) {
+          WaveId waveId = itr.next();
+          for (WaveletId waveletId : store.lookup(waveId)) {
+            indexStoredWavelet(WaveletName.of(waveId, waveletId), buildParticipants,
+                buildContent);
+          }
+        }
+      }
+      if (buildParticipants) {
+        participantIndex.markBuilt();
+        LOG.info("Built participant index from storage");
       }
     } catch (PersistenceException e) {
       throw new WaveletStateException("Failed to scan waves", e);
+    } catch (IOException e) {
+      throw new WaveletStateException("Failed to write participant index", e);
+    }
+    try {
+      Set<WaveletName> staleWavelets = contentIndex.getStaleWavelets();
+      for (WaveletName waveletName : staleWavelets) {
+        indexStoredWavelet(waveletName, false, true);
+      }
+      if (buildContent || !staleWavelets.isEmpty()) {
+        contentIndex.markBuilt();
+        LOG.info("Built content index from storage");
+      }
+    } catch (PersistenceException e) {
+      throw new WaveletStateException("Failed to read wavelets for the content index", e);
+    } catch (IOException e) {
+      throw new WaveletStateException("Failed to write content index", e);
+    }
+  }
+
+  /**
+   * Writes the content index file once the indexing already queued is done,
+   * and closes the index, then journals the participant index's unjournalled
+   * modified times. Called when the server shuts down.
+   */
+  public void close() {
+    ListenableFutureTask<Void> task = new ListenableFutureTask<Void>(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        contentIndex.checkpoint();
+        contentIndex.close();
+        return null;
+      }
+    });
+    contentIndexExecutor.execute(task);
+    try {
+      task.get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOG.warning("Failed to write the content index", e.getCause());
+    } catch (TimeoutException e) {
+      LOG.warning("Timed out writing the content index");
+    }
+    participantIndex.flush();
+  }
+
+  /**
+   * Queues changed blips of a wavelet to be indexed on the content index
+   * executor, rather than on the thread delivering the wave bus notification.
+   */
+  private void indexContentLater(final WaveletName waveletName, ReadableWaveletData wavelet,
+      Set<String> documentIds) {
+    synchronized (pendingContent) {
+      PendingContent pending = pendingContent.get(waveletName);
+      if (pending != null) {
+        pending.wavelet = wavelet;
+        pending.documentIds.addAll(documentIds);
+        return;
+      }
+      pendingContent.put(waveletName, new PendingContent(wavelet, documentIds));
+    }
+    contentIndexExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        PendingContent pending;
+        synchronized (pendingContent) {
+          pending = pendingContent.remove(waveletName);
+        }
+        try {
+          contentIndex.indexDocuments(pending.wavelet, pending.documentIds);
+        } catch (RuntimeException e) {
+          LOG.severe("Failed to index the text of wavelet " + waveletName, e);
+        }
+      }
+    });
+  }
+
+  private static ParticipantIndex.WaveletKeys keysOf(ReadableWaveletData wavelet) {
+    return new ParticipantIndex.WaveletKeys(wavelet.getCreator(), wavelet.getCreationTime(),
+        wavelet.getLastModifiedTime());
+  }
+
+  /**
+   * Adds a stored wavelet to the participant index, the content index, or
+   * both.
+   */
+  private void indexStoredWavelet(WaveletName waveletName, boolean participants,
+      boolean content) throws PersistenceException {
+    content = content && IdUtil.isConversationalId(waveletName.waveletId);
+    if (!participants && !content) {
+      return;
+    }
+    DeltaAndSnapshotStore.WaveletAccess access = store.open(waveletName);
+    try {
+      ReadableWaveletData snapshot = access.getSnapshot();
+      if (snapshot != null) {
+        if (participants) {
+          if (!IdUtil.isUserDataWavelet(waveletName.waveletId)) {
+            for (ParticipantId participant : snapshot.getParticipants()) {
+              participantIndex.add(participant, waveletName);
+            }
+          }
+          participantIndex.putKeys(waveletName, keysOf(snapshot));
+        }
+        if (content) {
+          contentIndex.indexWavelet(snapshot);
+        }
+      } else if (content) {
+        contentIndex.removeWavelet(waveletName);
+      }
+    } finally {
+      try {
+        access.close();
+      } catch (IOException e) {
+        LOG.warning("Failed to close wavelet " + waveletName, e);
+      }
     }
   }
 
@@ -714,128 +993,166 @@ public class WaveMap implements SearchProvider {
       LOG.warning("Invalid participantId: " + e.getAddress() + " in query: " + query);
       return Collections.emptyList();
     }
+    List<List<String>> textPhrases = QueryHelper.buildTextPhrases(queryParams);
     // Maybe should be changed in case other folders in addition to 'inbox' are
     // added.
     final boolean isAllQuery = !queryParams.containsKey(QueryHelper.TokenQueryType.IN);
 
-    // A function to be applied by the WaveletContainer.
-    Function<ReadableWaveletData, Boolean> matchesFunction =
-        new Function<ReadableWaveletData, Boolean>() {
-
-          @Override
-          public Boolean apply(ReadableWaveletData wavelet) {
-            try {
-              return matches(wavelet, user, sharedDomainParticipantId, withParticipantIds,
-                  creatorParticipantIds, isAllQuery);
-            } catch (WaveletStateException e) {
-              LOG.warning(
-                  "Failed to access wavelet "
-                      + WaveletName.of(wavelet.getWaveId(), wavelet.getWaveletId()), e);
-              return false;
-            }
-          }
-        };
     Multimap<WaveId, WaveletId> currentUserWavesView;
     if (isAllQuery) {
       // If it is the "all" query - we need to include also waves view of the
       // shared domain participant.
       currentUserWavesView = HashMultimap.create();
-      currentUserWavesView.putAll(explicitPerUserWaveViews.get(user));
-      currentUserWavesView.putAll(explicitPerUserWaveViews.get(sharedDomainParticipantId));
+      currentUserWavesView.putAll(participantIndex.getWavelets(user));
+      currentUserWavesView.putAll(participantIndex.getWavelets(sharedDomainParticipantId));
     } else {
-      currentUserWavesView = explicitPerUserWaveViews.get(user);
-    }
-    // Must use a map with stable ordering, since indices are meaningful.
-    Map<WaveId, WaveViewData> results = Maps.newLinkedHashMap();
-
-    // Loop over the user waves view.
-    for (WaveId waveId : currentUserWavesView.keySet()) {
-      Wave wave = waves.get(waveId);
-      WaveViewData view = null; // Copy of the wave built up for search hits.
-      for (WaveletContainer c : wave) {
-        // TODO (Yuri Z.) This loop collects all the wavelets that match the
-        // query, so the view is determined by the query. Instead we should
-        // look at the user's wave view and determine if the view matches the query.
+      currentUserWavesView = participantIndex.getWavelets(user);
+    }
+    Set<WaveId> candidateWaves = currentUserWavesView.keySet();
+    if (!textPhrases.isEmpty()) {
+      // Only the waves whose wavelets in the user's view contain the text, so
+      // a selective query doesn't examine every wave of the user.
+      final Multimap<WaveId, WaveletId> view = currentUserWavesView;
+      candidateWaves = contentIndex.search(textPhrases, new Predicate<WaveletName>() {
+        @Override
+        public boolean apply(WaveletName waveletName) {
+          return view.containsEntry(waveletName.waveId, waveletName.waveletId);
+        }
+      });
+    }
+    // Only the best startAt + numResults waves are kept, ranked on their sort
+    // keys; the heap's head is the worst of them.
+    if (startAt < 0 || numResults <= 0) {
+      return Collections.emptyList();
+    }
+    int heapSize = (int) Math.min((long) startAt + numResults, Integer.MAX_VALUE - 1);
+    Ordering<QueryHelper.SearchHit> ordering = QueryHelper.computeSorter(queryParams);
+    PriorityQueue<QueryHelper.SearchHit> topHits = new PriorityQueue<QueryHelper.SearchHit>(
+        Math.min(heapSize, MAX_INITIAL_SEARCH_HEAP_SIZE) + 1, ordering.reverse());
+
+    // The wavelets are matched and ranked on the participant index alone. The
+    // user, or for the "all" query the shared domain participant, is a
+    // participant of every wavelet in the view. The user data wavelet of the
+    // user joins the wavelets of a matched wave, and counts towards its rank.
+    WaveletId userDataWaveletId = WaveletId.of(user.getDomain(),
+        IdUtil.join(IdConstants.USER_DATA_WAVELET_PREFIX, user.getAddress()));
+    List<WaveletName> candidateWavelets = Lists.newArrayList();
+    for (WaveId waveId : candidateWaves) {
+      for (WaveletId waveletId : currentUserWavesView.get(waveId)) {
+        candidateWavelets.add(WaveletName.of(waveId, waveletId));
+      }
+      candidateWavelets.add(WaveletName.of(waveId, userDataWaveletId));
+    }
+    Map<WaveletName, ParticipantIndex.WaveletKeys> waveletKeys =
+        participantIndex.getKeys(candidateWavelets);
+    List<Multimap<WaveId, WaveletId>> withViews =
+        Lists.newArrayListWithCapacity(withParticipantIds.size());
+    for (ParticipantId otherUser : withParticipantIds) {
+      withViews.add(participantIndex.getWavelets(otherUser));
+    }
+    for (WaveId waveId : candidateWaves) {
+      QueryHelper.SearchHit hit = null;
+      for (WaveletId waveletId : currentUserWavesView.get(waveId)) {
+        ParticipantIndex.WaveletKeys keys = waveletKeys.get(WaveletName.of(waveId, waveletId));
+        if (keys == null || !matches(waveId, waveletId, keys, withViews, creatorParticipantIds)) {
+          continue;
+        }
+        if (hit == null) {
+          hit = new QueryHelper.SearchHit(waveId);
+        }
+        // Just keep adding all the relevant wavelets in this wave.
+        hit.add(waveletId, keys);
+      }
+      if (hit != null) {
+        ParticipantIndex.WaveletKeys userDataKeys =
+            waveletKeys.get(WaveletName.of(waveId, userDataWaveletId));
+        if (userDataKeys != null) {
+          hit.add(userDataWaveletId, userDataKeys);
+        }
+        topHits.add(hit);
+        if (topHits.size() > heapSize) {
+          topHits.poll();
+        }
+      }
+    }
+    List<QueryHelper.SearchHit> sortedHits = ordering.sortedCopy(topHits);
+    List<WaveViewData> searchResultslist = Lists.newArrayList();
+    // Load and copy the wavelets of the waves on the requested page only,
+    // with the user data wavelet of the user if there is one, even if it is
+    // not indexed yet.
+    for (int i = startAt; i < sortedHits.size(); i++) {
+      QueryHelper.SearchHit hit = sortedHits.get(i);
+      WaveViewData view = WaveViewDataImpl.create(hit.waveId);
+      List<WaveletId> waveletIds = Lists.newArrayList(hit.waveletIds);
+      if (!waveletIds.contains(userDataWaveletId)) {
+        waveletIds.add(userDataWaveletId);
+      }
+      for (WaveletId waveletId : waveletIds) {
+        WaveletName waveletName = WaveletName.of(hit.waveId, waveletId);
         try {
-          if (!c.applyFunction(matchesFunction)) {
-            continue;
+          ObservableWaveletData wavelet = copySearchWavelet(waveletName);
+          if (wavelet != null) {
+            view.addWavelet(wavelet);
           }
-          if (view == null) {
-            view = WaveViewDataImpl.create(waveId);
-          }
-          // Just keep adding all the relevant wavelets in this wave.
-          view.addWavelet(c.copyWaveletData());
         } catch (WaveletStateException e) {
-          LOG.warning("Failed to access wavelet " + c.getWaveletName(), e);
+          LOG.warning("Failed to access wavelet " + waveletName, e);
         }
       }
-      if (view != null) {
-	  results.put(waveId, view);
-      }
-      // TODO (Yuri Z.) Investigate if it worth to keep the waves views sorted
-      // by LMT so we can stop looping after we have (startAt + numResults)
-      // results.
-    }
-    List<WaveViewData> searchResultslist = null;
-    int searchResultSize = results.values().size();
-    // Check if we have enough results to return.
-    if (searchResultSize < startAt) {
-      searchResultslist = Collections.emptyList();
-    } else {
-      int endAt = Math.min(startAt + numResults, searchResultSize);
-      searchResultslist =
-          QueryHelper.computeSorter(queryParams).sortedCopy(results.values())
-              .subList(startAt, endAt);
+      searchResultslist.add(view);
     }
     LOG.info("Search response to '" + query + "': " + searchResultslist.size() + " results, user: "
         + user);
-    // Memory management wise it's dangerous to return a sublist of a much
-    // longer list, therefore, we return a 'defensive' copy.
-    return ImmutableList.copyOf(searchResultslist);
+    return searchResultslist;
   }
 
   /**
-   * Verifies whether the wavelet matches the filter criteria.
-   * 
-   * @param wavelet the wavelet.
-   * @param user the logged in user.
-   * @param sharedDomainParticipantId the shared domain participant id.
-   * @param withList the list of participants to be used in 'with' filter.
-   * @param creatorList the list of participants to be used in 'creator' filter.
-   * @param isAllQuery true if the search results should include shared for this
-   *        domain waves.
+   * Returns the container of a wavelet found by search, loading it if
+   * necessary. The container found while matching may have been evicted by
+   * the time the wavelet is copied.
+   */
+  private WaveletContainer getSearchWavelet(WaveletName waveletName)
+      throws WaveletStateException {
+    return waveDomain.equals(waveletName.waveletId.getDomain())
+        ? getLocalWavelet(waveletName) : getRemoteWavelet(waveletName);
+  }
+
+  /**
+   * Copies a wavelet found by search, looking it up again if its container
+   * is evicted before the copy is made.
+   *
+   * @return the copy, or null if the wavelet doesn't exist
    */
-  private boolean matches(ReadableWaveletData wavelet, ParticipantId user,
-      ParticipantId sharedDomainParticipantId, List<ParticipantId> withList,
-      List<ParticipantId> creatorList, boolean isAllQuery) throws WaveletStateException {
-    // If it is user data wavelet for the user - return true.
-    if (IdUtil.isUserDataWavelet(wavelet.getWaveletId()) && wavelet.getCreator().equals(user)) {
-      return true;
+  private ObservableWaveletData copySearchWavelet(WaveletName waveletName)
+      throws WaveletStateException {
+    WaveletContainer c = getSearchWavelet(waveletName);
+    try {
+      return (c != null) ? c.copyWaveletData() : null;
+    } catch (WaveletClosedException e) {
+      c = getSearchWavelet(waveletName);
+      return (c != null) ? c.copyWaveletData() : null;
     }
+  }
+
+  /**
+   * Verifies whether a wavelet in the user's view matches the filter criteria.
+   *
+   * @param keys the sort keys of the wavelet.
+   * @param withViews the wavelets of each participant in the 'with' filter.
+   * @param creatorList the list of participants to be used in 'creator' filter.
+   */
+  private static boolean matches(WaveId waveId, WaveletId waveletId,
+      ParticipantIndex.WaveletKeys keys, List<Multimap<WaveId, WaveletId>> withViews,
+      List<ParticipantId> creatorList) {
     // Filter by creator. This is the fastest check so we perform it first.
     for (ParticipantId creator : creatorList) {
-      if (!creator.equals(wavelet.getCreator())) {
+      if (!creator.equals(keys.getCreator())) {
         // Skip.
         return false;
       }
     }
-    // The wavelet should have logged in user as participant for 'in:inbox'
-    // query.
-    if (!isAllQuery && !wavelet.getParticipants().contains(user)) {
-      return false;
-    }
-    // Or if it is an 'all' query - then either logged in user or shared domain
-    // participant should be present in the wave.
-    if (isAllQuery
-        && !WaveletDataUtil.checkAccessPermission(wavelet, user, sharedDomainParticipantId)) {
-      return false;
-    }
-    // If not returned 'false' above - then logged in user is either
-    // explicit or implicit participant and therefore has access permission.
-
     // Now filter by 'with'.
-    for (ParticipantId otherUser : withList) {
-      if (!wavelet.getParticipants().contains(otherUser)) {
+    for (Multimap<WaveId, WaveletId> withView : withViews) {
+      if (!withView.containsEntry(waveId, waveletId)) {
         // Skip.
         return false;
       }
@@ -843,9 +1160,22 @@ public class WaveMap implements SearchProvider {
     return true;
   }
 
+  /**
+   * Returns the ids of the stored waves and of the waves in memory, which may
+   * not have been stored yet.
+   */
   public ExceptionalIterator<WaveId, WaveServerException> getWaveIds() {
-    Iterator<WaveId> inner = waves.keySet().iterator();
-    return ExceptionalIterator.FromIterator.create(inner);
+    Set<WaveId> waveIds = Sets.newLinkedHashSet(waves.keySet());
+    try {
+      ExceptionalIterator<WaveId, PersistenceException> itr = store.getWaveIdIterator();
+      while (itr.hasNext()) {
+        waveIds.add(itr.next());
+      }
+    } catch (PersistenceException e) {
+      return ExceptionalIterator.Failing.<WaveId, WaveServerException>create(
+          new WaveletStateException("Failed to scan waves", e));
+    }
+    return ExceptionalIterator.FromIterator.create(waveIds.iterator());
   }
 
   public ImmutableSet<WaveletId> lookupWavelets(WaveId waveId) throws WaveletStateException {
@@ -860,21 +1190,170 @@ public class WaveMap implements SearchProvider {
     }
   }
 
+  // The accessors look the wave up again if it was retired while they were
+  // using it.
+
   public LocalWaveletContainer getLocalWavelet(WaveletName waveletName)
       throws WaveletStateException {
-    return waves.get(waveletName.waveId).getLocalWavelet(waveletName.waveletId);
+    while (true) {
+      Wave wave = waves.get(waveletName.waveId);
+      LocalWaveletContainer wavelet = wave.getLocalWavelet(waveletName.waveletId);
+      if (wavelet != null || !wave.isRetired()) {
+        return touch(wavelet);
+      }
+    }
   }
 
   public RemoteWaveletContainer getRemoteWavelet(WaveletName waveletName)
       throws WaveletStateException {
-    return waves.get(waveletName.waveId).getRemoteWavelet(waveletName.waveletId);
+    while (true) {
+      Wave wave = waves.get(waveletName.waveId);
+      RemoteWaveletContainer wavelet = wave.getRemoteWavelet(waveletName.waveletId);
+      if (wavelet != null || !wave.isRetired()) {
+        return touch(wavelet);
+      }
+    }
   }
 
   public LocalWaveletContainer getOrCreateLocalWavelet(WaveletName waveletName) {
-    return waves.get(waveletName.waveId).getOrCreateLocalWavelet(waveletName.waveletId);
+    while (true) {
+      LocalWaveletContainer wavelet =
+          waves.get(waveletName.waveId).getOrCreateLocalWavelet(waveletName.waveletId);
+      if (wavelet != null) {
+        return touch(wavelet);
+      }
+    }
   }
 
   public RemoteWaveletContainer getOrCreateRemoteWavelet(WaveletName waveletName) {
-    return waves.get(waveletName.waveId).getOrCreateRemoteWavelet(waveletName.waveletId);
+    while (true) {
+      RemoteWaveletContainer wavelet =
+          waves.get(waveletName.waveId).getOrCreateRemoteWavelet(waveletName.waveletId);
+      if (wavelet != null) {
+        return touch(wavelet);
+      }
+    }
+  }
+
+  /** @return the number of wavelet containers in memory. */
+  public int getResidentWaveletCount() {
+    return residentIndex.size();
+  }
+
+  /** @return the number of waves in memory. */
+  public int getResidentWaveCount() {
+    return waves.size();
+  }
+
+  /** @return the number of wavelet accesses which found the wavelet in memory. */
+  public long getWaveletHitCount() {
+    return waveletHitCount.get();
+  }
+
+  /** @return the number of wavelet accesses which loaded the wavelet. */
+  public long getWaveletMissCount() {
+    return waveletMissCount.get();
+  }
+
+  /** @return the number of wavelets evicted from memory. */
+  public long getWaveletEvictionCount() {
+    return waveletEvictionCount.get();
+  }
+
+  /**
+   * Records an access to a wavelet container and evicts the least recently
+   * used idle wavelets if there are too many in memory. An access to a
+   * resident wavelet doesn't wait for the lock on the recency order; it is
+   * queued and applied to the order later.
+   *
+   * @return the wavelet
+   */
+  private <T extends WaveletContainer> T touch(T wavelet) {
+    if (wavelet == null) {
+      return null;
+    }
+    WaveletName waveletName = wavelet.getWaveletName();
+    if (residentIndex.get(waveletName) == wavelet) {
+      waveletHitCount.incrementAndGet();
+      int pending = pendingAccessCount.incrementAndGet();
+      if (pending <= MAX_PENDING_ACCESSES) {
+        pendingAccesses.add(wavelet);
+      } else {
+        // Drop the access; the lock holder is far behind.
+        pendingAccessCount.decrementAndGet();
+      }
+      if (pending >= PENDING_ACCESS_DRAIN_THRESHOLD && residentLock.tryLock()) {
+        try {
+          drainPendingAccesses();
+        } finally {
+          residentLock.unlock();
+        }
+      }
+      return wavelet;
+    }
+    residentLock.lock();
+    try {
+      drainPendingAccesses();
+      if (residentWavelets.get(waveletName) == wavelet) {
+        waveletHitCount.incrementAndGet();
+      } else if (!wavelet.isClosed()) {
+        // A closed container was evicted after the lookup; the caller gets
+        // a WaveletClosedException and looks the wavelet up again.
+        residentWavelets.put(waveletName, wavelet);
+        residentIndex.put(waveletName, wavelet);
+        waveletMissCount.incrementAndGet();
+        evictIdleWavelets(wavelet);
+      }
+    } finally {
+      residentLock.unlock();
+    }
+    return wavelet;
+  }
+
+  /**
+   * Applies the queued accesses to the recency order. Must be called with
+   * the residentLock held.
+   */
+  private void drainPendingAccesses() {
+    WaveletContainer wavelet;
+    while ((wavelet = pendingAccesses.poll()) != null) {
+      pendingAccessCount.decrementAndGet();
+      // Moves the wavelet to the most recently used end, if it's resident.
+      residentWavelets.get(wavelet.getWaveletName());
+    }
+  }
+
+  /**
+   * Evicts least recently used wavelets until no more than the maximum number
+   * are resident. Wavelets which are busy or have unpersisted deltas are
+   * skipped, so the maximum may be exceeded for a while. A wave whose last
+   * wavelet is evicted is dropped. Must be called with the residentLock held.
+   *
+   * @param accessed the wavelet being accessed, which is not evicted
+   */
+  private void evictIdleWavelets(WaveletContainer accessed) {
+    int excess = residentWavelets.size() - maxResidentWavelets;
+    if (maxResidentWavelets <= 0 || excess <= 0) {
+      return;
+    }
+    int toExamine = excess + EVICTION_SCAN_SLACK;
+    Iterator<WaveletContainer> it = residentWavelets.values().iterator();
+    while (excess > 0 && toExamine > 0 && it.hasNext()) {
+      WaveletContainer wavelet = it.next();
+      toExamine--;
+      if (wavelet != accessed && wavelet.closeIfPersisted()) {
+        it.remove();
+        WaveletName waveletName = wavelet.getWaveletName();
+        residentIndex.remove(waveletName, wavelet);
+        // The wavelet's wave is still mapped, since it holds the wavelet.
+        Wave wave = waves.get(waveletName.waveId);
+        if (wave.evict(wavelet)) {
+          waves.remove(waveletName.waveId, wave);
+        }
+        waveletEvictionCount.incrementAndGet();
+        excess--;
+        LOG.fine("Evicted wavelet " + waveletName);
+      }
+    }
   }
 }
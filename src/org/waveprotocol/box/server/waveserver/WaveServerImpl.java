@@ -17,6 +17,7 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -71,6 +72,18 @@ public class WaveServerImpl implements WaveletProvider,
 
   private static final Log LOG = Log.get(WaveServerImpl.class);
 
+  /**
+   * Most bytes of applied deltas in a response to a history request. Longer
+   * histories are truncated, and the requester asks for the rest in further
+   * requests.
+   */
+  @VisibleForTesting
+  static final long MAX_HISTORY_RESPONSE_BYTES = 1 << 20;
+
+  /** Most applied deltas in a response to a history request. */
+  @VisibleForTesting
+  static final int MAX_HISTORY_RESPONSE_DELTAS = 1000;
+
   private final Executor listenerExecutor;
   private final CertificateManager certificateManager;
   private final WaveletFederationProvider federationRemote;
@@ -99,32 +112,7 @@ public class WaveServerImpl implements WaveletProvider,
           return;
         }
 
-        // Update wavelet container with the applied deltas
-        final RemoteWaveletContainer remoteWavelet = getOrCreateRemoteWavelet(waveletName);
-
-        // Update this remote wavelet with the immediately incoming delta,
-        // providing a callback so that incoming historic deltas (as well as
-        // this delta) can be provided to the wave bus.
-        final ListenableFuture<Void> result =
-            remoteWavelet.update(deltas, domain, federationRemote, certificateManager);
-        result.addListener(
-            new Runnable() {
-              @Override
-              public void run() {
-                try {
-                  FutureUtil.getResultOrPropagateException(result, FederationException.class);
-                  callback.onSuccess();
-                } catch (FederationException e) {
-                  LOG.warning("Failed updating " + waveletName, e);
-                  callback.onFailure(e.getError());
-                } catch (InterruptedException e) {
-                  Thread.currentThread().interrupt();
-                  LOG.severe("Interrupted updating " + waveletName, e);
-                  callback.onFailure(FederationErrors.internalServerError("Interrupted"));
-                }
-              }
-            },
-            listenerExecutor);
+        updateRemoteWavelet(waveletName, deltas, domain, callback, false);
       }
 
       @Override
@@ -138,28 +126,80 @@ public class WaveServerImpl implements WaveletProvider,
           return;
         }
 
-        RemoteWaveletContainer wavelet;
+        HashedVersion version = CoreWaveletOperationSerializer.deserialize(committedVersion);
         try {
-          wavelet = getRemoteWavelet(waveletName);
-        } catch (WaveletStateException e) {
+          RemoteWaveletContainer wavelet = getRemoteWavelet(waveletName);
+          if (wavelet != null) {
+            try {
+              wavelet.commit(version);
+            } catch (WaveletClosedException e) {
+              ((RemoteWaveletContainer) getEvictedWavelet(waveletName)).commit(version);
+            }
+          } else {
+            // TODO(soren): This should really be changed to create the wavelet if it doesn't
+            // already exist and go get history up committedVersion. Moreover, when the
+            // protocol is enhanced to deliver commit updates reliably, we will probably need
+            // to only return success when we successfully retrieved history and persisted it all.
+           LOG.info("Got commit update for missing wavelet " + waveletName);
+          }
+        } catch (WaveServerException e) {
           LOG.warning("Failed to access wavelet " + waveletName + " for commit update", e);
           callback.onFailure(FederationErrors.internalServerError("Storage access failure"));
           return;
         }
-        if (wavelet != null) {
-          wavelet.commit(CoreWaveletOperationSerializer.deserialize(committedVersion));
-        } else {
-          // TODO(soren): This should really be changed to create the wavelet if it doesn't
-          // already exist and go get history up committedVersion. Moreover, when the
-          // protocol is enhanced to deliver commit updates reliably, we will probably need
-          // to only return success when we successfully retrieved history and persisted it all.
-         LOG.info("Got commit update for missing wavelet " + waveletName);
-        }
         callback.onSuccess();
       }
     };
   }
 
+  /**
+   * Updates a remote wavelet with the deltas received from its host. If the
+   * wavelet's container is evicted before the deltas are applied, the wavelet
+   * is looked up again and the update retried once.
+   *
+   * @param evicted whether this is the retry after an eviction
+   */
+  private void updateRemoteWavelet(final WaveletName waveletName, final List<ByteString> deltas,
+      final String domain, final WaveletFederationListener.WaveletUpdateCallback callback,
+      final boolean evicted) {
+    // Update wavelet container with the applied deltas
+    RemoteWaveletContainer remoteWavelet = getOrCreateRemoteWavelet(waveletName);
+
+    // Update this remote wavelet with the immediately incoming delta,
+    // providing a callback so that incoming historic deltas (as well as
+    // this delta) can be provided to the wave bus.
+    final ListenableFuture<Void> result =
+        remoteWavelet.update(deltas, domain, federationRemote, certificateManager);
+    result.addListener(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              FutureUtil.getResultOrPropagateException(result, FederationException.class);
+              callback.onSuccess();
+            } catch (FederationException e) {
+              LOG.warning("Failed updating " + waveletName, e);
+              callback.onFailure(e.getError());
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              LOG.severe("Interrupted updating " + waveletName, e);
+              callback.onFailure(FederationErrors.internalServerError("Interrupted"));
+            } catch (FutureUtil.UnexpectedExceptionFromFuture e) {
+              if (!(e.getCause() instanceof WaveletClosedException)) {
+                throw e;
+              }
+              if (evicted) {
+                LOG.warning("Failed updating " + waveletName, e.getCause());
+                callback.onFailure(FederationErrors.internalServerError(e.getCause().getMessage()));
+              } else {
+                updateRemoteWavelet(waveletName, deltas, domain, callback, true);
+              }
+            }
+          }
+        },
+        listenerExecutor);
+  }
+
   //
   // WaveletFederationProvider implementation.
   //
@@ -209,11 +249,22 @@ public class WaveServerImpl implements WaveletProvider,
       long lengthLimit, HistoryResponseListener listener) {
     LocalWaveletContainer wavelet = loadLocalWavelet(waveletName, listener);
     if (wavelet != null) {
-      Collection<ByteStringMessage<ProtocolAppliedWaveletDelta>> deltaHistory;
+      List<ByteStringMessage<ProtocolAppliedWaveletDelta>> deltaHistory;
+      HashedVersion start = CoreWaveletOperationSerializer.deserialize(startVersion);
+      HashedVersion end = CoreWaveletOperationSerializer.deserialize(endVersion);
+      // The history is read up to the limits, ending before the delta which
+      // would exceed them. It holds at least one delta, so the requester makes
+      // progress.
+      long byteLimit = (lengthLimit > 0)
+          ? Math.min(lengthLimit, MAX_HISTORY_RESPONSE_BYTES) : MAX_HISTORY_RESPONSE_BYTES;
       try {
-        deltaHistory = wavelet.requestHistory(
-            CoreWaveletOperationSerializer.deserialize(startVersion),
-            CoreWaveletOperationSerializer.deserialize(endVersion));
+        try {
+          deltaHistory =
+              wavelet.requestHistory(start, end, byteLimit, MAX_HISTORY_RESPONSE_DELTAS);
+        } catch (WaveletClosedException e) {
+          deltaHistory = getEvictedWavelet(waveletName).requestHistory(
+              start, end, byteLimit, MAX_HISTORY_RESPONSE_DELTAS);
+        }
       } catch (WaveServerException e) {
         LOG.severe("Error retrieving wavelet history: " + waveletName + " " + startVersion +
             " - " + endVersion);
@@ -223,15 +274,33 @@ public class WaveServerImpl implements WaveletProvider,
         return;
       }
 
-      // TODO(soren): enforce length limit
       ImmutableList.Builder<ByteString> deltaHistoryBytes = ImmutableList.builder();
+      long responseBytes = 0;
       for (ByteStringMessage<ProtocolAppliedWaveletDelta> d : deltaHistory) {
         deltaHistoryBytes.add(d.getByteString());
+        responseBytes += d.getByteString().size();
+      }
+      long versionTruncatedAt = 0;
+      if (!deltaHistory.isEmpty()) {
+        long lastVersion;
+        try {
+          lastVersion = AppliedDeltaUtil.calculateResultingHashedVersion(
+              deltaHistory.get(deltaHistory.size() - 1)).getVersion();
+        } catch (InvalidProtocolBufferException e) {
+          LOG.severe("Invalid applied delta in the history of " + waveletName, e);
+          listener.onFailure(FederationErrors.internalServerError(
+              "Server error while retrieving wavelet history."));
+          return;
+        }
+        if (lastVersion < end.getVersion()) {
+          versionTruncatedAt = lastVersion;
+        }
       }
-      // Now determine whether we received the entire requested wavelet history.
-      LOG.info("Found deltaHistory between " + startVersion + " - " + endVersion
-          + ", returning to requester domain " + domain + " -- " + deltaHistory);
-      listener.onSuccess(deltaHistoryBytes.build(), endVersion, endVersion.getVersion());
+      LOG.info("Found " + deltaHistory.size() + " deltas, " + responseBytes + " bytes between "
+          + startVersion.getVersion() + " - " + endVersion.getVersion()
+          + (versionTruncatedAt > 0 ? ", truncated at " + versionTruncatedAt : "")
+          + ", returning to requester domain " + domain);
+      listener.onSuccess(deltaHistoryBytes.build(), endVersion, versionTruncatedAt);
     }
   }
 
@@ -242,7 +311,20 @@ public class WaveServerImpl implements WaveletProvider,
     LocalWaveletContainer wavelet = loadLocalWavelet(waveletName, listener);
     if (wavelet != null) {
       HashedVersion endVersion = CoreWaveletOperationSerializer.deserialize(deltaEndVersion);
-      if (wavelet.isDeltaSigner(endVersion, signerId)) {
+      boolean isSigner;
+      try {
+        try {
+          isSigner = wavelet.isDeltaSigner(endVersion, signerId);
+        } catch (WaveletClosedException e) {
+          isSigner = ((LocalWaveletContainer) getEvictedWavelet(waveletName))
+              .isDeltaSigner(endVersion, signerId);
+        }
+      } catch (WaveServerException e) {
+        LOG.severe("Error checking the signer of " + waveletName + " at " + endVersion, e);
+        listener.onFailure(FederationErrors.internalServerError("Storage access failure"));
+        return;
+      }
+      if (isSigner) {
         ProtocolSignerInfo signerInfo = certificateManager.retrieveSignerInfo(signerId);
         if (signerInfo == null) {
           // Oh no!  We are supposed to store it, and we already know they did sign this delta.
@@ -280,7 +362,7 @@ public class WaveServerImpl implements WaveletProvider,
   @Override
   public void initialize() throws WaveServerException {
     Preconditions.checkState(!initialized, "Wave server already initialized");
-    waveMap.loadAllWavelets();
+    waveMap.initialize();
     initialized = true;
   }
 
@@ -293,7 +375,11 @@ public class WaveServerImpl implements WaveletProvider,
       throw new AccessControlException(
           "Client request for history made for non-existent wavelet: " + waveletName);
     }
-    return wavelet.requestTransformedHistory(startVersion, endVersion);
+    try {
+      return wavelet.requestTransformedHistory(startVersion, endVersion);
+    } catch (WaveletClosedException e) {
+      return getEvictedWavelet(waveletName).requestTransformedHistory(startVersion, endVersion);
+    }
   }
 
   @Override
@@ -317,8 +403,11 @@ public class WaveServerImpl implements WaveletProvider,
     if (wavelet == null) {
       LOG.info("client requested snapshot for non-existent wavelet: " + waveletName);
       return null;
-    } else {
+    }
+    try {
       return wavelet.getSnapshot();
+    } catch (WaveletClosedException e) {
+      return getEvictedWavelet(waveletName).getSnapshot();
     }
   }
 
@@ -356,7 +445,14 @@ public class WaveServerImpl implements WaveletProvider,
       throws WaveServerException {
     Preconditions.checkState(initialized, "Wave server not yet initialized");
     WaveletContainer wavelet = getWavelet(waveletName);
-    return wavelet != null && wavelet.checkAccessPermission(participantId);
+    if (wavelet == null) {
+      return false;
+    }
+    try {
+      return wavelet.checkAccessPermission(participantId);
+    } catch (WaveletClosedException e) {
+      return getEvictedWavelet(waveletName).checkAccessPermission(participantId);
+    }
   }
 
   /**
@@ -487,6 +583,23 @@ public class WaveServerImpl implements WaveletProvider,
         waveMap.getLocalWavelet(waveletName) : waveMap.getRemoteWavelet(waveletName);
   }
 
+  /**
+   * Looks up a wavelet again after its container was found to be evicted
+   * between the first lookup and its use.
+   *
+   * @param waveletName name of the evicted wavelet.
+   * @return a new container for the wavelet.
+   * @throws WaveletStateException if the wavelet can't be loaded again.
+   */
+  private WaveletContainer getEvictedWavelet(WaveletName waveletName)
+      throws WaveServerException {
+    WaveletContainer wavelet = getWavelet(waveletName);
+    if (wavelet == null) {
+      throw new WaveletStateException("Evicted wavelet " + waveletName + " not found");
+    }
+    return wavelet;
+  }
+
   /**
    * Callback interface for sending a list of certificates to a domain.
    */
@@ -516,43 +629,54 @@ public class WaveServerImpl implements WaveletProvider,
           + delta.getHashedVersion().getVersion() + " with " + delta.getOperationCount() + " ops");
 
       // TODO(arb): add v0 policer here.
-      LocalWaveletContainer wavelet = getOrCreateLocalWavelet(waveletName);
-      try {
-        if (!wavelet.checkAccessPermission(ParticipantId.of(delta.getAuthor()))) {
+      // A container evicted between the lookup and the submit is looked up
+      // again, once.
+      boolean evicted = false;
+      while (true) {
+        LocalWaveletContainer wavelet = getOrCreateLocalWavelet(waveletName);
+        try {
+          if (!wavelet.checkAccessPermission(ParticipantId.of(delta.getAuthor()))) {
+            resultListener.onFailure(FederationErrors.badRequest(
+                delta.getAuthor() + " is not a participant of " + waveletName));
+            return;
+          }
+          WaveletDeltaRecord submitResult = wavelet.submitRequest(waveletName, signedDelta);
+          TransformedWaveletDelta transformedDelta = submitResult.getTransformedDelta();
+          LOG.info("Submit result for " + waveletName + " by "
+              + transformedDelta.getAuthor() + " applied "
+              + transformedDelta.size() + " ops at v: "
+              + transformedDelta.getAppliedAtVersion() + " t: "
+              + transformedDelta.getApplicationTimestamp());
+          resultListener.onSuccess(transformedDelta.size(),
+              CoreWaveletOperationSerializer.serialize(transformedDelta.getResultingVersion()),
+              transformedDelta.getApplicationTimestamp());
+          return;
+        } catch (WaveletClosedException e) {
+          if (evicted) {
+            resultListener.onFailure(FederationErrors.internalServerError(e.getMessage()));
+            return;
+          }
+          evicted = true;
+        } catch (InvalidParticipantAddress e) {
           resultListener.onFailure(FederationErrors.badRequest(
-              delta.getAuthor() + " is not a participant of " + waveletName));
+              "Invalid author address: " + e.getMessage()));
+          return;
+        } catch (OperationException e) {
+          resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
+          return;
+        } catch (InvalidProtocolBufferException e) {
+          resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
+          return;
+        } catch (InvalidHashException e) {
+          resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
+          return;
+        } catch (PersistenceException e) {
+          resultListener.onFailure(FederationErrors.internalServerError(e.getMessage()));
+          return;
+        } catch (WaveServerException e) {
+          resultListener.onFailure(FederationErrors.internalServerError(e.getMessage()));
           return;
         }
-      } catch (InvalidParticipantAddress e) {
-        resultListener.onFailure(FederationErrors.badRequest(
-            "Invalid author address: " + e.getMessage()));
-        return;
-      } catch (WaveServerException e) {
-        resultListener.onFailure(FederationErrors.internalServerError(e.getMessage()));
-        return;
-      }
-
-      try {
-        WaveletDeltaRecord submitResult = wavelet.submitRequest(waveletName, signedDelta);
-        TransformedWaveletDelta transformedDelta = submitResult.getTransformedDelta();
-        LOG.info("Submit result for " + waveletName + " by "
-            + transformedDelta.getAuthor() + " applied "
-            + transformedDelta.size() + " ops at v: "
-            + transformedDelta.getAppliedAtVersion() + " t: "
-            + transformedDelta.getApplicationTimestamp());
-        resultListener.onSuccess(transformedDelta.size(),
-            CoreWaveletOperationSerializer.serialize(transformedDelta.getResultingVersion()),
-            transformedDelta.getApplicationTimestamp());
-      } catch (OperationException e) {
-        resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
-      } catch (InvalidProtocolBufferException e) {
-        resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
-      } catch (InvalidHashException e) {
-        resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
-      } catch (PersistenceException e) {
-        resultListener.onFailure(FederationErrors.internalServerError(e.getMessage()));
-      } catch (WaveletStateException e) {
-        resultListener.onFailure(FederationErrors.internalServerError(e.getMessage()));
       }
     } else {
       // For remote wavelets post required signatures to the authorative server then send delta
@@ -28,6 +28,7 @@ import com.google.inject.name.Names;
 
 import org.waveprotocol.box.server.CoreSettings;
 import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.util.SerialExecutorPool;
 import org.waveprotocol.wave.crypto.CachedCertPathValidator;
 import org.waveprotocol.wave.crypto.CertPathStore;
 import org.waveprotocol.wave.crypto.DefaultCacheImpl;
@@ -45,9 +46,12 @@ import org.waveprotocol.wave.model.version.HashedVersionFactory;
 import org.waveprotocol.wave.model.version.HashedVersionFactoryImpl;
 import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * Guice Module for the prototype Server.
@@ -57,6 +61,10 @@ public class WaveServerModule extends AbstractModule {
   // TODO(soren): move to global config file
   private static final int LISTENER_EXECUTOR_THREAD_COUNT = 2;
   private static final int WAVELET_LOAD_EXECUTOR_THREAD_COUNT = 2;
+  private static final int WAVE_BUS_DISPATCH_EXECUTOR_THREAD_COUNT = 4;
+  private static final int LIVE_SEARCH_EXECUTOR_THREAD_COUNT = 2;
+  private static final int SIGNATURE_VERIFICATION_EXECUTOR_THREAD_COUNT =
+      Runtime.getRuntime().availableProcessors();
   private static final IdURIEncoderDecoder URI_CODEC =
       new IdURIEncoderDecoder(new JavaUrlCodec());
   private static final HashedVersionFactory HASH_FACTORY = new HashedVersionFactoryImpl(URI_CODEC);
@@ -83,10 +91,7 @@ public class WaveServerModule extends AbstractModule {
 
     try {
       bind(WaveSignatureVerifier.class).toConstructor(WaveSignatureVerifier.class.getConstructor(
-          WaveCertPathValidator.class, CertPathStore.class));
-      bind(VerifiedCertChainCache.class).to(DefaultCacheImpl.class).in(Singleton.class);
-      bind(DefaultCacheImpl.class).toConstructor(
-          DefaultCacheImpl.class.getConstructor(TimeSource.class));
+          WaveCertPathValidator.class, CertPathStore.class)).in(Singleton.class);
     } catch (NoSuchMethodException e) {
       throw new IllegalStateException(e);
     }
@@ -103,18 +108,58 @@ public class WaveServerModule extends AbstractModule {
     bind(HashedVersionFactory.class).toInstance(HASH_FACTORY);
     bind(Executor.class).annotatedWith(Names.named("listener_executor")).toInstance(
         Executors.newFixedThreadPool(LISTENER_EXECUTOR_THREAD_COUNT));
+    bind(Executor.class).annotatedWith(Names.named("wave_bus_dispatch_executor")).toInstance(
+        Executors.newFixedThreadPool(WAVE_BUS_DISPATCH_EXECUTOR_THREAD_COUNT));
+    bind(Executor.class).annotatedWith(Names.named("signature_verification_executor"))
+        .toInstance(Executors.newFixedThreadPool(SIGNATURE_VERIFICATION_EXECUTOR_THREAD_COUNT));
+    bind(ScheduledExecutorService.class).annotatedWith(Names.named("live_search_executor"))
+        .toInstance(Executors.newScheduledThreadPool(LIVE_SEARCH_EXECUTOR_THREAD_COUNT));
+    bind(Executor.class).annotatedWith(Names.named("content_index_executor")).toInstance(
+        Executors.newSingleThreadExecutor());
+  }
+
+  // The executor pools are bound so that their queue and latency statistics
+  // can be reported by WaveServerStats.
+
+  /** Runs the persist tasks of all wavelets, each wavelet's in order. */
+  @Provides
+  @Singleton
+  @Named("persist_executor_pool")
+  @SuppressWarnings("unused")
+  private SerialExecutorPool providePersistExecutorPool(
+      @Named(CoreSettings.PERSIST_EXECUTOR_THREADS) int threads) {
+    return new SerialExecutorPool(Executors.newFixedThreadPool(threads));
+  }
+
+  /** Runs the storage continuations of all wavelets, each wavelet's in order. */
+  @Provides
+  @Singleton
+  @Named("storage_continuation_executor_pool")
+  @SuppressWarnings("unused")
+  private SerialExecutorPool provideStorageContinuationExecutorPool(
+      @Named(CoreSettings.STORAGE_CONTINUATION_EXECUTOR_THREADS) int threads) {
+    return new SerialExecutorPool(Executors.newFixedThreadPool(threads));
   }
 
   @Provides
   @SuppressWarnings("unused")
   private LocalWaveletContainer.Factory provideLocalWaveletContainerFactory(
-      final DeltaStore deltaStore) {
+      final DeltaStore deltaStore, final SnapshotCheckpointPolicy checkpointPolicy,
+      final DeltaHistoryCache historyCache,
+      @Named("persist_executor_pool") final SerialExecutorPool persistExecutorPool,
+      @Named("storage_continuation_executor_pool")
+      final SerialExecutorPool storageContinuationExecutorPool,
+      @Named(CoreSettings.DELTA_HISTORY_RESIDENT_DELTAS) final int historyWindow,
+      @Named(CoreSettings.DELTA_HISTORY_COMPOSED_SEGMENTS) final boolean composedSegments) {
     return new LocalWaveletContainer.Factory() {
       @Override
       public LocalWaveletContainer create(WaveletNotificationSubscriber notifiee,
           WaveletName waveletName, String waveDomain) {
-        return new LocalWaveletContainerImpl(waveletName, notifiee, loadWaveletState(
-            waveletLoadExecutor, deltaStore, waveletName), waveDomain);
+        return new LocalWaveletContainerImpl(waveletName, notifiee,
+            loadWaveletState(waveletLoadExecutor, persistExecutorPool.newSerialExecutor(),
+                deltaStore, waveletName, checkpointPolicy, historyCache, historyWindow,
+                composedSegments),
+            waveDomain, storageContinuationExecutorPool.newSerialExecutor());
       }
     };
   }
@@ -122,17 +167,67 @@ public class WaveServerModule extends AbstractModule {
   @Provides
   @SuppressWarnings("unused")
   private RemoteWaveletContainer.Factory provideRemoteWaveletContainerFactory(
-      final DeltaStore deltaStore) {
+      final DeltaStore deltaStore, final SnapshotCheckpointPolicy checkpointPolicy,
+      final DeltaHistoryCache historyCache,
+      @Named("persist_executor_pool") final SerialExecutorPool persistExecutorPool,
+      @Named("storage_continuation_executor_pool")
+      final SerialExecutorPool storageContinuationExecutorPool,
+      @Named(CoreSettings.DELTA_HISTORY_RESIDENT_DELTAS) final int historyWindow,
+      @Named(CoreSettings.DELTA_HISTORY_COMPOSED_SEGMENTS) final boolean composedSegments) {
     return new RemoteWaveletContainer.Factory() {
       @Override
       public RemoteWaveletContainer create(WaveletNotificationSubscriber notifiee,
           WaveletName waveletName, String waveDomain) {
         return new RemoteWaveletContainerImpl(waveletName, notifiee,
-            loadWaveletState(waveletLoadExecutor, deltaStore, waveletName));
+            loadWaveletState(waveletLoadExecutor, persistExecutorPool.newSerialExecutor(),
+                deltaStore, waveletName, checkpointPolicy, historyCache, historyWindow,
+                composedSegments),
+            storageContinuationExecutorPool.newSerialExecutor());
       }
     };
   }
 
+  @Provides
+  @Singleton
+  @SuppressWarnings("unused")
+  private SnapshotCheckpointPolicy provideSnapshotCheckpointPolicy(
+      @Named(CoreSettings.DELTA_STORE_SNAPSHOT_INTERVAL_DELTAS) int deltaInterval,
+      @Named(CoreSettings.DELTA_STORE_SNAPSHOT_INTERVAL_BYTES) int byteInterval) {
+    return new SnapshotCheckpointPolicy(deltaInterval, byteInterval);
+  }
+
+  @Provides
+  @Singleton
+  @SuppressWarnings("unused")
+  private DeltaHistoryCache provideDeltaHistoryCache(
+      @Named(CoreSettings.DELTA_HISTORY_CACHE_BYTES) int maxBytes) {
+    return new DeltaHistoryCache(maxBytes);
+  }
+
+  @Provides
+  @Singleton
+  @SuppressWarnings("unused")
+  private ParticipantIndex provideParticipantIndex(
+      @Named(CoreSettings.PARTICIPANT_INDEX_FILE) String indexFile) throws IOException {
+    return indexFile.isEmpty() ? new ParticipantIndex() : new ParticipantIndex(new File(indexFile));
+  }
+
+  @Provides
+  @Singleton
+  @SuppressWarnings("unused")
+  private ContentIndex provideContentIndex(
+      @Named(CoreSettings.CONTENT_INDEX_FILE) String indexFile) throws IOException {
+    return indexFile.isEmpty() ? new ContentIndex() : new ContentIndex(new File(indexFile));
+  }
+
+  @Provides
+  @Singleton
+  @SuppressWarnings("unused")
+  private VerifiedCertChainCache provideVerifiedCertChainCache(TimeSource timeSource,
+      @Named(CoreSettings.VERIFIED_CERT_CHAIN_CACHE_SIZE) int maxSize) {
+    return new DefaultCacheImpl(timeSource, maxSize);
+  }
+
   @Provides
   @SuppressWarnings("unused")
   private WaveCertPathValidator provideWaveCertPathValidator(
@@ -150,20 +245,24 @@ public class WaveServerModule extends AbstractModule {
    * Returns a future whose result is the state of the wavelet after it has
    * been loaded from storage.
    * Any failure is reported as a {@link PersistenceException}.
+   *
+   * @param executor runs the load
+   * @param persistExecutor runs the state's persist tasks, one at a time
    */
   @VisibleForTesting
   static ListenableFuture<DeltaStoreBasedWaveletState> loadWaveletState(
-      Executor executor, final DeltaStore deltaStore, final WaveletName waveletName) {
+      Executor executor, final Executor persistExecutor, final DeltaStore deltaStore,
+      final WaveletName waveletName,
+      final SnapshotCheckpointPolicy checkpointPolicy, final DeltaHistoryCache historyCache,
+      final int historyWindow, final boolean composedSegments) {
     ListenableFutureTask<DeltaStoreBasedWaveletState> task =
         new ListenableFutureTask<DeltaStoreBasedWaveletState>(
             new Callable<DeltaStoreBasedWaveletState>() {
               @Override
               public DeltaStoreBasedWaveletState call() throws PersistenceException {
-                // One executor per wave is inefficient; see comment in
-                // DeltaStoreBasedWaveletState.
-                Executor persistExecutor = Executors.newSingleThreadExecutor();
                 return DeltaStoreBasedWaveletState.create(deltaStore.open(waveletName),
-                    persistExecutor);
+                    persistExecutor, checkpointPolicy, historyCache, historyWindow,
+                    composedSegments);
               }
             });
     executor.execute(task);
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.waveprotocol.box.server.util.SerialExecutorPool;
+import org.waveprotocol.wave.util.logging.Log;
+
+/**
+ * Reports the statistics of the wave server: the queue depths and waits of
+ * the delta persist and storage continuation pools and of the wave bus
+ * dispatch queues, and the memory taken by delta history, in total and for
+ * the wavelets with the most resident deltas. Each run logs a report.
+ */
+@Singleton
+public class WaveServerStats implements Runnable {
+
+  private static final Log LOG = Log.get(WaveServerStats.class);
+
+  /** Number of wavelets with the most resident deltas to report. */
+  private static final int LARGEST_WAVELETS_REPORTED = 5;
+
+  private final WaveletNotificationDispatcher dispatcher;
+  private final SerialExecutorPool persistExecutorPool;
+  private final SerialExecutorPool storageContinuationExecutorPool;
+  private final DeltaHistoryCache historyCache;
+
+  @Inject
+  public WaveServerStats(WaveletNotificationDispatcher dispatcher,
+      @Named("persist_executor_pool") SerialExecutorPool persistExecutorPool,
+      @Named("storage_continuation_executor_pool")
+      SerialExecutorPool storageContinuationExecutorPool, DeltaHistoryCache historyCache) {
+    this.dispatcher = dispatcher;
+    this.persistExecutorPool = persistExecutorPool;
+    this.storageContinuationExecutorPool = storageContinuationExecutorPool;
+    this.historyCache = historyCache;
+  }
+
+  /**
+   * @return the current statistics, one line for each pool, queue and
+   *         wavelet reported.
+   */
+  public String report() {
+    StringBuilder b = new StringBuilder("Wave server stats:");
+    b.append("\n  persist: ").append(persistExecutorPool);
+    b.append("\n  storage continuation: ").append(storageContinuationExecutorPool);
+    for (WaveletNotificationDispatcher.DispatchQueue queue : dispatcher.getDispatchQueues()) {
+      b.append("\n  ").append(queue);
+    }
+    b.append("\n  delta history: ").append(historyCache);
+    for (String wavelet : historyCache.describeLargestResidentWavelets(
+        LARGEST_WAVELETS_REPORTED)) {
+      b.append("\n    ").append(wavelet);
+    }
+    return b.toString();
+  }
+
+  @Override
+  public void run() {
+    LOG.info(report());
+  }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+/**
+ * Signals an attempt to access a wavelet container which has been evicted
+ * from memory. Looking the wavelet up again loads it into a new container.
+ */
+public class WaveletClosedException extends WaveletStateException {
+  private static final long serialVersionUID = 1L;
+
+  public WaveletClosedException(String message) {
+    super(message);
+  }
+}
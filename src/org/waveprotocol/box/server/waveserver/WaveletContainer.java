@@ -29,6 +29,7 @@ import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 import java.util.Collection;
+import java.util.List;
 
 /**
  * Interface for a container class for a Wavelet's current state as well as its
@@ -68,19 +69,24 @@ interface WaveletContainer {
   <T> T applyFunction(Function<ReadableWaveletData, T> function) throws WaveletStateException;
 
   /**
-   * Retrieve the wavelet history of deltas applied to the wavelet.
+   * Retrieve the wavelet history of deltas applied to the wavelet, up to the
+   * given limits.
    *
    * @param versionStart start version (inclusive), minimum 0.
    * @param versionEnd end version (exclusive).
-   * @return serialised {@code ProtocolAppliedWaveletDelta}s in the range as
-   *         requested, ordered by applied version.
+   * @param byteLimit most bytes of deltas to return, unless the first delta
+   *        alone is longer.
+   * @param deltaLimit most deltas to return.
+   * @return serialised {@code ProtocolAppliedWaveletDelta}s from the start of
+   *         the range as requested, ordered by applied version, ending early
+   *         before the delta which would exceed a limit.
    * @throws AccessControlException if {@code versionStart} or
    *         {@code versionEnd} are not in the wavelet history.
    * @throws WaveletStateException if the wavelet is in a state unsuitable for
    *         retrieving history.
    */
-  Collection<ByteStringMessage<ProtocolAppliedWaveletDelta>> requestHistory(
-      HashedVersion versionStart, HashedVersion versionEnd)
+  List<ByteStringMessage<ProtocolAppliedWaveletDelta>> requestHistory(
+      HashedVersion versionStart, HashedVersion versionEnd, long byteLimit, int deltaLimit)
       throws AccessControlException, WaveletStateException;
 
   /**
@@ -145,5 +151,19 @@ interface WaveletContainer {
    * @return true if the wavelet is at version zero, i.e., has no delta history
    */
   boolean isEmpty() throws WaveletStateException;
+
+  /**
+   * Closes the wavelet, unless it is busy, still loading, or has deltas which
+   * have not been persisted. A closed wavelet is unusable; its data can be
+   * loaded from storage into a new container.
+   *
+   * @return true if the wavelet is closed
+   */
+  boolean closeIfPersisted();
+
+  /**
+   * @return true if the wavelet has been closed by {@link #closeIfPersisted()}
+   */
+  boolean isClosed();
   
 }
@@ -25,16 +25,12 @@ import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.InvalidProtocolBufferException;
 
-import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.server.frontend.CommittedWaveletSnapshot;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.OperationException;
-import org.waveprotocol.wave.model.operation.OperationPair;
-import org.waveprotocol.wave.model.operation.TransformException;
-import org.waveprotocol.wave.model.operation.wave.Transform;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
@@ -45,11 +41,11 @@ import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -81,12 +77,17 @@ abstract class WaveletContainerImpl implements WaveletContainer {
      * For some reason this instance is broken, e.g. a remote wavelet update
      * signature failed.
      */
-    CORRUPTED
+    CORRUPTED,
+
+    /**
+     * The wavelet has been unloaded from memory. Its data is in storage and
+     * can be loaded into a new instance.
+     */
+    CLOSED
   }
 
-  // TODO(soren): inject an executor which can be shared with other wavelets
-  private final Executor storageContinuationExecutor =
-      Executors.newSingleThreadExecutor();
+  /** Runs the continuations of storage operations, one at a time. */
+  private final Executor storageContinuationExecutor;
 
   private final Lock readLock;
   private final ReentrantReadWriteLock.WriteLock writeLock;
@@ -98,6 +99,8 @@ abstract class WaveletContainerImpl implements WaveletContainer {
   /** Is set at most once, before loadLatch is counted down. */
   private WaveletState waveletState;
   private State state = State.LOADING;
+  /** Is set when the state becomes CLOSED, so it can be checked without a lock. */
+  private volatile boolean closed = false;
 
   /**
    * Constructs an empty WaveletContainer for a wavelet.
@@ -106,11 +109,15 @@ abstract class WaveletContainerImpl implements WaveletContainer {
    * @param notifiee the subscriber to notify of wavelet updates and commits.
    * @param waveletState the wavelet's delta history and current state.
    * @param waveDomain the wave server domain.
+   * @param storageContinuationExecutor runs the continuations of storage
+   *        operations; it must run them one at a time, in order.
    */
   public WaveletContainerImpl(WaveletName waveletName, WaveletNotificationSubscriber notifiee,
-      final ListenableFuture<? extends WaveletState> waveletStateFuture, String waveDomain) {
+      final ListenableFuture<? extends WaveletState> waveletStateFuture, String waveDomain,
+      Executor storageContinuationExecutor) {
     this.waveletName = waveletName;
     this.notifiee = notifiee;
+    this.storageContinuationExecutor = storageContinuationExecutor;
     this.sharedDomainParticipantId =
         waveDomain != null ? ParticipantIdUtil.makeUnsafeSharedDomainParticipantId(waveDomain)
             : null;
@@ -177,7 +184,8 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     HashedVersion currentVersion = getCurrentVersion();
     Preconditions.checkArgument(endVersion.equals(currentVersion),
         "cannot notify of deltas ending in %s != current version %s", endVersion, currentVersion);
-    notifiee.waveletUpdate(waveletState.getSnapshot(), deltas, domainsToNotify);
+    // The snapshot is immutable, so the notifiee may read it after the lock is released.
+    notifiee.waveletUpdate(waveletState.getImmutableSnapshot(), deltas, domainsToNotify);
   }
 
   protected void notifyOfCommit(HashedVersion version, ImmutableSet<String> domainsToNotify) {
@@ -212,9 +220,13 @@ abstract class WaveletContainerImpl implements WaveletContainer {
    * Should be preceded by a call to awaitLoad() so that the initial load from
    * storage has completed. Should be called with the read or write lock held.
    *
+   * @throws WaveletClosedException if the wavelet has been evicted.
    * @throws WaveletStateException if the wavelet is loading or marked corrupt.
    */
   protected void checkStateOk() throws WaveletStateException {
+    if (state == State.CLOSED) {
+      throw new WaveletClosedException("The wavelet " + getWaveletName() + " has been evicted");
+    }
     if (state != State.OK) {
       throw new WaveletStateException("The wavelet is in an unusable state: " + state);
     }
@@ -247,6 +259,52 @@ abstract class WaveletContainerImpl implements WaveletContainer {
         storageContinuationExecutor);
   }
 
+  /**
+   * @return true if the wavelet has work in progress which has not reached
+   *         the wavelet state, so it must not be closed. Called with the
+   *         write lock held.
+   */
+  protected boolean hasPendingWork() {
+    return false;
+  }
+
+  @Override
+  public boolean closeIfPersisted() {
+    // Don't wait for a busy wavelet, it isn't idle anyway.
+    if (!writeLock.tryLock()) {
+      return false;
+    }
+    try {
+      if (state == State.CLOSED) {
+        return true;
+      }
+      if (state == State.LOADING || hasPendingWork()) {
+        return false;
+      }
+      if (waveletState != null) {
+        if (state == State.OK
+            && !waveletState.getLastPersistedVersion().equals(waveletState.getCurrentVersion())) {
+          return false;
+        }
+        try {
+          waveletState.close();
+        } catch (IOException e) {
+          LOG.warning("Failed to close wavelet " + getWaveletName(), e);
+        }
+      }
+      state = State.CLOSED;
+      closed = true;
+      return true;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isClosed() {
+    return closed;
+  }
+
   @Override
   public WaveletName getWaveletName() {
     return waveletName;
@@ -284,13 +342,16 @@ abstract class WaveletContainerImpl implements WaveletContainer {
   @Override
   public ObservableWaveletData copyWaveletData() throws WaveletStateException {
     awaitLoad();
+    ReadableWaveletData snapshot;
     acquireReadLock();
     try {
       checkStateOk();
-      return WaveletDataUtil.copyWavelet(waveletState.getSnapshot());
+      snapshot = waveletState.getImmutableSnapshot();
     } finally {
       releaseReadLock();
     }
+    // The snapshot is immutable, so it's copied without holding the lock.
+    return WaveletDataUtil.copyWavelet(snapshot);
   }
 
   @Override
@@ -299,7 +360,7 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     acquireReadLock();
     try {
       checkStateOk();
-      return new CommittedWaveletSnapshot(waveletState.getSnapshot(),
+      return new CommittedWaveletSnapshot(waveletState.getImmutableSnapshot(),
           waveletState.getLastPersistedVersion());
     } finally {
       releaseReadLock();
@@ -352,72 +413,52 @@ abstract class WaveletContainerImpl implements WaveletContainer {
 
   /**
    * Finds range of server deltas needed to transform against, then transforms all client
-   * ops against the server ops.
+   * ops against the server ops, composed by document (see {@link ComposedServerOps} and
+   * {@link ComposedDeltaHistory}).
    */
   private WaveletDelta transformSubmittedDelta(WaveletDelta submittedDelta)
       throws OperationException, InvalidHashException {
     HashedVersion targetVersion = submittedDelta.getTargetVersion();
     HashedVersion currentVersion = getCurrentVersion();
     Preconditions.checkArgument(!targetVersion.equals(currentVersion));
-    DeltaSequence serverDeltas =
-        waveletState.getTransformedDeltaHistory(targetVersion, currentVersion);
-    if (serverDeltas == null) {
-      LOG.warning("Attempt to apply delta at unknown hashed version " + targetVersion);
-      throw new InvalidHashException(currentVersion, targetVersion);
-    }
-    Preconditions.checkState(!serverDeltas.isEmpty(),
-        "No deltas between valid versions %s and %s", targetVersion, currentVersion);
-
     ParticipantId clientAuthor = submittedDelta.getAuthor();
     // TODO(anorth): remove this copy somehow; currently, it's necessary to
     // ensure that clientOps.equals() works correctly below (because
     // WaveletDelta breaks the List.equals() contract)
     List<WaveletOperation> clientOps = Lists.newArrayList(submittedDelta);
-    for (TransformedWaveletDelta serverDelta : serverDeltas) {
-      // If the client delta transforms to nothing before we've traversed all
-      // the server deltas, return the version at which the delta was
-      // obliterated (rather than the current version) to ensure that delta
-      // submission is idempotent.
-      if (clientOps.isEmpty()) {
-        return new WaveletDelta(clientAuthor, targetVersion, clientOps);
+    // The client ops are transformed against runs of server deltas, composed
+    // by document. A run ends at each server delta by the client's author, as
+    // it may be a duplicate of the client delta transformed that far.
+    HashedVersion runStart = targetVersion;
+    HashedVersion runEnd = waveletState.findDeltaByAuthor(targetVersion, currentVersion,
+        clientAuthor);
+    if (runEnd == null) {
+      LOG.warning("Attempt to apply delta at unknown hashed version " + targetVersion);
+      throw new InvalidHashException(currentVersion, targetVersion);
+    }
+    if (clientOps.isEmpty()) {
+      return new WaveletDelta(clientAuthor, targetVersion, clientOps);
+    }
+    while (true) {
+      if (runStart.getVersion() < runEnd.getVersion()) {
+        clientOps = waveletState.getComposedDeltaHistory(runStart, runEnd).transform(clientOps);
       }
-      ParticipantId serverAuthor = serverDelta.getAuthor();
-      if (clientAuthor.equals(serverAuthor) && clientOps.equals(serverDelta)) {
-        // This is a duplicate of the server delta.
-        return new WaveletDelta(clientAuthor, targetVersion, clientOps);
+      if (runEnd.equals(currentVersion)) {
+        return new WaveletDelta(clientAuthor, currentVersion, clientOps);
       }
-      clientOps = transformOps(clientOps, serverDelta);
-      targetVersion = serverDelta.getResultingVersion();
-    }
-    Preconditions.checkState(targetVersion.equals(currentVersion));
-    return new WaveletDelta(clientAuthor, targetVersion, clientOps);
-  }
-
-  /**
-   * Transforms the specified client operations against the specified server operations,
-   * returning the transformed client operations in a new list.
-   *
-   * @param clientOps may be unmodifiable
-   * @param serverOps may be unmodifiable
-   * @return transformed client ops
-   */
-  private List<WaveletOperation> transformOps(List<WaveletOperation> clientOps,
-      List<WaveletOperation> serverOps) throws OperationException {
-    List<WaveletOperation> transformedClientOps = Lists.newArrayList();
-
-    for (WaveletOperation c : clientOps) {
-      for (WaveletOperation s : serverOps) {
-        OperationPair<WaveletOperation> pair;
-        try {
-          pair = Transform.transform(c, s);
-        } catch (TransformException e) {
-          throw new OperationException(e);
-        }
-        c = pair.clientOp();
+      TransformedWaveletDelta serverDelta = waveletState.getTransformedDelta(runEnd);
+      if (clientOps.equals(serverDelta)) {
+        // This is a duplicate of the server delta. Return the version at
+        // which it was applied, to ensure that delta submission is
+        // idempotent.
+        return new WaveletDelta(clientAuthor, runEnd, clientOps);
       }
-      transformedClientOps.add(c);
+      // The next run begins with this delta.
+      runStart = runEnd;
+      HashedVersion searchStart = serverDelta.getResultingVersion();
+      runEnd = searchStart.equals(currentVersion) ? currentVersion
+          : waveletState.findDeltaByAuthor(searchStart, currentVersion, clientAuthor);
     }
-    return transformedClientOps;
   }
 
   /**
@@ -472,15 +513,15 @@ abstract class WaveletContainerImpl implements WaveletContainer {
   }
 
   @Override
-  public Collection<ByteStringMessage<ProtocolAppliedWaveletDelta>> requestHistory(
-      HashedVersion startVersion, HashedVersion endVersion)
+  public List<ByteStringMessage<ProtocolAppliedWaveletDelta>> requestHistory(
+      HashedVersion startVersion, HashedVersion endVersion, long byteLimit, int deltaLimit)
       throws AccessControlException, WaveletStateException {
     acquireReadLock();
     try {
       checkStateOk();
       checkVersionIsDeltaBoundary(startVersion, "start version");
       checkVersionIsDeltaBoundary(endVersion, "end version");
-      return waveletState.getAppliedDeltaHistory(startVersion, endVersion);
+      return waveletState.getAppliedDeltaHistory(startVersion, endVersion, byteLimit, deltaLimit);
     } finally {
       releaseReadLock();
     }
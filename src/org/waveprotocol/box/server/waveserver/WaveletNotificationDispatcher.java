@@ -21,12 +21,16 @@ import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.MapMaker;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.google.protobuf.ByteString;
 
 import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.CoreSettings;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.util.SerialExecutorPool;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.wave.federation.FederationHostBridge;
 import org.waveprotocol.wave.federation.WaveletFederationListener;
@@ -38,9 +42,14 @@ import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Forwards wave notifications to wave bus subscribers and remote wave servers.
@@ -50,12 +59,113 @@ import java.util.concurrent.CopyOnWriteArraySet;
  * in bad shape if a subscriber throws a runtime exception.
  * TODO(anorth): Remove this catch and let the server crash.
  *
+ * Notifications are either delivered inline, on the thread which changed the
+ * wavelet and with its write lock held, or queued and delivered on a shared
+ * executor, so that the wavelet's writers don't wait for the subscribers.
+ * When queued, each subscriber and the federation hosts have their own
+ * {@link DispatchQueue}, which delivers the notifications of each wavelet in
+ * order and keeps count of how far behind it is.
+ *
  * @author soren@google.com (Soren Lassen)
  */
 class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubscriber {
 
   private static final Log LOG = Log.get(WaveletNotificationDispatcher.class);
 
+  /**
+   * Number of serial executors in each dispatch queue. Wavelets are spread
+   * over them by name, which bounds how many of one queue's notifications are
+   * delivered in parallel.
+   */
+  private static final int DISPATCH_QUEUE_STRIPES = 16;
+
+  /**
+   * Delivers notifications to one recipient, those of each wavelet in the
+   * order they were queued, and keeps count of the queued notifications and
+   * of the time they waited.
+   */
+  static final class DispatchQueue {
+    private final String name;
+    private final Executor[] stripes;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong totalLagNanos = new AtomicLong();
+    private final AtomicLong maxLagNanos = new AtomicLong();
+    private volatile boolean closed = false;
+
+    DispatchQueue(String name, SerialExecutorPool pool) {
+      this.name = name;
+      this.stripes = new Executor[DISPATCH_QUEUE_STRIPES];
+      for (int i = 0; i < stripes.length; i++) {
+        stripes[i] = pool.newSerialExecutor();
+      }
+    }
+
+    /** Queues a notification about a wavelet. */
+    void enqueue(WaveletName waveletName, final Runnable notification) {
+      final long queuedNanos = System.nanoTime();
+      queueDepth.incrementAndGet();
+      stripes[(waveletName.hashCode() & Integer.MAX_VALUE) % stripes.length].execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              queueDepth.decrementAndGet();
+              if (closed) {
+                return;
+              }
+              recordLag(System.nanoTime() - queuedNanos);
+              notification.run();
+            }
+          });
+    }
+
+    /** Drops the notifications which have not been delivered yet. */
+    void close() {
+      closed = true;
+    }
+
+    private void recordLag(long lagNanos) {
+      deliveredCount.incrementAndGet();
+      totalLagNanos.addAndGet(lagNanos);
+      long max = maxLagNanos.get();
+      while (lagNanos > max && !maxLagNanos.compareAndSet(max, lagNanos)) {
+        max = maxLagNanos.get();
+      }
+    }
+
+    /** @return the name of the recipient. */
+    public String getName() {
+      return name;
+    }
+
+    /** @return the number of queued notifications not yet delivered. */
+    public int getQueueDepth() {
+      return queueDepth.get();
+    }
+
+    /** @return the number of notifications delivered. */
+    public long getDeliveredCount() {
+      return deliveredCount.get();
+    }
+
+    /** @return the mean time notifications waited to be delivered, in milliseconds. */
+    public double getMeanLagMillis() {
+      long count = deliveredCount.get();
+      return count == 0 ? 0 : totalLagNanos.get() / 1e6 / count;
+    }
+
+    /** @return the longest time a notification waited to be delivered, in milliseconds. */
+    public double getMaxLagMillis() {
+      return maxLagNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("DispatchQueue(%s, queued=%d, delivered=%d, lag=%.3fms, maxLag=%.3fms)",
+          name, getQueueDepth(), getDeliveredCount(), getMeanLagMillis(), getMaxLagMillis());
+    }
+  }
+
   /** Picks out the transformed deltas from a list of delta records. */
   private static ImmutableList<TransformedWaveletDelta> transformedDeltasOf(
       Iterable<WaveletDeltaRecord> deltaRecords) {
@@ -81,6 +191,16 @@ class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubsc
   private final CopyOnWriteArraySet<WaveBus.Subscriber> subscribers =
       new CopyOnWriteArraySet<WaveBus.Subscriber>();
 
+  /** Runs the dispatch queues, or null if notifications are delivered inline. */
+  private final SerialExecutorPool dispatchPool;
+
+  /** The dispatch queue of each subscriber, if notifications are queued. */
+  private final ConcurrentMap<WaveBus.Subscriber, DispatchQueue> subscriberQueues =
+      new MapMaker().makeMap();
+
+  /** The dispatch queue of the federation hosts, if notifications are queued. */
+  private final DispatchQueue federationQueue;
+
   /** Maps remote domains to wave server stubs for those domains. */
   private final Map<String, WaveletFederationListener> federationHosts =
       new MapMaker().makeComputingMap(
@@ -91,78 +211,184 @@ class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubsc
             }
           });
 
+  /**
+   * Constructs a dispatcher which delivers notifications inline.
+   *
+   * @param certificateManager knows what the local domains are
+   * @param federationHostFactory manufactures federation host instances for
+   *        remote domains
+   */
+  public WaveletNotificationDispatcher(
+      CertificateManager certificateManager,
+      WaveletFederationListener.Factory federationHostFactory) {
+    this(certificateManager, federationHostFactory, false, null);
+  }
+
   /**
    * Constructor.
    *
    * @param certificateManager knows what the local domains are
    * @param federationHostFactory manufactures federation host instances for
    *        remote domains
+   * @param asyncDispatch whether to queue notifications rather than deliver
+   *        them inline
+   * @param dispatchExecutor runs the dispatch queues if asyncDispatch is set
    */
   @Inject
   public WaveletNotificationDispatcher(
       CertificateManager certificateManager,
-      @FederationHostBridge WaveletFederationListener.Factory federationHostFactory) {
+      @FederationHostBridge WaveletFederationListener.Factory federationHostFactory,
+      @Named(CoreSettings.WAVE_BUS_ASYNC_DISPATCH) boolean asyncDispatch,
+      @Named("wave_bus_dispatch_executor") Executor dispatchExecutor) {
     this.localDomains = certificateManager.getLocalDomains();
     this.federationHostFactory = federationHostFactory;
+    if (asyncDispatch) {
+      this.dispatchPool = new SerialExecutorPool(dispatchExecutor);
+      this.federationQueue = new DispatchQueue("federation", dispatchPool);
+    } else {
+      this.dispatchPool = null;
+      this.federationQueue = null;
+    }
   }
 
   @Override
   public void subscribe(Subscriber s) {
+    if (dispatchPool != null) {
+      subscriberQueues.putIfAbsent(s, new DispatchQueue(s.toString(), dispatchPool));
+    }
     subscribers.add(s);
   }
 
   @Override
   public void unsubscribe(Subscriber s) {
     subscribers.remove(s);
+    DispatchQueue queue = subscriberQueues.remove(s);
+    if (queue != null) {
+      queue.close();
+    }
+  }
+
+  /**
+   * @return the dispatch queues of the subscribers and of the federation
+   *         hosts, empty if notifications are delivered inline
+   */
+  public List<DispatchQueue> getDispatchQueues() {
+    List<DispatchQueue> queues = Lists.newArrayList(subscriberQueues.values());
+    if (federationQueue != null) {
+      queues.add(federationQueue);
+    }
+    return queues;
   }
 
   @Override
-  public void waveletUpdate(ReadableWaveletData wavelet, ImmutableList<WaveletDeltaRecord> deltas,
-      ImmutableSet<String> domainsToNotify) {
-    DeltaSequence sequence = DeltaSequence.of(transformedDeltasOf(deltas));
-    for (WaveBus.Subscriber s : subscribers) {
-      try {
-        s.waveletUpdate(wavelet, sequence);
-      } catch (RuntimeException e) {
-        LOG.severe("Runtime exception in update to wave bus subscriber " + s, e);
-        // Subscriber is now in an undefined state.
-        subscribers.remove(s);
-      }
+  public void waveletUpdate(final ReadableWaveletData wavelet,
+      final ImmutableList<WaveletDeltaRecord> deltas, ImmutableSet<String> domainsToNotify) {
+    final WaveletName waveletName = WaveletDataUtil.waveletNameOf(wavelet);
+    final DeltaSequence sequence = DeltaSequence.of(transformedDeltasOf(deltas));
+    for (final WaveBus.Subscriber s : subscribers) {
+      deliver(s, waveletName, "update", new Runnable() {
+        @Override
+        public void run() {
+          s.waveletUpdate(wavelet, sequence);
+        }
+      });
     }
 
-    Set<String> remoteDomainsToNotify = Sets.difference(domainsToNotify, localDomains);
+    final Set<String> remoteDomainsToNotify = Sets.difference(domainsToNotify, localDomains);
     if (!remoteDomainsToNotify.isEmpty()) {
-      ImmutableList<ByteString> serializedAppliedDeltas = serializedAppliedDeltasOf(deltas);
-      for (String domain : remoteDomainsToNotify) {
-        federationHosts.get(domain).waveletDeltaUpdate(WaveletDataUtil.waveletNameOf(wavelet),
-            serializedAppliedDeltas, federationCallback("delta update"));
-      }
+      deliverToFederation(waveletName, "delta update", new Runnable() {
+        @Override
+        public void run() {
+          ImmutableList<ByteString> serializedAppliedDeltas = serializedAppliedDeltasOf(deltas);
+          for (String domain : remoteDomainsToNotify) {
+            federationHosts.get(domain).waveletDeltaUpdate(waveletName, serializedAppliedDeltas,
+                federationCallback("delta update"));
+          }
+        }
+      });
     }
   }
 
   @Override
-  public void waveletCommitted(WaveletName waveletName, HashedVersion version,
+  public void waveletCommitted(final WaveletName waveletName, final HashedVersion version,
       ImmutableSet<String> domainsToNotify) {
-    for (WaveBus.Subscriber s : subscribers) {
-      try {
-        s.waveletCommitted(waveletName, version);
-      } catch (RuntimeException e) {
-        LOG.severe("Runtime exception in commit to wave bus subscriber " + s, e);
-        // Subscriber is now in an undefined state.
-        subscribers.remove(s);
-      }
+    for (final WaveBus.Subscriber s : subscribers) {
+      deliver(s, waveletName, "commit", new Runnable() {
+        @Override
+        public void run() {
+          s.waveletCommitted(waveletName, version);
+        }
+      });
     }
 
-    Set<String> remoteDomainsToNotify = Sets.difference(domainsToNotify, localDomains);
+    final Set<String> remoteDomainsToNotify = Sets.difference(domainsToNotify, localDomains);
     if (!remoteDomainsToNotify.isEmpty()) {
-      ProtocolHashedVersion serializedVersion = CoreWaveletOperationSerializer.serialize(version);
-      for (String domain : remoteDomainsToNotify) {
-        federationHosts.get(domain).waveletCommitUpdate(
-            waveletName, serializedVersion, federationCallback("commit notice"));
+      deliverToFederation(waveletName, "commit notice", new Runnable() {
+        @Override
+        public void run() {
+          ProtocolHashedVersion serializedVersion =
+              CoreWaveletOperationSerializer.serialize(version);
+          for (String domain : remoteDomainsToNotify) {
+            federationHosts.get(domain).waveletCommitUpdate(
+                waveletName, serializedVersion, federationCallback("commit notice"));
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Delivers a notification to a subscriber, inline or through its dispatch
+   * queue.
+   */
+  private void deliver(final WaveBus.Subscriber s, WaveletName waveletName,
+      final String description, final Runnable notification) {
+    Runnable delivery = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          notification.run();
+        } catch (RuntimeException e) {
+          LOG.severe("Runtime exception in " + description + " to wave bus subscriber " + s, e);
+          // Subscriber is now in an undefined state.
+          unsubscribe(s);
+        }
+      }
+    };
+    if (dispatchPool == null) {
+      delivery.run();
+    } else {
+      DispatchQueue queue = subscriberQueues.get(s);
+      // The subscriber may have been removed since the caller looked.
+      if (queue != null) {
+        queue.enqueue(waveletName, delivery);
       }
     }
   }
 
+  /**
+   * Sends a notification to the federation hosts, inline or through their
+   * dispatch queue. A runtime exception from a queued notification is logged,
+   * since there is no caller to report it to.
+   */
+  private void deliverToFederation(WaveletName waveletName, final String description,
+      final Runnable notification) {
+    if (federationQueue == null) {
+      notification.run();
+    } else {
+      federationQueue.enqueue(waveletName, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            notification.run();
+          } catch (RuntimeException e) {
+            LOG.severe("Runtime exception in " + description + " to federation hosts", e);
+          }
+        }
+      });
+    }
+  }
+
   private WaveletFederationListener.WaveletUpdateCallback federationCallback(
       final String description) {
     return new WaveletFederationListener.WaveletUpdateCallback() {
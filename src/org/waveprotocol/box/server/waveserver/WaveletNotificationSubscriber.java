@@ -33,8 +33,8 @@ public interface WaveletNotificationSubscriber {
   /**
    * Notifies of a wavelet update.
    *
-   * @param wavelet the state of the wavelet after the deltas have
-   *        been applied
+   * @param wavelet an immutable snapshot of the wavelet after the deltas have
+   *        been applied, which may be read without the wavelet's lock
    * @param deltas deltas applied to the wavelet
    * @param domainsToNotify domains who should know. Empty set if the wavelet is remote.
    */
@@ -21,15 +21,18 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.util.ImmutableWaveletSnapshot;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.OperationException;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * The state of a wavelet, including its delta history. Combines persisted and
@@ -53,6 +56,16 @@ interface WaveletState {
    */
   ReadableWaveletData getSnapshot();
 
+  /**
+   * Unlike the other methods, may be called concurrently with calls which
+   * don't change the wavelet state.
+   *
+   * @return an immutable snapshot of the wavelet state, which may be read
+   *         after later changes, or null if the wavelet state is empty.
+   *         Shares the documents of earlier snapshots which haven't changed.
+   */
+  ImmutableWaveletSnapshot getImmutableSnapshot();
+
   /**
    * @return the current hashed version.
    */
@@ -88,6 +101,23 @@ interface WaveletState {
    */
   DeltaSequence getTransformedDeltaHistory(HashedVersion startVersion, HashedVersion endVersion);
 
+  /**
+   * @return the operations of the transformed deltas from the one applied at
+   *         the given start version until the one resulting in the given end
+   *         version, composed by document, if these exist, otherwise null.
+   */
+  ComposedServerOps getComposedDeltaHistory(HashedVersion startVersion,
+      HashedVersion endVersion);
+
+  /**
+   * @return the version at which the first delta by the given author, from the
+   *         one applied at the given start version until the one resulting in
+   *         the given end version, was applied, or the end version if there is
+   *         no such delta. Null if either version isn't at a delta boundary.
+   */
+  HashedVersion findDeltaByAuthor(HashedVersion startVersion, HashedVersion endVersion,
+      ParticipantId author);
+
   /**
    * @return the applied delta applied at the given version, if it exists,
    *         otherwise null.
@@ -109,6 +139,17 @@ interface WaveletState {
   Collection<ByteStringMessage<ProtocolAppliedWaveletDelta>> getAppliedDeltaHistory(
       HashedVersion startVersion, HashedVersion endVersion);
 
+  /**
+   * Reads the applied deltas from the one applied at the given start version
+   * towards the one resulting in the given end version, stopping before the
+   * delta which would take the deltas read past the given number of bytes or
+   * deltas. The first delta is read regardless of the limits.
+   *
+   * @return the applied deltas read, if the versions exist, otherwise null.
+   */
+  List<ByteStringMessage<ProtocolAppliedWaveletDelta>> getAppliedDeltaHistory(
+      HashedVersion startVersion, HashedVersion endVersion, long byteLimit, int deltaLimit);
+
   /**
    * Appends the delta to the in-memory delta history.
    *
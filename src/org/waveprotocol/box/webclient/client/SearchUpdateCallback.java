@@ -0,0 +1,37 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.webclient.client;
+
+import org.waveprotocol.box.search.SearchUpdate;
+
+/**
+ * Receives the stream of a live search opened on the websocket.
+ */
+public interface SearchUpdateCallback {
+
+  /** Notifies this callback of changed search results. */
+  void onUpdate(SearchUpdate update);
+
+  /**
+   * Notifies this callback that the search will not be updated any more.
+   *
+   * @param errorText why the search ended, or null if the server closed it
+   *        normally
+   */
+  void onFinished(String errorText);
+}
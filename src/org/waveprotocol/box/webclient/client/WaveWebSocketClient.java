@@ -34,6 +34,10 @@ import org.waveprotocol.box.common.comms.jso.ProtocolOpenRequestJsoImpl;
 import org.waveprotocol.box.common.comms.jso.ProtocolSubmitRequestJsoImpl;
 import org.waveprotocol.box.common.comms.jso.ProtocolSubmitResponseJsoImpl;
 import org.waveprotocol.box.common.comms.jso.ProtocolWaveletUpdateJsoImpl;
+import org.waveprotocol.box.search.jso.SearchRequestJsoImpl;
+import org.waveprotocol.box.search.jso.SearchUpdateJsoImpl;
+import org.waveprotocol.box.server.rpc.jso.CancelRpcJsoImpl;
+import org.waveprotocol.box.server.rpc.jso.RpcFinishedJsoImpl;
 import org.waveprotocol.box.webclient.client.events.NetworkStatusEvent;
 import org.waveprotocol.box.webclient.client.events.NetworkStatusEvent.ConnectionStatus;
 import org.waveprotocol.box.webclient.client.events.Log;
@@ -41,6 +45,7 @@ import org.waveprotocol.wave.communication.gwt.JsonMessage;
 import org.waveprotocol.wave.communication.json.JsonException;
 import org.waveprotocol.wave.model.util.CollectionUtils;
 import org.waveprotocol.wave.model.util.IntMap;
+import org.waveprotocol.wave.model.util.ReadableIntMap.ProcV;
 
 import java.util.Queue;
 
@@ -90,6 +95,7 @@ public class WaveWebSocketClient implements WaveSocket.WaveSocketCallback {
 
   private final WaveSocket socket;
   private final IntMap<SubmitResponseCallback> submitRequestCallbacks;
+  private final IntMap<SearchUpdateCallback> searchCallbacks;
 
   /**
    * Lifecycle of a socket is:
@@ -119,6 +125,7 @@ public class WaveWebSocketClient implements WaveSocket.WaveSocketCallback {
 
   public WaveWebSocketClient(boolean useSocketIO, String urlBase) {
     submitRequestCallbacks = CollectionUtils.createIntMap();
+    searchCallbacks = CollectionUtils.createIntMap();
     socket = WaveSocketFactory.create(useSocketIO, urlBase, this);
   }
 
@@ -165,6 +172,19 @@ public class WaveWebSocketClient implements WaveSocket.WaveSocketCallback {
   @Override
   public void onDisconnect() {
     connected = ConnectState.DISCONNECTED;
+
+    // The server does not cancel the searches of a lost connection, and won't
+    // send their updates to the next one, so end them here.
+    IntMap<SearchUpdateCallback> searches = CollectionUtils.createIntMap();
+    searches.putAll(searchCallbacks);
+    searchCallbacks.clear();
+    searches.each(new ProcV<SearchUpdateCallback>() {
+      @Override
+      public void apply(int seqno, SearchUpdateCallback callback) {
+        callback.onFinished("disconnected");
+      }
+    });
+
     ClientEvents.get().fireEvent(new NetworkStatusEvent(ConnectionStatus.DISCONNECTED));
   }
 
@@ -190,6 +210,19 @@ public class WaveWebSocketClient implements WaveSocket.WaveSocketCallback {
         submitRequestCallbacks.remove(seqno);
         callback.run(wrapper.<ProtocolSubmitResponseJsoImpl>getPayload());
       }
+    } else if ("SearchUpdate".equals(messageType)) {
+      SearchUpdateCallback callback = searchCallbacks.get(wrapper.getSequenceNumber());
+      if (callback != null) {
+        callback.onUpdate(wrapper.<SearchUpdateJsoImpl>getPayload());
+      }
+    } else if ("RpcFinished".equals(messageType)) {
+      int seqno = wrapper.getSequenceNumber();
+      SearchUpdateCallback callback = searchCallbacks.get(seqno);
+      if (callback != null) {
+        searchCallbacks.remove(seqno);
+        RpcFinishedJsoImpl finished = wrapper.getPayload();
+        callback.onFinished(finished.getFailed() ? finished.getErrorText() : null);
+      }
     }
   }
 
@@ -203,6 +236,29 @@ public class WaveWebSocketClient implements WaveSocket.WaveSocketCallback {
     send(MessageWrapper.create(sequenceNo++, "ProtocolOpenRequest", message));
   }
 
+  /**
+   * Opens a live search, whose results the server keeps sending as they
+   * change until the search is cancelled or finishes.
+   *
+   * @return the id of the search, for {@link #cancelSearch}
+   */
+  public int search(SearchRequestJsoImpl message, SearchUpdateCallback callback) {
+    int searchId = sequenceNo++;
+    searchCallbacks.put(searchId, callback);
+    send(MessageWrapper.create(searchId, "SearchRequest", message));
+    return searchId;
+  }
+
+  /**
+   * Cancels a live search. Its callback is not called again.
+   */
+  public void cancelSearch(int searchId) {
+    if (searchCallbacks.containsKey(searchId)) {
+      searchCallbacks.remove(searchId);
+      send(MessageWrapper.create(searchId, "CancelRpc", CancelRpcJsoImpl.create()));
+    }
+  }
+
   private void send(JsonMessage message) {
     switch (connected) {
       case CONNECTED:
@@ -41,7 +41,7 @@ import org.waveprotocol.box.webclient.client.events.WaveCreationEventHandler;
 import org.waveprotocol.box.webclient.client.events.WaveSelectionEvent;
 import org.waveprotocol.box.webclient.client.events.WaveSelectionEventHandler;
 import org.waveprotocol.box.webclient.profile.RemoteProfileManagerImpl;
-import org.waveprotocol.box.webclient.search.RemoteSearchService;
+import org.waveprotocol.box.webclient.search.LiveSearchService;
 import org.waveprotocol.box.webclient.search.Search;
 import org.waveprotocol.box.webclient.search.SearchPanelRenderer;
 import org.waveprotocol.box.webclient.search.SearchPanelWidget;
@@ -213,7 +213,7 @@ public class WebClient implements EntryPoint {
             ClientEvents.get().fireEvent(new WaveSelectionEvent(WaveRef.of(id)));
           }
         };
-    Search search = SimpleSearch.create(RemoteSearchService.create(), waveStore);
+    Search search = SimpleSearch.create(LiveSearchService.create(websocket), waveStore);
     SearchPresenter.create(search, searchPanel, actionHandler, profiles);
   }
 
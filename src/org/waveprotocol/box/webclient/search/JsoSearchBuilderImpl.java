@@ -135,7 +135,7 @@ public final class JsoSearchBuilderImpl implements SearchBuilder {
     }
   }
 
-  private static class SearchBuilderUtils {
+  static class SearchBuilderUtils {
     /**
      * Constructs a list of {@link org.waveprotocol.box.webclient.search.Digest}
      * from {@link SearchResponse}.
@@ -153,7 +153,7 @@ public final class JsoSearchBuilderImpl implements SearchBuilder {
       return digestSnapshots;
     }
 
-    private static DigestSnapshot deserializeDigest(Digest digest) {
+    static DigestSnapshot deserializeDigest(Digest digest) {
       List<ParticipantId> participantIds = CollectionUtils.newArrayList();
       for (String participant : digest.getParticipants()) {
         participantIds.add(ParticipantId.ofUnsafe(participant));
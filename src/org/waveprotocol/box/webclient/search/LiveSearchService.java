@@ -0,0 +1,176 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.webclient.search;
+
+import org.waveprotocol.box.search.SearchResponse;
+import org.waveprotocol.box.search.SearchUpdate;
+import org.waveprotocol.box.search.jso.SearchRequestJsoImpl;
+import org.waveprotocol.box.webclient.client.SearchUpdateCallback;
+import org.waveprotocol.box.webclient.client.WaveWebSocketClient;
+import org.waveprotocol.box.webclient.search.JsoSearchBuilderImpl.SearchBuilderUtils;
+import org.waveprotocol.wave.client.debug.logger.DomLogger;
+import org.waveprotocol.wave.client.scheduler.Scheduler.Task;
+import org.waveprotocol.wave.client.scheduler.SchedulerInstance;
+import org.waveprotocol.wave.client.scheduler.TimerService;
+import org.waveprotocol.wave.common.logging.LoggerBundle;
+import org.waveprotocol.wave.model.util.CollectionUtils;
+import org.waveprotocol.wave.model.util.StringMap;
+
+import java.util.List;
+
+/**
+ * Implementation of {@link SearchService} that keeps the latest search open on
+ * the websocket, and passes the results the server pushes on to its callback.
+ * <p>
+ * Repeating the open search is answered from the results already received,
+ * so the search presenter's polling costs nothing while the search is live. If
+ * the live search fails before its first results, or has ended, searches are
+ * sent to the search servlet instead, and a later search opens a new live one.
+ */
+public final class LiveSearchService implements SearchService {
+  private static final LoggerBundle LOG = new DomLogger("search");
+
+  /** A search open on the websocket. */
+  private final class LiveSearch implements SearchUpdateCallback {
+    private final String query;
+    private final int index;
+    private final int numResults;
+    private final int id;
+
+    /** The callback to which results are passed on. */
+    private Callback callback;
+
+    /** The results received so far, by wave id. */
+    private final StringMap<DigestSnapshot> digests = CollectionUtils.createStringMap();
+    /** The wave ids of the results, in order; null until the first update. */
+    private List<String> waveIds;
+    private int total;
+
+    LiveSearch(String query, int index, int numResults, Callback callback) {
+      this.query = query;
+      this.index = index;
+      this.numResults = numResults;
+      this.callback = callback;
+      SearchRequestJsoImpl request = SearchRequestJsoImpl.create();
+      request.setQuery(query);
+      request.setIndex(index);
+      request.setNumResults(numResults);
+      this.id = socket.search(request, this);
+    }
+
+    boolean isFor(String query, int index, int numResults) {
+      return this.query.equals(query) && this.index == index && this.numResults == numResults;
+    }
+
+    /**
+     * Switches to a new callback, which is sent the results received so far,
+     * if there are any.
+     */
+    void setCallback(final Callback callback) {
+      this.callback = callback;
+      if (waveIds != null) {
+        // Keep the callback asynchronous, as for a remote search.
+        timer.schedule(new Task() {
+          @Override
+          public void execute() {
+            if (live == LiveSearch.this && LiveSearch.this.callback == callback) {
+              callback.onSuccess(total, snapshots());
+            }
+          }
+        });
+      }
+    }
+
+    void cancel() {
+      socket.cancelSearch(id);
+    }
+
+    @Override
+    public void onUpdate(SearchUpdate update) {
+      for (SearchResponse.Digest digest : update.getDigests()) {
+        digests.put(digest.getWaveId(), SearchBuilderUtils.deserializeDigest(digest));
+      }
+      List<String> newWaveIds = update.getWaveIds();
+      StringMap<DigestSnapshot> window = CollectionUtils.createStringMap();
+      for (String waveId : newWaveIds) {
+        window.put(waveId, digests.get(waveId));
+      }
+      digests.clear();
+      digests.putAll(window);
+      waveIds = CollectionUtils.newArrayList(newWaveIds);
+      total = update.getTotalResults();
+      callback.onSuccess(total, snapshots());
+    }
+
+    @Override
+    public void onFinished(String errorText) {
+      if (live == this) {
+        live = null;
+      }
+      if (errorText != null) {
+        LOG.error().log("Live search ended: ", errorText);
+      }
+      if (waveIds == null) {
+        // No results were received, so get some from the servlet.
+        fallback.search(query, index, numResults, callback);
+      }
+    }
+
+    private List<DigestSnapshot> snapshots() {
+      List<DigestSnapshot> snapshots = CollectionUtils.newArrayList();
+      for (String waveId : waveIds) {
+        snapshots.add(digests.get(waveId));
+      }
+      return snapshots;
+    }
+  }
+
+  private final WaveWebSocketClient socket;
+  private final SearchService fallback;
+  private final TimerService timer;
+
+  /** The open search, or null. */
+  private LiveSearch live;
+
+  LiveSearchService(WaveWebSocketClient socket, SearchService fallback, TimerService timer) {
+    this.socket = socket;
+    this.fallback = fallback;
+    this.timer = timer;
+  }
+
+  /**
+   * Creates a search service which searches over a websocket, and falls back
+   * to the search servlet.
+   */
+  public static LiveSearchService create(WaveWebSocketClient socket) {
+    return new LiveSearchService(socket, RemoteSearchService.create(),
+        SchedulerInstance.getHighPriorityTimer());
+  }
+
+  @Override
+  public void search(String query, int index, int numResults, Callback callback) {
+    if (live != null && live.isFor(query, index, numResults)) {
+      live.setCallback(callback);
+    } else {
+      if (live != null) {
+        live.cancel();
+      }
+      live = new LiveSearch(query, index, numResults, callback);
+    }
+  }
+}
@@ -167,8 +167,9 @@ public final class SearchPresenter
             actionHandler.onCreateWave();
 
             // HACK(hearnden): To mimic live search, fire a search poll
-            // reasonably soon (500ms) after creating a wave. This will be unnecessary
-            // with a real live search implementation. The delay is to give
+            // reasonably soon (500ms) after creating a wave. This is only
+            // needed when the search service has fallen back to polling; a
+            // live search answers the poll locally. The delay is to give
             // enough time for the wave state to propagate to the server.
             int delay = 500;
             scheduler.scheduleRepeating(searchUpdater, delay, POLLING_INTERVAL_MS);
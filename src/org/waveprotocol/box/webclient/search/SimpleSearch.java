@@ -197,6 +197,12 @@ public final class SimpleSearch implements Search, WaveStore.Listener {
   /** The request that is currently in flight, or {@code null}. */
   private Callback outstanding;
 
+  /**
+   * The request whose results are shown, or {@code null}. A live search
+   * service keeps sending it results as they change.
+   */
+  private Callback current;
+
   /** Total size of the search result. */
   private int total = 0;
 
@@ -229,6 +235,7 @@ public final class SimpleSearch implements Search, WaveStore.Listener {
     destroyDigests();
     waveStore.removeListener(this);
     outstanding = null;
+    current = null;
   }
 
   private void destroyDigests() {
@@ -258,6 +265,9 @@ public final class SimpleSearch implements Search, WaveStore.Listener {
       public void onSuccess(int total, List<DigestSnapshot> snapshots) {
         if (outstanding == this) {
           outstanding = null;
+          current = this;
+          handleSuccess(total, 0, snapshots);
+        } else if (outstanding == null && current == this) {
           handleSuccess(total, 0, snapshots);
         }
       }
@@ -283,6 +293,7 @@ public final class SimpleSearch implements Search, WaveStore.Listener {
    */
   private void handleFailure(String message) {
     log.error().log("Search failed: ", message);
+    current = null;
     destroyDigests();
     fireOnStateChanged();
   }
@@ -16,78 +16,92 @@
  */
 package org.waveprotocol.wave.crypto;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+
 import java.security.cert.X509Certificate;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Cache supporting both LRU and time-based expiration.
+ * Cache supporting both size-based and time-based expiration.
  *
- * LRU: once maximum size is reached, the least recently accessed element is
- * discarded.
+ * Size-based: once maximum size is reached, entries which haven't been
+ * accessed recently are discarded.
  *
  * Time-based: entries are discarded once they reach a maximum age.
  *
- * This cache is in-memory only, uses 1024 entries and expires them after 10
- * minutes. In large deployments, you might want to replace this implementation
- * with a distributed cache that survives restarts of the servers (although
- * 10 minutes is still a good time for the expirations). Simply inject a
- * different {@link VerifiedCertChainCache} using Guice.
+ * This cache is in-memory only, uses 1024 entries unless told otherwise and
+ * expires them after 10 minutes. It can be read and written concurrently, and
+ * counts its hits and misses. In large deployments, you might want to replace
+ * this implementation with a distributed cache that survives restarts of the
+ * servers (although 10 minutes is still a good time for the expirations).
+ * Simply inject a different {@link VerifiedCertChainCache} using Guice.
  */
 public class DefaultCacheImpl implements VerifiedCertChainCache {
 
   private static final int VALIDATION_CACHE_SIZE = 1024;
   private static final long VALIDATION_CACHE_AGE_SECONDS = 10 * 60;
 
-  private final LruLinkedHashMap map;
+  private final ConcurrentMap<Object, EntryWithAge> map;
   private final TimeSource timeSource;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
 
   public DefaultCacheImpl(TimeSource timeSource) {
-    this.map = new LruLinkedHashMap(VALIDATION_CACHE_SIZE);
+    this(timeSource, VALIDATION_CACHE_SIZE);
+  }
+
+  /**
+   * @param timeSource source of the time at which entries expire
+   * @param maxSize maximum number of cached cert chains
+   */
+  public DefaultCacheImpl(TimeSource timeSource, int maxSize) {
+    Preconditions.checkArgument(maxSize > 0, "Non-positive cache size %s", maxSize);
+    this.map = new MapMaker().maximumSize(maxSize).makeMap();
     this.timeSource = timeSource;
   }
 
   public void add(List<? extends X509Certificate> key) {
-    synchronized(map) {
-      long maxAge = timeSource.currentTimeMillis()
-          + VALIDATION_CACHE_AGE_SECONDS * 1000L;
-      map.put(key, new EntryWithAge(maxAge));
-    }
+    long maxAge = timeSource.currentTimeMillis()
+        + VALIDATION_CACHE_AGE_SECONDS * 1000L;
+    map.put(key, new EntryWithAge(maxAge));
   }
 
   public boolean contains(List<? extends X509Certificate> key) {
-    synchronized(map) {
-      EntryWithAge entry = map.get(key);
-      if ((entry != null)
-          && (timeSource.currentTimeMillis() < entry.expireMillis)) {
-        return true;
-      }
-      return false;
+    EntryWithAge entry = map.get(key);
+    if ((entry != null)
+        && (timeSource.currentTimeMillis() < entry.expireMillis)) {
+      hitCount.incrementAndGet();
+      return true;
     }
- }
-
- private static class EntryWithAge {
-   private final long expireMillis;
+    missCount.incrementAndGet();
+    return false;
+  }
 
-   public EntryWithAge(long expireMillis) {
-     this.expireMillis = expireMillis;
-   }
- }
+  /** @return the number of lookups which found a cert chain. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
 
- private static class LruLinkedHashMap
-     extends LinkedHashMap<Object, EntryWithAge> {
+  /** @return the number of lookups which didn't find a cert chain. */
+  public long getMissCount() {
+    return missCount.get();
+  }
 
-   private final int capacity;
+  /** @return the fraction of lookups which found a cert chain, or 0 if none. */
+  public double getHitRate() {
+    long hits = hitCount.get();
+    long lookups = hits + missCount.get();
+    return (lookups == 0) ? 0 : (double) hits / lookups;
+  }
 
-   public LruLinkedHashMap(int capacity) {
-     super(capacity, 0.75f, true);
-     this.capacity = capacity;
-   }
+  private static class EntryWithAge {
+    private final long expireMillis;
 
-   @Override
-   protected boolean removeEldestEntry(Map.Entry<Object, EntryWithAge> eldest) {
-     return this.size() > capacity;
-   }
- }
+    public EntryWithAge(long expireMillis) {
+      this.expireMillis = expireMillis;
+    }
+  }
 }
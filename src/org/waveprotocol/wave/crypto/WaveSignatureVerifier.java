@@ -16,6 +16,10 @@
  */
 package org.waveprotocol.wave.crypto;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
+import com.google.protobuf.ByteString;
+
 import org.apache.commons.codec.binary.Base64;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
 
@@ -26,6 +30,8 @@ import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -41,6 +47,9 @@ public class WaveSignatureVerifier {
   // 2 represents an AlternativeSubjectName of type DNS
   private static final Integer ALT_NAME_TYPE_DNS = Integer.valueOf(2);
 
+  // Maximum number of signers whose parsed cert chains are kept.
+  private static final int SIGNER_CACHE_SIZE = 1024;
+
   // The cert chain validator. This object can tell us whether a given cert
   // chain checks out ok.
   private final WaveCertPathValidator pathValidator;
@@ -49,6 +58,15 @@ public class WaveSignatureVerifier {
   // cert chains.
   private final CertPathStore pathStore;
 
+  // Signers found in the store, by signer id, with the names their target
+  // certificates were issued to. A signer id is the hash of its cert chain, so
+  // a cached signer never goes stale, and stores which parse the cert chain on
+  // each lookup only do so once per signer rather than once per signature.
+  // Whether the cert chain checks out is still asked of the validator on each
+  // verification, since that changes over time.
+  private final ConcurrentMap<ByteString, Signer> signers =
+      new MapMaker().maximumSize(SIGNER_CACHE_SIZE).makeMap();
+
   public WaveSignatureVerifier(WaveCertPathValidator validator, CertPathStore store) {
     this.pathValidator = validator;
     this.pathStore = store;
@@ -70,15 +88,9 @@ public class WaveSignatureVerifier {
   public void verify(byte[] signedPayload, ProtocolSignature signatureInfo,
       String authority) throws SignatureException, UnknownSignerException {
 
-    SignerInfo signer = pathStore.getSignerInfo(
-        signatureInfo.getSignerId().toByteArray());
-
-    if (signer == null) {
-      throw new UnknownSignerException("could not find information about signer "
-          + Base64.encodeBase64(signatureInfo.getSignerId().toByteArray()));
-    }
+    Signer signer = getSigner(signatureInfo.getSignerId());
 
-    verifySignerInfo(signer);
+    verifySignerInfo(signer.info);
 
     Signature verifier;
     try {
@@ -89,7 +101,7 @@ public class WaveSignatureVerifier {
           signatureInfo.getSignatureAlgorithm().toString(), e);
     }
 
-    X509Certificate cert = signer.getCertificates().get(0);
+    X509Certificate cert = signer.info.getCertificates().get(0);
 
     try {
       verifier.initVerify(cert);
@@ -114,7 +126,30 @@ public class WaveSignatureVerifier {
       throw new SignatureException(e);
     }
 
-    verifyMatchingAuthority(authority, cert);
+    verifyMatchingAuthority(authority, signer);
+  }
+
+  /**
+   * Returns the signer with the given id, looking it up in the store if it
+   * isn't cached.
+   *
+   * @throws UnknownSignerException if the signer isn't in the store.
+   */
+  private Signer getSigner(ByteString signerId)
+      throws SignatureException, UnknownSignerException {
+    Signer signer = signers.get(signerId);
+    if (signer == null) {
+      SignerInfo info = pathStore.getSignerInfo(signerId.toByteArray());
+
+      if (info == null) {
+        throw new UnknownSignerException("could not find information about signer "
+            + Base64.encodeBase64(signerId.toByteArray()));
+      }
+
+      signer = new Signer(info);
+      signers.put(signerId, signer);
+    }
+    return signer;
   }
 
   /**
@@ -130,28 +165,26 @@ public class WaveSignatureVerifier {
   }
 
   /**
-   * Verifies that the given certificate was issued to the given authority.
+   * Verifies that the target certificate of the signer was issued to the
+   * given authority.
    * @param authority the authority to which the certificate was issued,
    *   e.g., a domain name.
-   * @param certificate the {@link X509Certificate}
+   * @param signer the {@link Signer}
    * @throws SignatureException if the authority doesn't match the certificate.
    */
   private void verifyMatchingAuthority(String authority,
-      X509Certificate certificate) throws SignatureException {
-
-    String cn = getCommonNameFromDistinguishedName(
-        certificate.getSubjectX500Principal().getName());
+      Signer signer) throws SignatureException {
 
-    if (cn == null) {
+    if (signer.commonName == null) {
       throw new SignatureException("no common name found in signer " +
-          "certificate " + certificate.getSubjectDN().toString());
+          "certificate " + signer.info.getCertificates().get(0).getSubjectDN().toString());
     }
 
-    if (cn.equals(authority)) {
+    if (signer.commonName.equals(authority)) {
       return;
     }
 
-    if (authorityMatchesSubjectAlternativeNames(authority, certificate)) {
+    if (signer.dnsNames.contains(authority)) {
       return;
     }
 
@@ -161,11 +194,10 @@ public class WaveSignatureVerifier {
   }
 
   /**
-   * Returns true if the authority given matches any of the
-   * SubjectAlternativeNames present in the certificate, false otherwise.
+   * Returns the domain names among the SubjectAlternativeNames present in the
+   * certificate.
    */
-  private boolean authorityMatchesSubjectAlternativeNames(String authority,
-      X509Certificate certificate) {
+  private static Set<String> getSubjectAlternativeDnsNames(X509Certificate certificate) {
 
     Collection<List<?>> subjAltNames = null;
     try {
@@ -177,9 +209,10 @@ public class WaveSignatureVerifier {
     }
 
     if (subjAltNames == null) {
-      return false;
+      return ImmutableSet.of();
     }
 
+    ImmutableSet.Builder<String> dnsNames = ImmutableSet.builder();
     for (List<?> altName : subjAltNames) {
 
       Integer nameType = (Integer) altName.get(0);
@@ -189,17 +222,13 @@ public class WaveSignatureVerifier {
         continue;
       }
 
-      String dnsName = (String) altName.get(1);
-      if (authority.equals(dnsName)) {
-        return true;
-      }
+      dnsNames.add((String) altName.get(1));
     }
 
-    // None of the names matched.
-    return false;
+    return dnsNames.build();
   }
 
-  private String getCommonNameFromDistinguishedName(String dn) {
+  private static String getCommonNameFromDistinguishedName(String dn) {
     Matcher m = CN_PATTERN.matcher(dn);
     if (m.find()) {
       return m.group(1);
@@ -207,4 +236,22 @@ public class WaveSignatureVerifier {
       return null;
     }
   }
+
+  /**
+   * A signer's cert chain, with the names its target certificate was issued
+   * to.
+   */
+  private static class Signer {
+    private final SignerInfo info;
+    private final String commonName;
+    private final Set<String> dnsNames;
+
+    Signer(SignerInfo info) {
+      X509Certificate certificate = info.getCertificates().get(0);
+      this.info = info;
+      this.commonName = getCommonNameFromDistinguishedName(
+          certificate.getSubjectX500Principal().getName());
+      this.dnsNames = getSubjectAlternativeDnsNames(certificate);
+    }
+  }
 }
@@ -17,6 +17,11 @@
 
 package org.waveprotocol.wave.federation.xmpp;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.google.protobuf.ByteString;
@@ -32,7 +37,9 @@ import org.waveprotocol.wave.model.id.URIEncoderDecoder.EncodingException;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +47,14 @@ import java.util.logging.Logger;
  * An instance of this class is created on demand for outgoing
  * messages to another wave Federation Remote. The wave server asks
  * the XmppFederationHost to create these.
+ *
+ * Updates are queued per wavelet. Updates for several wavelets are sent in
+ * one packet, up to a size bound, and several packets may await their
+ * receipts at once. Updates for a wavelet are not sent while an earlier
+ * packet with updates for it awaits its receipt, so they arrive in order.
+ * The updates of a packet which fails or times out are queued again, ahead
+ * of later updates for their wavelets, until they have been tried
+ * {@link #MAX_ATTEMPTS} times.
  */
 class XmppFederationHostForDomain implements WaveletFederationListener {
 
@@ -49,11 +64,75 @@ class XmppFederationHostForDomain implements WaveletFederationListener {
   // Timeout for outstanding listener updates sent over XMPP.
   private static final int XMPP_LISTENER_TIMEOUT = 30;
 
+  /**
+   * Most Base64 encoded delta bytes sent in one packet. A single wavelet's
+   * updates are sent alone if they exceed this.
+   */
+  @VisibleForTesting
+  static final int MAX_PACKET_BYTES = 64 * 1024;
+
+  /** Most packets awaiting their receipts at once. */
+  @VisibleForTesting
+  static final int MAX_IN_FLIGHT_PACKETS = 4;
+
+  /** Number of times updates are sent before their callbacks are failed. */
+  @VisibleForTesting
+  static final int MAX_ATTEMPTS = 3;
+
+  /** Updates of one wavelet which are yet to be acknowledged. */
+  private static final class PendingUpdate {
+    final String encodedWaveletName;
+    final List<ByteString> deltas = Lists.newArrayList();
+    final List<WaveletUpdateCallback> callbacks = Lists.newArrayList();
+    ProtocolHashedVersion committedVersion = null;
+    int encodedBytes = 0;
+    int attempts = 0;
+
+    PendingUpdate(String encodedWaveletName) {
+      this.encodedWaveletName = encodedWaveletName;
+    }
+
+    void add(List<ByteString> newDeltas, ProtocolHashedVersion newCommittedVersion,
+        WaveletUpdateCallback callback) {
+      if (newDeltas != null) {
+        for (ByteString delta : newDeltas) {
+          deltas.add(delta);
+          encodedBytes += (delta.size() + 2) / 3 * 4;
+        }
+      }
+      if (newCommittedVersion != null && (committedVersion == null
+          || newCommittedVersion.getVersion() > committedVersion.getVersion())) {
+        committedVersion = newCommittedVersion;
+      }
+      callbacks.add(callback);
+    }
+
+    /** Adds the updates of this wavelet which were queued after these. */
+    void addAll(PendingUpdate later) {
+      deltas.addAll(later.deltas);
+      encodedBytes += later.encodedBytes;
+      if (later.committedVersion != null && (committedVersion == null
+          || later.committedVersion.getVersion() > committedVersion.getVersion())) {
+        committedVersion = later.committedVersion;
+      }
+      callbacks.addAll(later.callbacks);
+    }
+  }
+
   private final String remoteDomain;
   private final XmppManager manager;
   private final String jid;
   private final XmppDisco disco;
 
+  /** Updates to send, in order, by wavelet. Guarded by this. */
+  private LinkedHashMap<WaveletName, PendingUpdate> queued = Maps.newLinkedHashMap();
+
+  /** Wavelets with updates awaiting their receipts. Guarded by this. */
+  private final Set<WaveletName> inFlightWavelets = Sets.newHashSet();
+
+  /** Number of packets awaiting their receipts. Guarded by this. */
+  private int inFlightPackets = 0;
+
   @Inject
   public XmppFederationHostForDomain(final String domain, XmppManager manager,
       XmppDisco disco, @Named(FederationSettings.XMPP_JID) String jid) {
@@ -76,9 +155,9 @@ class XmppFederationHostForDomain implements WaveletFederationListener {
   }
 
   /**
-   * Sends a wavelet update message on behalf of the wave server. This
+   * Queues a wavelet update message on behalf of the wave server. This
    * method just triggers a disco lookup (which may be cached) and
-   * sets up a callback to call the real method that does the work.
+   * sets up a callback to send the queued updates once it completes.
    * This method may contain applied deltas, a commit notice, or both.
    *
    * @param waveletName the wavelet name
@@ -93,10 +172,27 @@ class XmppFederationHostForDomain implements WaveletFederationListener {
           "version notice, for the target wavelet: " + waveletName);
     }
 
+    final String encodedWaveletName;
+    try {
+      encodedWaveletName = XmppUtil.waveletNameCodec.waveletNameToURI(waveletName);
+    } catch (EncodingException e) {
+      callback.onFailure(FederationErrors.badRequest("Bad wavelet name " + waveletName));
+      return;
+    }
+
+    synchronized (this) {
+      PendingUpdate update = queued.get(waveletName);
+      if (update == null) {
+        update = new PendingUpdate(encodedWaveletName);
+        queued.put(waveletName, update);
+      }
+      update.add(deltaList, committedVersion, callback);
+    }
+
     disco.discoverRemoteJid(remoteDomain, new SuccessFailCallback<String, String>() {
       @Override
       public void onSuccess(String remoteJid) {
-        internalWaveletUpdate(waveletName, deltaList, committedVersion, callback, remoteJid);
+        sendQueuedUpdates(remoteJid);
       }
 
       @Override
@@ -104,25 +200,67 @@ class XmppFederationHostForDomain implements WaveletFederationListener {
         if (LOG.isLoggable(Level.FINE)) {
           LOG.fine("Disco failed for remote domain " + remoteDomain + ", update not sent");
         }
-        callback.onFailure(FederationErrors.newFederationError(
+        failQueuedUpdates(FederationErrors.newFederationError(
             FederationError.Code.RESOURCE_CONSTRAINT, errorMessage));
       }
     });
   }
 
   /**
-   * Sends a wavelet update message on behalf of the wave server once disco is
-   * complete. This method may contain applied deltas, a commit notice, or both.
+   * Sends queued updates in as many packets as may await their receipts.
    *
-   * @param waveletName      the wavelet name
-   * @param deltaList        the deltas to include in the message, or null
-   * @param committedVersion last committed version to include, or null
-   * @param callback         callback to invoke on delivery success/failure
-   * @param remoteJid        the remote JID to send the update to
+   * @param remoteJid the remote JID to send the updates to
    */
-  private void internalWaveletUpdate(final WaveletName waveletName,
-      final List<ByteString> deltaList, final ProtocolHashedVersion committedVersion,
-      final WaveletUpdateCallback callback, String remoteJid) {
+  private void sendQueuedUpdates(String remoteJid) {
+    List<LinkedHashMap<WaveletName, PendingUpdate>> batches = Lists.newArrayList();
+    synchronized (this) {
+      while (inFlightPackets < MAX_IN_FLIGHT_PACKETS) {
+        LinkedHashMap<WaveletName, PendingUpdate> batch = takeBatch();
+        if (batch.isEmpty()) {
+          break;
+        }
+        inFlightPackets++;
+        batches.add(batch);
+      }
+    }
+    for (LinkedHashMap<WaveletName, PendingUpdate> batch : batches) {
+      sendBatch(batch, remoteJid);
+    }
+  }
+
+  /**
+   * Takes the oldest queued updates of wavelets without updates in flight, up
+   * to {@link #MAX_PACKET_BYTES}, and marks their wavelets in flight.
+   */
+  private LinkedHashMap<WaveletName, PendingUpdate> takeBatch() {
+    LinkedHashMap<WaveletName, PendingUpdate> batch = Maps.newLinkedHashMap();
+    int batchBytes = 0;
+    for (WaveletName waveletName : ImmutableList.copyOf(queued.keySet())) {
+      if (inFlightWavelets.contains(waveletName)) {
+        continue;
+      }
+      PendingUpdate update = queued.get(waveletName);
+      if (!batch.isEmpty() && batchBytes + update.encodedBytes > MAX_PACKET_BYTES) {
+        break;
+      }
+      queued.remove(waveletName);
+      inFlightWavelets.add(waveletName);
+      batch.put(waveletName, update);
+      batchBytes += update.encodedBytes;
+    }
+    return batch;
+  }
+
+  /**
+   * Sends a wavelet update message with the updates of several wavelets once
+   * disco is complete. The updates of each wavelet may contain applied deltas,
+   * a commit notice, or both.
+   *
+   * @param batch the updates to send, by wavelet
+   * @param remoteJid the remote JID to send the update to
+   */
+  private void sendBatch(final LinkedHashMap<WaveletName, PendingUpdate> batch,
+      final String remoteJid) {
     Message message = new Message();
     message.setType(Message.Type.normal);
     message.setFrom(jid);
@@ -130,44 +268,107 @@ class XmppFederationHostForDomain implements WaveletFederationListener {
     message.setID(XmppUtil.generateUniqueId());
     message.addChildElement("request", XmppNamespace.NAMESPACE_XMPP_RECEIPTS);
 
-    final String encodedWaveletName;
-    try {
-      encodedWaveletName = XmppUtil.waveletNameCodec.waveletNameToURI(waveletName);
-    } catch (EncodingException e) {
-      callback.onFailure(FederationErrors.badRequest("Bad wavelet name " + waveletName));
-      return;
-    }
-
-    Element itemElement = message.addChildElement("event", XmppNamespace.NAMESPACE_PUBSUB_EVENT)
-        .addElement("items").addElement("item");
-    if (deltaList != null) {
-      for (ByteString delta : deltaList) {
-        Element waveletUpdate =
-            itemElement.addElement("wavelet-update", XmppNamespace.NAMESPACE_WAVE_SERVER)
-                .addAttribute("wavelet-name", encodedWaveletName);
+    Element itemsElement = message.addChildElement("event", XmppNamespace.NAMESPACE_PUBSUB_EVENT)
+        .addElement("items");
+    for (PendingUpdate update : batch.values()) {
+      update.attempts++;
+      Element waveletUpdate = itemsElement.addElement("item")
+          .addElement("wavelet-update", XmppNamespace.NAMESPACE_WAVE_SERVER)
+          .addAttribute("wavelet-name", update.encodedWaveletName);
+      for (ByteString delta : update.deltas) {
         waveletUpdate.addElement("applied-delta").addCDATA(Base64Util.encode(delta.toByteArray()));
       }
-    }
-    if (committedVersion != null) {
-      Element waveletUpdate =
-          itemElement.addElement("wavelet-update", XmppNamespace.NAMESPACE_WAVE_SERVER)
-              .addAttribute("wavelet-name", encodedWaveletName);
-      waveletUpdate.addElement("commit-notice").addAttribute("version",
-          Long.toString(committedVersion.getVersion())).addAttribute("history-hash",
-          Base64Util.encode(committedVersion.getHistoryHash()));
+      if (update.committedVersion != null) {
+        waveletUpdate.addElement("commit-notice").addAttribute("version",
+            Long.toString(update.committedVersion.getVersion())).addAttribute("history-hash",
+            Base64Util.encode(update.committedVersion.getHistoryHash()));
+      }
     }
 
     // Send the generated message through to the foreign XMPP server.
     manager.send(message, new PacketCallback() {
       @Override
       public void error(FederationError error) {
-        callback.onFailure(error);
+        batchFailed(batch, error, remoteJid);
       }
 
       @Override
       public void run(Packet packet) {
-        callback.onSuccess();
+        batchAcknowledged(batch, remoteJid);
       }
     }, XMPP_LISTENER_TIMEOUT);
   }
+
+  /**
+   * Calls back the updates of an acknowledged packet and sends the updates
+   * which were waiting for it.
+   */
+  private void batchAcknowledged(LinkedHashMap<WaveletName, PendingUpdate> batch,
+      String remoteJid) {
+    synchronized (this) {
+      inFlightPackets--;
+      inFlightWavelets.removeAll(batch.keySet());
+    }
+    for (PendingUpdate update : batch.values()) {
+      for (WaveletUpdateCallback callback : update.callbacks) {
+        callback.onSuccess();
+      }
+    }
+    sendQueuedUpdates(remoteJid);
+  }
+
+  /**
+   * Queues the updates of a failed packet again, ahead of later updates for
+   * their wavelets, unless they have been tried {@link #MAX_ATTEMPTS} times,
+   * in which case their callbacks are failed.
+   */
+  private void batchFailed(LinkedHashMap<WaveletName, PendingUpdate> batch,
+      FederationError error, String remoteJid) {
+    List<PendingUpdate> failed = Lists.newArrayList();
+    synchronized (this) {
+      inFlightPackets--;
+      inFlightWavelets.removeAll(batch.keySet());
+      LinkedHashMap<WaveletName, PendingUpdate> requeued = Maps.newLinkedHashMap();
+      for (WaveletName waveletName : batch.keySet()) {
+        PendingUpdate update = batch.get(waveletName);
+        if (update.attempts < MAX_ATTEMPTS) {
+          PendingUpdate later = queued.remove(waveletName);
+          if (later != null) {
+            update.addAll(later);
+          }
+          requeued.put(waveletName, update);
+        } else {
+          failed.add(update);
+        }
+      }
+      if (!requeued.isEmpty()) {
+        LOG.info("Resending updates of " + requeued.size() + " wavelets to " + remoteDomain
+            + " after " + error);
+        requeued.putAll(queued);
+        queued = requeued;
+      }
+    }
+    for (PendingUpdate update : failed) {
+      for (WaveletUpdateCallback callback : update.callbacks) {
+        callback.onFailure(error);
+      }
+    }
+    sendQueuedUpdates(remoteJid);
+  }
+
+  /**
+   * Fails the callbacks of all queued updates.
+   */
+  private void failQueuedUpdates(FederationError error) {
+    List<PendingUpdate> failed;
+    synchronized (this) {
+      failed = Lists.newArrayList(queued.values());
+      queued.clear();
+    }
+    for (PendingUpdate update : failed) {
+      for (WaveletUpdateCallback callback : update.callbacks) {
+        callback.onFailure(error);
+      }
+    }
+  }
 }
@@ -553,11 +553,13 @@ public class XmppFederationRemote implements WaveletFederationProvider {
           } else {
             listener.onFailure(FederationErrors.badRequest(
                 "Bad response packet: " + historyResponse));
+            return;
           }
         }
       }
     } else {
       listener.onFailure(FederationErrors.badRequest("Bad response packet: " + historyResponse));
+      return;
     }
 
     final ProtocolHashedVersion lastCommitted;
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.frontend;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.box.server.waveserver.WaveletProvider;
+import org.waveprotocol.wave.model.id.IdFilters;
+import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.testing.DeltaTestUtil;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.version.HashedVersionFactory;
+import org.waveprotocol.wave.model.version.HashedVersionZeroFactoryImpl;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.List;
+
+/**
+ * Measures the cost of fanning out a delta to the clients which have a wavelet
+ * open, for several numbers of participants and of channels per participant.
+ * The fan-out through the wavelet's subscription index is compared with
+ * matching each participant's subscriptions in its {@link UserManager}, as
+ * every update did before the index.
+ */
+public class ClientFrontendImplLargeTest extends TestCase {
+
+  private static final Log LOG = Log.get(ClientFrontendImplLargeTest.class);
+
+  private static final int[] PARTICIPANT_COUNTS = {10, 100, 500};
+  private static final int[] CHANNELS_PER_PARTICIPANT = {1, 5};
+  private static final int DELTAS = 2000;
+
+  private static final String DOMAIN = "example.com";
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of(WaveId.of(DOMAIN, "w+wave"), WaveletId.of(DOMAIN, "conv+root"));
+  private static final HashedVersionFactory V0_HASH_FACTORY =
+      new HashedVersionZeroFactoryImpl(new IdURIEncoderDecoder(new JavaUrlCodec()));
+  private static final ParticipantId AUTHOR = ParticipantId.ofUnsafe("author@" + DOMAIN);
+  private static final DeltaTestUtil UTIL = new DeltaTestUtil(AUTHOR);
+
+  /** Counts the deltas it is sent. */
+  private static final class CountingListener implements ClientFrontend.OpenListener {
+    long deltas = 0;
+
+    @Override
+    public void onUpdate(WaveletName waveletName, CommittedWaveletSnapshot snapshot,
+        List<TransformedWaveletDelta> deltas, HashedVersion committedVersion, Boolean marker,
+        String channelId) {
+      this.deltas += deltas.size();
+    }
+
+    @Override
+    public void onFailure(String errorMessage) {
+      fail(errorMessage);
+    }
+  }
+
+  public void testFanOutThroughSubscriptionIndex() throws Exception {
+    for (int participants : PARTICIPANT_COUNTS) {
+      for (int channels : CHANNELS_PER_PARTICIPANT) {
+        long indexedNanos = measure(participants, channels, true);
+        long matchedNanos = measure(participants, channels, false);
+        LOG.info(String.format("%d participants, %d channels each: %.1fus per delta through "
+            + "the index, %.1fus matching each participant's subscriptions",
+            participants, channels, indexedNanos / 1e3 / DELTAS, matchedNanos / 1e3 / DELTAS));
+      }
+    }
+  }
+
+  /**
+   * Fans out deltas to every channel of every participant.
+   *
+   * @param indexed whether to fan out through the client frontend, or
+   *        participant by participant as before the index
+   * @return the time taken, in nanoseconds
+   */
+  private long measure(int participantCount, int channelsPerParticipant, boolean indexed)
+      throws Exception {
+    WaveletInfo waveletInfo = WaveletInfo.create(V0_HASH_FACTORY, mock(WaveletProvider.class));
+    ClientFrontendImpl clientFrontend =
+        new ClientFrontendImpl(mock(WaveletProvider.class), waveletInfo, 0);
+
+    ObservableWaveletData wavelet = WaveletDataUtil.createEmptyWavelet(WAVELET_NAME, AUTHOR,
+        V0_HASH_FACTORY.createVersionZero(WAVELET_NAME), 0L);
+    List<CountingListener> listeners = Lists.newArrayList();
+    for (int i = 0; i < participantCount; i++) {
+      ParticipantId participant = ParticipantId.ofUnsafe("user" + i + "@" + DOMAIN);
+      wavelet.addParticipant(participant);
+      for (int j = 0; j < channelsPerParticipant; j++) {
+        CountingListener listener = new CountingListener();
+        listeners.add(listener);
+        waveletInfo.subscribe(participant, new WaveViewSubscription(WAVELET_NAME.waveId,
+            IdFilters.ALL_IDS, "ch" + i + "." + j, listener));
+      }
+    }
+
+    long startNanos = System.nanoTime();
+    for (int version = 0; version < DELTAS; version++) {
+      DeltaSequence deltas = DeltaSequence.of(UTIL.noOpDelta(version));
+      if (indexed) {
+        clientFrontend.waveletUpdate(wavelet, deltas);
+      } else {
+        waveletInfo.syncWaveletVersion(wavelet, deltas);
+        for (ParticipantId participant :
+            Sets.newHashSet(waveletInfo.getWaveletParticipants(WAVELET_NAME))) {
+          waveletInfo.getUserManager(participant).onUpdate(WAVELET_NAME, deltas);
+        }
+      }
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    for (CountingListener listener : listeners) {
+      assertEquals(DELTAS, listener.deltas);
+    }
+    return elapsedNanos;
+  }
+}
@@ -39,11 +39,11 @@ import org.mockito.ArgumentMatcher;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
 import org.waveprotocol.box.common.DeltaSequence;
-import org.waveprotocol.box.common.ExceptionalIterator;
 import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletVersion;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
 import org.waveprotocol.box.server.frontend.ClientFrontend.OpenListener;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.box.server.waveserver.AccessControlException;
 import org.waveprotocol.box.server.waveserver.WaveServerException;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
 import org.waveprotocol.box.server.waveserver.WaveletProvider.SubmitRequestListener;
@@ -52,6 +52,7 @@ import org.waveprotocol.wave.model.id.IdConstants;
 import org.waveprotocol.wave.model.id.IdFilter;
 import org.waveprotocol.wave.model.id.IdFilters;
 import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
@@ -102,9 +103,11 @@ public class ClientFrontendImplTest extends TestCase {
       CoreWaveletOperationSerializer.serialize(DELTA);
   private static final Collection<WaveletVersion> NO_KNOWN_WAVELETS =
       Collections.<WaveletVersion>emptySet();
+  private static final int MAX_RECONNECT_DELTA_VERSIONS = 10;
 
   private ClientFrontendImpl clientFrontend;
   private WaveletProvider waveletProvider;
+  private WaveletInfo waveletInfo;
 
   @Override
   protected void setUp() throws Exception {
@@ -112,8 +115,9 @@ public class ClientFrontendImplTest extends TestCase {
     waveletProvider = mock(WaveletProvider.class);
     when(waveletProvider.getWaveletIds(any(WaveId.class))).thenReturn(ImmutableSet.<WaveletId>of());
 
-    WaveletInfo waveletInfo = WaveletInfo.create(HASH_FACTORY, waveletProvider);
-    clientFrontend = new ClientFrontendImpl(waveletProvider, waveletInfo);
+    waveletInfo = WaveletInfo.create(HASH_FACTORY, waveletProvider);
+    clientFrontend =
+        new ClientFrontendImpl(waveletProvider, waveletInfo, MAX_RECONNECT_DELTA_VERSIONS);
   }
 
   public void testCannotOpenWavesWhenNotLoggedIn() throws Exception {
@@ -195,6 +199,135 @@ public class ClientFrontendImplTest extends TestCase {
         isNullVersion(), isNullMarker(), anyString());
   }
 
+  /**
+   * Tests that a participant's subscriptions are sent the deltas up to their
+   * removal, and none after it.
+   */
+  public void testRemovedParticipantIsNotSentLaterDeltas() throws Exception {
+    CommittedWaveletSnapshot snapshot = provideWavelet(WN1);
+    when(waveletProvider.checkAccessPermission(WN1, USER)).thenReturn(true);
+    OpenListener listener = openWave(IdFilters.ALL_IDS);
+
+    DeltaSequence removal = DeltaSequence.of(makeDelta(USER, V2, 0L, UTIL.removeParticipant(USER)));
+    clientFrontend.waveletUpdate(snapshot.snapshot, removal);
+    verify(listener).onUpdate(eq(WN1), isNullSnapshot(), eq(removal), isNullVersion(),
+        isNullMarker(), anyString());
+
+    DeltaSequence later = DeltaSequence.of(UTIL.noOpDelta(V2.getVersion()));
+    clientFrontend.waveletUpdate(snapshot.snapshot, later);
+    clientFrontend.waveletCommitted(WN1, V2);
+    verify(listener, never()).onUpdate(eq(WN1), isNullSnapshot(), eq(later), isNullVersion(),
+        isNullMarker(), anyString());
+    verify(listener, never()).onUpdate(eq(WN1), isNullSnapshot(), eq(DeltaSequence.empty()),
+        eq(V2), isNullMarker(), anyString());
+  }
+
+  /**
+   * Tests that a participant added to a wavelet after opening its wave is sent
+   * the deltas from their addition on.
+   */
+  public void testAddedParticipantIsSentDeltas() throws Exception {
+    ParticipantId other = new ParticipantId("other@example.com");
+    CommittedWaveletSnapshot snapshot = provideWavelet(WN1);
+    OpenListener listener = mock(OpenListener.class);
+    clientFrontend.openRequest(other, WAVE_ID, IdFilters.ALL_IDS, NO_KNOWN_WAVELETS, listener);
+
+    DeltaSequence addition = DeltaSequence.of(makeDelta(USER, V2, 0L, UTIL.addParticipant(other)));
+    clientFrontend.waveletUpdate(snapshot.snapshot, addition);
+    DeltaSequence later = DeltaSequence.of(UTIL.noOpDelta(V2.getVersion()));
+    clientFrontend.waveletUpdate(snapshot.snapshot, later);
+    verify(listener).onUpdate(eq(WN1), isNullSnapshot(), eq(addition), isNullVersion(),
+        isNullMarker(), anyString());
+    verify(listener).onUpdate(eq(WN1), isNullSnapshot(), eq(later), isNullVersion(),
+        isNullMarker(), anyString());
+  }
+
+  /**
+   * Tests that a client reopening a wave is sent only the deltas it missed.
+   */
+  public void testReopenWithKnownVersionReceivesMissingDeltas() throws Exception {
+    CommittedWaveletSnapshot snapshot = provideWavelet(WN1);
+    when(waveletProvider.checkAccessPermission(WN1, USER)).thenReturn(true);
+
+    OpenListener listener = openWave(IdFilters.ALL_IDS, knownVersion(W1, V0));
+    verify(listener).onUpdate(eq(WN1), isNullSnapshot(), eq(DELTAS),
+        isNullVersion(), isNullMarker(), anyString());
+    verify(listener, never()).onUpdate(eq(WN1), eq(snapshot),
+        Matchers.<TransformedWaveletDelta>anyList(), any(HashedVersion.class), isNullMarker(),
+        anyString());
+    verifyMarker(listener, WAVE_ID);
+  }
+
+  /**
+   * Tests that a client reopening a wave it is up to date with is sent no
+   * deltas and no snapshot.
+   */
+  public void testReopenWithCurrentVersionReceivesNoDeltas() throws Exception {
+    provideWavelet(WN1);
+    when(waveletProvider.checkAccessPermission(WN1, USER)).thenReturn(true);
+
+    OpenListener listener =
+        openWave(IdFilters.ALL_IDS, knownVersion(W1, DELTA.getResultingVersion()));
+    verify(listener).onUpdate(eq(WN1), isNullSnapshot(), eq(DeltaSequence.empty()),
+        isNullVersion(), isNullMarker(), anyString());
+    verify(waveletProvider, never()).getHistory(any(WaveletName.class),
+        any(HashedVersion.class), any(HashedVersion.class));
+    verifyMarker(listener, WAVE_ID);
+  }
+
+  /**
+   * Tests that a client whose known version is not in the wavelet history is
+   * sent a snapshot.
+   */
+  public void testReopenWithUnknownVersionReceivesSnapshot() throws Exception {
+    CommittedWaveletSnapshot snapshot = provideWavelet(WN1);
+    when(waveletProvider.checkAccessPermission(WN1, USER)).thenReturn(true);
+    HashedVersion badVersion = HashedVersion.of(0L, new byte[] {1, 2, 3});
+    when(waveletProvider.getHistory(WN1, badVersion, DELTA.getResultingVersion())).thenThrow(
+        new AccessControlException("Unrecognized start version"));
+
+    OpenListener listener = openWave(IdFilters.ALL_IDS, knownVersion(W1, badVersion));
+    verify(listener).onUpdate(eq(WN1), eq(snapshot), eq(DeltaSequence.empty()),
+        eq(V0), isNullMarker(), any(String.class));
+    verifyMarker(listener, WAVE_ID);
+  }
+
+  /**
+   * Tests that a client too far behind a wavelet is sent a snapshot.
+   */
+  public void testReopenBeyondThresholdReceivesSnapshot() throws Exception {
+    clientFrontend = new ClientFrontendImpl(waveletProvider, waveletInfo, 0);
+    CommittedWaveletSnapshot snapshot = provideWavelet(WN1);
+    when(waveletProvider.checkAccessPermission(WN1, USER)).thenReturn(true);
+
+    OpenListener listener = openWave(IdFilters.ALL_IDS, knownVersion(W1, V0));
+    verify(listener).onUpdate(eq(WN1), eq(snapshot), eq(DeltaSequence.empty()),
+        eq(V0), isNullMarker(), any(String.class));
+    verify(waveletProvider, never()).getHistory(any(WaveletName.class),
+        any(HashedVersion.class), any(HashedVersion.class));
+  }
+
+  /**
+   * Tests that a wavelet updated before its wave is first opened is tracked
+   * from the update, and not reset by the older stored snapshot.
+   */
+  public void testDeltasBeforeWaveIsOpenedAreTracked() throws Exception {
+    CommittedWaveletSnapshot snapshot = provideWavelet(WN1);
+    when(waveletProvider.checkAccessPermission(WN1, USER)).thenReturn(true);
+    clientFrontend.waveletUpdate(snapshot.snapshot, DeltaSequence.of(makeDelta(USER, V2,
+        1234567890L, UTIL.noOp())));
+
+    OpenListener listener = openWave(IdFilters.ALL_IDS);
+    verifyMarker(listener, WAVE_ID);
+    assertEquals(V2, waveletInfo.getCurrentWaveletVersion(WN1));
+
+    DeltaSequence deltas =
+        DeltaSequence.of(makeDelta(USER, HashedVersion.unsigned(3L), 1234567890L, UTIL.noOp()));
+    clientFrontend.waveletUpdate(snapshot.snapshot, deltas);
+    verify(listener).onUpdate(eq(WN1), isNullSnapshot(), eq(deltas),
+        isNullVersion(), isNullMarker(), anyString());
+  }
+
   /**
    * Tests that submit requests are forwarded to the wavelet provider.
    */
@@ -227,9 +360,6 @@ public class ClientFrontendImplTest extends TestCase {
    * participant or text).
    */
   public void testUninterestingDeltasDontUpdateIndex() throws WaveServerException {
-    provideWaves(Collections.<WaveId> emptySet());
-    clientFrontend.initialiseAllWaves();
-
     OpenListener listener = openWave(INDEX_WAVE_ID, IdFilters.ALL_IDS);
     verifyChannelId(listener);
     verifyMarker(listener, INDEX_WAVE_ID);
@@ -261,21 +391,31 @@ public class ClientFrontendImplTest extends TestCase {
     return openWave(WAVE_ID, filter);
   }
 
+  /**
+   * Opens a wave, saying which wavelet versions are already known, and
+   * returns a mock listener.
+   */
+  private ClientFrontend.OpenListener openWave(IdFilter filter,
+      Collection<WaveletVersion> knownWavelets) {
+    OpenListener openListener = mock(OpenListener.class);
+    clientFrontend.openRequest(USER, WAVE_ID, filter, knownWavelets, openListener);
+    return openListener;
+  }
+
+  private static Collection<WaveletVersion> knownVersion(WaveletId waveletId,
+      HashedVersion version) {
+    return ImmutableList.of(WaveletVersion.newBuilder()
+        .setWaveletId(ModernIdSerialiser.INSTANCE.serialiseWaveletId(waveletId))
+        .setHashedVersion(CoreWaveletOperationSerializer.serialize(version))
+        .build());
+  }
+
   private TransformedWaveletDelta makeDelta(ParticipantId author, HashedVersion endVersion,
       long timestamp, WaveletOperation... operations) {
     return TransformedWaveletDelta.cloneOperations(author, endVersion, timestamp,
         Arrays.asList(operations));
   }
 
-  /**
-   * Initialises the wavelet provider to provide a collection of waves.
-   */
-  private void provideWaves(Collection<WaveId> waves) throws WaveServerException {
-    when(waveletProvider.getWaveIds()).thenReturn(
-        ExceptionalIterator.FromIterator.<WaveId, WaveServerException> create(
-            waves.iterator()));
-  }
-
   /**
    * Prepares the wavelet provider to provide a new wavelet.
    *
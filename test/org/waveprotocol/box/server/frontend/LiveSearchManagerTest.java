@@ -0,0 +1,247 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.frontend;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.wave.api.SearchResult;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.search.SearchProto.SearchRequest;
+import org.waveprotocol.box.search.SearchProto.SearchUpdate;
+import org.waveprotocol.box.server.robots.operations.SearchService;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.testing.DeltaTestUtil;
+import org.waveprotocol.wave.model.version.HashedVersionFactory;
+import org.waveprotocol.wave.model.version.HashedVersionZeroFactoryImpl;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link LiveSearchManager}.
+ */
+public class LiveSearchManagerTest extends TestCase {
+
+  private static final String DOMAIN = "example.com";
+  private static final ParticipantId USER = ParticipantId.ofUnsafe("user@" + DOMAIN);
+  private static final ParticipantId OTHER = ParticipantId.ofUnsafe("other@" + DOMAIN);
+  private static final String QUERY = "in:inbox";
+  private static final SearchRequest REQUEST =
+      SearchRequest.newBuilder().setQuery(QUERY).setIndex(0).setNumResults(10).build();
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of(WaveId.of(DOMAIN, "w+wave"), WaveletId.of(DOMAIN, "conv+root"));
+  private static final HashedVersionFactory V0_HASH_FACTORY =
+      new HashedVersionZeroFactoryImpl(new IdURIEncoderDecoder(new JavaUrlCodec()));
+  private static final DeltaTestUtil UTIL = new DeltaTestUtil(OTHER);
+
+  private SearchService searchService;
+  private ScheduledExecutorService executor;
+  private LiveSearchManager manager;
+
+  @Override
+  protected void setUp() throws Exception {
+    searchService = mock(SearchService.class);
+    executor = mock(ScheduledExecutorService.class);
+    manager = new LiveSearchManager(searchService, executor, 0);
+  }
+
+  public void testFirstUpdateCarriesEveryDigest() {
+    returnResults(digest("w+a", "A", 1), digest("w+b", "B", 1));
+    LiveSearchManager.Listener listener = mock(LiveSearchManager.Listener.class);
+
+    manager.search(USER, REQUEST, listener);
+
+    SearchUpdate update = lastUpdate(listener, 1);
+    assertEquals(ImmutableList.of("example.com/w+a", "example.com/w+b"), update.getWaveIdsList());
+    assertEquals(2, update.getDigestsCount());
+    assertEquals(2, update.getTotalResults());
+  }
+
+  public void testUnchangedResultsSendNoUpdate() {
+    returnResults(digest("w+a", "A", 1));
+    LiveSearchManager.Listener listener = mock(LiveSearchManager.Listener.class);
+    LiveSearchManager.LiveSearch search = manager.search(USER, REQUEST, listener);
+
+    search.refresh();
+
+    verify(listener, times(1)).onUpdate(any(SearchUpdate.class));
+  }
+
+  public void testLaterUpdatesCarryOnlyChangedDigests() {
+    returnResults(digest("w+a", "A", 1), digest("w+b", "B", 1), digest("w+c", "C", 1));
+    LiveSearchManager.Listener listener = mock(LiveSearchManager.Listener.class);
+    LiveSearchManager.LiveSearch search = manager.search(USER, REQUEST, listener);
+
+    returnResults(digest("w+b", "B", 2), digest("w+a", "A", 1));
+    search.refresh();
+
+    SearchUpdate update = lastUpdate(listener, 2);
+    assertEquals(ImmutableList.of("example.com/w+b", "example.com/w+a"), update.getWaveIdsList());
+    assertEquals(1, update.getDigestsCount());
+    assertEquals("example.com/w+b", update.getDigests(0).getWaveId());
+    assertEquals(2, update.getDigests(0).getBlipCount());
+  }
+
+  public void testClosedSearchIsNotRefreshed() {
+    returnResults(digest("w+a", "A", 1));
+    LiveSearchManager.Listener listener = mock(LiveSearchManager.Listener.class);
+    LiveSearchManager.LiveSearch search = manager.search(USER, REQUEST, listener);
+
+    search.close();
+    manager.waveletUpdate(wavelet(USER), DeltaSequence.of(UTIL.noOpDelta(0)));
+
+    verify(executor, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+
+  public void testOldestSearchIsEvictedBeyondLimit() {
+    returnResults(digest("w+a", "A", 1));
+    LiveSearchManager.Listener oldest = mock(LiveSearchManager.Listener.class);
+    manager.search(USER, REQUEST, oldest);
+    for (int i = 1; i < LiveSearchManager.MAX_SEARCHES_PER_USER; i++) {
+      manager.search(USER, REQUEST, mock(LiveSearchManager.Listener.class));
+    }
+    verify(oldest, never()).onClosed();
+
+    manager.search(USER, REQUEST, mock(LiveSearchManager.Listener.class));
+
+    verify(oldest).onClosed();
+  }
+
+  public void testUpdateRefreshesOnlyParticipantsSearches() {
+    returnResults(digest("w+a", "A", 1));
+    manager.search(USER, REQUEST, mock(LiveSearchManager.Listener.class));
+    manager.search(OTHER, REQUEST, mock(LiveSearchManager.Listener.class));
+
+    manager.waveletUpdate(wavelet(USER), DeltaSequence.of(UTIL.noOpDelta(0)));
+
+    ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).schedule(task.capture(), eq(0L), eq(TimeUnit.MILLISECONDS));
+    task.getValue().run();
+    verify(searchService, times(2)).search(eq(USER), anyString(), anyInt(), anyInt());
+    verify(searchService, times(1)).search(eq(OTHER), anyString(), anyInt(), anyInt());
+  }
+
+  public void testUpdatesAreCoalescedUntilRefreshRuns() {
+    returnResults(digest("w+a", "A", 1));
+    manager.search(USER, REQUEST, mock(LiveSearchManager.Listener.class));
+
+    manager.waveletUpdate(wavelet(USER), DeltaSequence.of(UTIL.noOpDelta(0)));
+    manager.waveletUpdate(wavelet(USER), DeltaSequence.of(UTIL.noOpDelta(1)));
+
+    verify(executor, times(1)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+
+  public void testRemovedParticipantsSearchesAreRefreshed() {
+    returnResults(digest("w+a", "A", 1));
+    manager.search(OTHER, REQUEST, mock(LiveSearchManager.Listener.class));
+
+    manager.waveletUpdate(wavelet(USER),
+        DeltaSequence.of(UTIL.delta(0, UTIL.removeParticipant(OTHER))));
+
+    verify(executor).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+
+  public void testResultsOfOverlappedRefreshAreDropped() {
+    returnResults(digest("w+a", "A", 1));
+    LiveSearchManager.Listener listener = mock(LiveSearchManager.Listener.class);
+    final LiveSearchManager.LiveSearch search = manager.search(USER, REQUEST, listener);
+
+    // While the search runs, a later refresh runs and finishes first.
+    final SearchResult stale = result(digest("w+a", "A", 2));
+    final SearchResult fresh = result(digest("w+a", "A", 3));
+    when(searchService.search(any(ParticipantId.class), anyString(), anyInt(), anyInt()))
+        .thenAnswer(new Answer<SearchResult>() {
+          private boolean overlapped = false;
+
+          @Override
+          public SearchResult answer(InvocationOnMock invocation) {
+            if (overlapped) {
+              return fresh;
+            }
+            overlapped = true;
+            search.refresh();
+            return stale;
+          }
+        });
+    search.refresh();
+
+    SearchUpdate update = lastUpdate(listener, 2);
+    assertEquals(3, update.getDigests(0).getBlipCount());
+  }
+
+  public void testUpdateWithoutSearchesSchedulesNothing() {
+    manager.waveletUpdate(wavelet(USER), DeltaSequence.of(UTIL.noOpDelta(0)));
+
+    verifyZeroInteractions(executor, searchService);
+  }
+
+  private void returnResults(SearchResult.Digest... digests) {
+    when(searchService.search(any(ParticipantId.class), anyString(), anyInt(), anyInt()))
+        .thenReturn(result(digests));
+  }
+
+  private static SearchResult result(SearchResult.Digest... digests) {
+    SearchResult result = new SearchResult(QUERY);
+    for (SearchResult.Digest digest : digests) {
+      result.addDigest(digest);
+    }
+    return result;
+  }
+
+  private static SearchResult.Digest digest(String waveId, String title, int blipCount) {
+    return new SearchResult.Digest(title, "", DOMAIN + "/" + waveId,
+        ImmutableList.of(USER.getAddress()), 0L, 0, blipCount);
+  }
+
+  private static ObservableWaveletData wavelet(ParticipantId participant) {
+    ObservableWaveletData wavelet = WaveletDataUtil.createEmptyWavelet(WAVELET_NAME, OTHER,
+        V0_HASH_FACTORY.createVersionZero(WAVELET_NAME), 0L);
+    wavelet.addParticipant(participant);
+    return wavelet;
+  }
+
+  private static SearchUpdate lastUpdate(LiveSearchManager.Listener listener, int count) {
+    ArgumentCaptor<SearchUpdate> update = ArgumentCaptor.forClass(SearchUpdate.class);
+    verify(listener, times(count)).onUpdate(update.capture());
+    return update.getValue();
+  }
+}
@@ -102,6 +102,17 @@ public abstract class AttachmentStoreTestBase extends TestCase {
     assertEquals(testData, stream.toString("UTF-8"));
   }
   
+  public void testAttachmentCanWriteRangeToOutputStream() throws Exception {
+    String testData = "only some of this string is written";
+    String id = "id_8";
+    AttachmentStore store = makeStoreWithData(id, testData);
+    AttachmentData data = store.getAttachment(id);
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    data.writeDataTo(stream, 5, 4);
+    assertEquals("some", stream.toString("UTF-8"));
+  }
+
   public void testAttachmentHasWorkingInputStream() throws Exception {
     String testData = "I suppose these strings don't actually need to be different";
     String id = "id_5";
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.persistence;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.waveprotocol.box.server.account.AccountData;
+import org.waveprotocol.box.server.account.HumanAccountDataImpl;
+import org.waveprotocol.box.server.persistence.memory.MemoryStore;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+/**
+ * Tests for {@link CachingAccountStore}, which must also behave as any other
+ * {@link AccountStore}.
+ */
+public class CachingAccountStoreTest extends AccountStoreTestBase {
+
+  private static final ParticipantId JOE = ParticipantId.ofUnsafe("joe@example.com");
+  private static final ParticipantId REMOTE = ParticipantId.ofUnsafe("remote@example.org");
+
+  @Override
+  protected AccountStore newAccountStore() {
+    return new CachingAccountStore(new MemoryStore(), 100);
+  }
+
+  public void testAccountsAreReadOnce() throws Exception {
+    AccountStore store = mock(AccountStore.class);
+    AccountData joe = new HumanAccountDataImpl(JOE);
+    when(store.getAccount(JOE)).thenReturn(joe);
+    CachingAccountStore cache = new CachingAccountStore(store, 100);
+
+    assertSame(joe, cache.getAccount(JOE));
+    assertSame(joe, cache.getAccount(JOE));
+    verify(store, times(1)).getAccount(JOE);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testMissingAccountsAreCached() throws Exception {
+    AccountStore store = mock(AccountStore.class);
+    CachingAccountStore cache = new CachingAccountStore(store, 100);
+
+    assertNull(cache.getAccount(REMOTE));
+    assertNull(cache.getAccount(REMOTE));
+    verify(store, times(1)).getAccount(REMOTE);
+  }
+
+  public void testWritesReplaceCachedAccounts() throws Exception {
+    CachingAccountStore cache = new CachingAccountStore(new MemoryStore(), 100);
+    assertNull(cache.getAccount(JOE));
+
+    AccountData joe = new HumanAccountDataImpl(JOE);
+    cache.putAccount(joe);
+    assertEquals(joe, cache.getAccount(JOE));
+
+    cache.removeAccount(JOE);
+    assertNull(cache.getAccount(JOE));
+  }
+
+  public void testLeastRecentlyUsedAccountsAreEvicted() throws Exception {
+    AccountStore store = mock(AccountStore.class);
+    CachingAccountStore cache = new CachingAccountStore(store, 2);
+
+    cache.getAccount(JOE);
+    cache.getAccount(REMOTE);
+    cache.getAccount(JOE);
+    cache.getAccount(ParticipantId.ofUnsafe("other@example.com"));
+    assertEquals(2, cache.getCachedAccountCount());
+
+    cache.getAccount(JOE);
+    verify(store, times(1)).getAccount(JOE);
+    cache.getAccount(REMOTE);
+    verify(store, times(2)).getAccount(REMOTE);
+  }
+}
@@ -24,6 +24,7 @@ import com.google.protobuf.ByteString;
 import junit.framework.TestCase;
 
 import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
 import org.waveprotocol.box.server.util.testing.TestingConstants;
 import org.waveprotocol.box.server.waveserver.ByteStringMessage;
@@ -194,11 +195,67 @@ public abstract class DeltaStoreTestBase extends TestCase {
     }
   }
 
+  public void testSnapshotCheckpointAbsentByDefault() throws Exception {
+    Pair<DeltaStore, WaveletDeltaRecord> pair = newDeltaStoreWithRecord(WAVE1_WAVELET1);
+    DeltasAccess wavelet = pair.first.open(WAVE1_WAVELET1);
+    assertNull(wavelet.getSnapshotCheckpoint());
+    wavelet.close();
+  }
+
+  public void testSnapshotCheckpointSurvivesReopen() throws Exception {
+    Pair<DeltaStore, WaveletDeltaRecord> pair = newDeltaStoreWithRecord(WAVE1_WAVELET1);
+    DeltaStore store = pair.first;
+    WaveletSnapshot snapshot = createSnapshot(pair.second.getResultingVersion());
+
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.storeSnapshotCheckpoint(snapshot);
+    wavelet.close();
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(snapshot, wavelet.getSnapshotCheckpoint());
+    wavelet.close();
+  }
+
+  public void testDeleteWaveletRemovesSnapshotCheckpoint() throws Exception {
+    Pair<DeltaStore, WaveletDeltaRecord> pair = newDeltaStoreWithRecord(WAVE1_WAVELET1);
+    DeltaStore store = pair.first;
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.storeSnapshotCheckpoint(createSnapshot(pair.second.getResultingVersion()));
+    wavelet.close();
+
+    store.delete(WAVE1_WAVELET1);
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertNull(wavelet.getSnapshotCheckpoint());
+    wavelet.close();
+  }
+
   // *** Helpers
 
+  /**
+   * Creates a snapshot of WAVE1_WAVELET1 at the given version. Its contents
+   * don't matter to the store.
+   */
+  protected WaveletSnapshot createSnapshot(HashedVersion version) {
+    return WaveletSnapshot.newBuilder()
+        .setWaveletId(WAVE1_WAVELET1.waveletId.serialise())
+        .addParticipantId(TestingConstants.PARTICIPANT.getAddress())
+        .setVersion(CoreWaveletOperationSerializer.serialize(version))
+        .setLastModifiedTime(1234567890)
+        .setCreator(TestingConstants.PARTICIPANT.getAddress())
+        .setCreationTime(1234567890)
+        .build();
+  }
+
   protected WaveletDeltaRecord createRecord() {
-    HashedVersion targetVersion = HashedVersion.of(0, new byte[] {3, 2, 1});
-    HashedVersion resultingVersion = HashedVersion.of(2, new byte[] {1, 2, 3});
+    return createRecord(0);
+  }
+
+  /**
+   * Creates a record of a two operation delta applied at the given version.
+   */
+  protected WaveletDeltaRecord createRecord(long appliedAtVersion) {
+    HashedVersion targetVersion = HashedVersion.of(appliedAtVersion, new byte[] {3, 2, 1});
+    HashedVersion resultingVersion = HashedVersion.of(appliedAtVersion + 2, new byte[] {1, 2, 3});
 
     List<WaveletOperation> ops =
         ImmutableList.of(UTIL.noOp(), UTIL.addParticipant(TestingConstants.OTHER_PARTICIPANT));
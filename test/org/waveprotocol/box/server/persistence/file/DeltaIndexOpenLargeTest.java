@@ -0,0 +1,123 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.util.testing.TestingConstants;
+import org.waveprotocol.box.server.waveserver.ByteStringMessage;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.testing.DeltaTestUtil;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Compares the cold open time of a wavelet with a long history when the index
+ * has to be rebuilt from the deltas (as it was on every open before the index
+ * header was introduced) against opening with a committed index.
+ */
+public class DeltaIndexOpenLargeTest extends TestCase {
+
+  private static final Log LOG = Log.get(DeltaIndexOpenLargeTest.class);
+
+  private static final int NUM_DELTAS = 100000;
+  private static final int NUM_RUNS = 5;
+
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet1"));
+
+  private final DeltaTestUtil util = new DeltaTestUtil(TestingConstants.PARTICIPANT);
+  private File path;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+  }
+
+  public void testColdOpenWithCommittedIndexIsFasterThanRebuild() throws Exception {
+    String basePath = path.getAbsolutePath();
+    FileDeltaCollection collection = FileDeltaCollection.open(WAVELET_NAME, basePath);
+    collection.append(createRecords(NUM_DELTAS));
+    collection.close();
+
+    long rebuildNanos = Long.MAX_VALUE;
+    long committedNanos = Long.MAX_VALUE;
+    for (int run = 0; run < NUM_RUNS; run++) {
+      assertTrue(FileDeltaCollection.indexFile(basePath, WAVELET_NAME).delete());
+      rebuildNanos = Math.min(rebuildNanos, timeOpen(basePath));
+      committedNanos = Math.min(committedNanos, timeOpen(basePath));
+    }
+
+    LOG.info(String.format("Cold open of %d deltas: rebuilding index %.2fms, committed index %.2fms",
+        NUM_DELTAS, rebuildNanos / 1e6, committedNanos / 1e6));
+    assertTrue(committedNanos < rebuildNanos);
+  }
+
+  /** Opens the collection, checks its end version and returns the elapsed time. */
+  private long timeOpen(String basePath) throws Exception {
+    long start = System.nanoTime();
+    FileDeltaCollection collection = FileDeltaCollection.open(WAVELET_NAME, basePath);
+    long elapsed = System.nanoTime() - start;
+    assertEquals(NUM_DELTAS, collection.getEndVersion().getVersion());
+    collection.close();
+    return elapsed;
+  }
+
+  /** Creates records for consecutive single operation deltas. */
+  private List<WaveletDeltaRecord> createRecords(int count) throws Exception {
+    List<WaveletDeltaRecord> records = Lists.newArrayListWithCapacity(count);
+    byte[] hash = new byte[] {1, 2, 3};
+    for (int version = 0; version < count; version++) {
+      HashedVersion appliedAt = HashedVersion.of(version, hash);
+      TransformedWaveletDelta transformed = TransformedWaveletDelta.cloneOperations(
+          TestingConstants.PARTICIPANT, HashedVersion.of(version + 1, hash), version,
+          ImmutableList.of(util.noOp()));
+      ProtocolSignedDelta signedDelta = ProtocolSignedDelta.newBuilder()
+          .setDelta(ByteStringMessage.serializeMessage(
+              CoreWaveletOperationSerializer.serialize(transformed)).getByteString())
+          .build();
+      ProtocolAppliedWaveletDelta applied = ProtocolAppliedWaveletDelta.newBuilder()
+          .setApplicationTimestamp(version)
+          .setHashedVersionAppliedAt(CoreWaveletOperationSerializer.serialize(appliedAt))
+          .setSignedOriginalDelta(signedDelta)
+          .setOperationsApplied(1)
+          .build();
+      records.add(new WaveletDeltaRecord(appliedAt, ByteStringMessage.serializeMessage(applied),
+          transformed));
+    }
+    return records;
+  }
+}
@@ -29,7 +29,9 @@ import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.Arrays;
 
 /**
  * Tests for FileDeltaStore.
@@ -97,4 +99,160 @@ public class DeltaStoreTest extends DeltaStoreTestBase {
       toRemove++;
     }
   }
+
+  // Test the index is repaired when it wasn't committed after the last append.
+  public void testRecoverFromStaleIndex() throws Exception {
+    DeltaStore store = newDeltaStore();
+    appendRecords(store, 0, 2);
+    File indexFile = FileDeltaCollection.indexFile(path.getAbsolutePath(), WAVE1_WAVELET1);
+    byte[] staleIndex = readFile(indexFile);
+
+    appendRecords(store, 2, 3);
+    writeFile(indexFile, staleIndex);
+
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    assertRecords(wavelet, 3);
+    wavelet.close();
+
+    // The repaired index is committed and can be appended to.
+    appendRecords(store, 3, 4);
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertRecords(wavelet, 4);
+    wavelet.close();
+  }
+
+  // Test the index is repaired when the deltas file lost its last record.
+  public void testRecoverFromIndexAheadOfDeltas() throws Exception {
+    DeltaStore store = newDeltaStore();
+    appendRecords(store, 0, 3);
+    File deltaFile = FileDeltaCollection.deltasFile(path.getAbsolutePath(), WAVE1_WAVELET1);
+    RandomAccessFile file = new RandomAccessFile(deltaFile, "rw");
+    file.setLength(file.length() - 1);
+    file.close();
+
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    assertRecords(wavelet, 2);
+    assertNull(wavelet.getDelta(4));
+    wavelet.close();
+
+    appendRecords(store, 2, 3);
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertRecords(wavelet, 3);
+    wavelet.close();
+  }
+
+  // Test an index in an unknown format is rebuilt from the deltas.
+  public void testRebuildUnreadableIndex() throws Exception {
+    DeltaStore store = newDeltaStore();
+    appendRecords(store, 0, 3);
+    File indexFile = FileDeltaCollection.indexFile(path.getAbsolutePath(), WAVE1_WAVELET1);
+    writeFile(indexFile, new byte[] {0, 0, 0, 0, 0, 0, 0, 8});
+
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    assertRecords(wavelet, 3);
+    wavelet.close();
+  }
+
+  // Test reopening a wavelet leaves a committed index untouched.
+  public void testReopenReusesIndex() throws Exception {
+    DeltaStore store = newDeltaStore();
+    appendRecords(store, 0, 3);
+    File indexFile = FileDeltaCollection.indexFile(path.getAbsolutePath(), WAVE1_WAVELET1);
+    byte[] committedIndex = readFile(indexFile);
+
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    assertRecords(wavelet, 3);
+    wavelet.close();
+
+    assertTrue(Arrays.equals(committedIndex, readFile(indexFile)));
+  }
+
+  // Test a damaged snapshot checkpoint is reported rather than returned.
+  public void testCorruptSnapshotCheckpointFailsToRead() throws Exception {
+    DeltaStore store = newDeltaStore();
+    appendRecords(store, 0, 1);
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.storeSnapshotCheckpoint(createSnapshot(wavelet.getEndVersion()));
+    wavelet.close();
+
+    File snapshotFile = FileDeltaCollection.snapshotFile(path.getAbsolutePath(), WAVE1_WAVELET1);
+    byte[] bytes = readFile(snapshotFile);
+    bytes[bytes.length - 1] ^= 1;
+    writeFile(snapshotFile, bytes);
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    try {
+      wavelet.getSnapshotCheckpoint();
+      fail("Should have detected the corrupt checkpoint");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertRecords(wavelet, 1);
+    wavelet.close();
+  }
+
+  // Test reading old deltas doesn't wait for an append to be synced.
+  public void testReadDoesNotWaitForSync() throws Exception {
+    appendRecords(newDeltaStore(), 0, 1);
+    File deltaFile = FileDeltaCollection.deltasFile(path.getAbsolutePath(), WAVE1_WAVELET1);
+    long length = deltaFile.length();
+    // The append waits out the whole window before it is forced.
+    final FileDeltaCollection wavelet = FileDeltaCollection.open(WAVE1_WAVELET1,
+        path.getAbsolutePath(), new FileSyncGroup(2000, 0));
+    Thread appender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          wavelet.append(ImmutableList.of(createRecord(2)));
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    appender.start();
+    while (deltaFile.length() == length) {
+      Thread.sleep(1);
+    }
+
+    long start = System.currentTimeMillis();
+    assertEquals(createRecord(0), wavelet.getDelta(0));
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertTrue(appender.isAlive());
+
+    appender.join();
+    assertRecords(wavelet, 2);
+    wavelet.close();
+  }
+
+  /** Appends the records numbered {@code from} until {@code to}, one per append. */
+  private void appendRecords(DeltaStore store, int from, int to) throws Exception {
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    for (int i = from; i < to; i++) {
+      wavelet.append(ImmutableList.of(createRecord(2 * i)));
+    }
+    wavelet.close();
+  }
+
+  /** Checks the wavelet contains exactly the first {@code count} records. */
+  private void assertRecords(DeltasAccess wavelet, int count) throws Exception {
+    for (int i = 0; i < count; i++) {
+      assertEquals(createRecord(2 * i), wavelet.getDelta(2 * i));
+    }
+    assertEquals(2 * count, wavelet.getEndVersion().getVersion());
+  }
+
+  private static byte[] readFile(File fileRef) throws Exception {
+    RandomAccessFile file = new RandomAccessFile(fileRef, "r");
+    byte[] bytes = new byte[(int) file.length()];
+    file.readFully(bytes);
+    file.close();
+    return bytes;
+  }
+
+  private static void writeFile(File fileRef, byte[] bytes) throws Exception {
+    RandomAccessFile file = new RandomAccessFile(fileRef, "rw");
+    file.setLength(0);
+    file.write(bytes);
+    file.close();
+  }
 }
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link FileSyncGroup}.
+ */
+public class FileSyncGroupTest extends TestCase {
+
+  private File path;
+  private RandomAccessFile file1;
+  private RandomAccessFile file2;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+    file1 = new RandomAccessFile(new File(path, "file1"), "rw");
+    file2 = new RandomAccessFile(new File(path, "file2"), "rw");
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    file1.close();
+    file2.close();
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+  }
+
+  public void testImmediateGroupForcesWithoutGrouping() throws Exception {
+    FileSyncGroup.IMMEDIATE.force(file1.getChannel(), 1);
+    assertEquals(0, FileSyncGroup.IMMEDIATE.getCommitCount());
+  }
+
+  public void testConcurrentRequestsShareOneCommit() throws Exception {
+    FileSyncGroup group = new FileSyncGroup(500, 0);
+    CountDownLatch start = new CountDownLatch(1);
+    Future<Void> first = executor.submit(forceTask(group, file1.getChannel(), start));
+    Future<Void> second = executor.submit(forceTask(group, file2.getChannel(), start));
+    Future<Void> third = executor.submit(forceTask(group, file1.getChannel(), start));
+    start.countDown();
+
+    first.get();
+    second.get();
+    third.get();
+    assertEquals(1, group.getCommitCount());
+  }
+
+  public void testFullGroupCommitsBeforeWindowEnds() throws Exception {
+    FileSyncGroup group = new FileSyncGroup(60 * 1000, 10);
+    long start = System.currentTimeMillis();
+    group.force(file1.getChannel(), 10);
+    assertTrue(System.currentTimeMillis() - start < 30 * 1000);
+    assertEquals(1, group.getCommitCount());
+  }
+
+  public void testFailureIsReportedToRequester() throws Exception {
+    FileSyncGroup group = new FileSyncGroup(10, 0);
+    file2.close();
+    try {
+      group.force(file2.getChannel(), 1);
+      fail("Forcing a closed file should fail");
+    } catch (IOException e) {
+      // Expected.
+    }
+    // Other files aren't affected.
+    group.force(file1.getChannel(), 1);
+  }
+
+  private static Callable<Void> forceTask(final FileSyncGroup group, final FileChannel channel,
+      final CountDownLatch start) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        start.await();
+        group.force(channel, 1);
+        return null;
+      }
+    };
+  }
+}
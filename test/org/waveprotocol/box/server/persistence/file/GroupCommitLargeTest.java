@@ -0,0 +1,141 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.util.testing.TestingConstants;
+import org.waveprotocol.box.server.waveserver.ByteStringMessage;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.testing.DeltaTestUtil;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the append throughput of many wavelets edited at once when every
+ * append is forced to disk on its own against group commit.
+ */
+public class GroupCommitLargeTest extends TestCase {
+
+  private static final Log LOG = Log.get(GroupCommitLargeTest.class);
+
+  private static final int NUM_WAVELETS = 32;
+  private static final int DELTAS_PER_WAVELET = 200;
+  private static final int GROUP_COMMIT_WINDOW_MS = 2;
+
+  private final DeltaTestUtil util = new DeltaTestUtil(TestingConstants.PARTICIPANT);
+  private File path;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+    executor = Executors.newFixedThreadPool(NUM_WAVELETS);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+  }
+
+  public void testGroupCommitThroughput() throws Exception {
+    double immediate = measureDeltasPerSecond(FileSyncGroup.IMMEDIATE, "immediate");
+    double grouped = measureDeltasPerSecond(
+        new FileSyncGroup(GROUP_COMMIT_WINDOW_MS, 1 << 20), "grouped");
+    LOG.info(String.format("%d wavelets appending single deltas: fsync per append %.0f deltas/s, "
+        + "group commit (%dms) %.0f deltas/s",
+        NUM_WAVELETS, immediate, GROUP_COMMIT_WINDOW_MS, grouped));
+  }
+
+  /**
+   * Appends deltas one at a time to each wavelet from its own thread, as the
+   * wave server's persist executors do, and returns the overall throughput.
+   */
+  private double measureDeltasPerSecond(final FileSyncGroup syncGroup, String run)
+      throws Exception {
+    final String basePath = new File(path, run).getAbsolutePath();
+    final List<WaveletDeltaRecord> records = createRecords(DELTAS_PER_WAVELET);
+    List<Future<Void>> results = Lists.newArrayList();
+    long start = System.nanoTime();
+    for (int i = 0; i < NUM_WAVELETS; i++) {
+      final WaveletName waveletName = WaveletName.of(WaveId.of("example.com", "wave" + i),
+          WaveletId.of("example.com", "wavelet"));
+      results.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          FileDeltaCollection collection =
+              FileDeltaCollection.open(waveletName, basePath, syncGroup);
+          for (WaveletDeltaRecord record : records) {
+            collection.append(ImmutableList.of(record));
+          }
+          assertEquals(DELTAS_PER_WAVELET, collection.getEndVersion().getVersion());
+          collection.close();
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> result : results) {
+      result.get();
+    }
+    long elapsed = System.nanoTime() - start;
+    return NUM_WAVELETS * DELTAS_PER_WAVELET / (elapsed / 1e9);
+  }
+
+  /** Creates records for consecutive single operation deltas. */
+  private List<WaveletDeltaRecord> createRecords(int count) throws Exception {
+    List<WaveletDeltaRecord> records = Lists.newArrayListWithCapacity(count);
+    byte[] hash = new byte[] {1, 2, 3};
+    for (int version = 0; version < count; version++) {
+      HashedVersion appliedAt = HashedVersion.of(version, hash);
+      TransformedWaveletDelta transformed = TransformedWaveletDelta.cloneOperations(
+          TestingConstants.PARTICIPANT, HashedVersion.of(version + 1, hash), version,
+          ImmutableList.of(util.noOp()));
+      ProtocolSignedDelta signedDelta = ProtocolSignedDelta.newBuilder()
+          .setDelta(ByteStringMessage.serializeMessage(
+              CoreWaveletOperationSerializer.serialize(transformed)).getByteString())
+          .build();
+      ProtocolAppliedWaveletDelta applied = ProtocolAppliedWaveletDelta.newBuilder()
+          .setApplicationTimestamp(version)
+          .setHashedVersionAppliedAt(CoreWaveletOperationSerializer.serialize(appliedAt))
+          .setSignedOriginalDelta(signedDelta)
+          .setOperationsApplied(1)
+          .build();
+      records.add(new WaveletDeltaRecord(appliedAt, ByteStringMessage.serializeMessage(applied),
+          transformed));
+    }
+    return records;
+  }
+}
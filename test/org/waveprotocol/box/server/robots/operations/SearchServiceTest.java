@@ -20,6 +20,7 @@ package org.waveprotocol.box.server.robots.operations;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -42,8 +43,10 @@ import junit.framework.TestCase;
 import org.hamcrest.BaseMatcher;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.server.robots.OperationContext;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
@@ -95,6 +98,7 @@ public class SearchServiceTest extends TestCase {
       WaveletId.of("example.com", "conv+root");
 
   private SearchService service;
+  private SearchDigestCache digestCache;
 
   @Mock private SearchProvider searchProvider;
   @Mock private OperationRequest operation;
@@ -168,7 +172,8 @@ public class SearchServiceTest extends TestCase {
     conversationUtil = new ConversationUtil(idGenerator);
     when(operation.getParameter(ParamsProperty.QUERY)).thenReturn("in:inbox");
    
-    service = new SearchService(searchProvider, new ConversationUtil(idGenerator));
+    digestCache = new SearchDigestCache(100);
+    service = new SearchService(searchProvider, new ConversationUtil(idGenerator), digestCache);
   }
 
   public void testSearchWrapsSearchProvidersResult() throws InvalidRequestException {
@@ -188,6 +193,35 @@ public class SearchServiceTest extends TestCase {
             PARTICIPANT, OTHER_PARTICIPANT), 1, 1)));
   }
 
+  public void testDigestIsCachedUntilWaveletVersionChanges() throws Exception {
+    TestingWaveletData data =
+        new TestingWaveletData(WAVE_ID, CONVERSATION_WAVELET_ID, PARTICIPANT, true);
+    data.appendBlipWithText("title");
+
+    assertEquals("title", search(data).getTitle());
+    assertEquals(0, digestCache.getHitCount());
+    assertEquals("title", search(data).getTitle());
+    assertEquals(1, digestCache.getHitCount());
+
+    data.appendBlipWithText("more");
+    data.waveletData.setHashedVersion(HashedVersion.unsigned(1));
+    Digest digest = search(data);
+    assertEquals(1, digestCache.getHitCount());
+    assertEquals(2, digest.getBlipCount());
+  }
+
+  public void testWaveBusUpdateDropsCachedDigest() throws Exception {
+    TestingWaveletData data =
+        new TestingWaveletData(WAVE_ID, CONVERSATION_WAVELET_ID, PARTICIPANT, true);
+    data.appendBlipWithText("title");
+    search(data);
+
+    digestCache.waveletUpdate(data.waveletData, DeltaSequence.empty());
+    search(data);
+    assertEquals(0, digestCache.getHitCount());
+    assertEquals(2, digestCache.getMissCount());
+  }
+
   public void testWaveletWithNoBlipsResultsInEmptyTitleAndNoBlips() {
     TestingWaveletData data =
         new TestingWaveletData(WAVE_ID, CONVERSATION_WAVELET_ID, PARTICIPANT, true);
@@ -258,6 +292,21 @@ public class SearchServiceTest extends TestCase {
 
   // *** Helpers
 
+  /** Searches with the search provider returning a copy of the wave, and returns its digest. */
+  @SuppressWarnings("unchecked")
+  private Digest search(TestingWaveletData data) throws InvalidRequestException {
+    when(searchProvider.search(USER, "in:inbox", 0, 10)).thenReturn(
+        Arrays.asList(data.copyViewData()));
+    service.execute(operation, context, USER);
+    Class<Map<ParamsProperty, Object>> mapClass =
+        (Class<Map<ParamsProperty, Object>>) (Class<?>) Map.class;
+    ArgumentCaptor<Map<ParamsProperty, Object>> response = ArgumentCaptor.forClass(mapClass);
+    verify(context, atLeastOnce()).constructResponse(eq(operation), response.capture());
+    SearchResult results =
+        (SearchResult) response.getValue().get(ParamsProperty.SEARCH_RESULTS);
+    return results.getDigests().get(0);
+  }
+
   public Matcher<Map<ParamsProperty, Object>> matchesSearchResult(final String query,
       final WaveId waveId, final String title, final ParticipantId author,
       final Set<ParticipantId> participants, final int unreadCount, final int blipCount) {
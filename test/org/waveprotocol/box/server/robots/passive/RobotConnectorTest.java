@@ -23,6 +23,8 @@ import static org.mockito.Mockito.when;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.wave.api.InvalidRequestException;
 import com.google.wave.api.OperationRequest;
 import com.google.wave.api.ProtocolVersion;
@@ -43,6 +45,7 @@ import org.waveprotocol.wave.model.wave.ParticipantId;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Unit test for the {@link RobotConnector}.
@@ -88,38 +91,50 @@ public class RobotConnectorTest extends TestCase {
     when(robot.getAccount()).thenReturn(ROBOT_ACCOUNT);
   }
 
-  public void testSuccessfulSendMessageBundle() throws Exception {
+  public void testSuccessfulSendMessageBundleAsync() throws Exception {
     final List<OperationRequest> expectedOperations = Collections.unmodifiableList(
         Lists.newArrayList(new OperationRequest("wavelet.setTitle", "op1")));
 
     when(serializer.serialize(BUNDLE, PROTOCOL_VERSION)).thenReturn(SERIALIZED_BUNDLE);
-    when(connection.postJson(TEST_RPC_ENDPOINT, SERIALIZED_BUNDLE)).thenReturn(RETURNED_OPERATION);
+    when(connection.asyncPostJson(TEST_RPC_ENDPOINT, SERIALIZED_BUNDLE)).thenReturn(
+        Futures.immediateFuture(RETURNED_OPERATION));
     when(serializer.deserializeOperations(RETURNED_OPERATION)).thenReturn(expectedOperations);
 
-    List<OperationRequest> operations =
-        connector.sendMessageBundle(BUNDLE, robot, PROTOCOL_VERSION);
-    assertEquals(expectedOperations, operations);
+    ListenableFuture<List<OperationRequest>> operations =
+        connector.sendMessageBundleAsync(BUNDLE, robot, PROTOCOL_VERSION);
+    assertEquals(expectedOperations, operations.get());
   }
 
-  public void testConnectionFailsSafely() throws Exception {
+  public void testAsyncConnectionFailureFailsFuture() throws Exception {
     when(serializer.serialize(BUNDLE, PROTOCOL_VERSION)).thenReturn(SERIALIZED_BUNDLE);
-    when(connection.postJson(TEST_RPC_ENDPOINT, SERIALIZED_BUNDLE)).thenThrow(
+    when(connection.asyncPostJson(TEST_RPC_ENDPOINT, SERIALIZED_BUNDLE)).thenThrow(
         new RobotConnectionException("Connection Failed"));
 
-    List<OperationRequest> operations =
-        connector.sendMessageBundle(BUNDLE, robot, PROTOCOL_VERSION);
-    assertTrue("Expected no operations to be returned", operations.isEmpty());
+    ListenableFuture<List<OperationRequest>> operations =
+        connector.sendMessageBundleAsync(BUNDLE, robot, PROTOCOL_VERSION);
+    try {
+      operations.get();
+      fail("Expected ExecutionException");
+    } catch (ExecutionException expected) {
+      // Expected.
+    }
   }
 
-  public void testDeserializationFailsSafely() throws Exception {
+  public void testAsyncDeserializationFailureFailsFuture() throws Exception {
     when(serializer.serialize(BUNDLE, PROTOCOL_VERSION)).thenReturn(SERIALIZED_BUNDLE);
-    when(connection.postJson(TEST_RPC_ENDPOINT, SERIALIZED_BUNDLE)).thenReturn(RETURNED_OPERATION);
+    when(connection.asyncPostJson(TEST_RPC_ENDPOINT, SERIALIZED_BUNDLE)).thenReturn(
+        Futures.immediateFuture(RETURNED_OPERATION));
     when(serializer.deserializeOperations(RETURNED_OPERATION)).thenThrow(
         new InvalidRequestException("Invalid Request"));
 
-    List<OperationRequest> operations =
-        connector.sendMessageBundle(BUNDLE, robot, PROTOCOL_VERSION);
-    assertTrue("Expected no operations to be returned", operations.isEmpty());
+    ListenableFuture<List<OperationRequest>> operations =
+        connector.sendMessageBundleAsync(BUNDLE, robot, PROTOCOL_VERSION);
+    try {
+      operations.get();
+      fail("Expected ExecutionException");
+    } catch (ExecutionException expected) {
+      // Expected.
+    }
   }
 
   public void testFetchCapabilities() throws Exception {
@@ -24,10 +24,13 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.wave.api.OperationRequest;
 import com.google.wave.api.ProtocolVersion;
 import com.google.wave.api.data.converter.EventDataConverter;
@@ -92,6 +95,7 @@ public class RobotTest extends TestCase {
   private WaveletProvider waveletProvider;
   private EventGenerator eventGenerator;
   private RobotOperationApplicator operationApplicator;
+  private RobotDispatchPolicy policy;
   private Robot robot;
 
   @SuppressWarnings("unchecked")
@@ -103,10 +107,11 @@ public class RobotTest extends TestCase {
     waveletProvider = mock(WaveletProvider.class);
     eventGenerator = mock(EventGenerator.class);
     operationApplicator = mock(RobotOperationApplicator.class);
+    policy = new RobotDispatchPolicy(1, Robot.MAX_WAVELETS_PER_RUN + 1, 2, 60000);
 
     robot =
         new Robot(ROBOT_NAME, ACCOUNT, gateway, connector, converterManager, waveletProvider,
-            eventGenerator, operationApplicator);
+            eventGenerator, operationApplicator, policy);
     // Set the initialized account when updateRobotAccount is called.
     doAnswer(new Answer<Object>() {
       @Override
@@ -174,6 +179,17 @@ public class RobotTest extends TestCase {
     verify(gateway).ensureScheduled(robot);
   }
 
+  public void testRunProcessesSeveralQueuedWavelets() throws Exception {
+    for (int i = 0; i < Robot.MAX_WAVELETS_PER_RUN + 1; i++) {
+      enqueueEmptyWavelet(WaveletName.of("example.com", "waveid" + i, "example.com", "waveletid"));
+    }
+    robot.run();
+    verify(gateway).ensureScheduled(robot);
+    assertNotNull("Only a bounded number of wavelets should be processed per run",
+        robot.dequeueWavelet());
+    assertNull(robot.dequeueWavelet());
+  }
+
   public void testRunNotRequeingIfNoWork() {
     robot.run();
     verify(gateway).doneRunning(robot);
@@ -191,39 +207,150 @@ public class RobotTest extends TestCase {
     enqueueEmptyWavelet();
     robot.run();
     // Verify that the robot was not called or any operations where processed
-    verify(connector, never()).sendMessageBundle(
+    verify(connector, never()).sendMessageBundleAsync(
         any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class));
     verify(operationApplicator, never()).applyOperations(anyListOf(OperationRequest.class),
         any(ReadableWaveletData.class), any(HashedVersion.class), eq(ACCOUNT));
   }
 
-  @SuppressWarnings("unchecked")
   public void testProcessSendsBundleAndCallsOperationsApplicator() throws Exception {
-    EventMessageBundle messages = new EventMessageBundle(ROBOT_NAME.toEmailAddress(), "");
-    messages.addEvent(new DocumentChangedEvent(null, null, ALEX.getAddress(), 0L, "b+1234"));
-    when(eventGenerator.generateEvents(
-        any(WaveletAndDeltas.class), anyMap(), any(EventDataConverter.class))).thenReturn(messages);
-
+    generateEvents();
     OperationRequest op = new OperationRequest("wavelet.fetch", "op1");
     List<OperationRequest> ops = Collections.singletonList(op);
-    when(connector.sendMessageBundle(
-        any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class))).thenReturn(ops);
+    when(connector.sendMessageBundleAsync(
+        any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class))).thenReturn(
+        Futures.immediateFuture(ops));
 
     enqueueEmptyWavelet();
     robot.run();
 
-    verify(connector).sendMessageBundle(
+    verify(connector).sendMessageBundleAsync(
         any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class));
     verify(operationApplicator).applyOperations(
         eq(ops), any(ReadableWaveletData.class), any(HashedVersion.class), eq(INITIALIZED_ACCOUNT));
+    assertEquals(1, robot.getStats().getSentCount());
+    assertEquals(0, robot.getStats().getInFlight());
+  }
+
+  public void testRunAppliesOperationsOfLaterResponses() throws Exception {
+    generateEvents();
+    SettableFuture<List<OperationRequest>> response = SettableFuture.create();
+    when(connector.sendMessageBundleAsync(
+        any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class))).thenReturn(response);
+
+    enqueueEmptyWavelet();
+    robot.run();
+    verify(operationApplicator, never()).applyOperations(anyListOf(OperationRequest.class),
+        any(ReadableWaveletData.class), any(HashedVersion.class), eq(INITIALIZED_ACCOUNT));
+    assertEquals(1, robot.getStats().getInFlight());
+
+    List<OperationRequest> ops =
+        Collections.singletonList(new OperationRequest("wavelet.fetch", "op1"));
+    response.set(ops);
+    // Once for the wavelet, once for the response.
+    verify(gateway, times(2)).ensureScheduled(robot);
+    robot.run();
+    verify(operationApplicator).applyOperations(
+        eq(ops), any(ReadableWaveletData.class), any(HashedVersion.class), eq(INITIALIZED_ACCOUNT));
+  }
+
+  public void testRunSendsNoMoreBundlesThanInFlightLimit() throws Exception {
+    generateEvents();
+    SettableFuture<List<OperationRequest>> response = SettableFuture.create();
+    when(connector.sendMessageBundleAsync(
+        any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class))).thenReturn(response);
+
+    enqueueEmptyWavelet(WaveletName.of("example.com", "waveid1", "example.com", "waveletid"));
+    enqueueEmptyWavelet(WaveletName.of("example.com", "waveid2", "example.com", "waveletid"));
+    robot.run();
+    verify(connector, times(1)).sendMessageBundleAsync(
+        any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class));
+    assertEquals(1, robot.getStats().getQueueDepth());
+
+    response.set(Collections.<OperationRequest>emptyList());
+    robot.run();
+    verify(connector, times(2)).sendMessageBundleAsync(
+        any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class));
+    assertEquals(0, robot.getStats().getQueueDepth());
+  }
+
+  public void testRunSendsOneBundlePerWaveletAtATime() throws Exception {
+    policy = new RobotDispatchPolicy(2, Robot.MAX_WAVELETS_PER_RUN + 1, 2, 60000);
+    robot = new Robot(ROBOT_NAME, INITIALIZED_ACCOUNT, gateway, connector, converterManager,
+        waveletProvider, eventGenerator, operationApplicator, policy);
+    generateEvents();
+    SettableFuture<List<OperationRequest>> firstResponse = SettableFuture.create();
+    when(connector.sendMessageBundleAsync(
+        any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class))).thenReturn(
+        firstResponse, SettableFuture.<List<OperationRequest>>create(),
+        SettableFuture.<List<OperationRequest>>create());
+
+    enqueueEmptyWavelet();
+    robot.run();
+    enqueueEmptyWavelet();
+    enqueueEmptyWavelet(WaveletName.of("example.com", "waveid2", "example.com", "waveletid"));
+    robot.run();
+    verify(connector, times(2)).sendMessageBundleAsync(
+        any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class));
+    assertEquals("The wavelet in flight should stay queued", 1, robot.getStats().getQueueDepth());
+
+    firstResponse.set(Collections.<OperationRequest>emptyList());
+    robot.run();
+    verify(connector, times(3)).sendMessageBundleAsync(
+        any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class));
+    assertEquals(0, robot.getStats().getQueueDepth());
+  }
+
+  public void testWaveletUpdateDropsOldestWaveletsBeyondQueueLimit() throws Exception {
+    for (int i = 0; i < policy.getMaxQueuedWavelets() + 2; i++) {
+      enqueueEmptyWavelet(WaveletName.of("example.com", "waveid" + i, "example.com", "waveletid"));
+    }
+    assertEquals(2, robot.getStats().getDroppedCount());
+    assertEquals(policy.getMaxQueuedWavelets(), robot.getStats().getQueueDepth());
+    assertEquals(WaveletName.of("example.com", "waveid2", "example.com", "waveletid"),
+        WaveletDataUtil.waveletNameOf(robot.dequeueWavelet().getSnapshotAfterDeltas()));
+  }
+
+  public void testEventsAreDroppedAfterConsecutiveFailures() throws Exception {
+    generateEvents();
+    when(connector.sendMessageBundleAsync(
+        any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class))).thenReturn(
+        Futures.<List<OperationRequest>>immediateFailedFuture(new RuntimeException("failed")));
+
+    for (int i = 0; i < policy.getCircuitBreakerFailures() + 1; i++) {
+      enqueueEmptyWavelet();
+      robot.run();
+    }
+    verify(connector, times(policy.getCircuitBreakerFailures())).sendMessageBundleAsync(
+        any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class));
+    assertEquals(policy.getCircuitBreakerFailures(), robot.getStats().getFailedCount());
+    assertEquals(1, robot.getStats().getDroppedCount());
+  }
+
+  /**
+   * Makes the event generator generate an event for each wavelet.
+   */
+  @SuppressWarnings("unchecked")
+  private void generateEvents() {
+    EventMessageBundle messages = new EventMessageBundle(ROBOT_NAME.toEmailAddress(), "");
+    messages.addEvent(new DocumentChangedEvent(null, null, ALEX.getAddress(), 0L, "b+1234"));
+    when(eventGenerator.generateEvents(
+        any(WaveletAndDeltas.class), anyMap(), any(EventDataConverter.class))).thenReturn(messages);
   }
 
   /**
    * Enqueues an empty wavelet into the {@link Robot}.
    */
   private void enqueueEmptyWavelet() throws Exception {
-    HashedVersion hashedVersionZero = HASH_FACTORY.createVersionZero(WAVELET_NAME);
-    WaveletData waveletData = WaveletDataUtil.createEmptyWavelet(WAVELET_NAME, ALEX,
+    enqueueEmptyWavelet(WAVELET_NAME);
+  }
+
+  /**
+   * Enqueues an empty wavelet with the given name into the {@link Robot}.
+   */
+  private void enqueueEmptyWavelet(WaveletName waveletName) throws Exception {
+    HashedVersion hashedVersionZero = HASH_FACTORY.createVersionZero(waveletName);
+    WaveletData waveletData = WaveletDataUtil.createEmptyWavelet(waveletName, ALEX,
         hashedVersionZero, 0L);
     robot.waveletUpdate(waveletData, DeltaSequence.empty());
   }
@@ -66,7 +66,8 @@ public class RobotsGatewayTest extends TestCase {
 
     gateway =
         new RobotsGateway(waveletProvider, robotConnector, accountStore, serializer,
-            converterManager, executor, conversationUtil, notifyOpService);
+            converterManager, executor, conversationUtil, notifyOpService,
+            new RobotDispatchPolicy(2, 1000, 5, 60000));
   }
 
   public void testWaveletUpdate() throws Exception {
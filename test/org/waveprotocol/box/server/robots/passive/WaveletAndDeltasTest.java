@@ -20,7 +20,9 @@ package org.waveprotocol.box.server.robots.passive;
 import junit.framework.TestCase;
 
 import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.util.ImmutableWaveletSnapshot;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.wave.model.document.operation.DocOp;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.wave.AddParticipant;
 import org.waveprotocol.wave.model.operation.wave.NoOp;
@@ -36,6 +38,7 @@ import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 /**
  * Unit test for {@link WaveletAndDeltas}.
@@ -85,6 +88,23 @@ public class WaveletAndDeltasTest extends TestCase {
         firstSnapshot.getVersion() == 0);
   }
 
+  public void testPreviousImmutableSnapshotIsUsedBeforeDeltas() throws Exception {
+    ObservableWaveletData data =
+        WaveletDataUtil.createEmptyWavelet(WAVELET_NAME, ALEX, HashedVersion.unsigned(0), 0L);
+    data.addParticipant(ALEX);
+    ImmutableWaveletSnapshot before = ImmutableWaveletSnapshot.of(data);
+    AddParticipant addBobOp = new AddParticipant(new WaveletOperationContext(ALEX, 0L, 1, V1), BOB);
+    addBobOp.apply(data);
+    ImmutableWaveletSnapshot after = ImmutableWaveletSnapshot.of(data, before,
+        Collections.<String, List<DocOp>>emptyMap());
+
+    WaveletAndDeltas immutableWavelet = WaveletAndDeltas.create(after,
+        DeltaSequence.of(new TransformedWaveletDelta(ALEX, V1, 0L, Arrays.asList(addBobOp))));
+    assertEquals(0, immutableWavelet.getSnapshotBeforeDeltas().getVersion());
+    assertFalse(immutableWavelet.getSnapshotBeforeDeltas().getParticipants().contains(BOB));
+    assertSame(after, immutableWavelet.getSnapshotAfterDeltas());
+  }
+
   public void testgetSnapshotAfterDeltas() throws Exception {
     ReadableWaveletData latestSnapshot = wavelet.getSnapshotAfterDeltas();
     assertNotSame("A copy of the waveletdata must be made", waveletData, latestSnapshot);
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+import org.waveprotocol.box.server.persistence.AttachmentStore;
+import org.waveprotocol.box.server.persistence.file.FileAttachmentStore;
+import org.waveprotocol.box.server.persistence.file.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for the AttachmentServlet's range and conditional requests.
+ */
+public class AttachmentServletTest extends TestCase {
+  private static final String ID = "attachment";
+  private static final String DATA = "0123456789abcdefghij";
+
+  private File path;
+  private AttachmentServlet servlet;
+  private String etag;
+  private long lastModified;
+
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private ByteArrayOutputStream body;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+    AttachmentStore store = new FileAttachmentStore(path.getAbsolutePath());
+    store.storeAttachment(ID, new ByteArrayInputStream(DATA.getBytes("UTF-8")));
+    lastModified = store.getAttachment(ID).getLastModifiedDate().getTime();
+    servlet = new AttachmentServlet(store);
+
+    // Fetch the attachment once to learn its ETag.
+    get();
+    etag = header("ETag");
+    setUpRequest();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+  }
+
+  public void testWholeAttachmentIsServed() throws Exception {
+    get();
+    verify(response).setStatus(HttpServletResponse.SC_OK);
+    verify(response).setContentLength(DATA.length());
+    verify(response).setHeader("Accept-Ranges", "bytes");
+    assertEquals(DATA, body.toString("UTF-8"));
+  }
+
+  public void testRangeIsServed() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=5-9");
+    get();
+    verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    verify(response).setHeader("Content-Range", "bytes 5-9/20");
+    verify(response).setContentLength(5);
+    assertEquals("56789", body.toString("UTF-8"));
+  }
+
+  public void testOpenAndSuffixRangesAreServed() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=15-");
+    get();
+    assertEquals("fghij", body.toString("UTF-8"));
+
+    setUpRequest();
+    when(request.getHeader("Range")).thenReturn("bytes=-3");
+    get();
+    verify(response).setHeader("Content-Range", "bytes 17-19/20");
+    assertEquals("hij", body.toString("UTF-8"));
+  }
+
+  public void testRangeBeyondEndIsNotSatisfiable() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=20-30");
+    get();
+    verify(response).setHeader("Content-Range", "bytes */20");
+    verify(response).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+    assertEquals(0, body.size());
+  }
+
+  public void testOpenRangeBeyondEndIsNotSatisfiable() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=25-");
+    get();
+    verify(response).setHeader("Content-Range", "bytes */20");
+    verify(response).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+    assertEquals(0, body.size());
+  }
+
+  public void testMultipleRangesServeWholeAttachment() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=0-1,5-6");
+    get();
+    verify(response).setStatus(HttpServletResponse.SC_OK);
+    assertEquals(DATA, body.toString("UTF-8"));
+  }
+
+  public void testRangeOfOtherVersionServesWholeAttachment() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=5-9");
+    when(request.getHeader("If-Range")).thenReturn("\"other\"");
+    get();
+    verify(response).setStatus(HttpServletResponse.SC_OK);
+    assertEquals(DATA, body.toString("UTF-8"));
+
+    setUpRequest();
+    when(request.getHeader("Range")).thenReturn("bytes=5-9");
+    when(request.getHeader("If-Range")).thenReturn(etag);
+    get();
+    assertEquals("56789", body.toString("UTF-8"));
+  }
+
+  public void testMatchingETagIsNotModified() throws Exception {
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + etag);
+    get();
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals(0, body.size());
+
+    setUpRequest();
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\"");
+    get();
+    verify(response).setStatus(HttpServletResponse.SC_OK);
+    assertEquals(DATA, body.toString("UTF-8"));
+  }
+
+  public void testUnmodifiedSinceDateIsNotModified() throws Exception {
+    when(request.getHeader("If-Modified-Since")).thenReturn("date");
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(lastModified);
+    get();
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+    setUpRequest();
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(lastModified - 5000);
+    get();
+    verify(response).setStatus(HttpServletResponse.SC_OK);
+    assertEquals(DATA, body.toString("UTF-8"));
+  }
+
+  private void setUpRequest() {
+    request = mock(HttpServletRequest.class);
+    when(request.getPathInfo()).thenReturn("/" + ID);
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+  }
+
+  private void get() throws IOException {
+    if (request == null) {
+      setUpRequest();
+    }
+    body = new ByteArrayOutputStream();
+    final ByteArrayOutputStream out = body;
+    response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        out.write(b);
+      }
+    });
+    servlet.doGet(request, response);
+  }
+
+  /** Returns the value the servlet set for a response header. */
+  private String header(String name) {
+    ArgumentCaptor<String> value = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq(name), value.capture());
+    return value.getValue();
+  }
+}
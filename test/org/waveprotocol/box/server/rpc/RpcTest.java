@@ -41,6 +41,7 @@ import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -53,9 +54,11 @@ public class RpcTest extends TestCase {
 
   private ServerRpcProvider server = null;
   private ClientRpcChannel client = null;
+  private boolean binaryFraming = false;
 
   private ClientRpcChannel newClient() throws IOException {
-     return new WebSocketClientRpcChannel(server.getWebSocketAddress());
+     return new WebSocketClientRpcChannel(server.getWebSocketAddress(),
+         Executors.newSingleThreadExecutor(), binaryFraming);
   }
 
   @Override
@@ -170,6 +173,14 @@ public class RpcTest extends TestCase {
     assertEquals(0, responseLatch.getCount());
   }
 
+  /**
+   * Tests a simple end-to-end RPC whose messages are sent in binary frames.
+   */
+  public void testSimpleRpcWithBinaryFraming() throws Exception {
+    binaryFraming = true;
+    testSimpleRpc();
+  }
+
   /**
    * Tests a RPC that will fail.
    */
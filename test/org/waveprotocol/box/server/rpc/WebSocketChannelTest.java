@@ -17,6 +17,8 @@ public class WebSocketChannelTest extends TestCase {
 
   class TestWebSocketChannel extends WebSocketChannel {
     String message;
+    byte[] bytes;
+    boolean binarySupported = true;
 
     public TestWebSocketChannel(ProtoCallback callback) {
       super(callback);
@@ -27,6 +29,16 @@ public class WebSocketChannelTest extends TestCase {
     protected void sendMessageString(final String data) {
       this.message = data;
     }
+
+    @Override
+    protected boolean supportsBinaryFrames() {
+      return binarySupported;
+    }
+
+    @Override
+    protected void sendMessageBytes(final byte[] data) {
+      this.bytes = data;
+    }
   }
 
   class TestCallback implements ProtoCallback {
@@ -70,6 +82,37 @@ public class WebSocketChannelTest extends TestCase {
     checkRoundtripping(sourceBuilder);
   }
 
+  public void testRoundTrippingBinary() throws Exception {
+    WaveClientRpc.ProtocolOpenRequest.Builder sourceBuilder = buildProtocolOpenRequest();
+    sourceBuilder.addWaveletIdPrefix("aaa");
+    WaveClientRpc.ProtocolOpenRequest sourceRequest = sourceBuilder.build();
+    channel.setBinaryFraming(true);
+    channel.sendMessage(SEQUENCE_NUMBER, sourceRequest);
+    assertNull(channel.message);
+    assertNotNull(channel.bytes);
+
+    // Received from an offset into a larger buffer, as the server does.
+    byte[] buffer = new byte[channel.bytes.length + 10];
+    System.arraycopy(channel.bytes, 0, buffer, 3, channel.bytes.length);
+    channel.handleMessageBytes(buffer, 3, channel.bytes.length);
+    assertEquals(SEQUENCE_NUMBER, callback.sequenceNumber);
+    assertEquals(sourceRequest, callback.savedMessage);
+  }
+
+  public void testBinaryFramingFallsBackToJsonWithoutBinarySupport() throws Exception {
+    channel.binarySupported = false;
+    channel.setBinaryFraming(true);
+    checkRoundtripping(buildProtocolOpenRequest());
+    assertNull(channel.bytes);
+  }
+
+  public void testTruncatedBinaryMessageIsDropped() throws Exception {
+    channel.setBinaryFraming(true);
+    channel.sendMessage(SEQUENCE_NUMBER, buildProtocolOpenRequest().build());
+    channel.handleMessageBytes(channel.bytes, 0, 4);
+    assertNull(callback.savedMessage);
+  }
+
   private void checkRoundtripping(final WaveClientRpc.ProtocolOpenRequest.Builder sourceBuilder) {
     WaveClientRpc.ProtocolOpenRequest sourceRequest = sourceBuilder.build();
     channel.sendMessage(SEQUENCE_NUMBER, sourceRequest);
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link ImmutableWaveletSnapshot}.
+ */
+public class ImmutableWaveletSnapshotTest extends TestCase {
+
+  private static final ParticipantId CREATOR = ParticipantId.ofUnsafe("creator@example.com");
+  private static final ParticipantId JOE = ParticipantId.ofUnsafe("joe@example.com");
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of(WaveId.of("example.com", "w+wave"), WaveletId.of("example.com", "wavelet"));
+
+  private ObservableWaveletData wavelet;
+  private long time = 1000L;
+
+  @Override
+  protected void setUp() throws Exception {
+    wavelet = WaveletDataUtil.createEmptyWavelet(WAVELET_NAME, CREATOR,
+        HashedVersion.unsigned(0), time);
+    wavelet.addParticipant(CREATOR);
+    insert("b+1", "hello");
+    insert("b+2", "world");
+  }
+
+  public void testSnapshotMatchesWavelet() throws Exception {
+    ImmutableWaveletSnapshot snapshot = ImmutableWaveletSnapshot.of(wavelet);
+    assertSameState(wavelet, snapshot);
+  }
+
+  public void testSnapshotIsUnaffectedByLaterChanges() throws Exception {
+    ImmutableWaveletSnapshot snapshot = ImmutableWaveletSnapshot.of(wavelet);
+    ObservableWaveletData copy = WaveletDataUtil.copyWavelet(wavelet);
+    insert("b+1", "again");
+    new AddParticipant(context(), JOE).apply(wavelet);
+
+    assertSameState(copy, snapshot);
+  }
+
+  public void testUnchangedDocumentsAreShared() throws Exception {
+    ImmutableWaveletSnapshot first = ImmutableWaveletSnapshot.of(wavelet);
+    DocOp op = insert("b+1", "again");
+    ImmutableWaveletSnapshot second = ImmutableWaveletSnapshot.of(wavelet, first,
+        ImmutableMap.<String, List<DocOp>>of("b+1", ImmutableList.of(op)));
+
+    assertSame(first.getDocument("b+2").getContent().asOperation(),
+        second.getDocument("b+2").getContent().asOperation());
+    assertSameState(wavelet, second);
+  }
+
+  public void testChangedDocumentsAreComposedFromTheirOps() throws Exception {
+    ImmutableWaveletSnapshot snapshot = ImmutableWaveletSnapshot.of(wavelet);
+    // More snapshots than are left uncomposed.
+    for (int i = 0; i < 50; i++) {
+      DocOp op = insert("b+" + (1 + i % 2), "x" + i);
+      snapshot = ImmutableWaveletSnapshot.of(wavelet, snapshot,
+          ImmutableMap.<String, List<DocOp>>of("b+" + (1 + i % 2), ImmutableList.of(op)));
+    }
+    assertSameState(wavelet, snapshot);
+  }
+
+  public void testNewDocumentsAreCopied() throws Exception {
+    ImmutableWaveletSnapshot first = ImmutableWaveletSnapshot.of(wavelet);
+    DocOp op = insert("b+3", "new");
+    ImmutableWaveletSnapshot second = ImmutableWaveletSnapshot.of(wavelet, first,
+        ImmutableMap.<String, List<DocOp>>of("b+3", ImmutableList.of(op)));
+    assertNull(first.getDocument("b+3"));
+    assertSameState(wavelet, second);
+  }
+
+  public void testOnlyThePreviousSnapshotIsKept() throws Exception {
+    ImmutableWaveletSnapshot first = ImmutableWaveletSnapshot.of(wavelet);
+    ObservableWaveletData firstCopy = WaveletDataUtil.copyWavelet(wavelet);
+    new AddParticipant(context(), JOE).apply(wavelet);
+    ImmutableWaveletSnapshot second = ImmutableWaveletSnapshot.of(wavelet, first,
+        ImmutableMap.<String, List<DocOp>>of());
+    DocOp op = insert("b+1", "again");
+    ImmutableWaveletSnapshot third = ImmutableWaveletSnapshot.of(wavelet, second,
+        ImmutableMap.<String, List<DocOp>>of("b+1", ImmutableList.of(op)));
+
+    assertNull(first.getPrevious());
+    assertSameState(firstCopy, second.getPrevious());
+    assertSameState(second, third.getPrevious());
+    assertNull(third.getPrevious().getPrevious());
+  }
+
+  public void testDocumentsCannotBeModified() throws Exception {
+    ImmutableWaveletSnapshot snapshot = ImmutableWaveletSnapshot.of(wavelet);
+    try {
+      snapshot.getDocument("b+1").getContent().consume(new DocOpBuilder().retain(5).build());
+      fail("Expected UnsupportedOperationException");
+    } catch (UnsupportedOperationException expected) {
+      // Expected.
+    }
+    try {
+      snapshot.getParticipants().add(JOE);
+      fail("Expected UnsupportedOperationException");
+    } catch (UnsupportedOperationException expected) {
+      // Expected.
+    }
+  }
+
+  public void testCopyMatchesSnapshot() throws Exception {
+    ImmutableWaveletSnapshot snapshot = ImmutableWaveletSnapshot.of(wavelet);
+    assertSameState(wavelet, WaveletDataUtil.copyWavelet(snapshot));
+  }
+
+  /**
+   * Appends text to a document of the wavelet, creating the document if it
+   * doesn't exist.
+   *
+   * @return the op applied to the document
+   */
+  private DocOp insert(String documentId, String text) throws Exception {
+    int length = 0;
+    if (wavelet.getDocument(documentId) != null) {
+      length = DocOpUtil.toXmlString(
+          wavelet.getDocument(documentId).getContent().asOperation()).length();
+    }
+    DocOpBuilder builder = new DocOpBuilder();
+    if (length > 0) {
+      builder.retain(length);
+    }
+    DocOp op = builder.characters(text).build();
+    new WaveletBlipOperation(documentId, new BlipContentOperation(context(), op)).apply(wavelet);
+    return op;
+  }
+
+  private WaveletOperationContext context() {
+    return new WaveletOperationContext(CREATOR, ++time, 1L);
+  }
+
+  private static void assertSameState(ReadableWaveletData expected, ReadableWaveletData actual) {
+    assertEquals(expected.getWaveId(), actual.getWaveId());
+    assertEquals(expected.getWaveletId(), actual.getWaveletId());
+    assertEquals(expected.getCreator(), actual.getCreator());
+    assertEquals(expected.getCreationTime(), actual.getCreationTime());
+    assertEquals(expected.getLastModifiedTime(), actual.getLastModifiedTime());
+    assertEquals(expected.getHashedVersion(), actual.getHashedVersion());
+    assertEquals(expected.getParticipants(), actual.getParticipants());
+    assertEquals(expected.getDocumentIds(), actual.getDocumentIds());
+    assertEquals(contents(expected), contents(actual));
+    for (String id : expected.getDocumentIds()) {
+      assertEquals(expected.getDocument(id).getAuthor(), actual.getDocument(id).getAuthor());
+      assertEquals(expected.getDocument(id).getContributors(),
+          actual.getDocument(id).getContributors());
+      assertEquals(expected.getDocument(id).getLastModifiedTime(),
+          actual.getDocument(id).getLastModifiedTime());
+      assertEquals(expected.getDocument(id).getLastModifiedVersion(),
+          actual.getDocument(id).getLastModifiedVersion());
+    }
+  }
+
+  private static Map<String, String> contents(ReadableWaveletData wavelet) {
+    Map<String, String> contents = Maps.newHashMap();
+    for (String id : wavelet.getDocumentIds()) {
+      contents.put(id, DocOpUtil.toXmlString(wavelet.getDocument(id).getContent().asOperation()));
+    }
+    return contents;
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link SerialExecutorPool}.
+ */
+public class SerialExecutorPoolTest extends TestCase {
+
+  private ExecutorService threads;
+  private SerialExecutorPool pool;
+
+  @Override
+  protected void setUp() throws Exception {
+    threads = Executors.newFixedThreadPool(4);
+    pool = new SerialExecutorPool(threads);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    threads.shutdownNow();
+  }
+
+  public void testTasksRunInSubmissionOrder() throws Exception {
+    Executor executor = pool.newSerialExecutor();
+    final List<Integer> order = Collections.synchronizedList(Lists.<Integer>newArrayList());
+    for (int i = 0; i < 100; i++) {
+      final int n = i;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          order.add(n);
+        }
+      });
+    }
+    awaitIdle(executor);
+
+    List<Integer> expected = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      expected.add(i);
+    }
+    assertEquals(expected, order);
+    // The task run by awaitIdle() may not be counted yet.
+    assertTrue(pool.getCompletedTaskCount() >= 100);
+    assertEquals(0, pool.getQueueDepth());
+  }
+
+  public void testBlockedExecutorDoesNotBlockOthers() throws Exception {
+    Executor blocked = pool.newSerialExecutor();
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(1);
+    blocked.execute(new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    blocked.execute(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+    assertEquals(1, pool.getQueueDepth());
+
+    awaitIdle(pool.newSerialExecutor());
+    assertEquals(1, pool.getQueueDepth());
+
+    release.countDown();
+    awaitIdle(blocked);
+    assertEquals(0, pool.getQueueDepth());
+  }
+
+  public void testFailingTaskDoesNotStopLaterTasks() throws Exception {
+    Executor executor = pool.newSerialExecutor();
+    final List<String> ran = Collections.synchronizedList(Lists.<String>newArrayList());
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        ran.add("first");
+        throw new RuntimeException("expected");
+      }
+    });
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        ran.add("second");
+      }
+    });
+    awaitIdle(executor);
+    assertEquals(ImmutableList.of("first", "second"), ran);
+  }
+
+  /** Waits until the tasks submitted so far to the executor have run. */
+  private static void awaitIdle(Executor executor) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+}
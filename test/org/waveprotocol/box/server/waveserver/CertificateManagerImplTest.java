@@ -70,6 +70,8 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class CertificateManagerImplTest extends TestCase {
 
@@ -79,6 +81,7 @@ public class CertificateManagerImplTest extends TestCase {
       FederationErrors.badRequest("It's not my fault!");
 
   private CertPathStore store;
+  private ExecutorService verificationExecutor;
   private CertificateManager manager;
   private Ticker ticker;
 
@@ -91,10 +94,18 @@ public class CertificateManagerImplTest extends TestCase {
   protected void setUp() throws Exception {
     super.setUp();
     store = new MemoryStore();
-    manager = new CertificateManagerImpl(false, getSigner(), getVerifier(store, true), store);
+    verificationExecutor = Executors.newFixedThreadPool(2);
+    manager = new CertificateManagerImpl(false, getSigner(), getVerifier(store, true), store,
+        verificationExecutor);
     ticker = new Ticker();
   }
 
+  @Override
+  protected void tearDown() throws Exception {
+    verificationExecutor.shutdown();
+    super.tearDown();
+  }
+
   /*
    * TESTS
    */
@@ -119,7 +130,8 @@ public class CertificateManagerImplTest extends TestCase {
         .setAuthor("bob@example.com")
         .build();
     ByteStringMessage<ProtocolWaveletDelta> canonicalDelta = ByteStringMessage.serializeMessage(delta);
-    manager = new CertificateManagerImpl(false, getSigner(), getVerifier(store, false), store);
+    manager = new CertificateManagerImpl(false, getSigner(), getVerifier(store, false), store,
+        verificationExecutor);
     ProtocolSignedDelta signedDelta = manager.signDelta(canonicalDelta);
 
     try {
@@ -152,12 +164,39 @@ public class CertificateManagerImplTest extends TestCase {
   }
 
   public void testRealSignature() throws Exception {
-    manager = new CertificateManagerImpl(false, getSigner(), getRealVerifier(store), store);
+    manager = new CertificateManagerImpl(false, getSigner(), getRealVerifier(store), store,
+        verificationExecutor);
     manager.storeSignerInfo(Certificates.getRealSignerInfo().toProtoBuf());
     ByteStringMessage<ProtocolWaveletDelta> compare = manager.verifyDelta(getFakeSignedDelta());
     assertEquals(compare, getFakeDelta());
   }
 
+  public void testVerifyDeltas() throws Exception {
+    manager = new CertificateManagerImpl(false, getSigner(), getRealVerifier(store), store,
+        verificationExecutor);
+    manager.storeSignerInfo(Certificates.getRealSignerInfo().toProtoBuf());
+    manager.verifyDeltas(ImmutableList.of(getFakeSignedDelta(), getFakeSignedDelta(),
+        getFakeSignedDelta()));
+  }
+
+  public void testVerifyDeltas_oneFails() throws Exception {
+    manager = new CertificateManagerImpl(false, getSigner(), getRealVerifier(store), store,
+        verificationExecutor);
+    manager.storeSignerInfo(Certificates.getRealSignerInfo().toProtoBuf());
+    ProtocolSignedDelta tampered = getFakeSignedDelta().toBuilder()
+        .setDelta(ProtocolWaveletDelta.newBuilder(getFakeDelta().getMessage())
+            .setAuthor("eve@initech-corp.com").build().toByteString())
+        .build();
+
+    try {
+      manager.verifyDeltas(ImmutableList.of(getFakeSignedDelta(), tampered,
+          getFakeSignedDelta()));
+      fail("expected SignatureException, but didn't get it");
+    } catch (SignatureException e) {
+      // expected
+    }
+  }
+
   /**
    * Test prefetchDeltaSignerInfo for a single request on a single domain, and that subsequent
    * requests on the same domain return instantly.
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Measures transforming client deltas which lag the server history by several
+ * amounts against cached composed segments of the history, against composing
+ * the history they missed for each delta, as was done before the segments were
+ * cached.
+ */
+public class ComposedDeltaHistoryLargeTest extends TestCase {
+
+  private static final Log LOG = Log.get(ComposedDeltaHistoryLargeTest.class);
+
+  private static final int HISTORY_VERSIONS = 4096;
+  private static final int[] LAGS = {16, 256, 2048};
+  /** Number of late client deltas transformed at each lag. */
+  private static final int CLIENT_DELTAS = 20;
+  private static final int DOCUMENT_LENGTH = 100;
+  private static final int NUM_RUNS = 5;
+
+  private static final ParticipantId SERVER = ParticipantId.ofUnsafe("server@example.com");
+  private static final WaveletOperationContext CLIENT_CONTEXT =
+      new WaveletOperationContext(ParticipantId.ofUnsafe("client@example.com"), 0L, 1);
+
+  public void testCachedSegmentsAreFasterThanComposingEachTime() throws Exception {
+    NavigableMap<HashedVersion, TransformedWaveletDelta> deltas =
+        new ConcurrentSkipListMap<HashedVersion, TransformedWaveletDelta>();
+    for (int version = 0; version < HISTORY_VERSIONS; version++) {
+      deltas.put(hashed(version), TransformedWaveletDelta.cloneOperations(SERVER,
+          hashed(version + 1), 0L, ImmutableList.of(new WaveletBlipOperation("b+1",
+              new BlipContentOperation(new WaveletOperationContext(SERVER, 0L, 1),
+                  insert(version % DOCUMENT_LENGTH, DOCUMENT_LENGTH + version))))));
+    }
+    ComposedDeltaHistory cached = new ComposedDeltaHistory(deltas, true);
+    ComposedDeltaHistory uncached = new ComposedDeltaHistory(deltas, false);
+
+    long cachedNanos = 0;
+    long uncachedNanos = 0;
+    for (int lag : LAGS) {
+      int start = HISTORY_VERSIONS - lag;
+      List<WaveletOperation> clientOps = ImmutableList.<WaveletOperation>of(
+          new WaveletBlipOperation("b+1", new BlipContentOperation(CLIENT_CONTEXT,
+              insert(DOCUMENT_LENGTH / 2, DOCUMENT_LENGTH + start))));
+      uncachedNanos = time(uncached, start, clientOps);
+      cachedNanos = time(cached, start, clientOps);
+      LOG.info(String.format("%d client deltas lagging %d versions: "
+          + "composed each time %.3fms, cached segments %.3fms", CLIENT_DELTAS, lag,
+          uncachedNanos / 1e6, cachedNanos / 1e6));
+    }
+    assertTrue(cachedNanos < uncachedNanos);
+  }
+
+  /**
+   * @return the best time, over several runs, to transform the client deltas
+   *         against the history from the start version
+   */
+  private static long time(ComposedDeltaHistory history, int start,
+      List<WaveletOperation> clientOps) throws Exception {
+    long best = Long.MAX_VALUE;
+    for (int run = 0; run < NUM_RUNS; run++) {
+      List<List<WaveletOperation>> results = Lists.newArrayList();
+      long startNanos = System.nanoTime();
+      for (int i = 0; i < CLIENT_DELTAS; i++) {
+        results.add(history.compose(start, HISTORY_VERSIONS).transform(clientOps));
+      }
+      best = Math.min(best, System.nanoTime() - startNanos);
+      assertEquals(CLIENT_DELTAS, results.size());
+    }
+    return best;
+  }
+
+  private static DocOp insert(int position, int length) {
+    DocOpBuilder builder = new DocOpBuilder();
+    if (position > 0) {
+      builder.retain(position);
+    }
+    return builder.characters("x").retain(length - position).build();
+  }
+
+  private static HashedVersion hashed(long version) {
+    return HashedVersion.of(version, new byte[] {(byte) version, 1});
+  }
+}
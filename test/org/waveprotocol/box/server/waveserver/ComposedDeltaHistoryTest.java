@@ -0,0 +1,208 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Tests for {@link ComposedDeltaHistory}.
+ */
+public class ComposedDeltaHistoryTest extends TestCase {
+
+  private static final ParticipantId CLIENT = ParticipantId.ofUnsafe("client@example.com");
+  private static final ParticipantId SERVER = ParticipantId.ofUnsafe("server@example.com");
+  private static final WaveletOperationContext CLIENT_CONTEXT =
+      new WaveletOperationContext(CLIENT, 0L, 1);
+
+  private static final List<String> BLIPS = ImmutableList.of("b+1", "b+2");
+  private static final int DOCUMENT_LENGTH = 10;
+  /** Every this many deltas is by the client. */
+  private static final int CLIENT_DELTA_INTERVAL = 7;
+
+  private NavigableMap<HashedVersion, TransformedWaveletDelta> deltas;
+  /** Versions at which the deltas were applied, and the current version. */
+  private List<HashedVersion> versions;
+  private int[] lengths;
+
+  @Override
+  protected void setUp() throws Exception {
+    deltas = new ConcurrentSkipListMap<HashedVersion, TransformedWaveletDelta>();
+    versions = Lists.newArrayList(hashed(0));
+    lengths = new int[BLIPS.size()];
+    for (int i = 0; i < lengths.length; i++) {
+      lengths[i] = DOCUMENT_LENGTH;
+    }
+  }
+
+  public void testCachedCompositionMatchesUncached() throws Exception {
+    appendDeltas(60);
+    ComposedDeltaHistory cached = new ComposedDeltaHistory(deltas, true);
+    for (int start = 0; start < versions.size() - 1; start += 3) {
+      for (int end = start + 1; end < versions.size(); end += 5) {
+        List<WaveletOperation> clientOps = clientOps(start);
+        ComposedDeltaHistory uncached = ComposedDeltaHistory.of(versions.get(start),
+            deltas.subMap(versions.get(start), versions.get(end)).values());
+        long startVersion = versions.get(start).getVersion();
+        long endVersion = versions.get(end).getVersion();
+        // Equality of the transformed ops is syntactic, as duplicate detection needs.
+        assertEquals(uncached.compose(startVersion, endVersion).transform(clientOps),
+            cached.compose(startVersion, endVersion).transform(clientOps));
+      }
+    }
+    assertTrue(cached.getCachedSegmentCount() > 0);
+  }
+
+  public void testCompositionMatchesComposingEachDelta() throws Exception {
+    appendDeltas(40);
+    ComposedDeltaHistory history = new ComposedDeltaHistory(deltas, true);
+    int start = 3;
+    List<WaveletOperation> clientOps = clientOps(start);
+    ComposedServerOps run = new ComposedServerOps();
+    for (TransformedWaveletDelta delta : deltas.tailMap(versions.get(start)).values()) {
+      run.add(delta);
+    }
+    List<WaveletOperation> expected = run.transform(clientOps);
+    List<WaveletOperation> actual = history.compose(versions.get(start).getVersion(),
+        versions.get(versions.size() - 1).getVersion()).transform(clientOps);
+    // Ops which only insert have a single normalized form.
+    assertEquals(expected, actual);
+  }
+
+  public void testFindsFirstDeltaByAuthor() throws Exception {
+    appendDeltas(30);
+    ComposedDeltaHistory history = new ComposedDeltaHistory(deltas, true);
+    long end = versions.get(versions.size() - 1).getVersion();
+    for (int start = 0; start < versions.size() - 1; start++) {
+      int expected = start;
+      while (expected < versions.size() - 1 && expected % CLIENT_DELTA_INTERVAL != 0) {
+        expected++;
+      }
+      assertEquals(versions.get(expected).getVersion(),
+          history.findDeltaByAuthor(versions.get(start).getVersion(), end, CLIENT));
+    }
+    assertEquals(end, history.findDeltaByAuthor(0, end,
+        ParticipantId.ofUnsafe("nobody@example.com")));
+  }
+
+  public void testOnlyCompleteSegmentsAreCached() throws Exception {
+    appendDeltas(1);
+    ComposedDeltaHistory history = new ComposedDeltaHistory(deltas, true);
+    history.compose(0, versions.get(1).getVersion());
+    assertEquals(0, history.getCachedSegmentCount());
+
+    appendDeltas(20);
+    long end = versions.get(versions.size() - 1).getVersion();
+    history.compose(0, end);
+    assertTrue(history.getCachedSegmentCount() > 0);
+  }
+
+  public void testEvictedSegmentsAreDropped() throws Exception {
+    appendDeltas(40);
+    ComposedDeltaHistory history = new ComposedDeltaHistory(deltas, true);
+    long end = versions.get(versions.size() - 1).getVersion();
+    history.compose(0, end);
+    assertTrue(history.getCachedSegmentCount() > 0);
+
+    history.evictBefore(end);
+    assertEquals(0, history.getCachedSegmentCount());
+  }
+
+  public void testUncachedHistoryCachesNothing() throws Exception {
+    appendDeltas(40);
+    ComposedDeltaHistory history = new ComposedDeltaHistory(deltas, false);
+    history.compose(0, versions.get(versions.size() - 1).getVersion());
+    assertEquals(0, history.getCachedSegmentCount());
+  }
+
+  /**
+   * Appends deltas of one to three ops, each inserting into the blips in turn.
+   * Every {@link #CLIENT_DELTA_INTERVAL}th delta is by the client.
+   */
+  private void appendDeltas(int count) {
+    for (int i = 0; i < count; i++) {
+      int index = versions.size() - 1;
+      ParticipantId author = (index % CLIENT_DELTA_INTERVAL == 0) ? CLIENT : SERVER;
+      WaveletOperationContext context = new WaveletOperationContext(author, 0L, 1);
+      List<WaveletOperation> ops = Lists.newArrayList();
+      for (int j = 0; j <= index % 3; j++) {
+        int blip = (index + j) % BLIPS.size();
+        ops.add(new WaveletBlipOperation(BLIPS.get(blip), new BlipContentOperation(context,
+            insert((index * 7 + j) % (lengths[blip] + 1), lengths[blip]))));
+        lengths[blip]++;
+      }
+      HashedVersion appliedAt = versions.get(index);
+      HashedVersion resulting = hashed(appliedAt.getVersion() + ops.size());
+      deltas.put(appliedAt, TransformedWaveletDelta.cloneOperations(author, resulting, 0L, ops));
+      versions.add(resulting);
+    }
+  }
+
+  /** Client ops against the documents as they were before the given delta. */
+  private List<WaveletOperation> clientOps(int delta) {
+    // Insertions are the only ops, so a document's length at a delta is its
+    // initial length plus the preceding insertions into it.
+    int[] lengthsAt = new int[BLIPS.size()];
+    for (int i = 0; i < lengthsAt.length; i++) {
+      lengthsAt[i] = DOCUMENT_LENGTH;
+    }
+    for (TransformedWaveletDelta d : deltas.headMap(versions.get(delta)).values()) {
+      for (WaveletOperation op : d) {
+        lengthsAt[BLIPS.indexOf(((WaveletBlipOperation) op).getBlipId())]++;
+      }
+    }
+    List<WaveletOperation> ops = Lists.newArrayList();
+    for (int blip = 0; blip < BLIPS.size(); blip++) {
+      ops.add(new WaveletBlipOperation(BLIPS.get(blip), new BlipContentOperation(CLIENT_CONTEXT,
+          insert(lengthsAt[blip] / 2, lengthsAt[blip]))));
+    }
+    return ops;
+  }
+
+  private static DocOp insert(int position, int length) {
+    DocOpBuilder builder = new DocOpBuilder();
+    if (position > 0) {
+      builder.retain(position);
+    }
+    builder.characters("x");
+    if (length > position) {
+      builder.retain(length - position);
+    }
+    return builder.build();
+  }
+
+  private static HashedVersion hashed(long version) {
+    return HashedVersion.of(version, new byte[] {(byte) version, 1});
+  }
+}
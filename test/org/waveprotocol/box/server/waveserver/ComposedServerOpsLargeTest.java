@@ -0,0 +1,159 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.Transform;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures transforming a lagging client delta against the server history,
+ * composed by document with {@link ComposedServerOps}, against transforming
+ * each client op against each server op in turn, as was done before. Sweeps
+ * the client's lag, the number of documents edited, and the number of clients
+ * transforming at once.
+ */
+public class ComposedServerOpsLargeTest extends TestCase {
+
+  private static final Log LOG = Log.get(ComposedServerOpsLargeTest.class);
+
+  private static final int[] LAGS = {10, 100, 500};
+  private static final int[] DOCUMENT_COUNTS = {1, 20};
+  private static final int[] CLIENT_COUNTS = {1, 4};
+  private static final int CLIENT_OPS = 10;
+  private static final int DOCUMENT_LENGTH = 100;
+  private static final int NUM_RUNS = 5;
+
+  private static final WaveletOperationContext SERVER_CONTEXT =
+      new WaveletOperationContext(ParticipantId.ofUnsafe("server@example.com"), 0L, 1);
+  private static final WaveletOperationContext CLIENT_CONTEXT =
+      new WaveletOperationContext(ParticipantId.ofUnsafe("client@example.com"), 0L, 1);
+
+  public void testComposedTransformIsFasterThanTransformInTurn() throws Exception {
+    long composedNanos = 0;
+    long inTurnNanos = 0;
+    for (int documents : DOCUMENT_COUNTS) {
+      for (int lag : LAGS) {
+        List<WaveletOperation> serverOps = serverOps(lag, documents);
+        List<WaveletOperation> clientOps = clientOps(documents);
+        for (int clients : CLIENT_COUNTS) {
+          inTurnNanos = time(clients, serverOps, clientOps, false);
+          composedNanos = time(clients, serverOps, clientOps, true);
+          LOG.info(String.format("Lag %d versions over %d documents, %d clients: "
+              + "in turn %.3fms, composed %.3fms", lag, documents, clients,
+              inTurnNanos / 1e6, composedNanos / 1e6));
+        }
+      }
+    }
+    assertTrue(composedNanos < inTurnNanos);
+  }
+
+  /**
+   * @return the best time, over several runs, for some clients to each
+   *         transform their ops at once
+   */
+  private static long time(int clients, final List<WaveletOperation> serverOps,
+      final List<WaveletOperation> clientOps, final boolean composed) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(clients);
+    try {
+      long best = Long.MAX_VALUE;
+      for (int run = 0; run < NUM_RUNS; run++) {
+        List<Callable<List<WaveletOperation>>> tasks = Lists.newArrayList();
+        for (int i = 0; i < clients; i++) {
+          tasks.add(new Callable<List<WaveletOperation>>() {
+            @Override
+            public List<WaveletOperation> call() throws Exception {
+              if (composed) {
+                ComposedServerOps run = new ComposedServerOps();
+                run.add(serverOps);
+                return run.transform(clientOps);
+              } else {
+                return transformInTurn(clientOps, serverOps);
+              }
+            }
+          });
+        }
+        long start = System.nanoTime();
+        for (Future<List<WaveletOperation>> result : executor.invokeAll(tasks)) {
+          assertEquals(CLIENT_OPS, result.get().size());
+        }
+        best = Math.min(best, System.nanoTime() - start);
+      }
+      return best;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static List<WaveletOperation> transformInTurn(List<WaveletOperation> clientOps,
+      List<WaveletOperation> serverOps) throws Exception {
+    List<WaveletOperation> result = Lists.newArrayList();
+    for (WaveletOperation c : clientOps) {
+      for (WaveletOperation s : serverOps) {
+        c = Transform.transform(c, s).clientOp();
+      }
+      result.add(c);
+    }
+    return result;
+  }
+
+  /** Server ops inserting a character into each document in turn. */
+  private static List<WaveletOperation> serverOps(int count, int documents) {
+    List<WaveletOperation> ops = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      int length = DOCUMENT_LENGTH + i / documents;
+      ops.add(new WaveletBlipOperation("b+" + (i % documents),
+          new BlipContentOperation(SERVER_CONTEXT, insert(i % length, length))));
+    }
+    return ops;
+  }
+
+  /** Client ops inserting a character into the documents in turn. */
+  private static List<WaveletOperation> clientOps(int documents) {
+    List<WaveletOperation> ops = Lists.newArrayList();
+    for (int i = 0; i < CLIENT_OPS; i++) {
+      ops.add(new WaveletBlipOperation("b+" + (i % documents),
+          new BlipContentOperation(CLIENT_CONTEXT, insert(DOCUMENT_LENGTH / 2, DOCUMENT_LENGTH))));
+    }
+    return ops;
+  }
+
+  private static DocOp insert(int position, int length) {
+    DocOpBuilder builder = new DocOpBuilder();
+    if (position > 0) {
+      builder.retain(position);
+    }
+    return builder.characters("x").retain(length - position).build();
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.algorithm.Composer;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.NoOp;
+import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
+import org.waveprotocol.wave.model.operation.wave.Transform;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link ComposedServerOps}.
+ */
+public class ComposedServerOpsTest extends TestCase {
+
+  private static final ParticipantId CLIENT = ParticipantId.ofUnsafe("client@example.com");
+  private static final ParticipantId SERVER = ParticipantId.ofUnsafe("server@example.com");
+  private static final ParticipantId OTHER = ParticipantId.ofUnsafe("other@example.com");
+  private static final WaveletOperationContext CLIENT_CONTEXT =
+      new WaveletOperationContext(CLIENT, 0L, 1);
+  private static final WaveletOperationContext SERVER_CONTEXT =
+      new WaveletOperationContext(SERVER, 0L, 1);
+
+  private static final String TEXT = "abcdefghij";
+  private static final List<String> BLIPS = ImmutableList.of("b+1", "b+2", "b+3");
+
+  public void testDocumentOpsTransformAsIfInTurn() throws Exception {
+    // Each server op inserts into one of the blips, which all start as TEXT.
+    Map<String, Integer> lengths = Maps.newHashMap();
+    Map<String, DocInitialization> documents = Maps.newHashMap();
+    for (String blip : BLIPS) {
+      lengths.put(blip, TEXT.length());
+      documents.put(blip, DocOpUtil.asInitialization(
+          new DocOpBuilder().characters(TEXT).build()));
+    }
+    List<WaveletOperation> serverOps = Lists.newArrayList();
+    for (int i = 0; i < 30; i++) {
+      String blip = BLIPS.get(i % 2);
+      int length = lengths.get(blip);
+      String text = "s" + i;
+      DocOp op = insert(i % (length + 1), text, length);
+      serverOps.add(new WaveletBlipOperation(blip, new BlipContentOperation(SERVER_CONTEXT, op)));
+      documents.put(blip, Composer.compose(documents.get(blip), op));
+      lengths.put(blip, length + text.length());
+    }
+    List<WaveletOperation> clientOps = ImmutableList.<WaveletOperation>of(
+        new WaveletBlipOperation("b+1",
+            new BlipContentOperation(CLIENT_CONTEXT, insert(5, "c1", TEXT.length()))),
+        new WaveletBlipOperation("b+2", new BlipContentOperation(CLIENT_CONTEXT,
+            new DocOpBuilder().retain(2).deleteCharacters("cdef").retain(4).build())),
+        new WaveletBlipOperation("b+1",
+            new BlipContentOperation(CLIENT_CONTEXT, insert(0, "c2", TEXT.length()))));
+
+    ComposedServerOps run = new ComposedServerOps();
+    run.add(serverOps);
+    List<WaveletOperation> composed = run.transform(clientOps);
+    List<WaveletOperation> inTurn = transformInTurn(clientOps, serverOps);
+
+    assertEquals(clientOps.size(), composed.size());
+    for (int i = 0; i < clientOps.size(); i++) {
+      String blip = ((WaveletBlipOperation) clientOps.get(i)).getBlipId();
+      assertEquals(apply(documents.get(blip), inTurn.get(i)),
+          apply(documents.get(blip), composed.get(i)));
+    }
+  }
+
+  public void testOpsOnOtherDocumentsAreUnchanged() throws Exception {
+    ComposedServerOps run = new ComposedServerOps();
+    run.add(ImmutableList.of(new WaveletBlipOperation("b+1",
+        new BlipContentOperation(SERVER_CONTEXT, insert(0, "s", TEXT.length())))));
+    WaveletOperation clientOp = new WaveletBlipOperation("b+2",
+        new BlipContentOperation(CLIENT_CONTEXT, insert(0, "c", TEXT.length())));
+
+    assertSame(clientOp, run.transform(ImmutableList.of(clientOp)).get(0));
+  }
+
+  public void testParticipantOpsTransformInTurn() throws Exception {
+    ComposedServerOps run = new ComposedServerOps();
+    run.add(ImmutableList.of(new AddParticipant(SERVER_CONTEXT, OTHER)));
+    assertFalse(run.isEmpty());
+
+    List<WaveletOperation> transformed = run.transform(ImmutableList.<WaveletOperation>of(
+        new AddParticipant(CLIENT_CONTEXT, OTHER)));
+    assertTrue(transformed.get(0) instanceof NoOp);
+  }
+
+  public void testOpsByRemovedAuthorFail() throws Exception {
+    ComposedServerOps run = new ComposedServerOps();
+    run.add(ImmutableList.of(new RemoveParticipant(SERVER_CONTEXT, CLIENT)));
+    try {
+      run.transform(ImmutableList.<WaveletOperation>of(new WaveletBlipOperation("b+1",
+          new BlipContentOperation(CLIENT_CONTEXT, insert(0, "c", TEXT.length())))));
+      fail("Expected OperationException");
+    } catch (OperationException expected) {
+      // Expected.
+    }
+  }
+
+  public void testOtherServerOpsLeaveRunEmpty() {
+    ComposedServerOps run = new ComposedServerOps();
+    run.add(ImmutableList.of(new NoOp(SERVER_CONTEXT)));
+    assertTrue(run.isEmpty());
+  }
+
+  /** Transforms each client op against each server op in turn. */
+  private static List<WaveletOperation> transformInTurn(List<WaveletOperation> clientOps,
+      List<WaveletOperation> serverOps) throws Exception {
+    List<WaveletOperation> result = Lists.newArrayList();
+    for (WaveletOperation c : clientOps) {
+      for (WaveletOperation s : serverOps) {
+        c = Transform.transform(c, s).clientOp();
+      }
+      result.add(c);
+    }
+    return result;
+  }
+
+  private static DocOp insert(int position, String text, int length) {
+    DocOpBuilder builder = new DocOpBuilder();
+    if (position > 0) {
+      builder.retain(position);
+    }
+    builder.characters(text);
+    if (length > position) {
+      builder.retain(length - position);
+    }
+    return builder.build();
+  }
+
+  private static String apply(DocInitialization document, WaveletOperation op)
+      throws OperationException {
+    DocOp contentOp =
+        ((BlipContentOperation) ((WaveletBlipOperation) op).getBlipOp()).getContentOp();
+    return DocOpUtil.toXmlString(Composer.compose(document, contentOp));
+  }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.server.persistence.file.FileUtils;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.wave.model.document.operation.impl.DocInitializationBuilder;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for {@link ContentIndex}.
+ */
+public class ContentIndexTest extends TestCase {
+
+  private static final WaveId WAVE1 = WaveId.of("example.com", "w1");
+  private static final WaveId WAVE2 = WaveId.of("example.com", "w2");
+  private static final WaveletId CONV_ROOT = WaveletId.of("example.com", "conv+root");
+  private static final WaveletId CONV_OTHER = WaveletId.of("example.com", "conv+other");
+  private static final WaveletName NAME1 = WaveletName.of(WAVE1, CONV_ROOT);
+  private static final WaveletName NAME2 = WaveletName.of(WAVE1, CONV_OTHER);
+  private static final WaveletName NAME3 = WaveletName.of(WAVE2, CONV_ROOT);
+
+  private static final ParticipantId USER = ParticipantId.ofUnsafe("user@example.com");
+
+  private static final Predicate<WaveletName> ALL = Predicates.alwaysTrue();
+
+  private File path;
+  private File indexFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+    indexFile = new File(path, "content");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+  }
+
+  public void testTokenize() {
+    assertEquals(ImmutableList.of("hello", "wave", "2011"),
+        ContentIndex.tokenize("  Hello, WAVE-2011! "));
+    assertEquals(Collections.emptyList(), ContentIndex.tokenize(" ... "));
+
+    char[] longWord = new char[ContentIndex.MAX_TERM_LENGTH + 1];
+    Arrays.fill(longWord, 'a');
+    assertEquals(Arrays.asList("x", null, "y"),
+        ContentIndex.tokenize("x " + new String(longWord) + " y"));
+  }
+
+  public void testSearchFindsWords() {
+    ContentIndex index = new ContentIndex();
+    index.indexDocument(NAME1, "b+1", "Lunch on Friday");
+    index.indexDocument(NAME3, "b+1", "Friday release");
+
+    assertEquals(ImmutableSet.of(WAVE1, WAVE2), search(index, "friday"));
+    assertEquals(ImmutableSet.of(WAVE1), search(index, "lunch", "friday"));
+    assertEquals(ImmutableSet.of(), search(index, "lunch", "release"));
+    assertEquals(ImmutableSet.of(), search(index, "dinner"));
+  }
+
+  public void testSearchFindsPhrases() {
+    ContentIndex index = new ContentIndex();
+    index.indexDocument(NAME1, "b+1", "the release notes are out");
+    index.indexDocument(NAME3, "b+1", "notes on the release");
+
+    assertEquals(ImmutableSet.of(WAVE1), search(index, "release notes"));
+    assertEquals(ImmutableSet.of(WAVE1), search(index, "the release notes"));
+    assertEquals(ImmutableSet.of(WAVE2), search(index, "on the release"));
+    assertEquals(ImmutableSet.of(), search(index, "notes release"));
+  }
+
+  public void testPhrasesMayMatchDifferentBlipsAndWavelets() {
+    ContentIndex index = new ContentIndex();
+    index.indexDocument(NAME1, "b+1", "release notes");
+    index.indexDocument(NAME2, "b+2", "next friday");
+    index.indexDocument(NAME3, "b+1", "release notes next week");
+
+    assertEquals(ImmutableSet.of(WAVE1), search(index, "release notes", "next friday"));
+    assertEquals(ImmutableSet.of(), search(index, "notes next", "friday"));
+  }
+
+  public void testSearchOnlyMatchesVisibleWavelets() {
+    ContentIndex index = new ContentIndex();
+    index.indexDocument(NAME1, "b+1", "public");
+    index.indexDocument(NAME2, "b+1", "private");
+
+    Predicate<WaveletName> rootOnly = Predicates.equalTo(NAME1);
+    assertEquals(ImmutableSet.of(WAVE1), index.search(phrases("public"), rootOnly));
+    assertEquals(ImmutableSet.of(), index.search(phrases("private"), rootOnly));
+    assertEquals(ImmutableSet.of(), index.search(phrases("public", "private"), rootOnly));
+  }
+
+  public void testIndexingAgainReplacesText() {
+    ContentIndex index = new ContentIndex();
+    index.indexDocument(NAME1, "b+1", "draft");
+    index.indexDocument(NAME1, "b+1", "final");
+
+    assertEquals(ImmutableSet.of(), search(index, "draft"));
+    assertEquals(ImmutableSet.of(WAVE1), search(index, "final"));
+  }
+
+  public void testRemove() {
+    ContentIndex index = new ContentIndex();
+    index.indexDocument(NAME1, "b+1", "one");
+    index.indexDocument(NAME1, "b+2", "two");
+    index.indexDocument(NAME3, "b+1", "one two");
+
+    index.removeDocument(NAME1, "b+1");
+    assertEquals(ImmutableSet.of(WAVE2), search(index, "one"));
+    assertEquals(ImmutableSet.of(WAVE1, WAVE2), search(index, "two"));
+
+    index.removeWavelet(NAME1);
+    assertEquals(ImmutableSet.of(WAVE2), search(index, "two"));
+  }
+
+  public void testIndexWaveletIndexesBlipsAndDropsRemovedOnes() {
+    WaveletData wavelet =
+        WaveletDataUtil.createEmptyWavelet(NAME1, USER, HashedVersion.unsigned(0), 0L);
+    wavelet.createDocument("b+1", USER, ImmutableSet.of(USER),
+        new DocInitializationBuilder().characters("Wave title").build(), 0L, 0);
+    ContentIndex index = new ContentIndex();
+    index.indexDocument(NAME1, "b+gone", "removed blip");
+
+    index.indexWavelet(wavelet);
+
+    assertEquals(ImmutableSet.of(WAVE1), search(index, "wave title"));
+    assertEquals(ImmutableSet.of(), search(index, "removed"));
+  }
+
+  public void testManyDocumentsAreSkippedCorrectly() {
+    ContentIndex index = new ContentIndex();
+    int count = ContentIndex.Postings.SKIP_INTERVAL * 10;
+    for (int i = 0; i < count; i++) {
+      WaveletName name = WaveletName.of(WaveId.of("example.com", "w" + i), CONV_ROOT);
+      index.indexDocument(name, "b+1", (i % 100 == 99) ? "common rare" : "common");
+    }
+
+    Set<WaveId> expected = ImmutableSet.of(WaveId.of("example.com", "w99"),
+        WaveId.of("example.com", "w199"), WaveId.of("example.com", "w299"));
+    assertEquals(expected, search(index, "rare", "common"));
+    assertEquals(expected, search(index, "common rare"));
+    assertEquals(count, search(index, "common").size());
+  }
+
+  public void testCompactionKeepsLiveDocuments() {
+    ContentIndex index = new ContentIndex();
+    index.indexDocument(NAME3, "b+1", "stable text");
+    for (int i = 0; i < 3000; i++) {
+      index.indexDocument(NAME1, "b+1", "version " + i);
+    }
+
+    assertEquals(ImmutableSet.of(WAVE2), search(index, "stable text"));
+    assertEquals(ImmutableSet.of(WAVE1), search(index, "version 2999"));
+    assertEquals(ImmutableSet.of(), search(index, "version 1234"));
+  }
+
+  public void testIndexIsSavedAndLoaded() throws Exception {
+    ContentIndex index = new ContentIndex(indexFile);
+    assertFalse(index.isBuilt());
+    index.indexDocument(NAME1, "b+1", "saved words");
+    index.indexDocument(NAME1, "b+1", "saved text");
+    index.markBuilt();
+    index.close();
+
+    ContentIndex loaded = new ContentIndex(indexFile);
+    assertTrue(loaded.isBuilt());
+    assertTrue(loaded.getStaleWavelets().isEmpty());
+    assertEquals(ImmutableSet.of(WAVE1), search(loaded, "saved text"));
+    assertEquals(ImmutableSet.of(), search(loaded, "words"));
+  }
+
+  public void testChangesAfterSaveAreStale() throws Exception {
+    ContentIndex index = new ContentIndex(indexFile);
+    index.indexDocument(NAME1, "b+1", "first");
+    index.markBuilt();
+    index.indexDocument(NAME3, "b+1", "second");
+    index.removeDocument(NAME1, "b+1");
+    index.close();
+
+    ContentIndex loaded = new ContentIndex(indexFile);
+    assertTrue(loaded.isBuilt());
+    assertEquals(ImmutableSet.of(NAME1, NAME3), loaded.getStaleWavelets());
+    loaded.removeWavelet(NAME1);
+    loaded.indexDocument(NAME3, "b+1", "second");
+    loaded.markBuilt();
+    loaded.close();
+
+    ContentIndex reloaded = new ContentIndex(indexFile);
+    assertTrue(reloaded.getStaleWavelets().isEmpty());
+    assertEquals(ImmutableSet.of(), search(reloaded, "first"));
+    assertEquals(ImmutableSet.of(WAVE2), search(reloaded, "second"));
+  }
+
+  public void testIndexIsWrittenOnceEnoughWaveletsAreJournalled() throws Exception {
+    ContentIndex index = new ContentIndex(indexFile, 2);
+    index.markBuilt();
+    index.indexDocument(NAME1, "b+1", "first");
+    index.indexDocument(NAME1, "b+2", "again");
+    index.indexDocument(NAME2, "b+1", "second");
+    index.indexDocument(NAME3, "b+1", "third");
+    index.close();
+
+    // The first two wavelets are in the index file, the third in the journal.
+    ContentIndex loaded = new ContentIndex(indexFile);
+    assertEquals(ImmutableSet.of(NAME3), loaded.getStaleWavelets());
+    assertEquals(ImmutableSet.of(WAVE1), search(loaded, "first", "again", "second"));
+  }
+
+  public void testCheckpointWritesIndex() throws Exception {
+    ContentIndex index = new ContentIndex(indexFile);
+    index.markBuilt();
+    index.indexDocument(NAME1, "b+1", "words");
+    index.checkpoint();
+    index.close();
+
+    ContentIndex loaded = new ContentIndex(indexFile);
+    assertTrue(loaded.getStaleWavelets().isEmpty());
+    assertEquals(ImmutableSet.of(WAVE1), search(loaded, "words"));
+  }
+
+  public void testChangeAfterCloseDiscardsIndex() throws Exception {
+    ContentIndex index = new ContentIndex(indexFile);
+    index.markBuilt();
+    index.close();
+    index.indexDocument(NAME1, "b+1", "late");
+
+    assertFalse(new ContentIndex(indexFile).isBuilt());
+  }
+
+  public void testCorruptIndexIsDiscarded() throws Exception {
+    ContentIndex index = new ContentIndex(indexFile);
+    index.indexDocument(NAME1, "b+1", "words");
+    index.markBuilt();
+    index.close();
+    byte[] bytes = Files.toByteArray(indexFile);
+    Files.write(Arrays.copyOf(bytes, bytes.length - 3), indexFile);
+
+    ContentIndex loaded = new ContentIndex(indexFile);
+    assertFalse(loaded.isBuilt());
+    assertEquals(ImmutableSet.of(), search(loaded, "words"));
+  }
+
+  /** Searches all wavelets for waves containing each of the given phrases. */
+  private static Set<WaveId> search(ContentIndex index, String... phrases) {
+    return index.search(phrases(phrases), ALL);
+  }
+
+  private static List<List<String>> phrases(String... phrases) {
+    List<List<String>> result = Lists.newArrayList();
+    for (String phrase : phrases) {
+      result.add(ContentIndex.tokenize(phrase));
+    }
+    return result;
+  }
+}
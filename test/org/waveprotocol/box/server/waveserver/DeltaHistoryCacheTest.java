@@ -0,0 +1,119 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.testing.DeltaTestUtil;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+/**
+ * Tests for {@link DeltaHistoryCache}.
+ */
+public class DeltaHistoryCacheTest extends TestCase {
+
+  private static final WaveletName NAME1 = WaveletName.of(WaveId.of("example.com", "w1"),
+      WaveletId.of("example.com", "conv+root"));
+  private static final WaveletName NAME2 = WaveletName.of(WaveId.of("example.com", "w2"),
+      WaveletId.of("example.com", "conv+root"));
+  private static final DeltaTestUtil UTIL =
+      new DeltaTestUtil(ParticipantId.ofUnsafe("author@example.com"));
+
+  private WaveletDeltaRecord d0;
+  private WaveletDeltaRecord d1;
+  private WaveletDeltaRecord d2;
+
+  @Override
+  protected void setUp() throws Exception {
+    d0 = makeDelta(0);
+    d1 = makeDelta(1);
+    d2 = makeDelta(2);
+  }
+
+  public void testGetReturnsPutDeltaOfSameWavelet() {
+    DeltaHistoryCache cache = new DeltaHistoryCache(1 << 20);
+    cache.put(NAME1, d0);
+    assertEquals(d0, cache.get(NAME1, 0));
+    assertNull(cache.get(NAME1, 1));
+    assertNull(cache.get(NAME2, 0));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  public void testEvictsLeastRecentlyUsedBeyondMaxBytes() {
+    long size = DeltaHistoryCache.sizeOf(d0.getAppliedDelta());
+    DeltaHistoryCache cache = new DeltaHistoryCache(2 * size);
+    cache.put(NAME1, d0);
+    cache.put(NAME1, d1);
+    cache.get(NAME1, 0);
+    cache.put(NAME1, d2);
+
+    assertEquals(d0, cache.get(NAME1, 0));
+    assertNull(cache.get(NAME1, 1));
+    assertEquals(d2, cache.get(NAME1, 2));
+    assertEquals(2, cache.getCachedDeltaCount());
+    assertEquals(2 * size, cache.getCachedBytes());
+  }
+
+  public void testZeroSizeCachesNothing() {
+    DeltaHistoryCache cache = new DeltaHistoryCache(0);
+    cache.put(NAME1, d0);
+    assertNull(cache.get(NAME1, 0));
+    assertEquals(0, cache.getCachedBytes());
+  }
+
+  public void testTracksResidentBytes() {
+    DeltaHistoryCache cache = new DeltaHistoryCache(0);
+    cache.addResidentDeltas(NAME1, 2, 10);
+    cache.addResidentDeltas(NAME2, 1, 5);
+    cache.addResidentDeltas(NAME1, -2, -10);
+    assertEquals(5, cache.getResidentBytes());
+    assertEquals(0, cache.getResidentBytes(NAME1));
+    assertEquals(0, cache.getResidentDeltaCount(NAME1));
+    assertEquals(5, cache.getResidentBytes(NAME2));
+    assertEquals(1, cache.getResidentDeltaCount(NAME2));
+  }
+
+  public void testDescribesLargestResidentWaveletsFirst() {
+    DeltaHistoryCache cache = new DeltaHistoryCache(0);
+    cache.addResidentDeltas(NAME1, 1, 5);
+    cache.addResidentDeltas(NAME2, 3, 30);
+    assertEquals(ImmutableList.of(NAME2 + ": 3 deltas, 30B"),
+        cache.describeLargestResidentWavelets(1));
+    assertEquals(ImmutableList.of(NAME2 + ": 3 deltas, 30B", NAME1 + ": 1 deltas, 5B"),
+        cache.describeLargestResidentWavelets(5));
+  }
+
+  /** Creates a single no-op delta applied at the given version. */
+  private static WaveletDeltaRecord makeDelta(long version) throws Exception {
+    HashedVersion appliedAt = HashedVersion.unsigned(version);
+    WaveletDelta delta = UTIL.makeNoOpDelta(appliedAt, 1234567890L, 1);
+    ByteStringMessage<ProtocolAppliedWaveletDelta> applied =
+        WaveServerTestUtil.buildAppliedDelta(delta, 1234567890L);
+    return new WaveletDeltaRecord(appliedAt, applied,
+        AppliedDeltaUtil.buildTransformedDelta(applied, delta));
+  }
+}
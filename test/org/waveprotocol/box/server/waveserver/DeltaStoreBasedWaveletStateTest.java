@@ -17,11 +17,23 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.MoreExecutors;
 
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.common.SnapshotSerializer;
 import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Executor;
 
 /**
@@ -33,10 +45,12 @@ public class DeltaStoreBasedWaveletStateTest extends WaveletStateTestBase {
 
   private final Executor PERSIST_EXECUTOR = MoreExecutors.sameThreadExecutor();
   private DeltaStore store;
+  private DeltaHistoryCache historyCache;
 
   @Override
   public void setUp() throws Exception {
     store = new MemoryDeltaStore();
+    historyCache = new DeltaHistoryCache(1 << 20);
     super.setUp();
   }
 
@@ -53,4 +67,190 @@ public class DeltaStoreBasedWaveletStateTest extends WaveletStateTestBase {
 
   // TODO(soren): We need to add tests here that verify interactions with storage.
   // The base tests only test the public interface, not any interactions with the storage system.
+
+  public void testNoCheckpointStoredByDefault() throws Exception {
+    appendDeltas(d1, d2, d3);
+    target.persist(d3.getResultingVersion());
+    assertNull(store.open(NAME).getSnapshotCheckpoint());
+  }
+
+  public void testCheckpointStoredOncePersisted() throws Exception {
+    target = createCheckpointingState(new SnapshotCheckpointPolicy(2, 0));
+    appendDeltas(d1, d2);
+    assertNull(store.open(NAME).getSnapshotCheckpoint());
+
+    target.persist(d1.getResultingVersion());
+    assertNull(store.open(NAME).getSnapshotCheckpoint());
+
+    appendDeltas(d3);
+    target.persist(d3.getResultingVersion());
+    WaveletSnapshot checkpoint = store.open(NAME).getSnapshotCheckpoint();
+    assertNotNull(checkpoint);
+    assertEquals(CoreWaveletOperationSerializer.serialize(d2.getResultingVersion()),
+        checkpoint.getVersion());
+  }
+
+  public void testCheckpointStoredAfterByteInterval() throws Exception {
+    target = createCheckpointingState(new SnapshotCheckpointPolicy(0, 1));
+    appendDeltas(d1);
+    target.persist(d1.getResultingVersion());
+    assertEquals(CoreWaveletOperationSerializer.serialize(d1.getResultingVersion()),
+        store.open(NAME).getSnapshotCheckpoint().getVersion());
+  }
+
+  public void testLoadFromCheckpointReplaysLaterDeltas() throws Exception {
+    target = createCheckpointingState(new SnapshotCheckpointPolicy(2, 0));
+    appendDeltas(d1, d2, d3);
+    target.persist(d3.getResultingVersion());
+    ReadableWaveletData expected = target.getSnapshot();
+
+    WaveletState reloaded = createCheckpointingState(SnapshotCheckpointPolicy.NEVER);
+    assertSnapshotsEqual(expected, reloaded.getSnapshot());
+    assertEquals(d3.getResultingVersion(), reloaded.getCurrentVersion());
+    assertEquals(d1.transformed, reloaded.getTransformedDelta(d1.appliedAtVersion));
+  }
+
+  public void testLoadUsesCheckpointContents() throws Exception {
+    appendDeltas(d1, d2);
+    target.persist(d2.getResultingVersion());
+    // A checkpoint with a recognisable creation time shows it was used.
+    store.open(NAME).storeSnapshotCheckpoint(
+        snapshotOf(d1).toBuilder().setCreationTime(42).build());
+
+    WaveletState reloaded = createCheckpointingState(SnapshotCheckpointPolicy.NEVER);
+    assertEquals(42, reloaded.getSnapshot().getCreationTime());
+    assertEquals(d2.getResultingVersion(), reloaded.getSnapshot().getHashedVersion());
+  }
+
+  public void testLoadIgnoresCheckpointNotOnDeltaBoundary() throws Exception {
+    appendDeltas(d1, d2);
+    target.persist(d2.getResultingVersion());
+    ReadableWaveletData expected = target.getSnapshot();
+    HashedVersion unknown = HashedVersion.unsigned(d1.getResultingVersion().getVersion());
+    store.open(NAME).storeSnapshotCheckpoint(
+        snapshotOf(d1).toBuilder()
+            .setVersion(CoreWaveletOperationSerializer.serialize(unknown))
+            .setCreationTime(42).build());
+
+    WaveletState reloaded = createCheckpointingState(SnapshotCheckpointPolicy.NEVER);
+    assertSnapshotsEqual(expected, reloaded.getSnapshot());
+  }
+
+  public void testPersistedDeltasBeyondWindowAreEvicted() throws Exception {
+    DeltaStoreBasedWaveletState state = createWindowedState(1);
+    target = state;
+    appendDeltas(d1, d2);
+    assertEquals(2, state.getResidentDeltaCount());
+
+    // Unpersisted deltas are kept whatever the window.
+    target.persist(d1.getResultingVersion());
+    appendDeltas(d3);
+    assertEquals(2, state.getResidentDeltaCount());
+
+    target.persist(d3.getResultingVersion());
+    appendDeltas(makeDelta(d3.getResultingVersion(), TS3, 1));
+    assertEquals(1, state.getResidentDeltaCount());
+    checkHistory(state);
+  }
+
+  public void testLoadKeepsOnlyWindow() throws Exception {
+    appendDeltas(d1, d2, d3);
+    target.persist(d3.getResultingVersion());
+
+    DeltaStoreBasedWaveletState state = createWindowedState(1);
+    assertEquals(1, state.getResidentDeltaCount());
+    assertEquals(DeltaHistoryCache.sizeOf(d3.applied), state.getResidentDeltaBytes());
+    assertEquals(d3.getResultingVersion(), state.getCurrentVersion());
+    checkHistory(state);
+
+    state = createWindowedState(0);
+    assertEquals(0, state.getResidentDeltaCount());
+    checkHistory(state);
+  }
+
+  public void testComposedHistoryReadsEvictedDeltas() throws Exception {
+    appendDeltas(d1, d2, d3);
+    target.persist(d3.getResultingVersion());
+    DeltaStoreBasedWaveletState state = createWindowedState(1);
+
+    assertNotNull(state.getComposedDeltaHistory(d1.appliedAtVersion, d3.getResultingVersion()));
+    assertEquals(d1.appliedAtVersion, state.findDeltaByAuthor(d1.appliedAtVersion,
+        d3.getResultingVersion(), d1.transformed.getAuthor()));
+  }
+
+  public void testEvictedDeltasAreCached() throws Exception {
+    appendDeltas(d1, d2, d3);
+    target.persist(d3.getResultingVersion());
+    DeltaStoreBasedWaveletState state = createWindowedState(0);
+
+    state.getTransformedDeltaHistory(d1.appliedAtVersion, d2.getResultingVersion());
+    long misses = historyCache.getMissCount();
+    assertEquals(2, historyCache.getCachedDeltaCount());
+    state.getTransformedDeltaHistory(d1.appliedAtVersion, d2.getResultingVersion());
+    assertEquals(misses, historyCache.getMissCount());
+    assertEquals(2, historyCache.getHitCount());
+  }
+
+  public void testResidentBytesReleasedOnClose() throws Exception {
+    appendDeltas(d1, d2, d3);
+    target.persist(d3.getResultingVersion());
+    long before = historyCache.getResidentBytes();
+
+    DeltaStoreBasedWaveletState state = createWindowedState(2);
+    long size = DeltaHistoryCache.sizeOf(d2.applied) + DeltaHistoryCache.sizeOf(d3.applied);
+    assertEquals(size, state.getResidentDeltaBytes());
+    assertEquals(before + size, historyCache.getResidentBytes());
+    state.close();
+    assertEquals(before, historyCache.getResidentBytes());
+  }
+
+  private WaveletState createCheckpointingState(SnapshotCheckpointPolicy policy)
+      throws Exception {
+    return DeltaStoreBasedWaveletState.create(store.open(NAME), PERSIST_EXECUTOR, policy,
+        historyCache, Integer.MAX_VALUE, true);
+  }
+
+  private DeltaStoreBasedWaveletState createWindowedState(int historyWindow) throws Exception {
+    return DeltaStoreBasedWaveletState.create(store.open(NAME), PERSIST_EXECUTOR,
+        SnapshotCheckpointPolicy.NEVER, historyCache, historyWindow, true);
+  }
+
+  /** Checks all delta accessors return the deltas d1, d2 and d3. */
+  private void checkHistory(WaveletState state) {
+    for (WaveletDeltaRecord d : Arrays.asList(d1, d2, d3)) {
+      assertEquals(d.appliedAtVersion,
+          state.getHashedVersion(d.appliedAtVersion.getVersion()));
+      assertEquals(d.transformed, state.getTransformedDelta(d.appliedAtVersion));
+      assertEquals(d.applied, state.getAppliedDelta(d.appliedAtVersion));
+      assertEquals(d.transformed, state.getTransformedDeltaByEndVersion(d.getResultingVersion()));
+      assertEquals(d.applied, state.getAppliedDeltaByEndVersion(d.getResultingVersion()));
+    }
+    assertEquals(DeltaSequence.of(d1.transformed, d2.transformed, d3.transformed),
+        state.getTransformedDeltaHistory(d1.appliedAtVersion, d3.getResultingVersion()));
+    assertEquals(ImmutableList.of(d1.applied, d2.applied),
+        ImmutableList.copyOf(
+            state.getAppliedDeltaHistory(d1.appliedAtVersion, d2.getResultingVersion())));
+    // Wrong hashes of evicted versions return null.
+    assertNull(state.getTransformedDelta(HashedVersion.unsigned(0)));
+    assertNull(state.getTransformedDeltaHistory(HashedVersion.unsigned(0),
+        d3.getResultingVersion()));
+  }
+
+  /** Returns the serialized snapshot after applying the given deltas. */
+  private static WaveletSnapshot snapshotOf(WaveletDeltaRecord... deltas) throws Exception {
+    List<TransformedWaveletDelta> transformed = Lists.newArrayList();
+    for (WaveletDeltaRecord delta : deltas) {
+      transformed.add(delta.transformed);
+    }
+    return serialize(WaveletDataUtil.buildWaveletFromDeltas(NAME, transformed.iterator()));
+  }
+
+  private static WaveletSnapshot serialize(ReadableWaveletData wavelet) {
+    return SnapshotSerializer.serializeWavelet(wavelet, wavelet.getHashedVersion());
+  }
+
+  private static void assertSnapshotsEqual(ReadableWaveletData expected,
+      ReadableWaveletData actual) {
+    assertEquals(serialize(expected), serialize(actual));
+  }
 }
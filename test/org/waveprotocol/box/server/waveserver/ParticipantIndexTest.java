@@ -0,0 +1,215 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.server.persistence.file.FileUtils;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests for {@link ParticipantIndex}.
+ */
+public class ParticipantIndexTest extends TestCase {
+
+  private static final WaveId WAVE1 = WaveId.of("example.com", "w1");
+  private static final WaveId WAVE2 = WaveId.of("example.com", "w2");
+  private static final WaveletId CONV_ROOT = WaveletId.of("example.com", "conv+root");
+  private static final WaveletId CONV_OTHER = WaveletId.of("example.com", "conv+other");
+  private static final WaveletName NAME1 = WaveletName.of(WAVE1, CONV_ROOT);
+  private static final WaveletName NAME2 = WaveletName.of(WAVE1, CONV_OTHER);
+  private static final WaveletName NAME3 = WaveletName.of(WAVE2, CONV_ROOT);
+
+  private static final ParticipantId USER1 = ParticipantId.ofUnsafe("user1@example.com");
+  private static final ParticipantId USER2 = ParticipantId.ofUnsafe("user2@example.com");
+
+  private File path;
+  private File journalFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+    journalFile = new File(path, "participants");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+  }
+
+  public void testAddAndRemove() {
+    ParticipantIndex index = new ParticipantIndex();
+    assertTrue(index.add(USER1, NAME1));
+    assertFalse(index.add(USER1, NAME1));
+    assertTrue(index.add(USER1, NAME2));
+    assertTrue(index.add(USER2, NAME3));
+
+    assertEquals(ImmutableSet.of(CONV_ROOT, CONV_OTHER), index.getWavelets(USER1).get(WAVE1));
+    assertEquals(ImmutableSet.of(WAVE2), index.getWavelets(USER2).keySet());
+
+    assertTrue(index.remove(USER1, NAME1));
+    assertFalse(index.remove(USER1, NAME1));
+    assertFalse(index.remove(USER2, NAME1));
+    assertEquals(ImmutableSet.of(CONV_OTHER), index.getWavelets(USER1).get(WAVE1));
+  }
+
+  public void testGetWaveletsReturnsCopy() {
+    ParticipantIndex index = new ParticipantIndex();
+    index.add(USER1, NAME1);
+    Multimap<WaveId, WaveletId> wavelets = index.getWavelets(USER1);
+    index.remove(USER1, NAME1);
+    assertEquals(1, wavelets.size());
+    assertTrue(index.getWavelets(USER1).isEmpty());
+  }
+
+  public void testIndexWithoutJournalIsNotBuilt() throws IOException {
+    assertFalse(new ParticipantIndex().isBuilt());
+    assertFalse(new ParticipantIndex(journalFile).isBuilt());
+  }
+
+  public void testJournalRestoresBuiltIndex() throws IOException {
+    ParticipantIndex index = new ParticipantIndex(journalFile);
+    index.add(USER1, NAME1);
+    index.add(USER2, NAME1);
+    index.markBuilt();
+    // Changes after the index is built are appended to the journal.
+    index.add(USER1, NAME3);
+    index.remove(USER2, NAME1);
+    index.close();
+
+    ParticipantIndex reopened = new ParticipantIndex(journalFile);
+    assertTrue(reopened.isBuilt());
+    assertEquals(ImmutableSet.of(WAVE1, WAVE2), reopened.getWavelets(USER1).keySet());
+    assertTrue(reopened.getWavelets(USER2).isEmpty());
+    reopened.close();
+  }
+
+  public void testJournalIsCompactedWhenLoaded() throws IOException {
+    ParticipantIndex index = new ParticipantIndex(journalFile);
+    index.markBuilt();
+    for (int i = 0; i < 100; i++) {
+      index.add(USER1, NAME1);
+      index.remove(USER1, NAME1);
+    }
+    index.add(USER1, NAME2);
+    index.close();
+    long journalLength = journalFile.length();
+
+    new ParticipantIndex(journalFile).close();
+    assertTrue(journalFile.length() < journalLength);
+    ParticipantIndex reopened = new ParticipantIndex(journalFile);
+    assertEquals(ImmutableSet.of(CONV_OTHER), reopened.getWavelets(USER1).get(WAVE1));
+    reopened.close();
+  }
+
+  public void testKeysAreJournaled() throws IOException {
+    ParticipantIndex index = new ParticipantIndex(journalFile);
+    index.putKeys(NAME1, new ParticipantIndex.WaveletKeys(USER1, 1L, 2L));
+    index.markBuilt();
+    index.putKeys(NAME1, new ParticipantIndex.WaveletKeys(USER1, 1L, 5L));
+    index.putKeys(NAME3, new ParticipantIndex.WaveletKeys(USER2, 3L, 4L));
+    index.close();
+
+    ParticipantIndex reopened = new ParticipantIndex(journalFile);
+    assertEquals(ImmutableMap.of(NAME1, new ParticipantIndex.WaveletKeys(USER1, 1L, 5L),
+        NAME3, new ParticipantIndex.WaveletKeys(USER2, 3L, 4L)),
+        reopened.getKeys(ImmutableList.of(NAME1, NAME2, NAME3)));
+    reopened.close();
+  }
+
+  public void testJournalIsCompactedWhileOpen() throws IOException {
+    ParticipantIndex index = new ParticipantIndex(journalFile);
+    index.markBuilt();
+    long maxLength = 0;
+    for (int i = 0; i < 30000; i++) {
+      index.putKeys(NAME1, new ParticipantIndex.WaveletKeys(USER1, 0L, i));
+      if (i % 2 == 0) {
+        index.add(USER2, NAME1);
+      } else {
+        index.remove(USER2, NAME1);
+      }
+      maxLength = Math.max(maxLength, journalFile.length());
+    }
+    index.close();
+
+    // Each listing is followed by at most 10000 changes.
+    assertTrue(maxLength < 10001 * 60);
+    ParticipantIndex reopened = new ParticipantIndex(journalFile);
+    assertEquals(29999L,
+        reopened.getKeys(ImmutableList.of(NAME1)).get(NAME1).getLastModifiedTime());
+    reopened.close();
+  }
+
+  public void testModifiedTimesAreJournalledInBatches() throws IOException {
+    ParticipantIndex index = new ParticipantIndex(journalFile);
+    index.putKeys(NAME1, new ParticipantIndex.WaveletKeys(USER1, 1L, 2L));
+    index.markBuilt();
+    long listingLength = journalFile.length();
+    index.putKeys(NAME1, new ParticipantIndex.WaveletKeys(USER1, 1L, 5L));
+    index.putKeys(NAME1, new ParticipantIndex.WaveletKeys(USER1, 1L, 6L));
+    assertEquals(listingLength, journalFile.length());
+
+    // A participant change journals the latest modified time with it.
+    index.add(USER1, NAME1);
+    String journal = Files.toString(journalFile, Charsets.UTF_8);
+    assertFalse(journal.contains(" 5\n"));
+    assertTrue(journal.contains(" 6\n"));
+
+    index.putKeys(NAME1, new ParticipantIndex.WaveletKeys(USER1, 1L, 7L));
+    index.flush();
+    assertTrue(Files.toString(journalFile, Charsets.UTF_8).endsWith(" 7\n"));
+    index.close();
+  }
+
+  public void testCorruptJournalIsDiscarded() throws IOException {
+    ParticipantIndex index = new ParticipantIndex(journalFile);
+    index.add(USER1, NAME1);
+    index.markBuilt();
+    index.close();
+    FileOutputStream out = new FileOutputStream(journalFile, true);
+    out.write("+ user2@example.com not-a-wavelet-name\n".getBytes("UTF-8"));
+    out.close();
+
+    ParticipantIndex reopened = new ParticipantIndex(journalFile);
+    assertFalse(reopened.isBuilt());
+    assertTrue(reopened.getWavelets(USER1).isEmpty());
+  }
+
+  public void testJournalWithoutHeaderIsDiscarded() throws IOException {
+    Files.write("+ user1@example.com example.com/w1/example.com/conv+root\n".getBytes("UTF-8"),
+        journalFile);
+
+    ParticipantIndex index = new ParticipantIndex(journalFile);
+    assertFalse(index.isBuilt());
+    assertTrue(index.getWavelets(USER1).isEmpty());
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.box.server.util.SerialExecutorPool;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
+import org.waveprotocol.wave.federation.WaveletFederationListener;
+import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.version.HashedVersionFactory;
+import org.waveprotocol.wave.model.version.HashedVersionZeroFactoryImpl;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures {@link WaveMap#search} for the first page of inboxes of several
+ * sizes, against a search returning the whole inbox. The latter copies every
+ * matching wave, as every search did before waves were ranked on their sort
+ * keys and only the returned page copied.
+ */
+public class WaveMapSearchLargeTest extends TestCase {
+
+  private static final Log LOG = Log.get(WaveMapSearchLargeTest.class);
+
+  private static final int[] INBOX_SIZES = {1000, 5000, 20000};
+  private static final int PAGE_SIZE = 20;
+  private static final int NUM_RUNS = 5;
+
+  private static final String DOMAIN = "example.com";
+  private static final WaveletId WAVELET_ID = WaveletId.of(DOMAIN, "conv+root");
+  private static final HashedVersionFactory V0_HASH_FACTORY =
+      new HashedVersionZeroFactoryImpl(new IdURIEncoderDecoder(new JavaUrlCodec()));
+  private static final int OTHER_PARTICIPANTS = 5;
+  /** Length of the text in each wave's blip. */
+  private static final int TEXT_LENGTH = 2000;
+
+  private WaveMap waveMap;
+
+  @Override
+  protected void setUp() throws Exception {
+    CertificateManager certificateManager = mock(CertificateManager.class);
+    when(certificateManager.getLocalDomains()).thenReturn(ImmutableSet.of(DOMAIN));
+    WaveletNotificationDispatcher notifiee = new WaveletNotificationDispatcher(
+        certificateManager, mock(WaveletFederationListener.Factory.class));
+
+    final DeltaStore deltaStore = new MemoryDeltaStore();
+    final SerialExecutorPool executorPool =
+        new SerialExecutorPool(Executors.newCachedThreadPool());
+    LocalWaveletContainer.Factory localFactory = new LocalWaveletContainer.Factory() {
+      @Override
+      public LocalWaveletContainer create(WaveletNotificationSubscriber notifiee,
+          WaveletName waveletName, String domain) {
+        WaveletState waveletState;
+        try {
+          waveletState = DeltaStoreBasedWaveletState.create(deltaStore.open(waveletName),
+              MoreExecutors.sameThreadExecutor());
+        } catch (PersistenceException e) {
+          throw new RuntimeException(e);
+        }
+        return new LocalWaveletContainerImpl(waveletName, notifiee,
+            Futures.immediateFuture(waveletState), DOMAIN, executorPool.newSerialExecutor());
+      }
+    };
+    DeltaAndSnapshotStore waveletStore = mock(DeltaAndSnapshotStore.class);
+    when(waveletStore.lookup(any(WaveId.class))).thenReturn(ImmutableSet.<WaveletId>of());
+    when(waveletStore.getWaveIdIterator()).thenReturn(
+        ExceptionalIterator.FromIterator.<WaveId, PersistenceException>create(
+            Collections.<WaveId>emptyList().iterator()));
+    waveMap = new WaveMap(waveletStore, notifiee, notifiee, localFactory,
+        mock(RemoteWaveletContainer.Factory.class), new ParticipantIndex(), new ContentIndex(),
+        MoreExecutors.sameThreadExecutor(), DOMAIN, 0);
+  }
+
+  public void testFirstPageIsFasterThanWholeInbox() throws Exception {
+    // The user of each inbox size is in that many waves; the largest inbox
+    // includes the waves of the smaller ones.
+    int largest = INBOX_SIZES[INBOX_SIZES.length - 1];
+    List<WaveletName> names = Lists.newArrayListWithCapacity(largest);
+    for (int i = 0; i < largest; i++) {
+      WaveletName name = WaveletName.of(WaveId.of(DOMAIN, "w" + i), WAVELET_ID);
+      List<WaveletOperation> ops = Lists.newArrayList();
+      for (int size : INBOX_SIZES) {
+        if (i < size) {
+          ops.add(new AddParticipant(context(i), inboxUser(size)));
+        }
+      }
+      for (int p = 0; p < OTHER_PARTICIPANTS; p++) {
+        ops.add(new AddParticipant(context(i), ParticipantId.ofUnsafe("other" + p + "@" + DOMAIN)));
+      }
+      ops.add(new WaveletBlipOperation("b+1", new BlipContentOperation(context(i),
+          new DocOpBuilder().characters(Strings.repeat("x", TEXT_LENGTH)).build())));
+      submitDeltaToNewWavelet(name, ops);
+      names.add(name);
+    }
+
+    long allNanos = 0;
+    long pageNanos = 0;
+    for (int size : INBOX_SIZES) {
+      ParticipantId user = inboxUser(size);
+      allNanos = Long.MAX_VALUE;
+      pageNanos = Long.MAX_VALUE;
+      for (int run = 0; run < NUM_RUNS; run++) {
+        long start = System.nanoTime();
+        assertEquals(size, waveMap.search(user, "in:inbox", 0, size).size());
+        allNanos = Math.min(allNanos, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        assertEquals(PAGE_SIZE, waveMap.search(user, "in:inbox", 0, PAGE_SIZE).size());
+        pageNanos = Math.min(pageNanos, System.nanoTime() - start);
+      }
+      LOG.info(String.format(
+          "Search of an inbox of %d waves: whole inbox %.2fms, first page %.2fms",
+          size, allNanos / 1e6, pageNanos / 1e6));
+    }
+    assertTrue(pageNanos < allNanos);
+  }
+
+  private static ParticipantId inboxUser(int inboxSize) {
+    return ParticipantId.ofUnsafe("inbox" + inboxSize + "@" + DOMAIN);
+  }
+
+  /** A context giving each wave a distinct modification time. */
+  private static WaveletOperationContext context(int wave) {
+    return new WaveletOperationContext(inboxUser(INBOX_SIZES[0]), 1234567890L + wave, 1);
+  }
+
+  private void submitDeltaToNewWavelet(WaveletName name, List<WaveletOperation> ops)
+      throws Exception {
+    WaveletDelta delta = new WaveletDelta(inboxUser(INBOX_SIZES[0]),
+        V0_HASH_FACTORY.createVersionZero(name), ops);
+    ProtocolSignedDelta signedProtoDelta = ProtocolSignedDelta.newBuilder()
+        .setDelta(CoreWaveletOperationSerializer.serialize(delta).toByteString())
+        .build();
+    waveMap.getOrCreateLocalWavelet(name).submitRequest(name, signedProtoDelta);
+  }
+}
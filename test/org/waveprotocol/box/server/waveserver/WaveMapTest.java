@@ -17,23 +17,34 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.MoreExecutors;
-import com.google.gwt.thirdparty.guava.common.collect.Lists;
 
 import junit.framework.TestCase;
 
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.common.ExceptionalIterator;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.box.server.util.SerialExecutorPool;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.wave.federation.WaveletFederationListener;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
 import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
@@ -41,7 +52,12 @@ import org.waveprotocol.wave.model.id.IdUtil;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.document.operation.impl.DocInitializationBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
 import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
@@ -51,13 +67,18 @@ import org.waveprotocol.wave.model.version.HashedVersionZeroFactoryImpl;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.ParticipantIdUtil;
 import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.model.wave.data.WaveViewData;
 import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author josephg@gmail.com (Joseph Gentle)
@@ -172,19 +193,49 @@ public class WaveMapTest extends TestCase {
     return new AddParticipant(CONTEXT, user);
   }
 
-  @Mock private WaveletNotificationDispatcher notifiee;
+  private static WaveletOperation insertBlipText(String blipId, String text) {
+    return new WaveletBlipOperation(blipId,
+        new BlipContentOperation(CONTEXT, new DocOpBuilder().characters(text).build()));
+  }
+
+  @Mock private CertificateManager certificateManager;
+  @Mock private WaveletFederationListener.Factory federationHostFactory;
   @Mock private RemoteWaveletContainer.Factory remoteWaveletContainerFactory;
 
+  private WaveletNotificationDispatcher notifiee;
+  private LocalWaveletContainer.Factory localWaveletContainerFactory;
   private DeltaAndSnapshotStore waveletStore;
+  private ParticipantIndex participantIndex;
+  private ContentIndex contentIndex;
+  /** Executor for indexing the text of changed blips. */
+  private Executor contentIndexExecutor;
+  /** Executor for persisting the deltas of new wavelet containers. */
+  private Executor persistExecutor;
+  private final SerialExecutorPool continuationExecutorPool =
+      new SerialExecutorPool(Executors.newCachedThreadPool());
+  /** Released once for each commit notification on the wave bus. */
+  private final Semaphore commits = new Semaphore(0);
   private WaveMap waveMap;
 
   @Override
   protected void setUp() throws Exception {
     MockitoAnnotations.initMocks(this);
+    when(certificateManager.getLocalDomains()).thenReturn(ImmutableSet.of(DOMAIN));
+    notifiee = new WaveletNotificationDispatcher(certificateManager, federationHostFactory);
+    notifiee.subscribe(new WaveBus.Subscriber() {
+      @Override
+      public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+      }
+
+      @Override
+      public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+        commits.release();
+      }
+    });
 
     final DeltaStore deltaStore = new MemoryDeltaStore();
-    final Executor persistExecutor = MoreExecutors.sameThreadExecutor();
-    LocalWaveletContainer.Factory localWaveletContainerFactory =
+    persistExecutor = MoreExecutors.sameThreadExecutor();
+    localWaveletContainerFactory =
         new LocalWaveletContainer.Factory() {
           @Override
           public LocalWaveletContainer create(WaveletNotificationSubscriber notifiee,
@@ -197,14 +248,26 @@ public class WaveMapTest extends TestCase {
               throw new RuntimeException(e);
             }
             return new LocalWaveletContainerImpl(waveletName, notifiee,
-                Futures.immediateFuture(waveletState), DOMAIN);
+                Futures.immediateFuture(waveletState), DOMAIN,
+                continuationExecutorPool.newSerialExecutor());
           }
         };
 
     waveletStore = mock(DeltaAndSnapshotStore.class);
-    waveMap =
-        new WaveMap(waveletStore, notifiee, notifiee, localWaveletContainerFactory,
-            remoteWaveletContainerFactory, "example.com");
+    // Persisted wavelets are found, so evicted wavelets can be loaded again.
+    when(waveletStore.lookup(any(WaveId.class))).thenAnswer(
+        new Answer<ImmutableSet<WaveletId>>() {
+          @Override
+          public ImmutableSet<WaveletId> answer(InvocationOnMock invocation)
+              throws PersistenceException {
+            return deltaStore.lookup((WaveId) invocation.getArguments()[0]);
+          }
+        });
+    when(waveletStore.getWaveIdIterator()).thenReturn(eitr());
+    participantIndex = new ParticipantIndex();
+    contentIndex = new ContentIndex();
+    contentIndexExecutor = MoreExecutors.sameThreadExecutor();
+    waveMap = createWaveMap(0);
   }
 
   public void testWaveMapStartsEmpty() throws WaveServerException {
@@ -217,21 +280,159 @@ public class WaveMapTest extends TestCase {
     assertNull(waveMap.getRemoteWavelet(WAVELET_NAME));
   }
 
-  public void testWaveAvailableAfterLoad() throws PersistenceException, WaveServerException {
+  public void testStoredWaveIsListed() throws PersistenceException, WaveServerException {
     when(waveletStore.getWaveIdIterator()).thenReturn(eitr(WAVE_ID));
-    waveMap.loadAllWavelets();
 
     ExceptionalIterator<WaveId, WaveServerException> waves = waveMap.getWaveIds();
     assertTrue(waves.hasNext());
     assertEquals(WAVE_ID, waves.next());
   }
 
-  public void testWaveletAvailableAfterLoad() throws WaveletStateException, PersistenceException {
-    when(waveletStore.getWaveIdIterator()).thenReturn(eitr(WAVE_ID));
+  public void testStoredWaveletIsLoadedOnAccess()
+      throws WaveletStateException, PersistenceException {
     when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.<WaveletId>of(WAVELET_ID));
-    waveMap.loadAllWavelets();
 
     assertNotNull(waveMap.getLocalWavelet(WAVELET_NAME));
+    assertEquals(1, waveMap.getResidentWaveletCount());
+    assertEquals(1, waveMap.getWaveletMissCount());
+    assertNotNull(waveMap.getLocalWavelet(WAVELET_NAME));
+    assertEquals(1, waveMap.getWaveletHitCount());
+  }
+
+  public void testInitializeDoesNotLoadWavelets() throws Exception {
+    when(waveletStore.getWaveIdIterator()).thenReturn(eitr(WAVE_ID));
+    when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.<WaveletId>of(WAVELET_ID));
+    stubStoredSnapshot(WAVELET_NAME, USER1);
+    waveMap.initialize();
+
+    assertEquals(0, waveMap.getResidentWaveletCount());
+  }
+
+  public void testLeastRecentlyUsedWaveletIsEvicted() throws Exception {
+    waveMap = createWaveMap(2);
+    WaveletName[] names = new WaveletName[3];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = WaveletName.of(WaveId.of(DOMAIN, "w" + i), WAVELET_ID);
+      awaitCommits(1,
+          submitDeltaToNewWavelet(names[i], USER1, addParticipantToWavelet(USER1)));
+    }
+    assertEquals(2, waveMap.getResidentWaveletCount());
+    assertEquals(1, waveMap.getWaveletEvictionCount());
+
+    // The evicted wavelet is loaded again from storage, evicting the next one.
+    LocalWaveletContainer reloaded = waveMap.getLocalWavelet(names[0]);
+    assertEquals(1, reloaded.getLastCommittedVersion().getVersion());
+    assertEquals(2, waveMap.getWaveletEvictionCount());
+    assertEquals(3, waveMap.search(USER1, "in:inbox", 0, 10).size());
+  }
+
+  public void testEvictedContainerIsClosedAndWaveletLoadedAgain() throws Exception {
+    waveMap = createWaveMap(1);
+    WaveletName name1 = WaveletName.of(WaveId.of(DOMAIN, "w1"), WAVELET_ID);
+    WaveletName name2 = WaveletName.of(WaveId.of(DOMAIN, "w2"), WAVELET_ID);
+    LocalWaveletContainer evicted =
+        submitDeltaToNewWavelet(name1, USER1, addParticipantToWavelet(USER1));
+    awaitCommits(1, evicted);
+    awaitCommits(1, submitDeltaToNewWavelet(name2, USER1, addParticipantToWavelet(USER1)));
+    assertEquals(1, waveMap.getWaveletEvictionCount());
+
+    try {
+      evicted.copyWaveletData();
+      fail("Expected WaveletClosedException");
+    } catch (WaveletClosedException expected) {
+      // The caller looks the wavelet up again.
+    }
+    LocalWaveletContainer reloaded = waveMap.getLocalWavelet(name1);
+    assertNotSame(evicted, reloaded);
+    assertEquals(1, reloaded.copyWaveletData().getVersion());
+  }
+
+  public void testWaveIsDroppedWhenItsWaveletsAreEvicted() throws Exception {
+    waveMap = createWaveMap(1);
+    WaveletName name1 = WaveletName.of(WaveId.of(DOMAIN, "w1"), WAVELET_ID);
+    WaveletName name2 = WaveletName.of(WaveId.of(DOMAIN, "w2"), WAVELET_ID);
+    awaitCommits(1, submitDeltaToNewWavelet(name1, USER1, addParticipantToWavelet(USER1)));
+    awaitCommits(1, submitDeltaToNewWavelet(name2, USER1, addParticipantToWavelet(USER1)));
+    assertEquals(1, waveMap.getResidentWaveCount());
+
+    // The dropped wave is looked up in storage again.
+    assertNotNull(waveMap.getLocalWavelet(name1));
+    assertEquals(1, waveMap.getResidentWaveCount());
+  }
+
+  public void testWaveletWithUnpersistedDeltasIsNotEvicted() throws Exception {
+    final List<Runnable> persistTasks = Lists.newArrayList();
+    persistExecutor = new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        persistTasks.add(task);
+      }
+    };
+    waveMap = createWaveMap(1);
+    WaveletName name1 = WaveletName.of(WaveId.of(DOMAIN, "w1"), WAVELET_ID);
+    WaveletName name2 = WaveletName.of(WaveId.of(DOMAIN, "w2"), WAVELET_ID);
+    LocalWaveletContainer wavelet1 =
+        submitDeltaToNewWavelet(name1, USER1, addParticipantToWavelet(USER1));
+    LocalWaveletContainer wavelet2 =
+        submitDeltaToNewWavelet(name2, USER1, addParticipantToWavelet(USER1));
+    assertEquals(2, waveMap.getResidentWaveletCount());
+    assertEquals(0, waveMap.getWaveletEvictionCount());
+
+    for (Runnable task : persistTasks) {
+      task.run();
+    }
+    awaitCommits(2, wavelet1, wavelet2);
+    waveMap.getOrCreateLocalWavelet(WaveletName.of(WaveId.of(DOMAIN, "w3"), WAVELET_ID));
+    assertEquals(1, waveMap.getResidentWaveletCount());
+    assertEquals(2, waveMap.getWaveletEvictionCount());
+  }
+
+  public void testLoadBuildsParticipantIndexFromStorage() throws Exception {
+    when(waveletStore.getWaveIdIterator()).thenReturn(eitr(WAVE_ID));
+    when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.<WaveletId>of(WAVELET_ID));
+    stubStoredSnapshot(WAVELET_NAME, USER1, USER2);
+    waveMap.initialize();
+
+    assertTrue(participantIndex.isBuilt());
+    assertEquals(ImmutableSet.of(WAVELET_ID), participantIndex.getWavelets(USER1).get(WAVE_ID));
+    assertEquals(ImmutableSet.of(WAVELET_ID), participantIndex.getWavelets(USER2).get(WAVE_ID));
+  }
+
+  public void testLoadDoesNotReadWaveletsForBuiltIndex() throws Exception {
+    participantIndex.markBuilt();
+    contentIndex.markBuilt();
+    when(waveletStore.getWaveIdIterator()).thenReturn(eitr(WAVE_ID));
+    when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.<WaveletId>of(WAVELET_ID));
+    waveMap.initialize();
+
+    verify(waveletStore, never()).open(any(WaveletName.class));
+  }
+
+  public void testLoadIndexesOnlyKeysOfUserDataWavelets() throws Exception {
+    WaveletName udwName =
+        WaveletName.of(WAVE_ID, WaveletId.of(DOMAIN, "user+" + USER1.getAddress()));
+    when(waveletStore.getWaveIdIterator()).thenReturn(eitr(WAVE_ID));
+    when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.of(udwName.waveletId));
+    stubStoredSnapshot(udwName, USER1);
+    waveMap.initialize();
+
+    assertTrue(participantIndex.getWavelets(USER1).isEmpty());
+    assertEquals(ImmutableSet.of(udwName),
+        participantIndex.getKeys(ImmutableList.of(udwName)).keySet());
+  }
+
+  public void testLoadBuildsContentIndexFromStorage() throws Exception {
+    when(waveletStore.getWaveIdIterator()).thenReturn(eitr(WAVE_ID));
+    when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.<WaveletId>of(WAVELET_ID));
+    ObservableWaveletData snapshot = stubStoredSnapshot(WAVELET_NAME, USER1);
+    snapshot.createDocument("b+1", USER1, ImmutableSet.of(USER1),
+        new DocInitializationBuilder().characters("stored text").build(), 0L, 0);
+    waveMap.initialize();
+
+    assertTrue(contentIndex.isBuilt());
+    assertEquals(ImmutableSet.of(WAVE_ID),
+        contentIndex.search(ImmutableList.of(ContentIndex.tokenize("stored text")),
+            Predicates.<WaveletName>alwaysTrue()));
   }
 
   public void testGetOrCreateCreatesWavelets() throws WaveletStateException, PersistenceException {
@@ -255,6 +456,27 @@ public class WaveMapTest extends TestCase {
     assertEquals(WAVELET_NAME.waveId, results.iterator().next().getWaveId());
   }
 
+  public void testSearchLoadsOnlyWaveletsOnThePage() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      WaveletName name = WaveletName.of(WaveId.of(DOMAIN, "w" + i), WAVELET_ID);
+      awaitCommits(1, submitDeltaToNewWavelet(name, USER1, addParticipantToWavelet(USER1)));
+    }
+    // A restarted wave map, with the participant index but no wavelets loaded.
+    waveMap = createWaveMap(0);
+
+    assertEquals(1, waveMap.search(USER1, "in:inbox", 1, 1).size());
+    assertEquals(1, waveMap.getResidentWaveletCount());
+  }
+
+  public void testSearchInboxDoesNotReturnWaveAfterUserRemoved() throws Exception {
+    submitDeltaToNewWavelet(WAVELET_NAME, USER1, addParticipantToWavelet(USER1),
+        addParticipantToWavelet(USER2), new RemoveParticipant(CONTEXT, USER2));
+
+    assertTrue(participantIndex.getWavelets(USER2).isEmpty());
+    assertEquals(0, waveMap.search(USER2, "in:inbox", 0, 20).size());
+    assertEquals(1, waveMap.search(USER1, "in:inbox", 0, 20).size());
+  }
+
   public void testSearchInboxDoesNotReturnWaveWithoutUser() throws Exception {
     submitDeltaToNewWavelet(WAVELET_NAME, USER1, addParticipantToWavelet(USER1));
 
@@ -367,6 +589,32 @@ public class WaveMapTest extends TestCase {
     assertTrue(descOrdering.isOrdered(results));
   }
   
+  public void testSearchRanksUserDataWaveletWithItsWave() throws Exception {
+    WaveletName name1 = WaveletName.of(WaveId.of(DOMAIN, "1"), WAVELET_ID);
+    WaveletName name2 = WaveletName.of(WaveId.of(DOMAIN, "2"), WAVELET_ID);
+    LocalWaveletContainer wavelet1 =
+        submitDeltaToNewWavelet(name1, USER1, addParticipantToWavelet(USER1));
+    awaitCommits(1, wavelet1);
+    Thread.sleep(5);
+    LocalWaveletContainer wavelet2 =
+        submitDeltaToNewWavelet(name2, USER1, addParticipantToWavelet(USER1));
+    awaitCommits(1, wavelet2);
+    Thread.sleep(5);
+    // The user data wavelet is created last, so wave 1 becomes the newest.
+    WaveletName udwName =
+        WaveletName.of(name1.waveId, WaveletId.of(DOMAIN, "user+" + USER1.getAddress()));
+    LocalWaveletContainer udw =
+        submitDeltaToNewWavelet(udwName, USER1, addParticipantToWavelet(USER1));
+    awaitCommits(1, udw);
+
+    List<WaveViewData> results = Lists.newArrayList(
+        waveMap.search(USER1, "in:inbox orderby:createddesc", 0, 10));
+    assertEquals(2, results.size());
+    assertEquals(name1.waveId, results.get(0).getWaveId());
+    assertNotNull(results.get(0).getWavelet(udwName.waveletId));
+    assertEquals(name2.waveId, results.get(1).getWaveId());
+  }
+
   public void testSearchOrderByAuthorAscWithCompundingWorks() throws Exception {
     for (int i = 0; i < 10; i++) {
       WaveletName name = WaveletName.of(WaveId.of(DOMAIN, String.valueOf(i)), WAVELET_ID);
@@ -474,6 +722,79 @@ public class WaveMapTest extends TestCase {
     assertEquals(0, results.size());
   }
 
+  public void testSearchTextReturnsWavesContainingWords() throws Exception {
+    WaveletName name1 = WaveletName.of(WaveId.of(DOMAIN, "1"), WAVELET_ID);
+    WaveletName name2 = WaveletName.of(WaveId.of(DOMAIN, "2"), WAVELET_ID);
+    LocalWaveletContainer wavelet1 = submitDeltaToNewWavelet(name1, USER1,
+        addParticipantToWavelet(USER1), insertBlipText("b+1", "Lunch on Friday"));
+    LocalWaveletContainer wavelet2 = submitDeltaToNewWavelet(name2, USER1,
+        addParticipantToWavelet(USER1), insertBlipText("b+1", "Friday release"));
+    awaitCommits(2, wavelet1, wavelet2);
+
+    assertEquals(2, waveMap.search(USER1, "in:inbox friday", 0, 20).size());
+    Collection<WaveViewData> results = waveMap.search(USER1, "lunch friday", 0, 20);
+    assertEquals(1, results.size());
+    assertEquals(name1.waveId, results.iterator().next().getWaveId());
+    assertEquals(0, waveMap.search(USER1, "dinner", 0, 20).size());
+  }
+
+  public void testSearchPhraseRequiresAdjacentWords() throws Exception {
+    LocalWaveletContainer wavelet = submitDeltaToNewWavelet(WAVELET_NAME, USER1,
+        addParticipantToWavelet(USER1), insertBlipText("b+1", "release notes for friday"));
+    awaitCommits(1, wavelet);
+
+    assertEquals(1, waveMap.search(USER1, "\"release notes\"", 0, 20).size());
+    assertEquals(0, waveMap.search(USER1, "\"notes release\"", 0, 20).size());
+    assertEquals(0, waveMap.search(USER1, "\"release friday\"", 0, 20).size());
+  }
+
+  public void testSearchTextWithColonIsMatchedAsWords() throws Exception {
+    LocalWaveletContainer wavelet = submitDeltaToNewWavelet(WAVELET_NAME, USER1,
+        addParticipantToWavelet(USER1),
+        insertBlipText("b+1", "standup at 10:30, notes on http://example.com"));
+    awaitCommits(1, wavelet);
+
+    assertEquals(1, waveMap.search(USER1, "in:inbox 10:30", 0, 20).size());
+    assertEquals(1, waveMap.search(USER1, "http://example.com", 0, 20).size());
+    assertEquals(0, waveMap.search(USER1, "10:45", 0, 20).size());
+    // A known token with a malformed value is still invalid.
+    assertEquals(0, waveMap.search(USER1, "in:inbox:archive", 0, 20).size());
+  }
+
+  public void testSearchTextDoesNotReturnWaveWithoutUser() throws Exception {
+    LocalWaveletContainer wavelet = submitDeltaToNewWavelet(WAVELET_NAME, USER1,
+        addParticipantToWavelet(USER1), insertBlipText("b+1", "secret"));
+    awaitCommits(1, wavelet);
+
+    assertEquals(1, waveMap.search(USER1, "secret", 0, 20).size());
+    assertEquals(0, waveMap.search(USER2, "secret", 0, 20).size());
+  }
+
+  public void testChangesQueuedForIndexingAreIndexedTogether() throws Exception {
+    final List<Runnable> indexTasks = Lists.newArrayList();
+    contentIndexExecutor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        indexTasks.add(command);
+      }
+    };
+    // The wave map made in setUp indexes into the old content index.
+    contentIndex = new ContentIndex();
+    waveMap = createWaveMap(0);
+    LocalWaveletContainer wavelet = submitDeltaToNewWavelet(WAVELET_NAME, USER1,
+        addParticipantToWavelet(USER1), insertBlipText("b+1", "monday"));
+    awaitCommits(1, wavelet);
+    submitDelta(wavelet, wavelet.copyWaveletData().getHashedVersion(), USER1,
+        insertBlipText("b+2", "tuesday"));
+    awaitCommits(1, wavelet);
+    assertEquals(0, waveMap.search(USER1, "monday", 0, 20).size());
+
+    assertEquals(1, indexTasks.size());
+    indexTasks.get(0).run();
+    assertEquals(1, waveMap.search(USER1, "monday", 0, 20).size());
+    assertEquals(1, waveMap.search(USER1, "tuesday", 0, 20).size());
+  }
+
 
   private ExceptionalIterator<WaveId, PersistenceException> eitr(WaveId... waves) {
     return ExceptionalIterator.FromIterator.<WaveId, PersistenceException>create(
@@ -482,9 +803,47 @@ public class WaveMapTest extends TestCase {
 
   // *** Helpers
 
-  private void submitDeltaToNewWavelet(WaveletName name, ParticipantId user,
+  private WaveMap createWaveMap(int maxResidentWavelets) {
+    return new WaveMap(waveletStore, notifiee, notifiee, localWaveletContainerFactory,
+        remoteWaveletContainerFactory, participantIndex, contentIndex, contentIndexExecutor,
+        DOMAIN, maxResidentWavelets);
+  }
+
+  /** Makes the store return a snapshot of the wavelet with the given participants. */
+  private ObservableWaveletData stubStoredSnapshot(WaveletName name, ParticipantId... participants)
+      throws PersistenceException {
+    ObservableWaveletData snapshot = WaveletDataUtil.createEmptyWavelet(name, participants[0],
+        V0_HASH_FACTORY.createVersionZero(name), 0L);
+    for (ParticipantId participant : participants) {
+      snapshot.addParticipant(participant);
+    }
+    DeltaAndSnapshotStore.WaveletAccess access = mock(DeltaAndSnapshotStore.WaveletAccess.class);
+    when(access.getSnapshot()).thenReturn(snapshot);
+    when(waveletStore.open(name)).thenReturn(access);
+    return snapshot;
+  }
+
+  /**
+   * Waits for the given number of commit notifications, and until the given
+   * wavelets are done handling them, so they are idle.
+   */
+  private void awaitCommits(int count, WaveletContainer... wavelets) throws Exception {
+    assertTrue(commits.tryAcquire(count, 5, TimeUnit.SECONDS));
+    for (WaveletContainer wavelet : wavelets) {
+      // Takes the read lock, so it waits for the commit notification.
+      wavelet.isEmpty();
+    }
+  }
+
+  private LocalWaveletContainer submitDeltaToNewWavelet(WaveletName name, ParticipantId user,
       WaveletOperation... ops) throws Exception {
-    HashedVersion version = V0_HASH_FACTORY.createVersionZero(name);
+    LocalWaveletContainer wavelet = waveMap.getOrCreateLocalWavelet(name);
+    submitDelta(wavelet, V0_HASH_FACTORY.createVersionZero(name), user, ops);
+    return wavelet;
+  }
+
+  private void submitDelta(LocalWaveletContainer wavelet, HashedVersion version,
+      ParticipantId user, WaveletOperation... ops) throws Exception {
     WaveletDelta delta = new WaveletDelta(user, version, Arrays.asList(ops));
     ProtocolWaveletDelta protoDelta = CoreWaveletOperationSerializer.serialize(delta);
 
@@ -493,8 +852,7 @@ public class WaveMapTest extends TestCase {
     ProtocolSignedDelta signedProtoDelta =
         ProtocolSignedDelta.newBuilder().setDelta(protoDelta.toByteString()).build();
 
-    LocalWaveletContainer wavelet = waveMap.getOrCreateLocalWavelet(name);
-    wavelet.submitRequest(name, signedProtoDelta);
+    wavelet.submitRequest(wavelet.getWaveletName(), signedProtoDelta);
   }
   
 }
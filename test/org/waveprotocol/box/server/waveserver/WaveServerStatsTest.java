@@ -0,0 +1,84 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.util.SerialExecutorPool;
+import org.waveprotocol.wave.federation.WaveletFederationListener;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+/**
+ * Tests for {@link WaveServerStats}.
+ */
+public class WaveServerStatsTest extends TestCase {
+
+  public void testReportListsPoolsQueuesAndDeltaHistory() {
+    CertificateManager certificateManager = mock(CertificateManager.class);
+    when(certificateManager.getLocalDomains()).thenReturn(ImmutableSet.of("example.com"));
+    WaveletNotificationDispatcher dispatcher = new WaveletNotificationDispatcher(
+        certificateManager, mock(WaveletFederationListener.Factory.class), true,
+        MoreExecutors.sameThreadExecutor());
+    WaveBus.Subscriber subscriber = new WaveBus.Subscriber() {
+      @Override
+      public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+      }
+
+      @Override
+      public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+      }
+
+      @Override
+      public String toString() {
+        return "subscriber";
+      }
+    };
+    dispatcher.subscribe(subscriber);
+    SerialExecutorPool persistPool = new SerialExecutorPool(MoreExecutors.sameThreadExecutor());
+    persistPool.newSerialExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+
+    DeltaHistoryCache historyCache = new DeltaHistoryCache(0);
+    WaveletName waveletName = WaveletName.of(WaveId.of("example.com", "w1"),
+        WaveletId.of("example.com", "conv+root"));
+    historyCache.addResidentDeltas(waveletName, 2, 100);
+
+    String report = new WaveServerStats(dispatcher, persistPool,
+        new SerialExecutorPool(MoreExecutors.sameThreadExecutor()), historyCache).report();
+    assertTrue(report, report.contains("persist: SerialExecutorPool(queued=0, completed=1,"));
+    assertTrue(report, report.contains("storage continuation: SerialExecutorPool(queued=0, "
+        + "completed=0,"));
+    assertTrue(report, report.contains("DispatchQueue(subscriber, queued=0, delivered=0,"));
+    assertTrue(report, report.contains("delta history: DeltaHistoryCache(resident=100B,"));
+    assertTrue(report, report.contains(waveletName + ": 2 deltas, 100B"));
+  }
+}
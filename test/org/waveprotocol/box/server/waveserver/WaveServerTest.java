@@ -24,6 +24,7 @@ import static org.mockito.Mockito.when;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
 
 import junit.framework.TestCase;
 
@@ -33,12 +34,16 @@ import org.mockito.MockitoAnnotations;
 import org.waveprotocol.box.common.ExceptionalIterator;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
 import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.box.server.util.SerialExecutorPool;
 import org.waveprotocol.box.server.waveserver.LocalWaveletContainer.Factory;
 import org.waveprotocol.box.server.waveserver.WaveletProvider.SubmitRequestListener;
+import org.waveprotocol.wave.federation.FederationErrorProto.FederationError;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
 import org.waveprotocol.wave.federation.WaveletFederationProvider;
+import org.waveprotocol.wave.federation.WaveletFederationProvider.HistoryResponseListener;
 import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
@@ -54,6 +59,7 @@ import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -98,22 +104,28 @@ public class WaveServerTest extends TestCase {
     when(localSigner.sign(Matchers.<ByteStringMessage<ProtocolWaveletDelta>>any()))
         .thenReturn(ImmutableList.<ProtocolSignature>of());
 
-    certificateManager = new CertificateManagerImpl(true, localSigner, null, null);
+    certificateManager = new CertificateManagerImpl(true, localSigner, null, null,
+        MoreExecutors.sameThreadExecutor());
     final DeltaStore deltaStore = new MemoryDeltaStore();
     final Executor executor = Executors.newSingleThreadExecutor();
+    final SerialExecutorPool executorPool = new SerialExecutorPool(Executors.newCachedThreadPool());
     Factory localWaveletContainerFactory = new LocalWaveletContainer.Factory() {
       @Override
       public LocalWaveletContainer create(WaveletNotificationSubscriber notifiee,
           WaveletName waveletName, String waveDomain) {
         return new LocalWaveletContainerImpl(waveletName, notifiee,
-            WaveServerModule.loadWaveletState(executor, deltaStore, waveletName), waveDomain);
+            WaveServerModule.loadWaveletState(executor, executorPool.newSerialExecutor(),
+                deltaStore, waveletName, SnapshotCheckpointPolicy.NEVER,
+                new DeltaHistoryCache(0), Integer.MAX_VALUE, true),
+            waveDomain, executorPool.newSerialExecutor());
       }
     };
 
     waveletStore = new DeltaStoreBasedSnapshotStore(deltaStore);
     waveMap =
         new WaveMap(waveletStore, notifiee, notifiee, localWaveletContainerFactory,
-            remoteWaveletContainerFactory, "example.com");
+            remoteWaveletContainerFactory, new ParticipantIndex(), new ContentIndex(),
+            MoreExecutors.sameThreadExecutor(), "example.com", 0);
     waveServer =
         new WaveServerImpl(MoreExecutors.sameThreadExecutor(), certificateManager,
             federationRemote, waveMap);
@@ -138,10 +150,67 @@ public class WaveServerTest extends TestCase {
 //        eq(ImmutableSet.of(DOMAIN)));
   }
 
+  public void testHistoryIsTruncatedAtLengthLimit() {
+    HashedVersion v0 = V0_HASH_FACTORY.createVersionZero(WAVELET_NAME);
+    HashedVersion version = v0;
+    version = submitDelta(WAVELET_NAME, version, USER1, addParticipantToWavelet(USER1));
+    for (int i = 0; i < 4; i++) {
+      version = submitDelta(WAVELET_NAME, version, USER1,
+          addParticipantToWavelet(ParticipantId.ofUnsafe("user" + (10 + i) + "@" + DOMAIN)));
+    }
+
+    HistoryResponse all = requestHistory(v0, version, -1);
+    assertEquals(5, all.deltas.size());
+    assertEquals(0, all.versionTruncatedAt);
+
+    long twoDeltas = all.deltas.get(0).size() + all.deltas.get(1).size();
+    HistoryResponse firstPage = requestHistory(v0, version, twoDeltas);
+    assertEquals(all.deltas.subList(0, 2), firstPage.deltas);
+    assertEquals(2, firstPage.versionTruncatedAt);
+
+    // A delta longer than the limit is returned on its own.
+    HistoryResponse onePage = requestHistory(v0, version, 1);
+    assertEquals(all.deltas.subList(0, 1), onePage.deltas);
+    assertEquals(1, onePage.versionTruncatedAt);
+  }
+
+  /** The deltas and truncation version of a history response. */
+  private static class HistoryResponse {
+    List<ByteString> deltas;
+    long versionTruncatedAt;
+  }
+
+  private HistoryResponse requestHistory(HashedVersion start, HashedVersion end,
+      long lengthLimit) {
+    final HistoryResponse response = new HistoryResponse();
+    waveServer.requestHistory(WAVELET_NAME, DOMAIN,
+        CoreWaveletOperationSerializer.serialize(start),
+        CoreWaveletOperationSerializer.serialize(end), lengthLimit,
+        new HistoryResponseListener() {
+          @Override
+          public void onSuccess(List<ByteString> deltaList,
+              ProtocolHashedVersion lastCommittedVersion, long versionTruncatedAt) {
+            response.deltas = deltaList;
+            response.versionTruncatedAt = versionTruncatedAt;
+          }
+
+          @Override
+          public void onFailure(FederationError error) {
+            fail("History request failed: " + error);
+          }
+        });
+    assertNotNull(response.deltas);
+    return response;
+  }
+
   private void submitDeltaToNewWavelet(WaveletName name, ParticipantId user,
       WaveletOperation... ops) {
-    HashedVersion version = V0_HASH_FACTORY.createVersionZero(name);
+    submitDelta(name, V0_HASH_FACTORY.createVersionZero(name), user, ops);
+  }
 
+  /** @return the version after the delta is applied */
+  private HashedVersion submitDelta(WaveletName name, HashedVersion version, ParticipantId user,
+      WaveletOperation... ops) {
     WaveletDelta delta = new WaveletDelta(user, version, ImmutableList.copyOf(ops));
 
     ProtocolWaveletDelta protoDelta = CoreWaveletOperationSerializer.serialize(delta);
@@ -151,11 +220,12 @@ public class WaveServerTest extends TestCase {
     ProtocolSignedDelta signedProtoDelta =
         ProtocolSignedDelta.newBuilder().setDelta(protoDelta.toByteString()).build();
 
+    final HashedVersion[] resultingVersion = new HashedVersion[1];
     waveServer.submitRequest(name, protoDelta, new SubmitRequestListener() {
       @Override
       public void onSuccess(int operationsApplied, HashedVersion hashedVersionAfterApplication,
           long applicationTimestamp) {
-        // Wavelet was submitted.
+        resultingVersion[0] = hashedVersionAfterApplication;
       }
 
       @Override
@@ -163,5 +233,6 @@ public class WaveServerTest extends TestCase {
         fail("Could not submit callback");
       }
     });
+    return resultingVersion[0];
   }
 }
@@ -58,6 +58,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * Tests for local and remote wavelet containers.
@@ -70,6 +71,8 @@ public class WaveletContainerTest extends TestCase {
       new IdURIEncoderDecoder(new JavaUrlCodec());
   private static final HashedVersionFactory HASH_FACTORY = new HashedVersionFactoryImpl(URI_CODEC);
   private static final Executor PERSIST_EXECUTOR = MoreExecutors.sameThreadExecutor();
+  private static final Executor STORAGE_CONTINUATION_EXECUTOR =
+      Executors.newSingleThreadExecutor();
 
   private static final String localDomain = "example.com";
   private static final WaveletName localWaveletName = WaveletName.of(
@@ -123,12 +126,12 @@ public class WaveletContainerTest extends TestCase {
     WaveletState localWaveletState =
         DeltaStoreBasedWaveletState.create(deltaStore.open(localWaveletName), PERSIST_EXECUTOR);
     localWavelet = new LocalWaveletContainerImpl(localWaveletName, notifiee,
-        Futures.immediateFuture(localWaveletState), localDomain);
+        Futures.immediateFuture(localWaveletState), localDomain, STORAGE_CONTINUATION_EXECUTOR);
     localWavelet.awaitLoad();
     WaveletState remoteWaveletState =
         DeltaStoreBasedWaveletState.create(deltaStore.open(remoteWaveletName), PERSIST_EXECUTOR);
     remoteWavelet = new RemoteWaveletContainerImpl(remoteWaveletName, notifiee,
-        Futures.immediateFuture(remoteWaveletState));
+        Futures.immediateFuture(remoteWaveletState), STORAGE_CONTINUATION_EXECUTOR);
     remoteWavelet.awaitLoad();
   }
 
@@ -231,6 +234,23 @@ public class WaveletContainerTest extends TestCase {
     assertEquals(localWavelet.getCurrentVersion(), oldVersion);
   }
 
+  public void testEvictedContainersAreNotRead() throws Exception {
+    assertTrue(localWavelet.closeIfPersisted());
+    try {
+      localWavelet.isDeltaSigner(localVersion0, fakeSigner1);
+      fail("Expected WaveletClosedException");
+    } catch (WaveletClosedException expected) {
+      // Expected.
+    }
+    assertTrue(remoteWavelet.closeIfPersisted());
+    try {
+      remoteWavelet.commit(HASH_FACTORY.createVersionZero(remoteWaveletName));
+      fail("Expected WaveletClosedException");
+    } catch (WaveletClosedException expected) {
+      // Expected.
+    }
+  }
+
   public void testLocalEmptyDelta() throws Exception {
     ProtocolSignedDelta emptyDelta = ProtocolSignedDelta.newBuilder()
         .addSignature(fakeSignature1)
@@ -0,0 +1,261 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.wave.federation.WaveletFederationListener;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link WaveletNotificationDispatcher}.
+ */
+public class WaveletNotificationDispatcherTest extends TestCase {
+
+  private static final String DOMAIN = "example.com";
+  private static final String REMOTE_DOMAIN = "example.org";
+  private static final WaveletName WAVELET_NAME_1 =
+      WaveletName.of(WaveId.of(DOMAIN, "w+1"), WaveletId.of(DOMAIN, "conv+root"));
+  private static final WaveletName WAVELET_NAME_2 =
+      WaveletName.of(WaveId.of(DOMAIN, "w+2"), WaveletId.of(DOMAIN, "conv+root"));
+  private static final ImmutableSet<String> NO_DOMAINS = ImmutableSet.of();
+
+  /** Records the committed versions, and counts down a latch for each. */
+  private static class RecordingSubscriber implements WaveBus.Subscriber {
+    final List<WaveletName> names = Collections.synchronizedList(Lists.<WaveletName>newArrayList());
+    final List<Long> versions = Collections.synchronizedList(Lists.<Long>newArrayList());
+    final CountDownLatch commits;
+    volatile Thread thread;
+
+    RecordingSubscriber(int expectedCommits) {
+      commits = new CountDownLatch(expectedCommits);
+    }
+
+    @Override
+    public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+    }
+
+    @Override
+    public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+      thread = Thread.currentThread();
+      names.add(waveletName);
+      versions.add(version.getVersion());
+      commits.countDown();
+    }
+
+    /** @return the versions committed to the given wavelet, in delivery order. */
+    List<Long> versionsOf(WaveletName waveletName) {
+      List<Long> result = Lists.newArrayList();
+      synchronized (names) {
+        for (int i = 0; i < names.size(); i++) {
+          if (names.get(i).equals(waveletName)) {
+            result.add(versions.get(i));
+          }
+        }
+      }
+      return result;
+    }
+  }
+
+  private CertificateManager certificateManager;
+  private WaveletFederationListener.Factory federationHostFactory;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    certificateManager = mock(CertificateManager.class);
+    when(certificateManager.getLocalDomains()).thenReturn(ImmutableSet.of(DOMAIN));
+    federationHostFactory = mock(WaveletFederationListener.Factory.class);
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  public void testInlineDispatchDeliversOnCallingThread() throws Exception {
+    WaveletNotificationDispatcher dispatcher =
+        new WaveletNotificationDispatcher(certificateManager, federationHostFactory);
+    RecordingSubscriber subscriber = new RecordingSubscriber(1);
+    dispatcher.subscribe(subscriber);
+
+    dispatcher.waveletCommitted(WAVELET_NAME_1, HashedVersion.unsigned(1), NO_DOMAINS);
+    assertEquals(0, subscriber.commits.getCount());
+    assertSame(Thread.currentThread(), subscriber.thread);
+    assertTrue(dispatcher.getDispatchQueues().isEmpty());
+  }
+
+  public void testQueuedNotificationsOfEachWaveletArriveInOrder() throws Exception {
+    WaveletNotificationDispatcher dispatcher = newQueueingDispatcher();
+    RecordingSubscriber subscriber = new RecordingSubscriber(200);
+    dispatcher.subscribe(subscriber);
+
+    List<Long> expected = Lists.newArrayList();
+    for (long v = 1; v <= 100; v++) {
+      dispatcher.waveletCommitted(WAVELET_NAME_1, HashedVersion.unsigned(v), NO_DOMAINS);
+      dispatcher.waveletCommitted(WAVELET_NAME_2, HashedVersion.unsigned(v), NO_DOMAINS);
+      expected.add(v);
+    }
+    assertTrue(subscriber.commits.await(5, TimeUnit.SECONDS));
+    assertEquals(expected, subscriber.versionsOf(WAVELET_NAME_1));
+    assertEquals(expected, subscriber.versionsOf(WAVELET_NAME_2));
+    assertNotSame(Thread.currentThread(), subscriber.thread);
+  }
+
+  public void testSlowSubscriberDoesNotHoldUpOthers() throws Exception {
+    WaveletNotificationDispatcher dispatcher = newQueueingDispatcher();
+    final CountDownLatch release = new CountDownLatch(1);
+    RecordingSubscriber slow = new RecordingSubscriber(3) {
+      @Override
+      public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        super.waveletCommitted(waveletName, version);
+      }
+    };
+    RecordingSubscriber fast = new RecordingSubscriber(3);
+    dispatcher.subscribe(slow);
+    dispatcher.subscribe(fast);
+
+    for (long v = 1; v <= 3; v++) {
+      dispatcher.waveletCommitted(WAVELET_NAME_1, HashedVersion.unsigned(v), NO_DOMAINS);
+    }
+    assertTrue(fast.commits.await(5, TimeUnit.SECONDS));
+    assertEquals(3, slow.commits.getCount());
+    WaveletNotificationDispatcher.DispatchQueue slowQueue = queueOf(dispatcher, slow);
+    // At most the first notification has been taken off the queue.
+    assertTrue(slowQueue.getQueueDepth() >= 2);
+    assertTrue(slowQueue.getDeliveredCount() <= 1);
+
+    release.countDown();
+    assertTrue(slow.commits.await(5, TimeUnit.SECONDS));
+    assertEquals(3, queueOf(dispatcher, fast).getDeliveredCount());
+    assertTrue(slowQueue.getMaxLagMillis() >= slowQueue.getMeanLagMillis());
+  }
+
+  public void testFailingSubscriberIsUnsubscribed() throws Exception {
+    WaveletNotificationDispatcher dispatcher = newQueueingDispatcher();
+    RecordingSubscriber failing = new RecordingSubscriber(1) {
+      @Override
+      public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+        super.waveletCommitted(waveletName, version);
+        throw new RuntimeException("expected");
+      }
+    };
+    dispatcher.subscribe(failing);
+
+    dispatcher.waveletCommitted(WAVELET_NAME_1, HashedVersion.unsigned(1), NO_DOMAINS);
+    assertTrue(failing.commits.await(5, TimeUnit.SECONDS));
+    // The federation queue is left.
+    for (int i = 0; i < 100 && dispatcher.getDispatchQueues().size() > 1; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, dispatcher.getDispatchQueues().size());
+    dispatcher.waveletCommitted(WAVELET_NAME_1, HashedVersion.unsigned(2), NO_DOMAINS);
+    assertEquals(1, failing.versions.size());
+  }
+
+  public void testRemoteDomainsAreNotifiedThroughQueue() throws Exception {
+    final CountDownLatch notified = new CountDownLatch(1);
+    WaveletFederationListener host = mock(WaveletFederationListener.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        notified.countDown();
+        return null;
+      }
+    }).when(host).waveletCommitUpdate(eq(WAVELET_NAME_1), any(ProtocolHashedVersion.class),
+        any(WaveletFederationListener.WaveletUpdateCallback.class));
+    when(federationHostFactory.listenerForDomain(REMOTE_DOMAIN)).thenReturn(host);
+    WaveletNotificationDispatcher dispatcher = newQueueingDispatcher();
+
+    dispatcher.waveletCommitted(WAVELET_NAME_1, HashedVersion.unsigned(1),
+        ImmutableSet.of(DOMAIN, REMOTE_DOMAIN));
+    assertTrue(notified.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testFailingFederationNotificationDoesNotStopQueue() throws Exception {
+    final CountDownLatch notified = new CountDownLatch(1);
+    WaveletFederationListener host = mock(WaveletFederationListener.class);
+    doAnswer(new Answer<Void>() {
+      private boolean first = true;
+
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        if (first) {
+          first = false;
+          throw new RuntimeException("expected");
+        }
+        notified.countDown();
+        return null;
+      }
+    }).when(host).waveletCommitUpdate(eq(WAVELET_NAME_1), any(ProtocolHashedVersion.class),
+        any(WaveletFederationListener.WaveletUpdateCallback.class));
+    when(federationHostFactory.listenerForDomain(REMOTE_DOMAIN)).thenReturn(host);
+    WaveletNotificationDispatcher dispatcher = newQueueingDispatcher();
+
+    dispatcher.waveletCommitted(WAVELET_NAME_1, HashedVersion.unsigned(1),
+        ImmutableSet.of(DOMAIN, REMOTE_DOMAIN));
+    dispatcher.waveletCommitted(WAVELET_NAME_1, HashedVersion.unsigned(2),
+        ImmutableSet.of(DOMAIN, REMOTE_DOMAIN));
+    assertTrue(notified.await(5, TimeUnit.SECONDS));
+  }
+
+  private WaveletNotificationDispatcher newQueueingDispatcher() {
+    return new WaveletNotificationDispatcher(certificateManager, federationHostFactory, true,
+        executor);
+  }
+
+  private static WaveletNotificationDispatcher.DispatchQueue queueOf(
+      WaveletNotificationDispatcher dispatcher, WaveBus.Subscriber subscriber) {
+    for (WaveletNotificationDispatcher.DispatchQueue queue : dispatcher.getDispatchQueues()) {
+      if (queue.getName().equals(subscriber.toString())) {
+        return queue;
+      }
+    }
+    throw new AssertionError("No queue for " + subscriber);
+  }
+}
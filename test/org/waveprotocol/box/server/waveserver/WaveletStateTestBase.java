@@ -19,6 +19,7 @@ package org.waveprotocol.box.server.waveserver;
 
 import static org.mockito.Mockito.mock;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -55,13 +56,13 @@ import java.util.concurrent.Future;
  */
 public abstract class WaveletStateTestBase extends TestCase {
 
-  private static final WaveletName NAME = WaveletName.of(WaveId.of("example.com", "waveid"),
+  protected static final WaveletName NAME = WaveletName.of(WaveId.of("example.com", "waveid"),
       WaveletId.of("example.com", "waveletid"));
   private static final ParticipantId AUTHOR = ParticipantId.ofUnsafe("author@example.com");
   private static final DeltaTestUtil UTIL = new DeltaTestUtil(AUTHOR);
   private static final long TS = 1234567890L;
   private static final long TS2 = TS + 1;
-  private static final long TS3 = TS2 + 1;
+  protected static final long TS3 = TS2 + 1;
 
   private static final IdURIEncoderDecoder URI_CODEC =
       new IdURIEncoderDecoder(new JavaUrlCodec());
@@ -81,11 +82,11 @@ public abstract class WaveletStateTestBase extends TestCase {
    */
   protected abstract void awaitPersistence() throws Exception;
 
-  private WaveletDeltaRecord d1;
-  private WaveletDeltaRecord d2;
-  private WaveletDeltaRecord d3;
+  protected WaveletDeltaRecord d1;
+  protected WaveletDeltaRecord d2;
+  protected WaveletDeltaRecord d3;
 
-  private WaveletState target;
+  protected WaveletState target;
 
   @Override
   public void setUp() throws Exception {
@@ -131,6 +132,20 @@ public abstract class WaveletStateTestBase extends TestCase {
     // Last-modified-time doesn't change due to unworthiness.
   }
 
+  public void testImmutableSnapshotIsUnaffectedByLaterDeltas() throws Exception {
+    assertNull(target.getImmutableSnapshot());
+    appendDeltas(d1);
+    ReadableWaveletData snapshot = target.getImmutableSnapshot();
+    assertSame(snapshot, target.getImmutableSnapshot());
+
+    appendDeltas(d2);
+    assertEquals(d1.getResultingVersion(), snapshot.getHashedVersion());
+    assertEquals(TS, snapshot.getLastModifiedTime());
+    ReadableWaveletData updated = target.getImmutableSnapshot();
+    assertEquals(d2.getResultingVersion(), updated.getHashedVersion());
+    assertEquals(target.getSnapshot().getParticipants(), updated.getParticipants());
+  }
+
   public void testHashedVersionAccessibleOnDeltaBoundaries() throws Exception {
     appendDeltas(d1, d2, d3);
     assertEquals(V0, target.getHashedVersion(0));
@@ -214,6 +229,25 @@ public abstract class WaveletStateTestBase extends TestCase {
     checkHistoryForDeltas(d1, d2, d3);
   }
 
+  public void testLimitedDeltaHistoryStopsAtLimits() throws Exception {
+    appendDeltas(d1, d2, d3);
+    HashedVersion endVersion = d3.getResultingVersion();
+    long d1Size = d1.applied.getByteString().size();
+    long d2Size = d2.applied.getByteString().size();
+
+    assertEquals(ImmutableList.of(d1.applied, d2.applied, d3.applied),
+        target.getAppliedDeltaHistory(V0, endVersion, Long.MAX_VALUE, 3));
+    assertEquals(ImmutableList.of(d1.applied, d2.applied),
+        target.getAppliedDeltaHistory(V0, endVersion, Long.MAX_VALUE, 2));
+    assertEquals(ImmutableList.of(d1.applied, d2.applied),
+        target.getAppliedDeltaHistory(V0, endVersion, d1Size + d2Size, 3));
+    // The first delta is read even if it is longer than the limit.
+    assertEquals(ImmutableList.of(d1.applied),
+        target.getAppliedDeltaHistory(V0, endVersion, 1, 3));
+    assertNull(target.getAppliedDeltaHistory(V0,
+        HashedVersion.unsigned(endVersion.getVersion()), Long.MAX_VALUE, 3));
+  }
+
   /**
    * Checks that a request for the deltas spanning a contiguous sequence of
    * delta facets produces correct results.
@@ -240,6 +274,25 @@ public abstract class WaveletStateTestBase extends TestCase {
     }
   }
 
+  public void testFindsDeltaByAuthor() throws Exception {
+    appendDeltas(d1, d2, d3);
+    assertEquals(d2.appliedAtVersion,
+        target.findDeltaByAuthor(d2.appliedAtVersion, d3.getResultingVersion(), AUTHOR));
+    assertEquals(d3.getResultingVersion(), target.findDeltaByAuthor(V0,
+        d3.getResultingVersion(), ParticipantId.ofUnsafe("other@example.com")));
+
+    // Wrong start hash.
+    assertNull(target.findDeltaByAuthor(HashedVersion.unsigned(0), d3.getResultingVersion(),
+        AUTHOR));
+  }
+
+  public void testComposedDeltaHistoryRequiresCorrectHash() throws Exception {
+    appendDeltas(d1, d2);
+    assertNotNull(target.getComposedDeltaHistory(V0, d2.getResultingVersion()));
+    assertNull(target.getComposedDeltaHistory(V0,
+        HashedVersion.unsigned(d1.getResultingVersion().getVersion())));
+  }
+
   public void checkSingleDeltaPersistFutureDone() throws Exception {
     appendDeltas(d1);
     Future<Void> future = target.persist(d1.getResultingVersion());
@@ -276,7 +329,7 @@ public abstract class WaveletStateTestBase extends TestCase {
   /**
    * Applies a delta to the target.
    */
-  private void appendDeltas(WaveletDeltaRecord... deltas) throws InvalidProtocolBufferException,
+  protected void appendDeltas(WaveletDeltaRecord... deltas) throws InvalidProtocolBufferException,
       OperationException {
     for (WaveletDeltaRecord delta : deltas) {
       target.appendDelta(delta.appliedAtVersion, delta.transformed, delta.applied);
@@ -287,7 +340,7 @@ public abstract class WaveletStateTestBase extends TestCase {
    * Creates a delta of no-ops and builds the corresponding applied and
    * transformed delta objects.
    */
-  private static WaveletDeltaRecord makeDelta(HashedVersion appliedAtVersion, long timestamp,
+  protected static WaveletDeltaRecord makeDelta(HashedVersion appliedAtVersion, long timestamp,
       int numOps) throws InvalidProtocolBufferException {
     // Use no-op delta so the ops can actually apply.
     WaveletDelta delta = UTIL.makeNoOpDelta(appliedAtVersion, timestamp, numOps);
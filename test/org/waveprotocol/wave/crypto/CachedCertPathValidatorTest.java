@@ -28,7 +28,7 @@ public class CachedCertPathValidatorTest extends TestCase {
 
   private FakeTimeSource timeSource;
   private CachedCertPathValidator validator;
-  private VerifiedCertChainCache cache;
+  private DefaultCacheImpl cache;
   private final List<X509Certificate> serverChain = Lists.newArrayList(
       CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.INTERMEDIATE_PUB_CERT);
 
@@ -44,6 +44,14 @@ public class CachedCertPathValidatorTest extends TestCase {
     validator.validate(serverChain);
   }
 
+  public void testCachedValidation() throws Exception {
+    validator.validate(serverChain);
+    validator.validate(serverChain);
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(0.5, cache.getHitRate());
+  }
+
   public void testOutOfOrder() throws Exception {
     try {
       validator.validate(Lists.newArrayList(
@@ -48,6 +48,7 @@ public class WaveSignatureVerifierTest extends TestCase {
 
   private DefaultCertPathStore store;
   private WaveSignatureVerifier verifier;
+  private int signerLookups;
 
   @Override
   protected void setUp() throws Exception {
@@ -58,7 +59,13 @@ public class WaveSignatureVerifierTest extends TestCase {
     DefaultCacheImpl cache = new DefaultCacheImpl(timeSource);
     CachedCertPathValidator validator = new CachedCertPathValidator(cache,
         timeSource, new FakeTrustRootsProvider(CertConstantUtil.CA_PUB_CERT));
-    store = new DefaultCertPathStore();
+    store = new DefaultCertPathStore() {
+      @Override
+      public SignerInfo getSignerInfo(byte[] signerId) {
+        signerLookups++;
+        return super.getSignerInfo(signerId);
+      }
+    };
     verifier = new WaveSignatureVerifier(validator, store);
   }
 
@@ -76,6 +83,28 @@ public class WaveSignatureVerifierTest extends TestCase {
     verifier.verify(MESSAGE, signature, AUTHORITY);
   }
 
+  public void testVerify_signerIsLookedUpOnce() throws Exception {
+
+    storeSignerInfo(ImmutableList.of(CertConstantUtil.SERVER_PUB_CERT,
+        CertConstantUtil.INTERMEDIATE_PUB_CERT));
+
+    ProtocolSignature signature = ProtocolSignature.newBuilder()
+        .setSignatureBytes(ByteString.copyFrom(deBase64(SIGNATURE)))
+        .setSignerId(ByteString.copyFrom(deBase64(SIGNER_ID)))
+        .setSignatureAlgorithm(SignatureAlgorithm.SHA1_RSA)
+        .build();
+
+    verifier.verify(MESSAGE, signature, AUTHORITY);
+    verifier.verify(MESSAGE, signature, AUTHORITY);
+    try {
+      verifier.verify(MESSAGE, signature, "some_other_authority.com");
+      fail("expected exception, but didn't get it");
+    } catch (SignatureException e) {
+      // expected
+    }
+    assertEquals(1, signerLookups);
+  }
+
   public void testVerify_wrongAuthority() throws Exception {
 
     storeSignerInfo(ImmutableList.of(CertConstantUtil.SERVER_PUB_CERT,
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.federation.xmpp;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.federation.WaveletFederationListener;
+import org.waveprotocol.wave.federation.FederationErrorProto.FederationError;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Measures the packets and bytes sent for a burst of wavelet updates to a
+ * stand-in remote XMPP component, which acknowledges each packet after a
+ * fixed round trip time.
+ */
+public class XmppFederationHostForDomainLargeTest extends TestCase {
+
+  private static final Logger LOG =
+      Logger.getLogger(XmppFederationHostForDomainLargeTest.class.getCanonicalName());
+
+  private static final String LOCAL_JID = "wave.acmewave.com";
+  private static final String REMOTE_DOMAIN = "initech-corp.com";
+  private static final String REMOTE_JID = "wave." + REMOTE_DOMAIN;
+
+  private static final int WAVELETS = 200;
+  private static final int UPDATES = 5000;
+  private static final int ROUND_TRIP_MS = 5;
+  private static final ByteString DELTA = ByteString.copyFrom(new byte[200]);
+
+  public void testBurstOfUpdatesIsBatched() throws Exception {
+    final ScheduledExecutorService remote = Executors.newSingleThreadScheduledExecutor();
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicInteger packetsSent = new AtomicInteger();
+    final XmppManager[] manager = new XmppManager[1];
+
+    // The stand-in remote component acknowledges each packet after the round
+    // trip time.
+    MockOutgoingPacketTransport transport =
+        new MockOutgoingPacketTransport(new MockOutgoingPacketTransport.Router() {
+          @Override
+          public void route(final Packet packet) {
+            packetsSent.incrementAndGet();
+            bytesSent.addAndGet(packet.toXML().length());
+            remote.schedule(new Runnable() {
+              @Override
+              public void run() {
+                Message receipt = XmppUtil.createResponseMessage((Message) packet);
+                receipt.addChildElement("received", XmppNamespace.NAMESPACE_XMPP_RECEIPTS);
+                manager[0].receivePacket(receipt);
+              }
+            }, ROUND_TRIP_MS, TimeUnit.MILLISECONDS);
+          }
+        }) {
+          @Override
+          public synchronized void sendPacket(Packet packet) {
+            // Packets aren't kept, as the queue would only grow.
+            router.route(packet);
+          }
+        };
+    MockDisco disco = new MockDisco(null);
+    disco.testInjectInDomainToJidMap(REMOTE_DOMAIN, REMOTE_JID);
+    manager[0] = new XmppManager(mock(XmppFederationHost.class),
+        mock(XmppFederationRemote.class), disco, transport, LOCAL_JID);
+    XmppFederationHostForDomain host =
+        new XmppFederationHostForDomain(REMOTE_DOMAIN, manager[0], disco, LOCAL_JID);
+
+    final CountDownLatch acknowledged = new CountDownLatch(UPDATES);
+    final AtomicInteger failures = new AtomicInteger();
+    WaveletFederationListener.WaveletUpdateCallback callback =
+        new WaveletFederationListener.WaveletUpdateCallback() {
+          @Override
+          public void onSuccess() {
+            acknowledged.countDown();
+          }
+
+          @Override
+          public void onFailure(FederationError error) {
+            failures.incrementAndGet();
+            acknowledged.countDown();
+          }
+        };
+
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < UPDATES; i++) {
+      WaveletName waveletName = WaveletName.of(WaveId.of(REMOTE_DOMAIN, "wave" + (i % WAVELETS)),
+          WaveletId.of(REMOTE_DOMAIN, "conv+root"));
+      host.waveletDeltaUpdate(waveletName, ImmutableList.of(DELTA), callback);
+    }
+    assertTrue(acknowledged.await(60, TimeUnit.SECONDS));
+    long elapsedNanos = System.nanoTime() - startNanos;
+    remote.shutdown();
+
+    LOG.info(String.format("%d updates of %d wavelets acknowledged in %.1fms: "
+        + "%d packets, %d bytes; a packet per update would take %d packets, at least %dms",
+        UPDATES, WAVELETS, elapsedNanos / 1e6, packetsSent.get(), bytesSent.get(), UPDATES,
+        (long) UPDATES * ROUND_TRIP_MS / XmppFederationHostForDomain.MAX_IN_FLIGHT_PACKETS));
+    assertEquals(0, failures.get());
+    assertTrue(packetsSent.get() < UPDATES / 10);
+  }
+}
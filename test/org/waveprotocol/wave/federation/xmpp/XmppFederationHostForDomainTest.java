@@ -19,6 +19,8 @@ package org.waveprotocol.wave.federation.xmpp;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.google.protobuf.ByteString;
@@ -34,6 +36,7 @@ import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.id.URIEncoderDecoder.EncodingException;
+import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 
 import java.util.Collections;
@@ -65,6 +68,7 @@ public class XmppFederationHostForDomainTest extends TestCase {
 
 
   private MockDisco disco;
+  private XmppManager manager;
   private XmppFederationHostForDomain fedHost;
   private MockOutgoingPacketTransport transport;
 
@@ -109,7 +113,7 @@ public class XmppFederationHostForDomainTest extends TestCase {
 
     disco = new MockDisco(null);
     transport = new MockOutgoingPacketTransport();
-    XmppManager manager =
+    manager =
         new XmppManager(mock(XmppFederationHost.class), mock(XmppFederationRemote.class),
                         disco, transport, LOCAL_JID);
     fedHost = new XmppFederationHostForDomain(REMOTE_DOMAIN, manager, disco, LOCAL_JID);
@@ -188,10 +192,84 @@ public class XmppFederationHostForDomainTest extends TestCase {
     });
     assertEquals(0, transport.packetsSent);
 
-    successDiscoRequest(); // 2 packets outstanding - the commit and the update
+    successDiscoRequest(); // the commit and the update are sent in one packet
     checkUpdateAndCommit();
   }
 
+  /**
+   * Tests that updates for several wavelets are sent in one packet while as
+   * many packets as allowed await their receipts.
+   */
+  public void testUpdatesAreBatchedWhilePacketsAreInFlight() throws Exception {
+    for (int i = 0; i < XmppFederationHostForDomain.MAX_IN_FLIGHT_PACKETS; i++) {
+      update(waveletName(i), mock(WaveletFederationListener.WaveletUpdateCallback.class));
+      successDiscoRequest();
+    }
+    assertEquals(XmppFederationHostForDomain.MAX_IN_FLIGHT_PACKETS, transport.packetsSent);
+
+    WaveletFederationListener.WaveletUpdateCallback callback =
+        mock(WaveletFederationListener.WaveletUpdateCallback.class);
+    update(waveletName(100), callback);
+    update(waveletName(101), callback);
+    successDiscoRequest();
+    assertEquals(XmppFederationHostForDomain.MAX_IN_FLIGHT_PACKETS, transport.packetsSent);
+
+    acknowledge(transport.packets.poll());
+    assertEquals(XmppFederationHostForDomain.MAX_IN_FLIGHT_PACKETS + 1, transport.packetsSent);
+    assertEquals(2, countUpdates(transport.lastPacketSent));
+    acknowledge(transport.lastPacketSent);
+    verify(callback, times(2)).onSuccess();
+  }
+
+  /**
+   * Tests that updates for a wavelet wait while earlier updates for it await
+   * their receipt.
+   */
+  public void testUpdatesForAWaveletWaitForItsPacket() throws Exception {
+    update(mock(WaveletFederationListener.WaveletUpdateCallback.class));
+    successDiscoRequest();
+    update(mock(WaveletFederationListener.WaveletUpdateCallback.class));
+    successDiscoRequest();
+    assertEquals(1, transport.packetsSent);
+
+    acknowledge(transport.packets.poll());
+    assertEquals(2, transport.packetsSent);
+  }
+
+  /**
+   * Tests that only the updates of a failed packet are sent again.
+   */
+  public void testFailedUpdatesAreResent() throws Exception {
+    update(waveletName(1), mock(WaveletFederationListener.WaveletUpdateCallback.class));
+    successDiscoRequest();
+    update(waveletName(2), mock(WaveletFederationListener.WaveletUpdateCallback.class));
+    successDiscoRequest();
+    Packet first = transport.packets.poll();
+    acknowledge(transport.packets.poll());
+
+    manager.causeImmediateTimeout(first);
+    assertEquals(3, transport.packetsSent);
+    assertEquals(1, countUpdates(transport.lastPacketSent));
+    assertTrue(transport.lastPacketSent.toString().contains(
+        XmppUtil.waveletNameCodec.waveletNameToURI(waveletName(1))));
+  }
+
+  /**
+   * Tests that updates are failed after they have been tried enough times.
+   */
+  public void testUpdatesFailAfterMaxAttempts() throws Exception {
+    WaveletFederationListener.WaveletUpdateCallback callback =
+        mock(WaveletFederationListener.WaveletUpdateCallback.class);
+    update(callback);
+    successDiscoRequest();
+    for (int i = 0; i < XmppFederationHostForDomain.MAX_ATTEMPTS; i++) {
+      manager.causeImmediateTimeout(transport.lastPacketSent);
+    }
+    assertEquals(XmppFederationHostForDomain.MAX_ATTEMPTS, transport.packetsSent);
+    verify(callback).onFailure((FederationError) any());
+    verify(callback, never()).onSuccess();
+  }
+
 
   /**
    * Test we don't fall in a heap if disco fails.
@@ -227,10 +305,42 @@ public class XmppFederationHostForDomainTest extends TestCase {
    * @param updateCallback result callback
    */
   private void update(WaveletFederationListener.WaveletUpdateCallback updateCallback) {
-    fedHost.waveletUpdate(WAVELET_NAME, Collections.<ByteString>singletonList(DELTA_BYTESTRING),
+    update(WAVELET_NAME, updateCallback);
+  }
+
+  /**
+   * Send a single update message containing a dummy delta for the given
+   * wavelet via {@link #fedHost}.
+   *
+   * @param updateCallback result callback
+   */
+  private void update(WaveletName waveletName,
+      WaveletFederationListener.WaveletUpdateCallback updateCallback) {
+    fedHost.waveletUpdate(waveletName, Collections.<ByteString>singletonList(DELTA_BYTESTRING),
         null, updateCallback);
   }
 
+  private static WaveletName waveletName(int i) {
+    return WaveletName.of(WaveId.of(REMOTE_DOMAIN, "wave" + i),
+        WaveletId.of(REMOTE_DOMAIN, "wavelet"));
+  }
+
+  /**
+   * Sends the receipt of the given packet to the manager.
+   */
+  private void acknowledge(Packet packet) {
+    Message receipt = XmppUtil.createResponseMessage((Message) packet);
+    receipt.addChildElement("received", XmppNamespace.NAMESPACE_XMPP_RECEIPTS);
+    manager.receivePacket(receipt);
+  }
+
+  /**
+   * Returns the number of wavelet updates in the given packet.
+   */
+  private static int countUpdates(Packet packet) {
+    return packet.getElement().element("event").element("items").elements("item").size();
+  }
+
   /**
    * Confirm that there is one outstanding disco request to REMOTE_DOMAIN, and
    * force its success.
@@ -280,19 +390,17 @@ public class XmppFederationHostForDomainTest extends TestCase {
   }
 
   /**
-   * Checks an update and then a commit message were sent.
+   * Checks an update and a commit were sent in one message.
    */
   private void checkUpdateAndCommit() {
-    assertEquals(2, transport.packetsSent);
+    assertEquals(1, transport.packetsSent);
     Packet packet = transport.packets.poll();
     assertEquals(REMOTE_JID, packet.getTo().toString());
     assertEquals(LOCAL_JID, packet.getFrom().toString());
-    assertEquals(EXPECTED_UPDATE_MESSAGE, packet.toString());
-
-    packet = transport.packets.poll();
-    assertEquals(REMOTE_JID, packet.getTo().toString());
-    assertEquals(LOCAL_JID, packet.getFrom().toString());
-    assertEquals(generateExpectedCommitMessage("2" + TEST_ID_SUFFIX), packet.toString());
+    assertEquals(EXPECTED_UPDATE_MESSAGE.replace("</applied-delta>\n",
+        "</applied-delta>\n" + "          <commit-notice version=\"" + WAVELET_VERSION.getVersion()
+        + "\" history-hash=\"" + Base64Util.encode(WAVELET_VERSION.getHistoryHash()) + "\"/>\n"),
+        packet.toString());
   }
 
   private static String generateExpectedCommitMessage(String testId) {
@@ -322,6 +322,53 @@ public class XmppFederationRemoteTest extends TestCase {
     assertEquals(ByteString.EMPTY, commitVersion.getValue().getHistoryHash());
   }
 
+  /**
+   * Tests that the length limit of a history request reaches the foreign
+   * federation host, and that the version at which it truncated the history is
+   * passed back to the wave server.
+   */
+  public void testTruncatedHistoryRequest() {
+    disco.testInjectInDomainToJidMap(REMOTE_DOMAIN, REMOTE_JID);
+
+    HistoryResponseListener listener = mock(HistoryResponseListener.class);
+    remote.requestHistory(REMOTE_WAVELET, REMOTE_DOMAIN, START_VERSION, VERSION_ONE, 1000,
+        listener);
+    manager.receivePacket(transport.packets.poll());
+
+    ArgumentCaptor<HistoryResponseListener> remoteListener =
+        ArgumentCaptor.forClass(HistoryResponseListener.class);
+    verify(mockProvider).requestHistory(eq(REMOTE_WAVELET), eq(LOCAL_JID), eq(START_VERSION),
+        eq(VERSION_ONE), eq(1000L), remoteListener.capture());
+    remoteListener.getValue().onSuccess(ImmutableList.of(DELTA_BYTESTRING), VERSION_ONE,
+        VERSION_ONE.getVersion());
+    manager.receivePacket(transport.packets.poll());
+
+    verify(listener, never()).onFailure(any(FederationError.class));
+    verify(listener).onSuccess(eq(ImmutableList.of(DELTA_BYTESTRING)),
+        any(ProtocolHashedVersion.class), eq(VERSION_ONE.getVersion()));
+  }
+
+  /**
+   * Tests that a malformed history response is passed back to the wave server
+   * as a failure only.
+   */
+  public void testMalformedHistoryResponse() {
+    disco.testInjectInDomainToJidMap(REMOTE_DOMAIN, REMOTE_JID);
+
+    HistoryResponseListener listener = mock(HistoryResponseListener.class);
+    remote.requestHistory(REMOTE_WAVELET, REMOTE_DOMAIN, START_VERSION, VERSION_ONE, -1, listener);
+    IQ request = (IQ) transport.packets.poll();
+
+    IQ response = IQ.createResultIQ(request);
+    response.setChildElement("pubsub", XmppNamespace.NAMESPACE_PUBSUB)
+        .addElement("items").addElement("item").addElement("unexpected");
+    manager.receivePacket(response);
+
+    verify(listener).onFailure(any(FederationError.class));
+    verify(listener, never())
+        .onSuccess(anyListByteString(), any(ProtocolHashedVersion.class), anyLong());
+  }
+
   /**
    * Helper method wrapping an unchecked mock conversion.
    */